@@ -0,0 +1,61 @@
+package com.gmurru.bleframework;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joystick setpoints sent faster than the link writes them: the write in flight never completes, so every command
+ * meets a full queue. The plain writes allocate their packet and fill the queue with outdated values, the drive
+ * commands take their packet from the pool and replace the pending one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandQueueBenchmark {
+    private static final UUID SERVICE = UUID.fromString(RBLGattAttributes.BLE_SHIELD_SERVICE);
+    private static final UUID RX = UUID.fromString(RBLGattAttributes.BLE_SHIELD_RX);
+
+    private GattOperationQueue writes;
+    private GattOperationQueue commands;
+    private final BufferPool pool = new BufferPool(RobotCommandEncoder.COMMAND_SIZE);
+    private final byte[] command = new byte[RobotCommandEncoder.COMMAND_SIZE];
+    private int speed;
+
+    @Setup
+    public void setUp() {
+        GattOperationQueue.Executor neverCompletes = new GattOperationQueue.Executor() {
+            @Override
+            public boolean execute(GattOperation operation) {
+                return true;
+            }
+        };
+        writes = new GattOperationQueue(neverCompletes);
+        commands = new GattOperationQueue(neverCompletes);
+        writes.enqueue(GattOperation.writeCharacteristic(SERVICE, RX, new byte[1], false));
+        commands.enqueue(GattOperation.writeCharacteristic(SERVICE, RX, new byte[1], false));
+    }
+
+    @Benchmark
+    public boolean plainWrite() {
+        byte[] data = new byte[RobotCommandEncoder.COMMAND_SIZE];
+        RobotCommandEncoder.encodeDrive(speed++ & 0xFF, 100, data);
+        return writes.enqueue(GattOperation.writeCharacteristic(SERVICE, RX, data, false));
+    }
+
+    @Benchmark
+    public boolean driveCommand() {
+        RobotCommandEncoder.encodeDrive(speed++ & 0xFF, 100, command);
+        byte[] packet = pool.acquire();
+        System.arraycopy(command, 0, packet, 0, RobotCommandEncoder.COMMAND_SIZE);
+        return commands.enqueue(GattOperation.writeCommand(SERVICE, RX, packet, false,
+                RobotCommandEncoder.DRIVE_CHANNEL, pool));
+    }
+}
@@ -0,0 +1,82 @@
+package com.gmurru.bleframework;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The device list polled by Unity while scanning: _GetListOfDevices, a snapshot of the registry encoded in JSON, and
+ * _ExportDevices, the whole list or only the devices changed since the previous export written in the shared buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceListBenchmark {
+    @Param({"5", "50"})
+    public int devices;
+
+    private DeviceRegistry registry;
+    private DeviceListEncoder encoder;
+    private long exportedVersion;
+    private List<DeviceRegistry.Entry> snapshot;
+    private byte[] advertisement;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        registry = new DeviceRegistry();
+        for (int i = 0; i < devices; i++) {
+            SimulatedPeripheral peripheral = new SimulatedPeripheral(String.format("00:11:22:AA:BB:%02X", i), "Shield " + i);
+            registry.update(peripheral.getAddress(), peripheral.getName(), -40 - i, peripheral.getAdvertisement(), now);
+        }
+        snapshot = registry.snapshot(DeviceRegistry.BY_DISCOVERY);
+        advertisement = new SimulatedPeripheral("00:11:22:AA:BB:00", "Shield 0").getAdvertisement();
+        encoder = new DeviceListEncoder();
+        encoder.encode(registry, 0, true, now);
+        exportedVersion = encoder.getVersion();
+    }
+
+    @Benchmark
+    public String encode() {
+        return DeviceListEncoder.toJson(snapshot);
+    }
+
+    @Benchmark
+    public String snapshotAndEncode() {
+        return DeviceListEncoder.toJson(registry.snapshot(DeviceRegistry.BY_DISCOVERY));
+    }
+
+    @Benchmark
+    public int exportAll() {
+        return encoder.encode(registry, 0, true, now);
+    }
+
+    /*
+    One device advertised since the previous export, the usual case of a frame while scanning
+    */
+    @Benchmark
+    public int exportChanges() {
+        now++;
+        registry.update("00:11:22:AA:BB:00", "Shield 0", -40, advertisement, now);
+        int count = encoder.encode(registry, exportedVersion, true, now);
+        exportedVersion = encoder.getVersion();
+        return count;
+    }
+
+    /*
+    A scan result of a known device, its scan record is unchanged so it is not parsed again
+    */
+    @Benchmark
+    public DeviceRegistry.Entry updateFromScan() {
+        now++;
+        return registry.update("00:11:22:AA:BB:00", "Shield 0", -40, advertisement, now);
+    }
+}
@@ -0,0 +1,127 @@
+package com.gmurru.bleframework;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A GattConnection linked to an echoing SimulatedPeripheral without latency, so only the framework is measured:
+ * the characteristic cache (the old {@code _map}) and the round trip of a packet through the write queue, the
+ * transport thread and the receive buffer.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GattConnectionBenchmark {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    @Param({"20"})
+    public int size;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final AtomicLong received = new AtomicLong();
+
+    private SimulatedTransport transport;
+    private GattConnection connection;
+    private byte[] packet;
+    private UUID unknown;
+
+    @Setup
+    public void setUp() throws Exception {
+        transport = new SimulatedTransport(1);
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(ADDRESS, "Shield");
+        peripheral.setLatency(0, 0);
+        peripheral.setEcho(true);
+        transport.addPeripheral(peripheral);
+
+        connection = new GattConnection(transport, ADDRESS, new GattConnection.Callback() {
+            @Override
+            public void onConnectionStateChange(GattConnection connection, boolean connected) {
+            }
+
+            @Override
+            public void onServicesDiscovered(GattConnection connection) {
+                connection.cacheCharacteristic(SimulatedPeripheral.SERVICE, SimulatedPeripheral.TX);
+                connection.cacheCharacteristic(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX);
+                connection.setCharacteristicNotification(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, true);
+                ready.countDown();
+            }
+
+            @Override
+            public void onRssiRead(GattConnection connection, int rssi) {
+            }
+
+            @Override
+            public void onMtuChanged(GattConnection connection, int mtu) {
+            }
+
+            @Override
+            public void onDataAvailable(GattConnection connection, byte[] value, int length) {
+                connection.getReceiveBuffer().poll();
+                received.incrementAndGet();
+            }
+
+            @Override
+            public void onReconnecting(GattConnection connection, int attempt, long delayMs) {
+            }
+
+            @Override
+            public void onNotification(GattConnection connection, GattSubscription subscription, byte[] value, int length) {
+            }
+
+            @Override
+            public void onAttributeRead(GattConnection connection, UUID characteristic, UUID descriptor, byte[] value,
+                    int status) {
+            }
+        });
+        if (!connection.connect() || !ready.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("simulated connection failed");
+        }
+        packet = Payloads.sequence(0, size);
+        unknown = UUID.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+    }
+
+    @TearDown
+    public void tearDown() {
+        transport.shutdown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public UUID characteristicLookup() {
+        return connection.getCharacteristicService(SimulatedPeripheral.RX);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean characteristicMiss() {
+        return connection.hasCharacteristic(unknown);
+    }
+
+    /*
+    Write without response on RX, then wait for the echo to be queued in the receive buffer
+    */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public long echoRoundTrip() {
+        long expected = received.get() + 1;
+        connection.write(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, packet, false);
+        long count;
+        while ((count = received.get()) < expected) {
+            Thread.yield();
+        }
+        return count;
+    }
+}
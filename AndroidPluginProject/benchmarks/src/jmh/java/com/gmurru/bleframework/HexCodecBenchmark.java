@@ -0,0 +1,35 @@
+package com.gmurru.bleframework;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the hexadecimal commands sent by Unity, BleFramework.hexStringToByteArray.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HexCodecBenchmark {
+    @Param({"20", "244"})
+    public int size;
+
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        hex = HexCodec.encode(Payloads.sequence(0, size));
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return HexCodec.decode(hex);
+    }
+}
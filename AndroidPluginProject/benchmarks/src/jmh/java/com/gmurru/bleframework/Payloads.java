@@ -0,0 +1,20 @@
+package com.gmurru.bleframework;
+
+/**
+ * Packets used by the benchmarks.
+ */
+final class Payloads {
+    private Payloads() {
+    }
+
+    /**
+     * @return size bytes counting up from first, printable so they can also be decoded as text
+     */
+    static byte[] sequence(int first, int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('0' + (first + i) % 64);
+        }
+        return payload;
+    }
+}
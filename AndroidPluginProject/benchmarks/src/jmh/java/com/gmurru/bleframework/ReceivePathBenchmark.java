@@ -0,0 +1,104 @@
+package com.gmurru.bleframework;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per packet of the ways Unity can read the received data: the historical {@code new String(_dataRx)},
+ * _GetData (one array per packet), _AcquireData (in place in the arena), _GetAllData (one array per burst) and
+ * _FlushReceivedData (the shared direct buffer). Every benchmark queues a burst of BURST packets in the receive
+ * buffer of a connection, stamped with their receive time like in the GATT callback, then reads it. The flush also
+ * records the age of every packet, as _FlushReceivedData does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReceivePathBenchmark {
+    private static final int BURST = 32;
+    private static final byte[] ADDRESS = ReceiveBatch.parseAddress("00:11:22:AA:BB:CC");
+
+    @Param({"20", "244"})
+    public int size;
+
+    private byte[][] packets;
+    private PacketRingBuffer buffer;
+    private ReceiveBatch batch;
+    private LatencyHistogram ages;
+
+    @Setup
+    public void setUp() {
+        packets = new byte[BURST][];
+        for (int i = 0; i < BURST; i++) {
+            packets[i] = Payloads.sequence(i, size);
+        }
+        buffer = new PacketRingBuffer();
+        batch = new ReceiveBatch();
+        ages = new LatencyHistogram();
+    }
+
+    private void receiveBurst() {
+        for (byte[] packet : packets) {
+            buffer.offer(packet, 0, packet.length, System.nanoTime());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void legacyString(Blackhole blackhole) {
+        receiveBurst();
+        byte[] packet;
+        while ((packet = buffer.poll()) != null) {
+            blackhole.consume(new String(packet));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void pollPerPacket(Blackhole blackhole) {
+        receiveBurst();
+        byte[] packet;
+        while ((packet = buffer.poll()) != null) {
+            blackhole.consume(packet);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long acquireInPlace() {
+        receiveBurst();
+        long sum = 0;
+        ByteBuffer packet;
+        while ((packet = buffer.acquire()) != null) {
+            sum += packet.get(0);
+            buffer.release();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public byte[] drainAll() {
+        receiveBurst();
+        return buffer.drainAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int flushToReceiveBatch() {
+        receiveBurst();
+        batch.begin(System.nanoTime());
+        batch.add(buffer, ADDRESS, ages);
+        return batch.end();
+    }
+}
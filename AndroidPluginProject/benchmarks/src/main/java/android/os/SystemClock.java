@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android clock used by GattConnection to stamp the received packets. Like
+ * elapsedRealtimeNanos, System.nanoTime is monotonic, so the ages and round trips measured on the JVM are real.
+ */
+public final class SystemClock
+{
+    private SystemClock()
+    {
+    }
+
+    public static long elapsedRealtimeNanos()
+    {
+        return System.nanoTime();
+    }
+
+    public static long elapsedRealtime()
+    {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,37 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android logger used by GattConnection. Like in the unit tests run with
+ * {@code returnDefaultValues}, the logs are discarded: the benchmarks do not include the cost of logcat.
+ */
+public final class Log
+{
+    private Log()
+    {
+    }
+
+    public static int v(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int d(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int i(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int w(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int e(String tag, String msg)
+    {
+        return 0;
+    }
+}
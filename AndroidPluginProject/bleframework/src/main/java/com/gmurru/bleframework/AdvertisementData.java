@@ -0,0 +1,214 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Fields of a BLE advertisement and scan response, parsed from the raw scan record.
+ *
+ * The scan record is a sequence of AD structures: one length byte, one type byte, then length - 1 bytes of data.
+ * Only the structures used by the framework are kept, the others are skipped. A malformed record is parsed up to
+ * the first structure running past its end.
+ */
+public class AdvertisementData
+{
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_COMPLETE_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /*
+    Value of getTxPowerLevel() when the advertisement does not contain it
+    */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /*
+    Bluetooth base UUID, the 16 bit UUIDs are bits 32 to 47 of it
+    */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    public static final AdvertisementData EMPTY = new AdvertisementData(-1, null, TX_POWER_UNKNOWN,
+            Collections.<UUID>emptyList(), Collections.<Integer, byte[]>emptyMap());
+
+    private final int _flags;
+    private final String _localName;
+    private final int _txPowerLevel;
+    private final List<UUID> _serviceUuids;
+    private final Map<Integer, byte[]> _manufacturerData;
+
+    private AdvertisementData(int flags, String localName, int txPowerLevel, List<UUID> serviceUuids, Map<Integer, byte[]> manufacturerData)
+    {
+        this._flags = flags;
+        this._localName = localName;
+        this._txPowerLevel = txPowerLevel;
+        this._serviceUuids = serviceUuids;
+        this._manufacturerData = manufacturerData;
+    }
+
+    /**
+     * @param scanRecord the raw advertisement, as received by the scan callback
+     * @return the parsed fields, {@link #EMPTY} if scanRecord is null or empty
+     */
+    public static AdvertisementData parse(byte[] scanRecord)
+    {
+        if (scanRecord == null || scanRecord.length == 0)
+        {
+            return EMPTY;
+        }
+
+        int flags = -1;
+        String localName = null;
+        int txPowerLevel = TX_POWER_UNKNOWN;
+        List<UUID> serviceUuids = new ArrayList<UUID>();
+        Map<Integer, byte[]> manufacturerData = new LinkedHashMap<Integer, byte[]>();
+
+        int offset = 0;
+        while (offset < scanRecord.length)
+        {
+            int length = scanRecord[offset] & 0xff;
+            if (length == 0)
+            {
+                /* Zero padding at the end of the advertisement */
+                break;
+            }
+            if (offset + 1 + length > scanRecord.length)
+            {
+                break;
+            }
+            int type = scanRecord[offset + 1] & 0xff;
+            int dataOffset = offset + 2;
+            int dataLength = length - 1;
+
+            switch (type)
+            {
+                case TYPE_FLAGS:
+                    if (dataLength > 0)
+                    {
+                        flags = scanRecord[dataOffset] & 0xff;
+                    }
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    for (int i = 0; i + 2 <= dataLength; i += 2)
+                    {
+                        long shortUuid = (scanRecord[dataOffset + i] & 0xff) | ((scanRecord[dataOffset + i + 1] & 0xff) << 8);
+                        serviceUuids.add(new UUID(BASE_UUID_MSB | (shortUuid << 32), BASE_UUID_LSB));
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    for (int i = 0; i + 16 <= dataLength; i += 16)
+                    {
+                        /* 128 bit UUIDs are advertised in little endian */
+                        long lsb = readLittleEndianLong(scanRecord, dataOffset + i);
+                        long msb = readLittleEndianLong(scanRecord, dataOffset + i + 8);
+                        serviceUuids.add(new UUID(msb, lsb));
+                    }
+                    break;
+                case TYPE_SHORT_NAME:
+                    if (localName == null)
+                    {
+                        localName = decodeName(scanRecord, dataOffset, dataLength);
+                    }
+                    break;
+                case TYPE_COMPLETE_NAME:
+                    localName = decodeName(scanRecord, dataOffset, dataLength);
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength > 0)
+                    {
+                        txPowerLevel = scanRecord[dataOffset];
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2)
+                    {
+                        int companyId = (scanRecord[dataOffset] & 0xff) | ((scanRecord[dataOffset + 1] & 0xff) << 8);
+                        byte[] data = new byte[dataLength - 2];
+                        System.arraycopy(scanRecord, dataOffset + 2, data, 0, data.length);
+                        manufacturerData.put(companyId, data);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset += 1 + length;
+        }
+
+        return new AdvertisementData(flags, localName, txPowerLevel, serviceUuids, manufacturerData);
+    }
+
+    private static long readLittleEndianLong(byte[] data, int offset)
+    {
+        long value = 0;
+        for (int i = 7; i >= 0; i--)
+        {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static String decodeName(byte[] data, int offset, int length)
+    {
+        try
+        {
+            return new String(data, offset, length, "UTF-8");
+        }
+        catch (java.io.UnsupportedEncodingException e)
+        {
+            return null;
+        }
+    }
+
+    /*
+    Advertising flags, -1 when the advertisement does not contain them
+    */
+    public int getFlags()
+    {
+        return this._flags;
+    }
+
+    /*
+    Complete local name, or the shortened one if only that is advertised. Null when no name is advertised.
+    */
+    public String getLocalName()
+    {
+        return this._localName;
+    }
+
+    /*
+    Transmit power in dBm, TX_POWER_UNKNOWN when not advertised
+    */
+    public int getTxPowerLevel()
+    {
+        return this._txPowerLevel;
+    }
+
+    public List<UUID> getServiceUuids()
+    {
+        return this._serviceUuids;
+    }
+
+    public boolean hasServiceUuid(UUID uuid)
+    {
+        return this._serviceUuids.contains(uuid);
+    }
+
+    /*
+    Manufacturer specific data by company identifier, without the identifier
+    */
+    public Map<Integer, byte[]> getManufacturerData()
+    {
+        return this._manufacturerData;
+    }
+}
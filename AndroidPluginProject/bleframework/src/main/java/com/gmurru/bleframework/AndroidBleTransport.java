@@ -0,0 +1,382 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+/**
+ * {@link BleTransport} on the Android Bluetooth stack: one {@code BluetoothGatt}
+ * per device and the {@code BluetoothLeScanner} of the adapter. The events are
+ * delivered on the binder threads of the stack.
+ */
+public class AndroidBleTransport implements BleTransport {
+	private final static String TAG = AndroidBleTransport.class.getSimpleName();
+
+	private final Context mContext;
+	private final BluetoothAdapter mBluetoothAdapter;
+	private final Map<String, BluetoothGatt> mGatts = new ConcurrentHashMap<String, BluetoothGatt>();
+
+	private volatile BluetoothLeScanner mScanner;
+	private volatile ScanCallback mScanCallback;
+	private volatile boolean mScanBatched;
+
+	public AndroidBleTransport(Context context, BluetoothAdapter adapter) {
+		this.mContext = context;
+		this.mBluetoothAdapter = adapter;
+	}
+
+	/*
+	 * Forwards the events of a BluetoothGatt to the listener of its
+	 * connection.
+	 */
+	private static class GattCallback extends BluetoothGattCallback {
+		private final GattListener mListener;
+
+		GattCallback(GattListener listener) {
+			this.mListener = listener;
+		}
+
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			if (newState == 2) {
+				this.mListener.onConnectionStateChanged(true, status);
+			} else if (newState == 0) {
+				this.mListener.onConnectionStateChanged(false, status);
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+			this.mListener.onServicesDiscovered(status);
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			this.mListener.onCharacteristicRead(characteristic.getUuid(), characteristic.getValue(), status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			this.mListener.onCharacteristicWrite(characteristic.getUuid(), status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+			this.mListener.onCharacteristicChanged(characteristic.getUuid(), characteristic.getValue());
+		}
+
+		@Override
+		public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			this.mListener.onDescriptorRead(descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+					descriptor.getValue(), status);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			this.mListener.onDescriptorWrite(descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), status);
+		}
+
+		@Override
+		public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+			this.mListener.onRssiRead(rssi, status);
+		}
+
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			this.mListener.onMtuChanged(mtu, status);
+		}
+	}
+
+	@Override
+	public boolean startScan(ScanOptions options, final ScanListener listener) {
+		BluetoothLeScanner scanner = this.mBluetoothAdapter.getBluetoothLeScanner();
+		if (scanner == null) {
+			Log.e(TAG, "No scanner, bluetooth is off");
+			return false;
+		}
+
+		List<ScanFilter> filters = new ArrayList<ScanFilter>();
+		for (ScanOptions.Filter filter : options.getFilters()) {
+			ScanFilter.Builder builder = new ScanFilter.Builder();
+			if (filter.getServiceUuid() != null) {
+				builder.setServiceUuid(new ParcelUuid(filter.getServiceUuid()));
+			}
+			if (filter.getName() != null) {
+				builder.setDeviceName(filter.getName());
+			}
+			if (filter.getAddress() != null) {
+				builder.setDeviceAddress(filter.getAddress().toUpperCase());
+			}
+			filters.add(builder.build());
+		}
+
+		ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(options.getMode());
+		this.mScanBatched = false;
+		if (options.getReportDelay() > 0) {
+			if (this.mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+				settings.setReportDelay(options.getReportDelay());
+				this.mScanBatched = true;
+			} else {
+				Log.w(TAG, "Batch scanning is not supported, the results are reported immediately");
+			}
+		}
+
+		ScanCallback callback = new ScanCallback() {
+			@Override
+			public void onScanResult(int callbackType, ScanResult result) {
+				reportScanResult(result, listener);
+			}
+
+			@Override
+			public void onBatchScanResults(List<ScanResult> results) {
+				for (ScanResult result : results) {
+					reportScanResult(result, listener);
+				}
+			}
+
+			@Override
+			public void onScanFailed(int errorCode) {
+				listener.onScanFailed(errorCode);
+			}
+		};
+		this.mScanner = scanner;
+		this.mScanCallback = callback;
+		scanner.startScan(filters, settings.build(), callback);
+		return true;
+	}
+
+	private static void reportScanResult(ScanResult result, ScanListener listener) {
+		BluetoothDevice device = result.getDevice();
+		if (device == null) {
+			return;
+		}
+		ScanRecord record = result.getScanRecord();
+		listener.onDeviceFound(device.getAddress(), device.getName(), result.getRssi(),
+				record == null ? null : record.getBytes());
+	}
+
+	@Override
+	public void stopScan() {
+		BluetoothLeScanner scanner = this.mScanner;
+		ScanCallback callback = this.mScanCallback;
+		this.mScanner = null;
+		this.mScanCallback = null;
+		if (scanner == null || callback == null || !this.mBluetoothAdapter.isEnabled()) {
+			return;
+		}
+		if (this.mScanBatched) {
+			scanner.flushPendingScanResults(callback);
+		}
+		scanner.stopScan(callback);
+	}
+
+	@Override
+	public boolean connect(String address, GattListener listener, boolean autoConnect) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		if (gatt != null) {
+			BleLog.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+			return gatt.connect();
+		}
+
+		BluetoothDevice device;
+		try {
+			device = this.mBluetoothAdapter.getRemoteDevice(address);
+		} catch (IllegalArgumentException e) {
+			device = null;
+		}
+		if (device == null) {
+			Log.w(TAG, "Device not found.  Unable to connect.");
+			return false;
+		}
+		gatt = connectGatt(device, autoConnect, new GattCallback(listener));
+		if (gatt == null) {
+			return false;
+		}
+		BleLog.d(TAG, "Trying to create a new connection.");
+		this.mGatts.put(address, gatt);
+		return true;
+	}
+
+	/*
+	 * Asks for an LE connection from Marshmallow on: with TRANSPORT_AUTO the
+	 * stack may try BR/EDR on a dual mode device and fail with GATT_ERROR
+	 * (133).
+	 */
+	private BluetoothGatt connectGatt(BluetoothDevice device, boolean autoConnect, GattCallback callback) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			return device.connectGatt(this.mContext, autoConnect, callback, BluetoothDevice.TRANSPORT_LE);
+		}
+		return device.connectGatt(this.mContext, autoConnect, callback);
+	}
+
+	@Override
+	public boolean disconnect(String address) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		if (gatt == null) {
+			Log.w(TAG, "BluetoothGatt not initialized");
+			return false;
+		}
+		gatt.disconnect();
+		return true;
+	}
+
+	@Override
+	public void close(String address) {
+		BluetoothGatt gatt = this.mGatts.remove(address);
+		if (gatt != null) {
+			gatt.close();
+		}
+	}
+
+	@Override
+	public boolean discoverServices(String address) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		return gatt != null && gatt.discoverServices();
+	}
+
+	@Override
+	public List<UUID> getServices(String address) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		List<BluetoothGattService> services = gatt == null ? null : gatt.getServices();
+		if (services == null) {
+			return Collections.emptyList();
+		}
+		List<UUID> uuids = new ArrayList<UUID>(services.size());
+		for (BluetoothGattService service : services) {
+			uuids.add(service.getUuid());
+		}
+		return uuids;
+	}
+
+	@Override
+	public List<UUID> getCharacteristics(String address, UUID service) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattService gattService = gatt == null ? null : gatt.getService(service);
+		if (gattService == null) {
+			return null;
+		}
+		List<UUID> uuids = new ArrayList<UUID>();
+		for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+			uuids.add(characteristic.getUuid());
+		}
+		return uuids;
+	}
+
+	private BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, UUID service, UUID characteristic) {
+		BluetoothGattService gattService = gatt.getService(service);
+		BluetoothGattCharacteristic gattCharacteristic = gattService == null ? null
+				: gattService.getCharacteristic(characteristic);
+		if (gattCharacteristic == null) {
+			Log.w(TAG, "Characteristic not found: " + characteristic);
+		}
+		return gattCharacteristic;
+	}
+
+	@Override
+	public int getProperties(String address, UUID service, UUID characteristic) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattCharacteristic gattCharacteristic = gatt == null ? null
+				: findCharacteristic(gatt, service, characteristic);
+		return gattCharacteristic == null ? 0 : gattCharacteristic.getProperties();
+	}
+
+	@Override
+	public boolean readCharacteristic(String address, UUID service, UUID characteristic) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattCharacteristic gattCharacteristic = gatt == null ? null
+				: findCharacteristic(gatt, service, characteristic);
+		return gattCharacteristic != null && gatt.readCharacteristic(gattCharacteristic);
+	}
+
+	@Override
+	public boolean writeCharacteristic(String address, UUID service, UUID characteristic, byte[] value,
+			boolean withResponse) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattCharacteristic gattCharacteristic = gatt == null ? null
+				: findCharacteristic(gatt, service, characteristic);
+		if (gattCharacteristic == null) {
+			return false;
+		}
+		gattCharacteristic.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+				: BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+		gattCharacteristic.setValue(value);
+		return gatt.writeCharacteristic(gattCharacteristic);
+	}
+
+	private BluetoothGattDescriptor findDescriptor(BluetoothGatt gatt, UUID service, UUID characteristic,
+			UUID descriptor) {
+		BluetoothGattCharacteristic gattCharacteristic = gatt == null ? null
+				: findCharacteristic(gatt, service, characteristic);
+		BluetoothGattDescriptor gattDescriptor = gattCharacteristic == null ? null
+				: gattCharacteristic.getDescriptor(descriptor);
+		if (gattDescriptor == null) {
+			Log.w(TAG, "Descriptor not found: " + descriptor);
+		}
+		return gattDescriptor;
+	}
+
+	@Override
+	public boolean readDescriptor(String address, UUID service, UUID characteristic, UUID descriptor) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattDescriptor gattDescriptor = findDescriptor(gatt, service, characteristic, descriptor);
+		return gattDescriptor != null && gatt.readDescriptor(gattDescriptor);
+	}
+
+	@Override
+	public boolean writeDescriptor(String address, UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattDescriptor gattDescriptor = findDescriptor(gatt, service, characteristic, descriptor);
+		if (gattDescriptor == null) {
+			return false;
+		}
+		gattDescriptor.setValue(value);
+		return gatt.writeDescriptor(gattDescriptor);
+	}
+
+	@Override
+	public boolean setCharacteristicNotification(String address, UUID service, UUID characteristic, boolean enabled) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		BluetoothGattCharacteristic gattCharacteristic = gatt == null ? null
+				: findCharacteristic(gatt, service, characteristic);
+		return gattCharacteristic != null && gatt.setCharacteristicNotification(gattCharacteristic, enabled);
+	}
+
+	@Override
+	public boolean readRssi(String address) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		return gatt != null && gatt.readRemoteRssi();
+	}
+
+	@Override
+	public boolean requestMtu(String address, int mtu) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		return gatt != null && gatt.requestMtu(mtu);
+	}
+
+	@Override
+	public boolean requestConnectionPriority(String address, int priority) {
+		BluetoothGatt gatt = this.mGatts.get(address);
+		return gatt != null && gatt.requestConnectionPriority(priority);
+	}
+}
@@ -1,12 +1,21 @@
 package com.gmurru.bleframework;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
 
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -20,6 +29,7 @@ import android.nfc.Tag;
 import android.os.IBinder;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import android.util.Log;
 import com.unity3d.player.UnityPlayer;
@@ -27,8 +37,6 @@ import com.unity3d.player.UnityPlayer;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -54,6 +62,18 @@ public class BleFramework
     public static final String BLEUnityMessageName_OnBleDidCompletePeripheralScan = "OnBleDidCompletePeripheralScan";
     public static final String BLEUnityMessageName_OnBleDidDisconnect = "OnBleDidDisconnect";
     public static final String BLEUnityMessageName_OnBleDidReceiveData = "OnBleDidReceiveData";
+    public static final String BLEUnityMessageName_OnBleDidConnectPeripheral = "OnBleDidConnectPeripheral";
+    public static final String BLEUnityMessageName_OnBleDidDisconnectPeripheral = "OnBleDidDisconnectPeripheral";
+    public static final String BLEUnityMessageName_OnBleDidReceiveDataFromPeripheral = "OnBleDidReceiveDataFromPeripheral";
+    public static final String BLEUnityMessageName_OnBleDidDiscoverPeripheral = "OnBleDidDiscoverPeripheral";
+    public static final String BLEUnityMessageName_OnBleDidUpdatePeripheral = "OnBleDidUpdatePeripheral";
+    public static final String BLEUnityMessageName_OnBleDidLosePeripheral = "OnBleDidLosePeripheral";
+    public static final String BLEUnityMessageName_OnBleDidChangeState = "OnBleDidChangeState";
+    public static final String BLEUnityMessageName_OnBleDidChangeMtu = "OnBleDidChangeMtu";
+    public static final String BLEUnityMessageName_OnBleWillReconnectPeripheral = "OnBleWillReconnectPeripheral";
+    public static final String BLEUnityMessageName_OnBleDidReceiveChannelData = "OnBleDidReceiveChannelData";
+    public static final String BLEUnityMessageName_OnBleDidReadAttribute = "OnBleDidReadAttribute";
+    public static final String BLEUnityMessageName_OnBleDidCrossRssiThreshold = "OnBleDidCrossRssiThreshold";
 
     /*
     Static variables
@@ -61,46 +81,211 @@ public class BleFramework
     private static final String TAG = BleFramework.class.getSimpleName();
     private static final int REQUEST_ENABLE_BT = 1;
     private static final long SCAN_PERIOD = 3000;
+    private static final long DISCOVERY_UPDATE_INTERVAL = 1000;
+    private static final long DEVICE_EXPIRY_INTERVAL = 1000;
+    private static final String KNOWN_DEVICES_FILE = "ble_known_devices";
     public static final int REQUEST_CODE = 30;
 
     /*
-    List containing all the discovered bluetooth devices
+    Registry containing all the discovered bluetooth devices. Written on the _eventThread during a scan and read by Unity.
+    _lastDeviceList is the list returned by the last _GetListOfDevices, the indexes of _ConnectPeripheralAtIndex refer to it.
     */
-    private List<BluetoothDevice> _mDevice = new ArrayList<BluetoothDevice>();
+    private final DeviceRegistry _deviceRegistry = new DeviceRegistry();
+    private volatile List<DeviceRegistry.Entry> _lastDeviceList;
 
     /*
-    The latest received data
+    Time of the last discovery event sent to Unity for every device seen by the current scan, only used on the _eventThread
     */
-    private byte[] _dataRx = new byte[3];
+    private final Map<String, Long> _lastDiscoveryEvent = new HashMap<String, Long>();
+
+    /*
+    The latest data read by Unity
+    */
+    private byte[] _dataRx = new byte[0];
+
+    /*
+    Receive time of the latest packet read by _GetData, _GetDataFromPeripheral or _AcquireData, on the
+    elapsedRealtimeNanos clock
+    */
+    private volatile long _dataTimestamp = 0;
 
     /*
     Bluetooth service
     */
-    private RBLService _mBluetoothLeService;
+    private volatile RBLService _mBluetoothLeService;
+    private volatile boolean _serviceBound = false;
+
+    /*
+    Addresses of the devices to connect once the service is bound
+    */
+    private final List<String> _pendingConnections = new ArrayList<String>();
+
+    /*
+    Batch of the packets received from all the devices, handed to Unity once per frame by _FlushReceivedData
+    */
+    private final ReceiveBatch _receiveBatch = new ReceiveBatch();
 
-    private Map<UUID, BluetoothGattCharacteristic> _map = new HashMap<UUID, BluetoothGattCharacteristic>();
+    /*
+    Device list read by Unity with _ExportDevices, only the devices changed since its previous export
+    */
+    private final DeviceListEncoder _deviceListEncoder = new DeviceListEncoder();
+
+    /*
+    Callback registered by Unity. _callbackDataPending is true when onDataAvailable has been called since the last flush.
+    */
+    private volatile BleFrameworkCallback _callback;
+    private final AtomicBoolean _callbackDataPending = new AtomicBoolean(false);
 
     /*
     Bluetooth adapter
     */
-    private BluetoothAdapter _mBluetoothAdapter;
+    private volatile BluetoothAdapter _mBluetoothAdapter;
+
+    /*
+    Radio used for the scans and the GATT connections, an AndroidBleTransport created by _InitBLEFramework unless
+    another one has been set with setTransport
+    */
+    private volatile BleTransport _transport;
+
+    /*
+    Wraps _transport once _InitBLEFramework has run, records the session between _StartSessionRecording and
+    _StopSessionRecording
+    */
+    private volatile RecordingTransport _recordingTransport;
+
+    /*
+    Settings of the next scans. The filters are applied by the bluetooth controller, a device is reported when it
+    matches any of them, or always when the list is empty. A _scanReportDelay greater than 0 enables batch scanning.
+    */
+    private final List<ScanOptions.Filter> _scanFilters = new CopyOnWriteArrayList<ScanOptions.Filter>();
+    private volatile int _scanMode = ScanOptions.MODE_LOW_LATENCY;
+    private volatile long _scanReportDelay = 0;
 
     /*
-    Bluetooth device address and name to which the app is currently connected
+    Bluetooth device address and name of the default device, the last one connected with _ConnectPeripheral.
+    The methods without an address parameter, like _SendData and _GetData, act on this device.
     */
     private BluetoothDevice _device;
-    private String _mDeviceAddress;
-    private String _mDeviceName;
+    private volatile String _mDeviceAddress;
+    private volatile String _mDeviceName;
 
     /*
-    Boolean variables used to estabilish the status of the connection
+    State of the framework: the state of the connection to the default device, or SCANNING while a scan runs and the
+    default device is not connected. Every change is sent to Unity with OnBleDidChangeState.
+    _searchingDevice is only written on the _eventThread.
     */
-    private boolean _connState = false;
-    private boolean _flag = true;
-    private boolean _searchingDevice = false;
+    private final ConnectionStateMachine _state = new ConnectionStateMachine();
+    private volatile boolean _searchingDevice = false;
 
     private Intent _gattServiceIntent;
 
+    /*
+    Thread on which the updates of the bluetooth service are handled, together with all the background work:
+    scan timers, RSSI polling and GATT write pumping. Stopped by _Disconnect.
+    */
+    private final BleScheduler _eventThread = new BleScheduler(TAG);
+
+    /*
+    Tasks of the running scan, only used on the _eventThread
+    */
+    private BleScheduler.Task _scanTimeoutTask;
+    private BleScheduler.Task _expireDevicesTask;
+
+    /*
+    RSSI telemetry of the devices, keyed by address. The monitors and the polling tasks are only used on the _eventThread,
+    _rssiReports holds the latest report of every device in JSON for _GetRssi.
+    */
+    private final Map<String, RssiMonitor> _rssiMonitors = new HashMap<String, RssiMonitor>();
+    private final Map<String, BleScheduler.Task> _rssiTasks = new HashMap<String, BleScheduler.Task>();
+    private final ConcurrentHashMap<String, String> _rssiReports = new ConcurrentHashMap<String, String>();
+    private volatile int _rssiMeasuredPower = RssiMonitor.DEFAULT_MEASURED_POWER;
+    private volatile float _rssiPathLossExponent = RssiMonitor.DEFAULT_PATH_LOSS_EXPONENT;
+
+    /*
+    Tasks sending the pings of the devices with a PingProbe, keyed by address, and the packet of the pings. Only used
+    on the _eventThread.
+    */
+    private final Map<String, BleScheduler.Task> _pingTasks = new HashMap<String, BleScheduler.Task>();
+    private final byte[] _ping = new byte[PingProbe.PACKET_SIZE];
+
+    /*
+    When true the updates are received through the ACTION_GATT_* broadcasts instead of _mServiceListener, like in the
+    previous versions
+    */
+    private boolean _broadcastCompatibilityMode = false;
+
+    /*
+    Settings of the GATT write queues, applied to the service every time it is bound.
+    _writeType is -1 to use the write type of the characteristic, otherwise one of the
+    BluetoothGattCharacteristic.WRITE_TYPE_* values.
+    */
+    private static final int WRITE_TYPE_NO_RESPONSE = 1;
+    private static final int WRITE_TYPE_DEFAULT = 2;
+    private int _writeType = -1;
+    private GattOperationQueue.OverflowPolicy _writeQueuePolicy = GattOperationQueue.OverflowPolicy.DROP_OLDEST;
+    private int _writeQueueCapacity = GattOperationQueue.DEFAULT_CAPACITY;
+
+    /*
+    Command being encoded by _SendDriveCommandToPeripheral or _SendResetCommandToPeripheral, guarded by itself
+    */
+    private final byte[] _command = new byte[RobotCommandEncoder.COMMAND_SIZE];
+
+    /*
+    MTU requested after the service discovery, reassembly of the fragmented messages and connection priority,
+    applied by RBLService to every connection
+    */
+    private int _requestedMtu = BleTransport.MAX_MTU;
+    private boolean _messageReassembly = false;
+    private int _connectionPriority = BleTransport.CONNECTION_PRIORITY_BALANCED;
+    private boolean _framing = false;
+
+    /*
+    Reconnection of the devices whose link is lost, disabled while null. The attempts run on the _eventThread.
+    */
+    private ReconnectPolicy _reconnectPolicy;
+    private final GattConnection.ReconnectScheduler _reconnectScheduler = new GattConnection.ReconnectScheduler()
+    {
+        @Override
+        public void schedule(Runnable attempt, long delayMs)
+        {
+            BleFramework.this._eventThread.schedule(attempt, delayMs);
+        }
+    };
+
+    /*
+    Times out the GATT operations whose callback never came, on the _eventThread
+    */
+    private final GattOperationQueue.TimeoutScheduler _timeoutScheduler = new GattOperationQueue.TimeoutScheduler()
+    {
+        @Override
+        public void schedule(Runnable timeout, long delayMs)
+        {
+            BleFramework.this._eventThread.schedule(timeout, delayMs);
+        }
+    };
+
+    /*
+    Service layouts of the devices already discovered, kept across the connections and the bindings of the service
+    */
+    private final DiscoveryCache _discoveryCache = new DiscoveryCache();
+
+    /*
+    Devices connected in the previous launches, loaded by _InitBLEFramework and saved whenever a device is ready
+    */
+    private volatile KnownDevices _knownDevices;
+
+    /*
+    Device connected by _ConnectLastPeripheral until it is ready, and the task starting the fallback scan if it takes
+    too long. Only used on the _eventThread.
+    */
+    private KnownDevices.Entry _fallbackTarget;
+    private BleScheduler.Task _fallbackTask;
+
+    /*
+    Counters of the data path, kept across the bindings of the service
+    */
+    private final BleMetrics _metrics = new BleMetrics();
+
     /*
     The service connection containing the actions definition onServiceConnected and onServiceDisconnected
     */
@@ -109,530 +294,2759 @@ public class BleFramework
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service)
         {
-            BleFramework.this._mBluetoothLeService = ((RBLService.LocalBinder)service).getService();
+            RBLService.LocalBinder binder = (RBLService.LocalBinder)service;
+            BleFramework.this._mBluetoothLeService = binder.getService();
+            BleFramework.this._mBluetoothLeService.setTransport(BleFramework.this._transport);
             if (!BleFramework.this._mBluetoothLeService.initialize())
             {
                 Log.e(BleFramework.TAG, "onServiceConnected: Unable to initialize Bluetooth");
             }
             else
             {
-                Log.d(BleFramework.TAG, "onServiceConnected: Bluetooth initialized correctly");
-                BleFramework.this._mBluetoothLeService.connect(BleFramework.this._mDeviceAddress);
+                BleLog.d(BleFramework.TAG, "onServiceConnected: Bluetooth initialized correctly");
+                BleFramework.this._mBluetoothLeService.setBroadcastEnabled(BleFramework.this._broadcastCompatibilityMode);
+                BleFramework.this._mBluetoothLeService.setWriteQueueSettings(BleFramework.this._writeQueuePolicy, BleFramework.this._writeQueueCapacity);
+                BleFramework.this._mBluetoothLeService.setDispatcher(BleFramework.this._eventThread);
+                BleFramework.this._mBluetoothLeService.setOperationTimeout(GattOperationQueue.DEFAULT_TIMEOUT_MS, BleFramework.this._timeoutScheduler);
+                BleFramework.this._mBluetoothLeService.setMtuSettings(BleFramework.this._requestedMtu, BleFramework.this._messageReassembly);
+                BleFramework.this._mBluetoothLeService.setConnectionPriority(BleFramework.this._connectionPriority);
+                BleFramework.this._mBluetoothLeService.setFramingEnabled(BleFramework.this._framing);
+                BleFramework.this._mBluetoothLeService.setReconnectPolicy(BleFramework.this._reconnectPolicy, BleFramework.this._reconnectScheduler);
+                BleFramework.this._mBluetoothLeService.setDiscoveryCache(BleFramework.this._discoveryCache);
+                BleFramework.this._mBluetoothLeService.setMetrics(BleFramework.this._metrics);
+                binder.setListener(BleFramework.this._mServiceListener, BleFramework.this._eventThread.getLooper());
+                synchronized (BleFramework.this._pendingConnections)
+                {
+                    for (String address : BleFramework.this._pendingConnections)
+                    {
+                        if (!BleFramework.this._mBluetoothLeService.connect(address) && address.equals(BleFramework.this._mDeviceAddress))
+                        {
+                            BleFramework.this._state.reset(BleFramework.this.getUnlinkedState());
+                        }
+                    }
+                    BleFramework.this._pendingConnections.clear();
+                }
             }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName)
         {
-            Log.d(BleFramework.TAG, "onServiceDisconnected: Bluetooth disconnected");
+            BleLog.d(BleFramework.TAG, "onServiceDisconnected: Bluetooth disconnected");
             BleFramework.this._mBluetoothLeService = null;
         }
     };
 
     /*
-    Callback called when the scan of bluetooth devices is finished
+    Listener of the scans. The results are handled on the _eventThread.
     */
-    private BluetoothAdapter.LeScanCallback _mLeScanCallback = new BluetoothAdapter.LeScanCallback()
+    private final BleTransport.ScanListener _scanListener = new BleTransport.ScanListener()
     {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord)
+        public void onDeviceFound(final String address, final String name, final int rssi, final byte[] scanRecord)
         {
-            BleFramework.this._unityActivity.runOnUiThread(new Runnable()
+            BleFramework.this._eventThread.post(new Runnable()
             {
                 public void run()
                 {
-                    Log.d(BleFramework.TAG, "onLeScan: run()");
-                    if ((device != null) && (device.getName() != null))
-                    {
-                        Log.d(BleFramework.TAG, "onLeScan: device is not null");
-                        if (BleFramework.this._mDevice.indexOf(device) == -1)
-                        {
-                            Log.d(BleFramework.TAG, "onLeScan: add device to _mDevice");
-                            BleFramework.this._mDevice.add(device);
-                        }
-                    }
-                    else
-                    {
-                        Log.e(BleFramework.TAG, "onLeScan: device is null");
-                    }
+                    BleFramework.this.onDeviceDiscovered(address, name, rssi, scanRecord);
                 }
             });
         }
-    };
-
 
+        @Override
+        public void onScanFailed(final int errorCode)
+        {
+            BleFramework.this._eventThread.post(new Runnable()
+            {
+                public void run()
+                {
+                    BleFramework.this.onScanFailed(errorCode);
+                }
+            });
+        }
+    };
 
     /*
-    Callback called when the bluetooth device receive relevant updates about connection, disconnection, service discovery, data available, rssi update
+    Removes the devices that stopped advertising, every DEVICE_EXPIRY_INTERVAL ms while a scan is running
     */
-    private final BroadcastReceiver _mGattUpdateReceiver = new BroadcastReceiver() {
+    private final Runnable _expireDevicesRunnable = new Runnable()
+    {
         @Override
-        public void onReceive(Context context, Intent intent)
+        public void run()
         {
-            String action = intent.getAction();
-            if ("ACTION_GATT_CONNECTED".equals(action))
-            {
-                BleFramework.this._connState = true;
-
-                Log.d(BleFramework.TAG, "Connection estabilished with: " + BleFramework.this._mDeviceAddress);
-            }
-            else if ("ACTION_GATT_DISCONNECTED".equals(action))
-            {
-                BleFramework.this._connState = false;
-
-                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidDisconnect", "Success");
-                BleFramework._instance._unityActivity.unbindService(BleFramework._instance._mServiceConnection);
-                Log.d(BleFramework.TAG, "Connection lost");
-            }
-            else if ("ACTION_GATT_SERVICES_DISCOVERED".equals(action))
-            {
-                Log.d(BleFramework.TAG, "Service discovered! Registering GattService ACTION_GATT_SERVICES_DISCOVERED");
-                BluetoothGattService service = BleFramework.this._mBluetoothLeService.getSupportedGattService();
-                BleFramework.this.getGattService(BleFramework.this._mBluetoothLeService.getSupportedGattService());
-                Log.d(BleFramework.TAG, "Registered UUID:" + service.getUuid().toString());
-                Log.d(BleFramework.TAG, "Send BLEUnityMessageName_OnBleDidConnect success signal to Unity");
-                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidConnect", "Success");
-            }
-            else if ("ACTION_DATA_AVAILABLE".equals(action))
-            {
-                Log.d(BleFramework.TAG, "New Data received by the server");
-                BleFramework.this._dataRx = intent.getByteArrayExtra("EXTRA_DATA");
-
-                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidReceiveData", new String(BleFramework.this._dataRx));
-            }
-            else if ("ACTION_GATT_RSSI".equals(action))
-            {
-                String rssiData = intent.getStringExtra("EXTRA_DATA");
-                Log.d(BleFramework.TAG, "RSSI: " + rssiData);
-            }
+            BleFramework.this.expireDevices();
         }
     };
 
     /*
-    METHODS DEFINITION
+    Stops the scan, when its duration is elapsed or when Unity calls _StopScan
     */
-    public static BleFramework getInstance(Activity activity)
+    private final Runnable _stopScanRunnable = new Runnable()
     {
-        if (_instance == null) {
-            synchronized (BleFramework.class)
-            {
-                if (_instance == null)
-                {
-                    Log.d(TAG, "BleFramework: Creation of _instance");
-                    _instance = new BleFramework(activity);
-                }
-            }
+        @Override
+        public void run()
+        {
+            BleFramework.this.stopLeScan();
         }
-        return _instance;
-    }
+    };
+
 
-    public BleFramework(Activity activity)
-    {
-        Log.d(TAG, "BleFramework: saving unityActivity in private var.");
-        this._unityActivity = activity;
-    }
 
     /*
-    Method used to create a filter for the bluetooth actions that you like to receive
+    Listener receiving the updates of the bluetooth service in process, on the _eventThread
     */
-    private static IntentFilter makeGattUpdateIntentFilter()
+    private final RBLService.Listener _mServiceListener = new RBLService.Listener()
     {
-        IntentFilter intentFilter = new IntentFilter();
+        @Override
+        public void onGattConnected(String address)
+        {
+            BleFramework.this.onGattConnected(address);
+        }
 
-        intentFilter.addAction("ACTION_GATT_CONNECTED");
-        intentFilter.addAction("ACTION_GATT_DISCONNECTED");
-        intentFilter.addAction("ACTION_GATT_SERVICES_DISCOVERED");
-        intentFilter.addAction("ACTION_DATA_AVAILABLE");
+        @Override
+        public void onGattDisconnected(String address)
+        {
+            BleFramework.this.onGattDisconnected(address);
+        }
 
-        return intentFilter;
-    }
+        @Override
+        public void onServicesDiscovered(String address)
+        {
+            BleFramework.this.onServicesDiscovered(address);
+        }
+
+        @Override
+        public void onDataAvailable(String address)
+        {
+            BleFramework.this.onDataAvailable(address);
+        }
+
+        @Override
+        public void onRssiRead(String address, int rssi)
+        {
+            BleFramework.this.onRssiRead(address, rssi);
+        }
+
+        @Override
+        public void onMtuChanged(String address, int mtu)
+        {
+            BleFramework.this.onMtuChanged(address, mtu);
+        }
+
+        @Override
+        public void onReconnecting(String address, int attempt, long delayMs)
+        {
+            BleFramework.this.onReconnecting(address, attempt, delayMs);
+        }
+
+        @Override
+        public void onNotification(String address, int channel)
+        {
+            BleFramework.this.onNotification(address, channel);
+        }
+
+        @Override
+        public void onAttributeRead(String address, UUID characteristic, UUID descriptor, byte[] value, int status)
+        {
+            BleFramework.this.onAttributeRead(address, characteristic, descriptor, value, status);
+        }
+    };
 
     /*
-    Start reading RSSI: information about bluetooth signal intensity
+    Callback called when the bluetooth device receive relevant updates about connection, disconnection, service discovery, data available, rssi update.
+    Only registered in broadcast compatibility mode, where RBLService broadcasts the updates instead of calling
+    _mServiceListener. Like the listener, the updates are handled on the _eventThread.
     */
-    
-    private void startReadRssi()
-    {
-        new Thread()
+    private final BroadcastReceiver _mGattUpdateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, final Intent intent)
         {
-            public void run()
+            BleFramework.this._eventThread.post(new Runnable()
             {
-                while (_connState)
+                public void run()
                 {
-                    _mBluetoothLeService.readRssi();
-                    try
-                    {
-                        sleep(500);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        e.printStackTrace();
-                    }
+                    BleFramework.this.onGattUpdate(intent);
                 }
-            };
-        }.start();
-    }
-    
-    /*
-    Method used to initialize the characteristic for data transmission
-    */
+            });
+        }
+    };
 
-    private void getGattService(BluetoothGattService gattService)
+    private void onGattUpdate(Intent intent)
     {
-        if (gattService == null)
+        String action = intent.getAction();
+        String address = intent.getStringExtra("EXTRA_ADDRESS");
+        if ("ACTION_GATT_CONNECTED".equals(action))
         {
-            Log.d(TAG, "Service was null!");
-            return;
+            onGattConnected(address);
         }
-        Log.d(TAG, "Available Characteristics:");
-        List<BluetoothGattCharacteristic> characteristics = gattService.getCharacteristics();
-        for(BluetoothGattCharacteristic c : characteristics )
+        else if ("ACTION_GATT_DISCONNECTED".equals(action))
         {
-            Log.d(TAG, "Found: " +  c.getUuid().toString());
-            if(c.getUuid().toString().equalsIgnoreCase(RBLGattAttributes.BLE_SHIELD_RX))
-            {
-                Log.d(TAG, "Found characteristic. Adding characteristic to map");
-                this._map.put(c.getUuid(), c);
-                Log.d(TAG, "Setting Characteristic Notification");
-                this._mBluetoothLeService.setCharacteristicNotification(c, true);
-                Log.d(TAG, "Reading Characteristic");
-                this._mBluetoothLeService.readCharacteristic(c);
-                return;
-            }
+            onGattDisconnected(address);
         }
-
-        Log.d(BleFramework.TAG, "Characteristic failed :: Not found");
-
-/*
-        UUID uuid = RBLService.UUID_BLE_SHIELD_RX;
-        Log.d(TAG, "Trying to get UUID: " +  uuid.toString());
-        BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(RBLService.UUID_BLE_SHIELD_RX);
-        if (characteristic != null)
+        else if ("ACTION_GATT_SERVICES_DISCOVERED".equals(action))
         {
-            Log.d(TAG, "Found characteristic. Adding characteristic to map");
-            this._map.put(characteristic.getUuid(), characteristic);
-            Log.d(TAG, "Setting Characteristic Notification");
-            this._mBluetoothLeService.setCharacteristicNotification(characteristic, true);
-            Log.d(TAG, "Reading Characteristic");
-            this._mBluetoothLeService.readCharacteristic(characteristic);
+            onServicesDiscovered(address);
         }
-        else
+        else if ("ACTION_DATA_AVAILABLE".equals(action))
+        {
+            onDataAvailable(address);
+        }
+        else if ("ACTION_GATT_RSSI".equals(action))
+        {
+            onRssiRead(address, Integer.parseInt(intent.getStringExtra("EXTRA_DATA")));
+        }
+        else if ("ACTION_GATT_MTU_CHANGED".equals(action))
+        {
+            onMtuChanged(address, Integer.parseInt(intent.getStringExtra("EXTRA_DATA")));
+        }
+        else if ("ACTION_GATT_RECONNECTING".equals(action))
         {
-            Log.d(BleFramework.TAG, "Characteristic failed :: Not found");
-        }*/
+            onReconnecting(address, Integer.parseInt(intent.getStringExtra("EXTRA_DATA")),
+                    Long.parseLong(intent.getStringExtra("EXTRA_DELAY")));
+        }
+        else if ("ACTION_GATT_NOTIFICATION".equals(action))
+        {
+            onNotification(address, intent.getIntExtra("EXTRA_CHANNEL", 0));
+        }
+        else if ("ACTION_GATT_ATTRIBUTE_READ".equals(action))
+        {
+            String descriptor = intent.getStringExtra("EXTRA_DESCRIPTOR");
+            onAttributeRead(address, UUID.fromString(intent.getStringExtra("EXTRA_CHARACTERISTIC")),
+                    descriptor == null ? null : UUID.fromString(descriptor), intent.getByteArrayExtra("EXTRA_DATA"),
+                    intent.getIntExtra("EXTRA_STATUS", 0));
+        }
     }
 
-
     /*
-    Method used to scan for available bluetooth low energy devices
+    Sends the changes of _state to Unity, in order, from the _eventThread
     */
-    private void scanLeDevice()
+    private final ConnectionStateMachine.Listener _stateListener = new ConnectionStateMachine.Listener()
     {
-        new Thread()
+        @Override
+        public void onStateChanged(final ConnectionState from, final ConnectionState to)
         {
-            public void run()
+            BleFramework.this._eventThread.post(new Runnable()
             {
-                BleFramework.this._searchingDevice = true;
-                Log.d(BleFramework.TAG, "scanLeDevice: _mBluetoothAdapter StartLeScan");
-                BleFramework.this._mBluetoothAdapter.startLeScan(BleFramework.this._mLeScanCallback);
-                try
-                {
-                    Log.d(BleFramework.TAG, "scanLeDevice: scan for 3 seconds then abort");
-                    Thread.sleep(3000L);
-                }
-                catch (InterruptedException e)
+                public void run()
                 {
-                    Log.d(BleFramework.TAG, "scanLeDevice: InterruptedException");
-                    e.printStackTrace();
+                    BleLog.d(BleFramework.TAG, "onStateChanged: " + from + " -> " + to);
+                    BleFrameworkCallback callback = BleFramework.this._callback;
+                    if (callback != null)
+                    {
+                        callback.onStateChanged(to.name());
+                    }
+                    UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidChangeState, to.name());
                 }
-                Log.d(BleFramework.TAG, "scanLeDevice: _mBluetoothAdapter StopLeScan");
-                BleFramework.this._mBluetoothAdapter.stopLeScan(BleFramework.this._mLeScanCallback);
-                BleFramework.this._searchingDevice = false;
-                Log.d(BleFramework.TAG, "scanLeDevice: _mDevice size is " + BleFramework.this._mDevice.size());
-
-                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidCompletePeripheralScan", "Success");
-            }
-        }.start();
-    }
-
+            });
+        }
+    };
 
-    private void unregisterBleUpdatesReceiver()
+    /*
+    State _state goes back to when the default device is not connected
+    */
+    private ConnectionState getUnlinkedState()
     {
-        Log.d(TAG,"unregisterBleUpdatesReceiver:");
-        _unityActivity.unregisterReceiver(_mGattUpdateReceiver);
+        return this._searchingDevice ? ConnectionState.SCANNING : ConnectionState.IDLE;
     }
 
-    private void registerBleUpdatesReceiver()
+    private void onGattConnected(String address)
     {
-        Log.d(TAG, "registerBleUpdatesReceiver:");
-        if (!this._mBluetoothAdapter.isEnabled()) {
-            Log.d(TAG, "registerBleUpdatesReceiver: WARNING: _mBluetoothAdapter is not enabled!");
+        BleLog.d(TAG, "Connection estabilished with: " + address);
+        if (address.equals(this._mDeviceAddress))
+        {
+            this._state.moveTo(ConnectionState.RECONNECTING, ConnectionState.CONNECTING);
+            this._state.moveTo(ConnectionState.CONNECTING, ConnectionState.DISCOVERING);
         }
-        Log.d(TAG, "registerBleUpdatesReceiver: registerReceiver");
-        this._unityActivity.registerReceiver(this._mGattUpdateReceiver, makeGattUpdateIntentFilter());
     }
 
-    //I need a reference to the Unity activity in order to use UnityPlayer.UnitySendMessage
-
-    /*
-    Singleton initialization. Create an instance of BleFramework class only if it doesn't exist yet.
-    */
-    /*
-    public static BleFramework getInstance()
+    private void onGattDisconnected(String address)
     {
-        if (_instance == null )
+        stopRssiTelemetry(address);
+        stopPing(address);
+        if (address.equals(this._mDeviceAddress))
         {
-            synchronized (BleFramework.class)
+            this._state.reset(getUnlinkedState());
+        }
+        BleFrameworkCallback callback = this._callback;
+        if (callback != null)
+        {
+            callback.onPeripheralDisconnected(address);
+        }
+        /* The legacy event only follows the default device, the others only get the Peripheral one */
+        if (address.equals(this._mDeviceAddress))
+        {
+            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidDisconnect", "Success");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidDisconnectPeripheral", address);
+
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            service.close(address);
+            if (service.getConnections().isEmpty())
             {
-                if (_instance == null)
-                {
-                    Log.d(TAG, "BleFramework: Creation of _instance");
-                    _instance = new BleFramework();
-                }
+                unbindBleService();
             }
         }
+        BleLog.d(TAG, "Connection lost with: " + address);
+    }
 
+    private void onServicesDiscovered(String address)
+    {
+        BleLog.d(TAG, "Service discovered! Registering GattService ACTION_GATT_SERVICES_DISCOVERED");
+        GattConnection connection = getConnection(address);
+        if (connection == null)
+        {
+            return;
+        }
+        if (this.getGattService(connection, RBLService.UUID_BLE_SHIELD_SERVICE))
+        {
+            BleLog.d(TAG, "Registered UUID:" + RBLService.UUID_BLE_SHIELD_SERVICE);
+        }
+        if (address.equals(this._mDeviceAddress))
+        {
+            this._state.moveTo(ConnectionState.READY);
+        }
+        if (this._fallbackTarget != null && address.equals(this._fallbackTarget.getAddress()))
+        {
+            cancelFallback();
+        }
+        rememberDevice(address, connection.getServiceLayout());
+        BleFrameworkCallback callback = this._callback;
+        if (callback != null)
+        {
+            callback.onPeripheralConnected(address);
+        }
+        if (address.equals(this._mDeviceAddress))
+        {
+            BleLog.d(TAG, "Send BLEUnityMessageName_OnBleDidConnect success signal to Unity");
+            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidConnect", "Success");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidConnectPeripheral", address);
+    }
+
+    /*
+    Saves a ready device in the known devices, with the name it was scanned with
+    */
+    private void rememberDevice(String address, ServiceLayout layout)
+    {
+        KnownDevices knownDevices = this._knownDevices;
+        if (knownDevices == null)
+        {
+            return;
+        }
+        DeviceRegistry.Entry scanned = this._deviceRegistry.get(address);
+        String name = scanned != null ? scanned.getName() : address.equals(this._mDeviceAddress) ? this._mDeviceName : null;
+        knownDevices.onConnected(address, name, layout, System.currentTimeMillis());
+        saveKnownDevices();
+    }
+
+    private void saveKnownDevices()
+    {
+        KnownDevices knownDevices = this._knownDevices;
+        if (knownDevices != null && !knownDevices.save())
+        {
+            Log.e(TAG, "saveKnownDevices: unable to write " + KNOWN_DEVICES_FILE);
+        }
+    }
+
+    /*
+    The device connected by _ConnectLastPeripheral is not ready in time: a scan looks for it. Android only connects
+    directly to the devices in the cache of the stack, emptied by a reboot or a restart of the bluetooth, and fails
+    or waits for the others. The scan puts it back in the cache, and reports the other devices to Unity.
+    */
+    private void startFallbackScan()
+    {
+        this._fallbackTask = null;
+        KnownDevices.Entry target = this._fallbackTarget;
+        if (target == null)
+        {
+            return;
+        }
+        ConnectionState state = this._state.get();
+        if (!target.getAddress().equals(this._mDeviceAddress) || state == ConnectionState.DISCOVERING || state == ConnectionState.READY)
+        {
+            this._fallbackTarget = null;
+            return;
+        }
+        BleLog.d(TAG, "startFallbackScan: " + target.getAddress() + " not reached, scanning");
+        scanLeDevice(SCAN_PERIOD);
+    }
+
+    /*
+    The fallback scan has found the device: the pending connection is replaced by a new one
+    */
+    private void connectFallbackTarget()
+    {
+        KnownDevices.Entry target = this._fallbackTarget;
+        this._fallbackTarget = null;
+        stopLeScan();
+        BleLog.d(TAG, "connectFallbackTarget: " + target.getAddress() + " found, connecting again");
+        GattConnection connection = getConnection(target.getAddress());
+        RBLService service = this._mBluetoothLeService;
+        if (connection != null && service != null)
+        {
+            ConnectionState state = connection.getState();
+            if (state == ConnectionState.DISCOVERING || state == ConnectionState.READY)
+            {
+                return;
+            }
+            service.close(target.getAddress());
+        }
+        setDefaultDevice(target.getAddress(), target.getName());
+        if (!connectDefaultDevice())
+        {
+            Log.e(TAG, "connectFallbackTarget: unable to connect " + target.getAddress());
+            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidConnect, "Fail: unable to connect " + target.getAddress());
+        }
+    }
+
+    /*
+    The fallback scan is over and has not found the device connected by _ConnectLastPeripheral: its pending
+    connection is closed and Unity gets OnBleDidConnect with an error message.
+    */
+    private void failFallback()
+    {
+        KnownDevices.Entry target = this._fallbackTarget;
+        this._fallbackTarget = null;
+        String address = target.getAddress();
+        ConnectionState state = this._state.get();
+        if (!address.equals(this._mDeviceAddress) || state == ConnectionState.DISCOVERING || state == ConnectionState.READY)
+        {
+            return;
+        }
+        synchronized (this._pendingConnections)
+        {
+            this._pendingConnections.remove(address);
+        }
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            service.close(address);
+        }
+        this._state.reset(getUnlinkedState());
+        Log.e(TAG, "failFallback: " + address + " not found");
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidConnect, "Fail: " + address + " not found");
+    }
+
+    private void cancelFallback()
+    {
+        if (this._fallbackTask != null)
+        {
+            this._fallbackTask.cancel();
+            this._fallbackTask = null;
+        }
+        this._fallbackTarget = null;
+    }
+
+    private void onDataAvailable(String address)
+    {
+        if (BleLog.isDebugEnabled())
+        {
+            BleLog.d(TAG, "New Data received by the server");
+        }
+        GattConnection connection = getConnection(address);
+        if (connection == null)
+        {
+            return;
+        }
+
+        /*
+        With a callback registered Unity is signaled once per batch instead of once per packet
+        */
+        BleFrameworkCallback callback = this._callback;
+        if (callback != null)
+        {
+            if (this._callbackDataPending.compareAndSet(false, true))
+            {
+                callback.onDataAvailable(this._receiveBatch.getSequence() + 1);
+            }
+            return;
+        }
+
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidReceiveDataFromPeripheral", address);
+
+        /*
+        The data is queued in the receive buffer of the connection, Unity only receives the size of the next packet of the
+        default device and reads it with _GetData. Nothing is sent if Unity already drained the packet with _GetAllData.
+        */
+        if (address.equals(this._mDeviceAddress))
+        {
+            int numOfBytes = connection.getReceiveBuffer().peekLength();
+            if (numOfBytes >= 0)
+            {
+                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidReceiveData", String.valueOf(numOfBytes));
+            }
+        }
+    }
+
+    /*
+    The link with the device is lost and RBLService reconnects it: the connection and the bound service are kept.
+    Sends {"address": ..., "attempt": ..., "delay": ...} to Unity, followed by OnBleDidConnectPeripheral once the device
+    is back, or by OnBleDidDisconnectPeripheral if the reconnection gives up.
+    */
+    private void onReconnecting(String address, int attempt, long delayMs)
+    {
+        BleLog.d(TAG, "Reconnecting " + address + " in " + delayMs + " ms, attempt " + attempt);
+        if (address.equals(this._mDeviceAddress))
+        {
+            this._state.moveTo(ConnectionState.RECONNECTING);
+        }
+        JSONObject reconnectJSON = new JSONObject();
+        try
+        {
+            reconnectJSON.put("address", address);
+            reconnectJSON.put("attempt", attempt);
+            reconnectJSON.put("delay", delayMs);
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "onReconnecting: JSONException");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleWillReconnectPeripheral, reconnectJSON.toString());
+    }
+
+    /*
+    Sends {"address": ..., "mtu": ...} to Unity. From now on the messages written with _SendData that are larger than
+    MTU - 3 bytes are fragmented, and with _SetMtuSettings reassembly the fragmented messages of the device are
+    reassembled before _GetData.
+    */
+    private void onMtuChanged(String address, int mtu)
+    {
+        BleLog.d(TAG, "MTU of " + address + ": " + mtu);
+        KnownDevices knownDevices = this._knownDevices;
+        if (knownDevices != null && knownDevices.onMtuChanged(address, mtu))
+        {
+            saveKnownDevices();
+        }
+        JSONObject mtuJSON = new JSONObject();
+        try
+        {
+            mtuJSON.put("address", address);
+            mtuJSON.put("mtu", mtu);
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "onMtuChanged: JSONException");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidChangeMtu, mtuJSON.toString());
+    }
+
+    /*
+    A packet has been queued in a subscription channel. Unity is signaled once per channel until it reads the channel with
+    _GetChannelData, with {"address": ..., "channel": ...}, or through the registered callback.
+    */
+    private void onNotification(String address, int channel)
+    {
+        GattConnection connection = getConnection(address);
+        GattSubscription subscription = connection == null ? null : connection.getSubscription(channel);
+        if (subscription == null || !subscription.signal())
+        {
+            return;
+        }
+        BleFrameworkCallback callback = this._callback;
+        if (callback != null)
+        {
+            callback.onChannelDataAvailable(address, channel);
+            return;
+        }
+        JSONObject channelJSON = new JSONObject();
+        try
+        {
+            channelJSON.put("address", address);
+            channelJSON.put("channel", channel);
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "onNotification: JSONException");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidReceiveChannelData, channelJSON.toString());
+    }
+
+    /*
+    Sends the result of _ReadCharacteristic or _ReadDescriptor to Unity: {"address": ..., "characteristic": ...,
+    "descriptor": ..., "status": ..., "value": ...}, with the value in hexadecimal. "descriptor" is only present for a
+    descriptor, "value" only if the read succeeded.
+    */
+    private void onAttributeRead(String address, UUID characteristic, UUID descriptor, byte[] value, int status)
+    {
+        if (BleLog.isDebugEnabled())
+        {
+            BleLog.d(TAG, "Read of " + (descriptor == null ? characteristic : descriptor) + " on " + address + ": " + status);
+        }
+        JSONObject readJSON = new JSONObject();
+        try
+        {
+            readJSON.put("address", address);
+            readJSON.put("characteristic", characteristic.toString());
+            if (descriptor != null)
+            {
+                readJSON.put("descriptor", descriptor.toString());
+            }
+            readJSON.put("status", status);
+            if (value != null)
+            {
+                readJSON.put("value", HexCodec.encode(value));
+            }
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "onAttributeRead: JSONException");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidReadAttribute, readJSON.toString());
+    }
+
+    private GattConnection getConnection(String address)
+    {
+        RBLService service = this._mBluetoothLeService;
+        return service == null ? null : service.getConnection(address);
+    }
+
+    /*
+    METHODS DEFINITION
+    */
+    public static BleFramework getInstance(Activity activity)
+    {
+        if (_instance == null) {
+            synchronized (BleFramework.class)
+            {
+                if (_instance == null)
+                {
+                    BleLog.d(TAG, "BleFramework: Creation of _instance");
+                    _instance = new BleFramework(activity);
+                }
+            }
+        }
         return _instance;
     }
-    */
+
+    public BleFramework(Activity activity)
+    {
+        BleLog.d(TAG, "BleFramework: saving unityActivity in private var.");
+        this._unityActivity = activity;
+        this._state.setListener(this._stateListener);
+    }
+
+    /*
+    Replaces the Android bluetooth stack, for example with a SimulatedTransport. Must be called before _InitBLEFramework.
+    */
+    void setTransport(BleTransport transport)
+    {
+        this._transport = transport;
+    }
+
+    /*
+    Method used to create a filter for the bluetooth actions that you like to receive
+    */
+    private static IntentFilter makeGattUpdateIntentFilter()
+    {
+        IntentFilter intentFilter = new IntentFilter();
+
+        intentFilter.addAction("ACTION_GATT_CONNECTED");
+        intentFilter.addAction("ACTION_GATT_DISCONNECTED");
+        intentFilter.addAction("ACTION_GATT_SERVICES_DISCOVERED");
+        intentFilter.addAction("ACTION_DATA_AVAILABLE");
+        intentFilter.addAction("ACTION_GATT_RSSI");
+        intentFilter.addAction("ACTION_GATT_MTU_CHANGED");
+        intentFilter.addAction("ACTION_GATT_RECONNECTING");
+        intentFilter.addAction("ACTION_GATT_NOTIFICATION");
+        intentFilter.addAction("ACTION_GATT_ATTRIBUTE_READ");
+
+        return intentFilter;
+    }
+
+    /*
+    Reads the RSSI of a device with the telemetry on, then waits for the interval chosen by its monitor. A read is only
+    requested when the GATT queue of the device is idle, so the telemetry never delays the writes: a busy device is
+    polled again after the minimum interval. Only called on the _eventThread.
+    */
+    private void pollRssi(final String address)
+    {
+        RssiMonitor monitor = this._rssiMonitors.get(address);
+        if (monitor == null)
+        {
+            return;
+        }
+        GattConnection connection = getConnection(address);
+        if (connection == null)
+        {
+            stopRssiTelemetry(address);
+            return;
+        }
+        long delay;
+        if (connection.readRssiIfIdle())
+        {
+            delay = monitor.getInterval();
+        }
+        else if (connection.isReady())
+        {
+            delay = monitor.getMinInterval();
+        }
+        else
+        {
+            /* Reconnecting: the signal of the next link starts a new estimate */
+            monitor.reset();
+            delay = monitor.getMaxInterval();
+        }
+        this._rssiTasks.put(address, this._eventThread.schedule(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.pollRssi(address);
+            }
+        }, delay));
+    }
+
+    /*
+    Only called on the _eventThread
+    */
+    private void stopRssiTelemetry(String address)
+    {
+        BleScheduler.Task task = this._rssiTasks.remove(address);
+        if (task != null)
+        {
+            task.cancel();
+        }
+        this._rssiMonitors.remove(address);
+        this._rssiReports.remove(address);
+    }
+
+    /*
+    Only called on the _eventThread
+    */
+    private void stopAllRssiTelemetry()
+    {
+        for (BleScheduler.Task task : this._rssiTasks.values())
+        {
+            task.cancel();
+        }
+        this._rssiTasks.clear();
+        this._rssiMonitors.clear();
+        this._rssiReports.clear();
+    }
+
+    /*
+    Sends a ping to a device with a PingProbe, unless the previous one is still waiting for its echo, then waits for
+    the interval. Like the commands, the pings wait in the GATT queue behind the writes already there and their round
+    trip includes that wait. Only called on the _eventThread.
+    */
+    private void sendPing(final String address, final long intervalMs)
+    {
+        GattConnection connection = getConnection(address);
+        PingProbe probe = connection == null ? null : connection.getPingProbe();
+        if (probe == null)
+        {
+            stopPing(address);
+            return;
+        }
+        if (connection.isReady() && connection.hasCharacteristic(RBLService.UUID_BLE_SHIELD_RX))
+        {
+            int length = probe.nextPing(SystemClock.elapsedRealtimeNanos(), this._ping);
+            if (length > 0)
+            {
+                if (connection.writeCommand(RBLService.UUID_BLE_SHIELD_SERVICE, RBLService.UUID_BLE_SHIELD_RX, this._ping,
+                        length, isWriteWithResponse(connection), GattOperation.NO_CHANNEL))
+                {
+                    this._metrics.onPacketSent(length);
+                }
+                else
+                {
+                    probe.cancel();
+                }
+            }
+        }
+        this._pingTasks.put(address, this._eventThread.schedule(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.sendPing(address, intervalMs);
+            }
+        }, intervalMs));
+    }
+
+    /*
+    Only called on the _eventThread
+    */
+    private void stopPing(String address)
+    {
+        BleScheduler.Task task = this._pingTasks.remove(address);
+        if (task != null)
+        {
+            task.cancel();
+        }
+        GattConnection connection = getConnection(address);
+        if (connection != null)
+        {
+            connection.setPingProbe(null);
+        }
+    }
+
+    /*
+    Only called on the _eventThread
+    */
+    private void stopAllPings()
+    {
+        for (String address : new ArrayList<String>(this._pingTasks.keySet()))
+        {
+            stopPing(address);
+        }
+    }
+
+    /*
+    Feeds the monitor of the device and sends {"address": ..., "threshold": -70, "rising": true, "rssi": ...,
+    "filteredRssi": ..., "distance": ...} to Unity when the filtered RSSI crosses a threshold.
+    */
+    private void onRssiRead(String address, int rssi)
+    {
+        RssiMonitor monitor = this._rssiMonitors.get(address);
+        if (monitor == null)
+        {
+            return;
+        }
+        boolean crossed = monitor.update(rssi);
+        this._rssiReports.put(address, rssiReport(address, monitor));
+        if (!crossed)
+        {
+            return;
+        }
+        BleLog.d(TAG, "RSSI of " + address + " crossed " + monitor.getCrossedThreshold() + " dBm");
+        JSONObject crossingJSON = new JSONObject();
+        try
+        {
+            crossingJSON.put("address", address);
+            crossingJSON.put("threshold", monitor.getCrossedThreshold());
+            crossingJSON.put("rising", monitor.isRising());
+            crossingJSON.put("rssi", monitor.getRssi());
+            crossingJSON.put("filteredRssi", (double) monitor.getFilteredRssi());
+            crossingJSON.put("distance", (double) monitor.getDistance());
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "onRssiRead: JSONException");
+        }
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidCrossRssiThreshold, crossingJSON.toString());
+    }
+
+    /*
+    {"address": ..., "rssi": ..., "filteredRssi": ..., "distance": ..., "zone": ..., "interval": ...}
+    */
+    private static String rssiReport(String address, RssiMonitor monitor)
+    {
+        JSONObject rssiJSON = new JSONObject();
+        try
+        {
+            rssiJSON.put("address", address);
+            rssiJSON.put("rssi", monitor.getRssi());
+            rssiJSON.put("filteredRssi", (double) monitor.getFilteredRssi());
+            rssiJSON.put("distance", (double) monitor.getDistance());
+            rssiJSON.put("zone", monitor.getZone());
+            rssiJSON.put("interval", monitor.getInterval());
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "rssiReport: JSONException");
+        }
+        return rssiJSON.toString();
+    }
+
+    /*
+    Method used to initialize the characteristic for data transmission
+    */
+
+    private boolean getGattService(GattConnection connection, UUID serviceUuid)
+    {
+        ServiceLayout layout = connection.getServiceLayout();
+        if (layout == null || !layout.hasService(serviceUuid))
+        {
+            BleLog.d(TAG, "Service was null!");
+            return false;
+        }
+        BleLog.d(TAG, "Available Characteristics: " + layout.getCharacteristics(serviceUuid));
+        if (!layout.hasCharacteristic(serviceUuid, RBLService.UUID_BLE_SHIELD_RX))
+        {
+            BleLog.d(BleFramework.TAG, "Characteristic failed :: Not found");
+            return true;
+        }
+        BleLog.d(TAG, "Found characteristic. Adding characteristic to map");
+        connection.cacheCharacteristic(serviceUuid, RBLService.UUID_BLE_SHIELD_RX);
+        BleLog.d(TAG, "Setting Characteristic Notification");
+        connection.setCharacteristicNotification(serviceUuid, RBLService.UUID_BLE_SHIELD_RX, true);
+        BleLog.d(TAG, "Reading Characteristic");
+        connection.readCharacteristic(serviceUuid, RBLService.UUID_BLE_SHIELD_RX);
+        return true;
+    }
+
+
+    /*
+    Method used to scan for available bluetooth low energy devices. Starts a scan on the _eventThread. Every device is reported to Unity as soon as it is seen, the scan is
+    stopped after durationMs, or only by _StopScan when durationMs is 0. Starting a scan while another one
+    is running only restarts its timer.
+    */
+    private void scanLeDevice(final long durationMs)
+    {
+        this._eventThread.post(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.cancelScanTimeout();
+                if (!BleFramework.this._searchingDevice)
+                {
+                    BleLog.d(BleFramework.TAG, "scanLeDevice: startScan with " + BleFramework.this._scanFilters.size() + " filters");
+                    BleFramework.this._lastDiscoveryEvent.clear();
+                    BleFramework.this._searchingDevice = true;
+                    ScanOptions options = new ScanOptions(BleFramework.this._scanMode, BleFramework.this._scanReportDelay, BleFramework.this._scanFilters);
+                    if (!BleFramework.this._transport.startScan(options, BleFramework.this._scanListener))
+                    {
+                        Log.e(BleFramework.TAG, "scanLeDevice: no scanner, bluetooth is off");
+                        BleFramework.this._searchingDevice = false;
+                        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidCompletePeripheralScan, "Fail: bluetooth is off");
+                        return;
+                    }
+                    BleFramework.this._state.moveTo(ConnectionState.IDLE, ConnectionState.SCANNING);
+                    BleFramework.this._expireDevicesTask = BleFramework.this._eventThread.scheduleWithFixedDelay(
+                            BleFramework.this._expireDevicesRunnable, DEVICE_EXPIRY_INTERVAL, DEVICE_EXPIRY_INTERVAL);
+                }
+                if (durationMs > 0)
+                {
+                    BleLog.d(BleFramework.TAG, "scanLeDevice: scan for " + durationMs + " ms then abort");
+                    BleFramework.this._scanTimeoutTask = BleFramework.this._eventThread.schedule(BleFramework.this._stopScanRunnable, durationMs);
+                }
+            }
+        });
+    }
+
+    private void cancelScanTimeout()
+    {
+        if (this._scanTimeoutTask != null)
+        {
+            this._scanTimeoutTask.cancel();
+            this._scanTimeoutTask = null;
+        }
+    }
+
+    /*
+    Cancels the tasks of the scan once it is over
+    */
+    private void endScan()
+    {
+        cancelScanTimeout();
+        if (this._expireDevicesTask != null)
+        {
+            this._expireDevicesTask.cancel();
+            this._expireDevicesTask = null;
+        }
+        this._searchingDevice = false;
+        this._state.moveTo(ConnectionState.SCANNING, ConnectionState.IDLE);
+        if (this._fallbackTask == null && this._fallbackTarget != null)
+        {
+            /* The fallback scan is over without finding the device */
+            failFallback();
+        }
+    }
+
+    /*
+    Stops the running scan and tells Unity it is complete. Only called on the _eventThread.
+    */
+    private void stopLeScan()
+    {
+        if (!this._searchingDevice)
+        {
+            return;
+        }
+        BleLog.d(TAG, "stopLeScan: stopScan");
+        this._transport.stopScan();
+        endScan();
+        BleLog.d(TAG, "stopLeScan: " + this._deviceRegistry.size() + " devices found");
+
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidCompletePeripheralScan, "Success");
+    }
+
+    private void onScanFailed(int errorCode)
+    {
+        Log.e(TAG, "onScanFailed: error " + errorCode);
+        if (errorCode == BleTransport.SCAN_FAILED_ALREADY_STARTED)
+        {
+            return;
+        }
+        endScan();
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidCompletePeripheralScan, "Fail: scan error " + errorCode);
+    }
+
+    /*
+    Adds a scanned device to the registry and reports it to Unity: OnBleDidDiscoverPeripheral the first time it is seen
+    by the current scan, then OnBleDidUpdatePeripheral at most every DISCOVERY_UPDATE_INTERVAL ms.
+    The message is the device in JSON: {"address": "00:11:22:AA:BB:CC", "name": "name", "rssi": -60}
+    */
+    private void onDeviceDiscovered(String address, String name, int rssi, byte[] scanRecord)
+    {
+        if (!this._searchingDevice)
+        {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        DeviceRegistry.Entry entry = this._deviceRegistry.update(address, name, rssi, scanRecord, now);
+        if (this._fallbackTarget != null && address.equals(this._fallbackTarget.getAddress())
+                && address.equals(this._mDeviceAddress))
+        {
+            connectFallbackTarget();
+            return;
+        }
+        if (!isListed(entry))
+        {
+            return;
+        }
+
+        Long lastEvent = this._lastDiscoveryEvent.get(address);
+        if (lastEvent != null && now - lastEvent < DISCOVERY_UPDATE_INTERVAL)
+        {
+            return;
+        }
+        this._lastDiscoveryEvent.put(address, now);
+
+        JSONObject deviceJSON = new JSONObject();
+        try
+        {
+            deviceJSON.put("address", address);
+            deviceJSON.put("name", entry.getName());
+            deviceJSON.put("rssi", entry.getRssi());
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "onDeviceDiscovered: JSONException");
+        }
+
+        BleFrameworkCallback callback = this._callback;
+        if (callback != null)
+        {
+            callback.onPeripheralDiscovered(address, entry.getName(), entry.getRssi());
+        }
+        String message = lastEvent == null ? BLEUnityMessageName_OnBleDidDiscoverPeripheral : BLEUnityMessageName_OnBleDidUpdatePeripheral;
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", message, deviceJSON.toString());
+    }
+
+    /*
+    Without filters only the named devices are listed, like before, to keep the anonymous beacons out of the list
+    */
+    private boolean isListed(DeviceRegistry.Entry entry)
+    {
+        return entry.getName() != null || !this._scanFilters.isEmpty();
+    }
+
+    /*
+    Removes the devices not seen for DeviceRegistry.DEFAULT_MAX_AGE ms and tells Unity with OnBleDidLosePeripheral.
+    The connected devices stay in the registry, they stop advertising once connected.
+    */
+    private void expireDevices()
+    {
+        long now = SystemClock.elapsedRealtime();
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            for (GattConnection connection : service.getConnections())
+            {
+                this._deviceRegistry.touch(connection.getAddress(), now);
+            }
+        }
+
+        List<DeviceRegistry.Entry> expired = new ArrayList<DeviceRegistry.Entry>();
+        this._deviceRegistry.removeExpired(now, expired);
+        for (DeviceRegistry.Entry entry : expired)
+        {
+            String address = entry.getAddress();
+            BleLog.d(TAG, "expireDevices: lost " + address);
+            if (this._lastDiscoveryEvent.remove(address) != null && isListed(entry))
+            {
+                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidLosePeripheral, address);
+            }
+        }
+    }
+
+
+    private void unregisterBleUpdatesReceiver()
+    {
+        BleLog.d(TAG,"unregisterBleUpdatesReceiver:");
+        _unityActivity.unregisterReceiver(_mGattUpdateReceiver);
+    }
+
+    private void registerBleUpdatesReceiver()
+    {
+        BleLog.d(TAG, "registerBleUpdatesReceiver:");
+        /* No adapter while replaying a session */
+        BluetoothAdapter adapter = this._mBluetoothAdapter;
+        if (adapter != null && !adapter.isEnabled()) {
+            BleLog.d(TAG, "registerBleUpdatesReceiver: WARNING: _mBluetoothAdapter is not enabled!");
+        }
+        BleLog.d(TAG, "registerBleUpdatesReceiver: registerReceiver");
+        this._unityActivity.registerReceiver(this._mGattUpdateReceiver, makeGattUpdateIntentFilter());
+    }
+
+    //I need a reference to the Unity activity in order to use UnityPlayer.UnitySendMessage
+
+    /*
+    Singleton initialization. Create an instance of BleFramework class only if it doesn't exist yet.
+    */
+    /*
+    public static BleFramework getInstance()
+    {
+        if (_instance == null )
+        {
+            synchronized (BleFramework.class)
+            {
+                if (_instance == null)
+                {
+                    BleLog.d(TAG, "BleFramework: Creation of _instance");
+                    _instance = new BleFramework();
+                }
+            }
+        }
+
+        return _instance;
+    }
+    */
+
+    /*
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        // User chose not to enable Bluetooth.
+        if (requestCode == REQUEST_ENABLE_BT
+                && resultCode == Activity.RESULT_CANCELED) {
+            //finish();
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        BleLog.d(TAG,"onCreate is being launched");
+
+
+        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE))
+        {
+            BleLog.d(TAG,"onCreate: fail: missing FEATURE_BLUETOOTH_LE");
+            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidInitialize, "Fail: missing FEATURE_BLUETOOTH_LE");
+            //finish();
+        }
+
+        final BluetoothManager mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        _mBluetoothAdapter = mBluetoothManager.getAdapter();
+        if (_mBluetoothAdapter == null)
+        {
+            BleLog.d(TAG,"onCreate: fail: _mBluetoothAdapter is null");
+            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidInitialize, "Fail: Context.BLUETOOTH_SERVICE");
+            //finish();
+            return;
+        }
+
+        BleLog.d(TAG,"onCreate: _mBluetoothAdapter correctly initialized");
+        Intent gattServiceIntent = new Intent(BleFramework.this, RBLService.class);
+        bindService(gattServiceIntent, _mServiceConnection, BIND_AUTO_CREATE);
+
+        BleLog.d(TAG,"onCreate: sending BLEUnityMessageName_OnBleDidInitialize success");
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        BleLog.d(TAG,"onStop: unregisterReceiver");
+        _unityActivity.unregisterReceiver(_mGattUpdateReceiver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        BleLog.d(TAG,"onDestroy: unbindService");
+        if (_mServiceConnection != null)
+            unbindService(_mServiceConnection);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        BleLog.d(TAG,"onResume:");
+        if (!_mBluetoothAdapter.isEnabled())
+        {
+            BleLog.d(TAG,"onResume: startActivityForResult: REQUEST_ENABLE_BT");
+            Intent enableBtIntent = new Intent(
+                    BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
+        }
+        BleLog.d(TAG,"onResume: registerReceiver");
+        _unityActivity.registerReceiver(_mGattUpdateReceiver, makeGattUpdateIntentFilter());
+    }
+    */
+
+    /*
+    Public methods that can be directly called by Unity
+    */
+    public void _InitBLEFramework()
+    {
+        System.out.println("Android Executing: _InitBLEFramework");
+        /* A replayed session needs no bluetooth hardware, it also runs on an emulator */
+        if (!(this._transport instanceof ReplayTransport))
+        {
+            if (!this._unityActivity.getPackageManager().hasSystemFeature("android.hardware.bluetooth_le"))
+            {
+                BleLog.d(TAG, "onCreate: fail: missing FEATURE_BLUETOOTH_LE");
+                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidInitialize", "Fail: missing FEATURE_BLUETOOTH_LE");
+
+                return;
+            }
+            BluetoothManager mBluetoothManager = (BluetoothManager)this._unityActivity.getSystemService("bluetooth");
+            this._mBluetoothAdapter = mBluetoothManager.getAdapter();
+            if (this._mBluetoothAdapter == null)
+            {
+                BleLog.d(TAG, "onCreate: fail: _mBluetoothAdapter is null");
+                UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidInitialize", "Fail: Context.BLUETOOTH_SERVICE");
+
+                return;
+            }
+        }
+        if (this._broadcastCompatibilityMode)
+        {
+            registerBleUpdatesReceiver();
+        }
+
+        if (this._transport == null)
+        {
+            this._transport = new AndroidBleTransport(this._unityActivity.getApplicationContext(), this._mBluetoothAdapter);
+        }
+        if (this._recordingTransport == null)
+        {
+            this._recordingTransport = new RecordingTransport(this._transport);
+            this._transport = this._recordingTransport;
+        }
+        if (this._knownDevices == null)
+        {
+            KnownDevices knownDevices = new KnownDevices(new File(this._unityActivity.getFilesDir(), KNOWN_DEVICES_FILE));
+            knownDevices.load();
+            for (KnownDevices.Entry entry : knownDevices.getEntries())
+            {
+                this._discoveryCache.put(entry.getAddress(), entry.getLayout());
+            }
+            this._knownDevices = knownDevices;
+        }
+
+        BleLog.d(TAG, "onCreate: _mBluetoothAdapter correctly initialized");
+        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidInitialize", "Success");
+
+    }
+
+    /*
+    Enables or disables the delivery of the bluetooth updates through the ACTION_GATT_* broadcasts, which then replace
+    RBLService.Listener. Disabled by default: the updates are delivered in process by RBLService.Listener. Call it before
+    _InitBLEFramework.
+    */
+    public void _SetBroadcastCompatibilityMode(boolean enabled)
+    {
+        if (enabled == this._broadcastCompatibilityMode)
+        {
+            return;
+        }
+        this._broadcastCompatibilityMode = enabled;
+        /* Initialized, on the bluetooth hardware or, without adapter, on a replay */
+        if (this._mBluetoothAdapter != null || this._recordingTransport != null)
+        {
+            if (enabled)
+            {
+                registerBleUpdatesReceiver();
+            }
+            else
+            {
+                unregisterBleUpdatesReceiver();
+            }
+        }
+        if (this._mBluetoothLeService != null)
+        {
+            this._mBluetoothLeService.setBroadcastEnabled(enabled);
+        }
+    }
+
+    public void _ScanForPeripherals()
+    {
+        BleLog.d(TAG, "_ScanForPeripherals: Launching scanLeDevice");
+        scanLeDevice(SCAN_PERIOD);
+    }
+
+    /*
+    Starts a streaming scan: every device is pushed to Unity with OnBleDidDiscoverPeripheral as soon as it is seen,
+    so it can be connected without waiting for the end of the scan. The scan lasts durationMs, or until _StopScan
+    when durationMs is 0, and ends with OnBleDidCompletePeripheralScan.
+    */
+    public void _ScanForPeripheralsWithDuration(long durationMs)
+    {
+        BleLog.d(TAG, "_ScanForPeripheralsWithDuration: " + durationMs);
+        scanLeDevice(Math.max(durationMs, 0));
+    }
+
+    public void _StopScan()
+    {
+        BleLog.d(TAG, "_StopScan");
+        this._eventThread.post(this._stopScanRunnable);
+    }
+
+    /*
+    Selects the scan mode of the next scans: "LOW_LATENCY" (default), "BALANCED" or "LOW_POWER".
+    With reportDelayMs greater than 0 the controller collects the results and reports them in batches,
+    when the device supports it. Returns false if the mode is unknown.
+    */
+    public boolean _SetScanMode(String mode, long reportDelayMs)
+    {
+        BleLog.d(TAG, "_SetScanMode: " + mode + ", report delay " + reportDelayMs);
+        if ("LOW_LATENCY".equals(mode))
+        {
+            this._scanMode = ScanOptions.MODE_LOW_LATENCY;
+        }
+        else if ("BALANCED".equals(mode))
+        {
+            this._scanMode = ScanOptions.MODE_BALANCED;
+        }
+        else if ("LOW_POWER".equals(mode))
+        {
+            this._scanMode = ScanOptions.MODE_LOW_POWER;
+        }
+        else
+        {
+            Log.e(TAG, "_SetScanMode: unknown mode " + mode);
+            return false;
+        }
+        this._scanReportDelay = Math.max(reportDelayMs, 0);
+        return true;
+    }
+
+    /*
+    Adds a filter to the next scans. A device matches the filter when it matches every parameter that is not
+    null or empty: the advertised service UUID, the exact name and the address. A device is reported when it
+    matches any of the filters. Returns false, without adding the filter, if the UUID or the address is malformed.
+    */
+    public boolean _AddScanFilter(String serviceUuid, String name, String address)
+    {
+        BleLog.d(TAG, "_AddScanFilter: service " + serviceUuid + ", name " + name + ", address " + address);
+        UUID service = serviceUuid == null || serviceUuid.isEmpty() ? null : parseUuid(serviceUuid);
+        if (service == null && serviceUuid != null && !serviceUuid.isEmpty())
+        {
+            return false;
+        }
+        if (address != null && !address.isEmpty() && !BluetoothAdapter.checkBluetoothAddress(address.toUpperCase()))
+        {
+            Log.e(TAG, "Invalid address " + address);
+            return false;
+        }
+        this._scanFilters.add(new ScanOptions.Filter(service,
+                name == null || name.isEmpty() ? null : name,
+                address == null || address.isEmpty() ? null : address));
+        this._deviceRegistry.invalidate();
+        return true;
+    }
+
+    /*
+    Adds a filter matching the RedBearLab BLE shields, the devices advertising RBLGattAttributes.BLE_SHIELD_SERVICE
+    */
+    public void _AddBleShieldScanFilter()
+    {
+        _AddScanFilter(RBLGattAttributes.BLE_SHIELD_SERVICE, null, null);
+    }
+
+    public void _ClearScanFilters()
+    {
+        BleLog.d(TAG, "_ClearScanFilters");
+        this._scanFilters.clear();
+        this._deviceRegistry.invalidate();
+    }
+
+    public boolean _IsDeviceConnected()
+    {
+        if (BleLog.isDebugEnabled())
+        {
+            BleLog.d(TAG, "_IsDeviceConnected");
+        }
+        return _IsPeripheralConnected(this._mDeviceAddress);
+    }
+
+    public boolean _IsPeripheralConnected(String address)
+    {
+        GattConnection connection = getConnection(address);
+        return connection != null && connection.isConnected();
+    }
+
+    /*
+    Returns the addresses of the connected devices in JSON: {"data": ["address1", "address2"]}
+    */
+    public String _GetListOfConnectedPeripherals()
+    {
+        JSONArray addressesJSON = new JSONArray();
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            for (GattConnection connection : service.getConnections())
+            {
+                if (connection.isConnected())
+                {
+                    addressesJSON.put(connection.getAddress());
+                }
+            }
+        }
+        JSONObject dataJSON = new JSONObject();
+        try
+        {
+            dataJSON.put("data", addressesJSON);
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "_GetListOfConnectedPeripherals: JSONException");
+        }
+        return dataJSON.toString();
+    }
+
+    public boolean _SearchDeviceDidFinish()
+    {
+        if (BleLog.isDebugEnabled())
+        {
+            BleLog.d(TAG, "_SearchDeviceDidFinish");
+        }
+        return !this._searchingDevice;
+    }
+
+    /*
+    Name used by BLEController.SearchDevicesDidFinish and the iOS plugin
+    */
+    public boolean _SearchDevicesDidFinish()
+    {
+        return _SearchDeviceDidFinish();
+    }
+
+    /*
+    Returns the state of the framework: IDLE, SCANNING, CONNECTING, DISCOVERING, READY or DISCONNECTING
+    */
+    public String _GetState()
+    {
+        return this._state.get().name();
+    }
+
+    /*
+    Returns the state of the connection to a device: IDLE, CONNECTING, DISCOVERING, READY or DISCONNECTING
+    */
+    public String _GetPeripheralState(String address)
+    {
+        GattConnection connection = getConnection(address);
+        return connection == null ? ConnectionState.IDLE.name() : connection.getState().name();
+    }
+
+    public String _GetListOfDevices()
+    {
+        return getListOfDevices(DeviceRegistry.BY_DISCOVERY);
+    }
+
+    /*
+    Same as _GetListOfDevices, with the strongest signal first
+    */
+    public String _GetListOfDevicesSortedBySignal()
+    {
+        return getListOfDevices(DeviceRegistry.BY_SIGNAL);
+    }
+
+    private String getListOfDevices(Comparator<DeviceRegistry.Entry> order)
+    {
+        String jsonListString;
+        List<DeviceRegistry.Entry> devices = new ArrayList<DeviceRegistry.Entry>();
+        for (DeviceRegistry.Entry entry : this._deviceRegistry.snapshot(order))
+        {
+            if (isListed(entry))
+            {
+                devices.add(entry);
+            }
+        }
+        this._lastDeviceList = devices;
+
+        jsonListString = DeviceListEncoder.toJson(devices);
+        if (BleLog.isDebugEnabled())
+        {
+            BleLog.d(TAG, "_GetListOfDevices: " + jsonListString);
+        }
+        return jsonListString;
+    }
+
+    /*
+    Writes the devices changed or removed since a version in the shared device list buffer, see DeviceListEncoder
+    for its layout. Pass 0 for the whole list, then the version of the header of the previous export. Meant to be
+    polled by Unity while scanning. Returns the number of records.
+    */
+    public int _ExportDevices(long sinceVersion)
+    {
+        synchronized (this._deviceListEncoder)
+        {
+            return this._deviceListEncoder.encode(this._deviceRegistry, sinceVersion, this._scanFilters.isEmpty(),
+                    SystemClock.elapsedRealtime());
+        }
+    }
+
+    /*
+    The direct buffer, in native byte order, filled by _ExportDevices. It is allocated once and can be kept by Unity.
+    */
+    public ByteBuffer _GetDeviceListBuffer()
+    {
+        return this._deviceListEncoder.getBuffer();
+    }
+
+    /*
+    Exports the devices changed since a version and returns a copy of the export, header included, for the callers
+    that can not read the direct buffer
+    */
+    public byte[] _GetDeviceListExport(long sinceVersion)
+    {
+        synchronized (this._deviceListEncoder)
+        {
+            _ExportDevices(sinceVersion);
+            return this._deviceListEncoder.toByteArray();
+        }
+    }
+
+    /*
+    Returns what the scans know of a device in JSON, an empty object {} if no scan has found it:
+    {"address": "00:11:22:AA:BB:CC", "name": "name", "rssi": -60, "smoothedRssi": -61.5, "txPower": 4,
+     "services": ["713d0000-503e-4c75-ba94-3148f18d941e"], "firstSeen": 12000, "lastSeen": 150, "sightings": 42}
+    firstSeen and lastSeen are in milliseconds ago, txPower is only present when advertised.
+    */
+    public String _GetDeviceInfo(String address)
+    {
+        DeviceRegistry.Entry entry = this._deviceRegistry.get(address);
+        if (entry == null)
+        {
+            return "{}";
+        }
+        long now = SystemClock.elapsedRealtime();
+        AdvertisementData advertisement = entry.getAdvertisement();
+        JSONObject deviceJSON = new JSONObject();
+        try
+        {
+            deviceJSON.put("address", entry.getAddress());
+            deviceJSON.put("name", entry.getName());
+            deviceJSON.put("rssi", entry.getRssi());
+            deviceJSON.put("smoothedRssi", (double) entry.getSmoothedRssi());
+            if (advertisement.getTxPowerLevel() != AdvertisementData.TX_POWER_UNKNOWN)
+            {
+                deviceJSON.put("txPower", advertisement.getTxPowerLevel());
+            }
+            JSONArray servicesJSON = new JSONArray();
+            for (UUID uuid : advertisement.getServiceUuids())
+            {
+                servicesJSON.put(uuid.toString());
+            }
+            deviceJSON.put("services", servicesJSON);
+            deviceJSON.put("firstSeen", now - entry.getFirstSeen());
+            deviceJSON.put("lastSeen", now - entry.getLastSeen());
+            deviceJSON.put("sightings", entry.getSightings());
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "_GetDeviceInfo: JSONException");
+        }
+        return deviceJSON.toString();
+    }
+
+    /*
+    Connects the device connected most recently, in this launch or a previous one, without scanning first. If it is
+    not ready after fallbackDelayMs, a scan of SCAN_PERIOD ms looks for it and connects it again once found, and
+    reports the other devices to Unity as usual. Returns false if there is nothing to connect to: no device has been
+    connected before, its address is not valid, bluetooth is off or the connection can not be started. Scan instead.
+    If the fallback scan does not find the device, its connection is given up and Unity gets OnBleDidConnect with a
+    "Fail: ..." message.
+    */
+    public boolean _ConnectLastPeripheral(final long fallbackDelayMs)
+    {
+        KnownDevices knownDevices = this._knownDevices;
+        final KnownDevices.Entry entry = knownDevices == null ? null : knownDevices.getLatest();
+        if (entry == null)
+        {
+            return false;
+        }
+        if (!BluetoothAdapter.checkBluetoothAddress(entry.getAddress()))
+        {
+            Log.e(TAG, "_ConnectLastPeripheral: invalid address " + entry.getAddress());
+            return false;
+        }
+        /* No adapter while replaying a session */
+        BluetoothAdapter adapter = this._mBluetoothAdapter;
+        if (adapter != null && !adapter.isEnabled())
+        {
+            Log.e(TAG, "_ConnectLastPeripheral: bluetooth is off");
+            return false;
+        }
+        BleLog.d(TAG, "_ConnectLastPeripheral: " + entry.getAddress());
+        setDefaultDevice(entry.getAddress(), entry.getName());
+        if (!connectDefaultDevice())
+        {
+            Log.e(TAG, "_ConnectLastPeripheral: unable to connect " + entry.getAddress());
+            return false;
+        }
+        this._eventThread.post(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.cancelFallback();
+                BleFramework.this._fallbackTarget = entry;
+                BleFramework.this._fallbackTask = BleFramework.this._eventThread.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        BleFramework.this.startFallbackScan();
+                    }
+                }, Math.max(fallbackDelayMs, 0));
+            }
+        });
+        return true;
+    }
+
+    /*
+    Devices connected before, most recent first: [{"address": ..., "name": ..., "mtu": 185, "lastConnected": ...}].
+    lastConnected is in ms since 1970, name is missing for the devices without one.
+    */
+    public String _GetKnownPeripherals()
+    {
+        JSONArray devicesJSON = new JSONArray();
+        KnownDevices knownDevices = this._knownDevices;
+        if (knownDevices == null)
+        {
+            return devicesJSON.toString();
+        }
+        try
+        {
+            for (KnownDevices.Entry entry : knownDevices.getEntries())
+            {
+                JSONObject deviceJSON = new JSONObject();
+                deviceJSON.put("address", entry.getAddress());
+                deviceJSON.put("name", entry.getName());
+                deviceJSON.put("mtu", entry.getMtu());
+                deviceJSON.put("lastConnected", entry.getLastConnected());
+                devicesJSON.put(deviceJSON);
+            }
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "_GetKnownPeripherals: JSONException");
+        }
+        return devicesJSON.toString();
+    }
+
+    /*
+    Forgets a known device, or all of them when address is null. A forgotten device is discovered again on its next
+    connection.
+    */
+    public boolean _ForgetPeripheral(String address)
+    {
+        KnownDevices knownDevices = this._knownDevices;
+        if (knownDevices == null)
+        {
+            return false;
+        }
+        if (address == null)
+        {
+            knownDevices.clear();
+            this._discoveryCache.clear();
+        }
+        else if (knownDevices.remove(address))
+        {
+            this._discoveryCache.remove(address);
+        }
+        else
+        {
+            return false;
+        }
+        return knownDevices.save();
+    }
+
+    /*
+    Connects to a device of the list returned by the last _GetListOfDevices and makes it the default device
+    */
+    public boolean _ConnectPeripheralAtIndex(int peripheralIndex)
+    {
+        BleLog.d(TAG, "_ConnectPeripheralAtIndex: " + peripheralIndex);
+        List<DeviceRegistry.Entry> devices = this._lastDeviceList;
+        if (devices == null)
+        {
+            devices = this._deviceRegistry.snapshot();
+        }
+        if (peripheralIndex < 0 || peripheralIndex >= devices.size())
+        {
+            Log.e(TAG, "_ConnectPeripheralAtIndex: no device at index " + peripheralIndex);
+            return false;
+        }
+        DeviceRegistry.Entry device = devices.get(peripheralIndex);
+
+        setDefaultDevice(device.getAddress(), device.getName());
+        return connectDefaultDevice();
+    }
+
+    /*
+    Connects to a device found by the scans and makes it the default device. The other devices stay connected.
+    */
+    public boolean _ConnectPeripheral(String peripheralID)
+    {
+        BleLog.d(TAG, "_ConnectPeripheral: " + peripheralID);
+        DeviceRegistry.Entry device = this._deviceRegistry.get(peripheralID);
+        if (device == null)
+        {
+            return false;
+        }
+        setDefaultDevice(device.getAddress(), device.getName());
+        return connectDefaultDevice();
+    }
+
+    /*
+    Makes a device the default one. _state follows its connection from now on.
+    */
+    private void setDefaultDevice(String address, String name)
+    {
+        this._mDeviceAddress = address;
+        this._mDeviceName = name;
+        GattConnection connection = getConnection(address);
+        ConnectionState state = connection == null ? ConnectionState.IDLE : connection.getState();
+        this._state.reset(state == ConnectionState.IDLE ? ConnectionState.CONNECTING : state);
+    }
+
+    private boolean connectDefaultDevice()
+    {
+        if (!connectPeripheral(this._mDeviceAddress))
+        {
+            this._state.reset(getUnlinkedState());
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    Binds the bluetooth service the first time, then connects the device. Up to RBLService.MAX_CONNECTIONS devices can be connected at the same time.
+    */
+    private boolean connectPeripheral(String address)
+    {
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            return service.connect(address);
+        }
+
+        synchronized (this._pendingConnections)
+        {
+            if (!this._pendingConnections.contains(address))
+            {
+                this._pendingConnections.add(address);
+            }
+        }
+        if (!this._serviceBound)
+        {
+            Intent gattServiceIntent = new Intent(this._unityActivity, RBLService.class);
+            this._gattServiceIntent = gattServiceIntent;
+            this._serviceBound = this._unityActivity.bindService(gattServiceIntent, this._mServiceConnection, 1);
+        }
+        return true;
+    }
+
+    private void unbindBleService()
+    {
+        if (this._serviceBound)
+        {
+            this._serviceBound = false;
+            this._unityActivity.unbindService(this._mServiceConnection);
+        }
+        this._mBluetoothLeService = null;
+    }
+
+    /*
+    Returns the oldest packet not yet read from the default device, or the latest read packet if there is no new data.
+    _GetDataTimestamp gives the time it was received at.
+    */
+    public byte[] _GetData()
+    {
+        if (BleLog.isDebugEnabled())
+        {
+            BleLog.d(TAG, "_GetData: ");
+        }
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        byte[] data = connection == null ? null : pollData(connection.getReceiveBuffer());
+        if (data != null)
+        {
+            this._dataRx = data;
+        }
+        return this._dataRx;
+    }
+
+    /*
+    Returns the oldest packet not yet read from the device, or an empty array if there is no new data
+    */
+    public byte[] _GetDataFromPeripheral(String address)
+    {
+        GattConnection connection = getConnection(address);
+        byte[] data = connection == null ? null : pollData(connection.getReceiveBuffer());
+        return data == null ? new byte[0] : data;
+    }
+
+    /*
+    Removes the oldest packet of a receive buffer, keeps its receive time and records its age
+    */
+    private byte[] pollData(PacketRingBuffer buffer)
+    {
+        long timestamp = buffer.peekTimestamp();
+        byte[] data = buffer.poll();
+        if (data != null)
+        {
+            this._dataTimestamp = timestamp;
+            if (timestamp != 0)
+            {
+                this._metrics.getReceiveAge().record(SystemClock.elapsedRealtimeNanos() - timestamp);
+            }
+        }
+        return data;
+    }
+
+    /*
+    Time at which the latest packet read by _GetData, _GetDataFromPeripheral or _AcquireData was received, in
+    nanoseconds on the elapsedRealtimeNanos clock: its age is _GetElapsedRealtimeNanos() - _GetDataTimestamp().
+    The packets of _FlushReceivedData carry their own receive time.
+    */
+    public long _GetDataTimestamp()
+    {
+        return this._dataTimestamp;
+    }
+
+    /*
+    Current time of the clock of the receive times, in nanoseconds
+    */
+    public long _GetElapsedRealtimeNanos()
+    {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /*
+    Zero-copy read of the packets of the default device, without allocation on either side. _GetDataArena returns the
+    direct buffer holding the receive queue of the device, allocated once per connection so Unity can keep its address.
+    _AcquireData returns the position of the oldest packet in the arena as (offset << 32) | length, -1 if there is
+    none. The packet stays reserved, and is returned again, until _ReleaseData.
+    */
+    public ByteBuffer _GetDataArena()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        return connection == null ? null : connection.getReceiveBuffer().getArena();
+    }
+
+    public long _AcquireData()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        if (connection == null)
+        {
+            return -1;
+        }
+        PacketRingBuffer buffer = connection.getReceiveBuffer();
+        int offset = buffer.peekOffset();
+        if (offset < 0)
+        {
+            return -1;
+        }
+        this._dataTimestamp = buffer.peekTimestamp();
+        return ((long) offset << 32) | buffer.peekLength();
+    }
+
+    public void _ReleaseData()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        if (connection != null)
+        {
+            connection.getReceiveBuffer().release();
+        }
+    }
+
+    /*
+    Returns all the packets not yet read from the default device in a single array.
+    Every packet is preceded by its length as a 2 bytes big endian integer.
+    */
+    public byte[] _GetAllData()
+    {
+        return _GetAllDataFromPeripheral(this._mDeviceAddress);
+    }
+
+    public byte[] _GetAllDataFromPeripheral(String address)
+    {
+        GattConnection connection = getConnection(address);
+        return connection == null ? new byte[0] : connection.getReceiveBuffer().drainAll();
+    }
+
+    /*
+    Moves the packets received from all the devices since the last call in the shared receive buffer, see ReceiveBatch
+    for its layout: every packet carries its receive time and the batch the time of the flush. Meant to be called once
+    per Unity frame. Returns the number of packets in the batch.
+    */
+    public int _FlushReceivedData()
+    {
+        synchronized (this._receiveBatch)
+        {
+            this._callbackDataPending.set(false);
+            this._receiveBatch.begin(SystemClock.elapsedRealtimeNanos());
+            RBLService service = this._mBluetoothLeService;
+            if (service != null)
+            {
+                for (GattConnection connection : service.getConnections())
+                {
+                    this._receiveBatch.add(connection.getReceiveBuffer(), connection.getAddressBytes(),
+                            this._metrics.getReceiveAge());
+                }
+            }
+            return this._receiveBatch.end();
+        }
+    }
+
+    /*
+    The direct buffer, in native byte order, filled by _FlushReceivedData. It is allocated once and can be kept by Unity.
+    */
+    public ByteBuffer _GetReceiveBuffer()
+    {
+        return this._receiveBatch.getBuffer();
+    }
+
+    /*
+    Flushes the received data and returns a copy of the batch, header included, for the callers that can not read the direct buffer
+    */
+    public byte[] _GetReceivedDataBatch()
+    {
+        synchronized (this._receiveBatch)
+        {
+            _FlushReceivedData();
+            return this._receiveBatch.toByteArray();
+        }
+    }
+
+    /*
+    Registers the callback, usually an AndroidJavaProxy, that receives the events of the framework. While a callback is registered
+    the OnBleDidReceiveData messages are not sent: Unity is signaled once per batch and reads it with _FlushReceivedData.
+    Pass null to go back to the Unity messages.
+    */
+    public void _SetCallback(BleFrameworkCallback callback)
+    {
+        this._callbackDataPending.set(false);
+        this._callback = callback;
+    }
+
+    public int _GetPendingPacketCount()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        return connection == null ? 0 : connection.getReceiveBuffer().size();
+    }
+
+    /*
+    Number of packets of the default device dropped because Unity did not read them fast enough
+    */
+    public long _GetOverflowCount()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        return connection == null ? 0 : connection.getReceiveBuffer().getOverflowCount();
+    }
+
+    /*
+    Snapshot of the counters of the data path, for every device since the start or the last _ResetMetrics, read with
+    the BleMetrics indexes: packets and bytes received and sent, packets dropped because Unity read them too late,
+    writes dropped by the queue policy or failed, current total and largest GATT queue depths, then three latencies in
+    microseconds (count, 50th, 90th and 99th percentiles, maximum): from a notification to its signal to Unity, from a
+    notification to the moment Unity reads it, and the round trip of the pings of _StartPing, followed by the number
+    of lost pings.
+    */
+    public long[] _GetMetrics()
+    {
+        RBLService service = this._mBluetoothLeService;
+        Collection<GattConnection> connections = service == null
+                ? Collections.<GattConnection>emptyList() : service.getConnections();
+        return this._metrics.snapshot(connections, new long[BleMetrics.SNAPSHOT_SIZE]);
+    }
+
+    public void _ResetMetrics()
+    {
+        RBLService service = this._mBluetoothLeService;
+        this._metrics.reset(service == null ? Collections.<GattConnection>emptyList() : service.getConnections());
+    }
+
+    /*
+    Level of the logs of the framework: "VERBOSE", "DEBUG", "INFO" (default) or "NONE". The debug logs of every packet,
+    write and scan result are only built at DEBUG and below. Warnings and errors are always logged.
+    */
+    public boolean _SetLogLevel(String level)
+    {
+        int value = BleLog.parseLevel(level);
+        if (value < 0)
+        {
+            Log.e(TAG, "_SetLogLevel: unknown level " + level);
+            return false;
+        }
+        BleLog.setLevel(value);
+        return true;
+    }
+
+    /*
+    Disconnects all the devices and releases the bluetooth service
+    */
+    public boolean _Disconnect()
+    {
+        synchronized (this._pendingConnections)
+        {
+            this._pendingConnections.clear();
+        }
+        if (this._state.get().isLinked())
+        {
+            this._state.moveTo(ConnectionState.DISCONNECTING);
+        }
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            service.disconnect();
+            service.close();
+        }
+        unbindBleService();
+        this._state.reset(getUnlinkedState());
+
+        /*
+        The scan and the RSSI polling are stopped with the connections, then the thread exits once the pending
+        updates have been delivered. It is started again by the next scan or connection.
+        */
+        this._eventThread.post(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.cancelFallback();
+                BleFramework.this.stopLeScan();
+                BleFramework.this.stopAllRssiTelemetry();
+                BleFramework.this.stopAllPings();
+            }
+        });
+        this._eventThread.shutdown();
+
+        /* A recording goes on with the next connections, what has been recorded so far is saved */
+        RecordingTransport recordingTransport = this._recordingTransport;
+        SessionRecorder recorder = recordingTransport == null ? null : recordingTransport.getRecorder();
+        if (recorder != null)
+        {
+            recorder.flush();
+        }
+        return true;
+    }
+
+    public boolean _DisconnectPeripheral(String address)
+    {
+        RBLService service = this._mBluetoothLeService;
+        if (service == null || service.getConnection(address) == null)
+        {
+            return false;
+        }
+        if (address.equals(this._mDeviceAddress) && this._state.get().isLinked())
+        {
+            this._state.moveTo(ConnectionState.DISCONNECTING);
+        }
+        service.disconnect(address);
+        return true;
+    }
+
+    /*
+    Queues the data to be written on the RX characteristic of the default device. The writes are sent one after the other,
+    when the previous GATT operation completes, following the policy set with _SetWriteQueuePolicy. Data larger than the
+    payload of the negotiated MTU is sent in several packets, see MessageFragmenter.
+    */
+    public void _SendData(byte[] data)
+    {
+        _SendDataToPeripheral(this._mDeviceAddress, data);
+    }
+
+    public boolean _SendDataToPeripheral(String address, byte[] data)
+    {
+        GattConnection connection = getConnection(address);
+        if (connection == null || !connection.hasCharacteristic(RBLService.UUID_BLE_SHIELD_RX))
+        {
+            if (BleLog.isDebugEnabled())
+            {
+                BleLog.d(TAG, "_SendDataToPeripheral: not connected");
+            }
+            return false;
+        }
+
+        try
+        {
+            if (!connection.writeMessage(RBLService.UUID_BLE_SHIELD_SERVICE, RBLService.UUID_BLE_SHIELD_RX, data,
+                    isWriteWithResponse(connection)))
+            {
+                if (BleLog.isDebugEnabled())
+                {
+                    BleLog.d(TAG, "_SendDataToPeripheral: write rejected by the queue");
+                }
+                return false;
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "_SendDataToPeripheral: " + e.getMessage());
+            return false;
+        }
+        this._metrics.onPacketSent(data.length);
+        return true;
+    }
+
+    /*
+    Like Android, the default write type of a characteristic is without response when it supports it
+    */
+    private boolean isWriteWithResponse(GattConnection connection)
+    {
+        return this._writeType == -1
+                ? !connection.supportsWriteWithoutResponse(RBLService.UUID_BLE_SHIELD_SERVICE, RBLService.UUID_BLE_SHIELD_RX)
+                : this._writeType == WRITE_TYPE_DEFAULT;
+    }
+
+    /*
+    Sends a drive command of the robot protocol to the default device, see RobotCommandEncoder. The speeds of the
+    left and right wheels go from -255 (full backward) to 255. A drive command still waiting in the write queue is
+    replaced by the new one, so the robot always gets the latest setpoint however fast they are sent.
+    */
+    public boolean _SendDriveCommand(int left, int right)
+    {
+        return _SendDriveCommandToPeripheral(this._mDeviceAddress, left, right);
+    }
+
+    public boolean _SendDriveCommandToPeripheral(String address, int left, int right)
+    {
+        synchronized (this._command)
+        {
+            int length = RobotCommandEncoder.encodeDrive(left, right, this._command);
+            return sendCommand(address, length, RobotCommandEncoder.DRIVE_CHANNEL);
+        }
+    }
+
+    /*
+    Sends the reset command of the robot protocol to the default device. It is never dropped or replaced.
+    */
+    public boolean _SendResetCommand()
+    {
+        return _SendResetCommandToPeripheral(this._mDeviceAddress);
+    }
+
+    public boolean _SendResetCommandToPeripheral(String address)
+    {
+        synchronized (this._command)
+        {
+            int length = RobotCommandEncoder.encodeReset(this._command);
+            return sendCommand(address, length, GattOperation.NO_CHANNEL);
+        }
+    }
+
+    /*
+    Writes _command on the RX characteristic, with the write type of _SendData
+    */
+    private boolean sendCommand(String address, int length, int channel)
+    {
+        GattConnection connection = getConnection(address);
+        if (connection == null || !connection.hasCharacteristic(RBLService.UUID_BLE_SHIELD_RX))
+        {
+            if (BleLog.isDebugEnabled())
+            {
+                BleLog.d(TAG, "sendCommand: not connected");
+            }
+            return false;
+        }
+        if (!connection.writeCommand(RBLService.UUID_BLE_SHIELD_SERVICE, RBLService.UUID_BLE_SHIELD_RX, this._command, length,
+                isWriteWithResponse(connection), channel))
+        {
+            if (BleLog.isDebugEnabled())
+            {
+                BleLog.d(TAG, "sendCommand: write rejected by the queue");
+            }
+            return false;
+        }
+        this._metrics.onPacketSent(length);
+        return true;
+    }
+
+    /*
+    Selects WRITE_TYPE_DEFAULT (true) or WRITE_TYPE_NO_RESPONSE (false) for _SendData.
+    By default the write type of the characteristic is used.
+    */
+    public void _SetWriteWithResponse(boolean withResponse)
+    {
+        this._writeType = withResponse ? WRITE_TYPE_DEFAULT : WRITE_TYPE_NO_RESPONSE;
+    }
+
+    /*
+    Policy applied when more than capacity writes are waiting: "DROP_OLDEST", "DROP_NEWEST" or "COALESCE"
+    */
+    public boolean _SetWriteQueuePolicy(String policy, int capacity)
+    {
+        try
+        {
+            this._writeQueuePolicy = GattOperationQueue.OverflowPolicy.valueOf(policy);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "_SetWriteQueuePolicy: unknown policy " + policy);
+            return false;
+        }
+        if (capacity > 0)
+        {
+            this._writeQueueCapacity = capacity;
+        }
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            service.setWriteQueueSettings(this._writeQueuePolicy, this._writeQueueCapacity);
+        }
+        return true;
+    }
 
     /*
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        // User chose not to enable Bluetooth.
-        if (requestCode == REQUEST_ENABLE_BT
-                && resultCode == Activity.RESULT_CANCELED) {
-            //finish();
-            return;
-        }
-        super.onActivityResult(requestCode, resultCode, data);
+    Number of GATT operations waiting to be sent to the default device, including the one in flight
+    */
+    public int _GetWriteQueueDepth()
+    {
+        return _GetWriteQueueDepthForPeripheral(this._mDeviceAddress);
     }
 
-    @Override
-    protected void onCreate(Bundle savedInstanceState)
+    public int _GetWriteQueueDepthForPeripheral(String address)
     {
-        super.onCreate(savedInstanceState);
+        GattConnection connection = getConnection(address);
+        return connection == null ? 0 : connection.getOperationQueue().getDepth();
+    }
 
-        Log.d(TAG,"onCreate is being launched");
+    /*
+    Number of writes to the default device discarded by the write queue policy
+    */
+    public long _GetDroppedWriteCount()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        return connection == null ? 0 : connection.getOperationQueue().getDroppedCount();
+    }
 
+    /*
+    Number of GATT operations to the default device that were refused by Android or completed with an error
+    */
+    public long _GetFailedWriteCount()
+    {
+        GattConnection connection = getConnection(this._mDeviceAddress);
+        return connection == null ? 0 : connection.getOperationQueue().getFailedCount();
+    }
 
-        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE))
+    /*
+    MTU requested to the devices connected from now on, 23 to keep the default MTU, and whether they follow the
+    fragmentation convention of MessageFragmenter above the default MTU: a packet of MTU - 3 bytes means the message
+    continues in the next one. With reassembly, the packets of the device are joined until a shorter one
+    before _GetData, and the messages of _SendData end with a shorter packet, empty if needed. Off by default: a
+    device streaming full packets without the convention would get them merged. Ignored when the framing is enabled.
+    */
+    public void _SetMtuSettings(int mtu, boolean reassembly)
+    {
+        this._requestedMtu = mtu;
+        this._messageReassembly = reassembly;
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
         {
-            Log.d(TAG,"onCreate: fail: missing FEATURE_BLUETOOTH_LE");
-            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidInitialize, "Fail: missing FEATURE_BLUETOOTH_LE");
-            //finish();
+            service.setMtuSettings(mtu, reassembly);
         }
+    }
 
-        final BluetoothManager mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        _mBluetoothAdapter = mBluetoothManager.getAdapter();
-        if (_mBluetoothAdapter == null)
+    /*
+    Enables the framing of the messages (FrameCodec) on every device, connected now or later. _SendData then accepts
+    messages of any size up to 255 frames, and _GetData returns the whole messages of the device, up to 512 bytes.
+    The device must use the same framing, see Arduino/RobotClient/BleFraming.
+    */
+    public void _SetFramingEnabled(boolean enabled)
+    {
+        this._framing = enabled;
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
         {
-            Log.d(TAG,"onCreate: fail: _mBluetoothAdapter is null");
-            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", BLEUnityMessageName_OnBleDidInitialize, "Fail: Context.BLUETOOTH_SERVICE");
-            //finish();
-            return;
+            service.setFramingEnabled(enabled);
         }
+    }
 
-        Log.d(TAG,"onCreate: _mBluetoothAdapter correctly initialized");
-        Intent gattServiceIntent = new Intent(BleFramework.this, RBLService.class);
-        bindService(gattServiceIntent, _mServiceConnection, BIND_AUTO_CREATE);
-
-        Log.d(TAG,"onCreate: sending BLEUnityMessageName_OnBleDidInitialize success");
+    /*
+    Returns {"lost": ..., "duplicates": ..., "corrupt": ...} for the messages received from the device with the framing
+    enabled: messages lost because one of their frames is missing, frames received twice and frames with a wrong CRC.
+    */
+    public String _GetFramingStats(String address)
+    {
+        GattConnection connection = getConnection(address);
+        FrameCodec codec = connection == null ? null : connection.getFrameCodec();
+        JSONObject statsJSON = new JSONObject();
+        try
+        {
+            statsJSON.put("lost", codec == null ? 0 : codec.getLostCount());
+            statsJSON.put("duplicates", codec == null ? 0 : codec.getDuplicateCount());
+            statsJSON.put("corrupt", codec == null ? 0 : codec.getCorruptCount());
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "_GetFramingStats: JSONException");
+        }
+        return statsJSON.toString();
     }
 
-    @Override
-    protected void onStop() {
-        super.onStop();
-        Log.d(TAG,"onStop: unregisterReceiver");
-        _unityActivity.unregisterReceiver(_mGattUpdateReceiver);
+    /*
+    MTU negotiated with the device, 23 before the exchange or if it is not connected
+    */
+    public int _GetMtu()
+    {
+        return _GetMtuForPeripheral(this._mDeviceAddress);
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        Log.d(TAG,"onDestroy: unbindService");
-        if (_mServiceConnection != null)
-            unbindService(_mServiceConnection);
+    public int _GetMtuForPeripheral(String address)
+    {
+        GattConnection connection = getConnection(address);
+        return connection == null ? BleTransport.DEFAULT_MTU : connection.getMtu();
     }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        Log.d(TAG,"onResume:");
-        if (!_mBluetoothAdapter.isEnabled())
+    /*
+    Requests "HIGH", "BALANCED" (default) or "LOW_POWER" connection priority for every device, connected now or later.
+    HIGH shortens the connection interval for the lowest latency, at the cost of battery.
+    */
+    public boolean _SetConnectionPriority(String priority)
+    {
+        int value = parseConnectionPriority(priority);
+        if (value < 0)
         {
-            Log.d(TAG,"onResume: startActivityForResult: REQUEST_ENABLE_BT");
-            Intent enableBtIntent = new Intent(
-                    BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
+            return false;
         }
-        Log.d(TAG,"onResume: registerReceiver");
-        _unityActivity.registerReceiver(_mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        this._connectionPriority = value;
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
+        {
+            service.setConnectionPriority(value);
+        }
+        return true;
+    }
+
+    public boolean _SetConnectionPriorityForPeripheral(String address, String priority)
+    {
+        int value = parseConnectionPriority(priority);
+        RBLService service = this._mBluetoothLeService;
+        return value >= 0 && service != null && service.setConnectionPriority(address, value);
     }
-    */
 
     /*
-    Public methods that can be directly called by Unity
+    Reconnects the devices, connected now or later, when their link is lost without _DisconnectPeripheral or
+    _Disconnect, for example when a robot drives out of range for a moment. The attempts wait from initialDelayMs,
+    doubling up to maxDelayMs, and stop after maxAttempts, or never with 0.
+    With autoConnect the device is awaited in the background and its services are reused, otherwise every attempt is
+    a direct connection followed by a new service discovery: usually faster, at the cost of more radio time.
     */
-    public void _InitBLEFramework()
+    public boolean _SetAutoReconnect(boolean enabled, boolean autoConnect, long initialDelayMs, long maxDelayMs, int maxAttempts)
     {
-        System.out.println("Android Executing: _InitBLEFramework");
-        if (!this._unityActivity.getPackageManager().hasSystemFeature("android.hardware.bluetooth_le"))
+        ReconnectPolicy policy = null;
+        if (enabled)
         {
-            Log.d(TAG, "onCreate: fail: missing FEATURE_BLUETOOTH_LE");
-            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidInitialize", "Fail: missing FEATURE_BLUETOOTH_LE");
-
-            return;
+            try
+            {
+                policy = new ReconnectPolicy(initialDelayMs, maxDelayMs, maxAttempts, autoConnect);
+            }
+            catch (IllegalArgumentException e)
+            {
+                Log.e(TAG, "_SetAutoReconnect: " + e.getMessage());
+                return false;
+            }
         }
-        BluetoothManager mBluetoothManager = (BluetoothManager)this._unityActivity.getSystemService("bluetooth");
-        this._mBluetoothAdapter = mBluetoothManager.getAdapter();
-        if (this._mBluetoothAdapter == null)
+        this._reconnectPolicy = policy;
+        RBLService service = this._mBluetoothLeService;
+        if (service != null)
         {
-            Log.d(TAG, "onCreate: fail: _mBluetoothAdapter is null");
-            UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidInitialize", "Fail: Context.BLUETOOTH_SERVICE");
+            service.setReconnectPolicy(policy, this._reconnectScheduler);
+        }
+        return true;
+    }
 
-            return;
+    /*
+    Subscribes to the notifications, or indications, of any characteristic of a connected device. Every subscription has
+    its own channel, whose packets are read with _GetChannelData(address, channel), so several characteristics can stream
+    at the same time. Channel 0 is the RX characteristic of the BLE shield, read by _GetData and _GetAllData.
+    Returns the channel, or -1 if the device is not ready or the characteristic does not notify.
+    */
+    public int _Subscribe(String address, String serviceUuid, String characteristicUuid)
+    {
+        GattConnection connection = getConnection(address);
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        if (connection == null || !connection.isReady() || service == null || characteristic == null)
+        {
+            BleLog.d(TAG, "_Subscribe: not connected or invalid UUID");
+            return -1;
         }
-        registerBleUpdatesReceiver();
+        GattSubscription subscription = connection.subscribe(service, characteristic);
+        return subscription == null ? -1 : subscription.getChannel();
+    }
 
-        Log.d(TAG, "onCreate: _mBluetoothAdapter correctly initialized");
-        UnityPlayer.UnitySendMessage("BLEControllerEventHandler", "OnBleDidInitialize", "Success");
+    public boolean _Unsubscribe(String address, int channel)
+    {
+        GattConnection connection = getConnection(address);
+        return connection != null && connection.unsubscribe(channel);
+    }
 
+    /*
+    Returns all the packets not yet read from a channel in a single array, in the format of _GetAllData: every packet is
+    preceded by its length as a 2 bytes big endian integer. Empty if there is no new data or no such channel.
+    */
+    public byte[] _GetChannelData(String address, int channel)
+    {
+        GattConnection connection = getConnection(address);
+        GattSubscription subscription = connection == null ? null : connection.getSubscription(channel);
+        if (subscription == null)
+        {
+            return new byte[0];
+        }
+        subscription.clearSignal();
+        return subscription.getBuffer().drainAll();
     }
 
-    public void _ScanForPeripherals()
+    /*
+    Reads a characteristic of the device. The value of a subscribed characteristic is queued in its channel, the others
+    are sent with OnBleDidReadAttribute.
+    */
+    public boolean _ReadCharacteristic(String address, String serviceUuid, String characteristicUuid)
     {
-        Log.d(TAG, "_ScanForPeripherals: Launching scanLeDevice");
-        scanLeDevice();
+        GattConnection connection = getConnection(address);
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        if (connection == null || !connection.isReady() || service == null || characteristic == null)
+        {
+            return false;
+        }
+        connection.readCharacteristic(service, characteristic);
+        return true;
     }
 
-    public boolean _IsDeviceConnected()
+    /*
+    Writes a single packet, of at most MTU - 3 bytes, on any characteristic of the device, for example the TX
+    characteristic of the BLE shield or the command characteristic of a custom board. Unlike _SendData the data is
+    neither fragmented nor framed.
+    */
+    public boolean _WriteCharacteristic(String address, String serviceUuid, String characteristicUuid, byte[] data, boolean withResponse)
     {
-        Log.d(TAG, "_IsDeviceConnected");
-        return this._connState;
+        GattConnection connection = getConnection(address);
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        if (connection == null || !connection.isReady() || service == null || characteristic == null)
+        {
+            return false;
+        }
+        if (!connection.write(service, characteristic, data, withResponse))
+        {
+            return false;
+        }
+        this._metrics.onPacketSent(data.length);
+        return true;
     }
 
-    public boolean _SearchDeviceDidFinish()
+    /*
+    Reads a descriptor of a characteristic, the result is sent with OnBleDidReadAttribute
+    */
+    public boolean _ReadDescriptor(String address, String serviceUuid, String characteristicUuid, String descriptorUuid)
     {
-        Log.d(TAG, "_SearchDeviceDidFinish");
-        return !this._searchingDevice;
+        GattConnection connection = getConnection(address);
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        UUID descriptor = parseUuid(descriptorUuid);
+        if (connection == null || !connection.isReady() || service == null || characteristic == null || descriptor == null)
+        {
+            return false;
+        }
+        connection.readDescriptor(service, characteristic, descriptor);
+        return true;
     }
 
-    public String _GetListOfDevices()
+    public boolean _WriteDescriptor(String address, String serviceUuid, String characteristicUuid, String descriptorUuid, byte[] data)
     {
-        String jsonListString;
-        if (this._mDevice.size() > 0)
+        GattConnection connection = getConnection(address);
+        UUID service = parseUuid(serviceUuid);
+        UUID characteristic = parseUuid(characteristicUuid);
+        UUID descriptor = parseUuid(descriptorUuid);
+        if (connection == null || !connection.isReady() || service == null || characteristic == null || descriptor == null)
         {
-            Log.d(TAG, "_GetListOfDevices");
-            String[] uuidsArray = new String[this._mDevice.size()];
-            for (int i = 0; i < this._mDevice.size(); i++)
-            {
-                BluetoothDevice bd = (BluetoothDevice)this._mDevice.get(i);
+            return false;
+        }
+        return connection.writeDescriptor(service, characteristic, descriptor, data);
+    }
 
-                uuidsArray[i] = bd.getAddress();
+    /*
+    Returns the services of the device once discovered: {"services": [{"uuid": ..., "characteristics": [{"uuid": ...,
+    "properties": ...}]}]}, properties being the bits of the Bluetooth specification (0x10 notify, 0x20 indicate...)
+    */
+    public String _GetServiceLayout(String address)
+    {
+        GattConnection connection = getConnection(address);
+        ServiceLayout layout = connection == null ? null : connection.getServiceLayout();
+        JSONObject layoutJSON = new JSONObject();
+        try
+        {
+            JSONArray servicesJSON = new JSONArray();
+            if (layout != null)
+            {
+                for (UUID service : layout.getServices())
+                {
+                    JSONArray characteristicsJSON = new JSONArray();
+                    for (UUID characteristic : layout.getCharacteristics(service))
+                    {
+                        JSONObject characteristicJSON = new JSONObject();
+                        characteristicJSON.put("uuid", characteristic.toString());
+                        characteristicJSON.put("properties", layout.getProperties(service, characteristic));
+                        characteristicsJSON.put(characteristicJSON);
+                    }
+                    JSONObject serviceJSON = new JSONObject();
+                    serviceJSON.put("uuid", service.toString());
+                    serviceJSON.put("characteristics", characteristicsJSON);
+                    servicesJSON.put(serviceJSON);
+                }
             }
-            Log.d(TAG, "_GetListOfDevices: Building JSONArray");
-            JSONArray uuidsJSON = new JSONArray(Arrays.asList(uuidsArray));
-            Log.d(TAG, "_GetListOfDevices: Building JSONObject");
-            JSONObject dataUuidsJSON = new JSONObject();
-            try
+            layoutJSON.put("services", servicesJSON);
+        }
+        catch (JSONException e)
+        {
+            Log.e(TAG, "_GetServiceLayout: JSONException");
+        }
+        return layoutJSON.toString();
+    }
+
+    /*
+    Starts the RSSI telemetry of a connected device, or restarts it with new settings. The RSSI is read between every
+    minIntervalMs and maxIntervalMs, faster near a threshold or while the signal moves, and filtered before use.
+    Unity receives OnBleDidCrossRssiThreshold with {"address": ..., "threshold": -70, "rising": true, "rssi": ...,
+    "filteredRssi": ..., "distance": ...} whenever the filtered RSSI crosses one of the thresholds, in dBm, and reads
+    the latest values with _GetRssi. The reads never delay the writes: they are skipped while data is being sent.
+    */
+    public boolean _StartRssiTelemetry(final String address, long minIntervalMs, long maxIntervalMs, int[] thresholds)
+    {
+        if (getConnection(address) == null)
+        {
+            return false;
+        }
+        final RssiMonitor monitor;
+        try
+        {
+            monitor = new RssiMonitor(new RssiFilter(), minIntervalMs, maxIntervalMs, RssiMonitor.DEFAULT_HYSTERESIS,
+                    thresholds == null ? new int[0] : thresholds);
+            monitor.setCalibration(this._rssiMeasuredPower, this._rssiPathLossExponent);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "_StartRssiTelemetry: " + e.getMessage());
+            return false;
+        }
+        return this._eventThread.post(new Runnable()
+        {
+            public void run()
             {
-                Log.d(TAG, "_GetListOfDevices: Try inserting uuuidsJSON array in the JSONObject");
-                dataUuidsJSON.put("data", uuidsJSON);
+                BleFramework.this.stopRssiTelemetry(address);
+                BleFramework.this._rssiMonitors.put(address, monitor);
+                BleFramework.this.pollRssi(address);
             }
-            catch (JSONException e)
+        });
+    }
+
+    public void _StopRssiTelemetry(final String address)
+    {
+        this._eventThread.post(new Runnable()
+        {
+            public void run()
             {
-                Log.e(TAG, "_GetListOfDevices: JSONException");
-                e.printStackTrace();
+                BleFramework.this.stopRssiTelemetry(address);
             }
-            jsonListString = dataUuidsJSON.toString();
+        });
+    }
 
-            Log.d(TAG, "_GetListOfDevices: sending found devices in JSON: " + jsonListString);
-        }
-        else
+    /*
+    Measures the round trip time of the link with a device by sending a ping every intervalMs, echoed by the
+    peripheral: Arduino/RobotClient, or the simulated peripheral in echo mode. A single ping is in flight at a time,
+    one without an echo after 2 s is lost. The echoes are not delivered as data, the round trips are part of the
+    metrics (ROUND_TRIP_P50...) and the latest one is returned by _GetPing.
+    */
+    public boolean _StartPing(final String address, final long intervalMs)
+    {
+        final GattConnection connection = getConnection(address);
+        if (connection == null || intervalMs <= 0)
         {
-            jsonListString = "NO DEVICE FOUND";
-            Log.d(TAG, "_GetListOfDevices: no device was found");
+            return false;
         }
-        return jsonListString;
+        return this._eventThread.post(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.stopPing(address);
+                connection.setPingProbe(new PingProbe(BleFramework.this._metrics));
+                BleFramework.this.sendPing(address, intervalMs);
+            }
+        });
     }
 
-    public boolean _ConnectPeripheralAtIndex(int peripheralIndex)
+    public void _StopPing(final String address)
     {
-        Log.d(TAG, "_ConnectPeripheralAtIndex: " + peripheralIndex);
-        BluetoothDevice device = (BluetoothDevice)this._mDevice.get(peripheralIndex);
-
-        this._mDeviceAddress = device.getAddress();
-        this._mDeviceName = device.getName();
+        this._eventThread.post(new Runnable()
+        {
+            public void run()
+            {
+                BleFramework.this.stopPing(address);
+            }
+        });
+    }
 
-        Intent gattServiceIntent = new Intent(this._unityActivity, RBLService.class);
-        this._gattServiceIntent = gattServiceIntent;
-        this._unityActivity.bindService(gattServiceIntent, this._mServiceConnection, 1);
+    /*
+    Round trip of the latest ping echoed by a device in microseconds, -1 before the first echo or when the device is
+    not pinged
+    */
+    public long _GetPing(String address)
+    {
+        GattConnection connection = getConnection(address);
+        PingProbe probe = connection == null ? null : connection.getPingProbe();
+        long roundTrip = probe == null ? -1 : probe.getLastRoundTripNanos();
+        return roundTrip < 0 ? -1 : roundTrip / 1000;
+    }
 
-        return true;
+    /*
+    Latest RSSI telemetry of a device: {"address": ..., "rssi": -64, "filteredRssi": -62.8, "distance": 1.4, "zone": 1,
+    "interval": 1000}. zone is the number of thresholds below the filtered RSSI, interval the delay until the next read.
+    Returns null before the first read or when the telemetry of the device is off.
+    */
+    public String _GetRssi(String address)
+    {
+        return address == null ? null : this._rssiReports.get(address);
     }
 
-    public boolean _ConnectPeripheral(String peripheralID)
+    /*
+    Calibrates the distances of the RSSI telemetry, started now or later: measuredPower is the RSSI at one meter from
+    the device, pathLossExponent 2 in an open room and up to 4 through walls.
+    */
+    public boolean _SetRssiCalibration(final int measuredPower, final float pathLossExponent)
     {
-        Log.d(TAG, "_ConnectPeripheral: " + peripheralID);
-        for (BluetoothDevice device : this._mDevice) {
-            if (device.getAddress().equals(peripheralID))
+        if (pathLossExponent <= 0)
+        {
+            return false;
+        }
+        this._rssiMeasuredPower = measuredPower;
+        this._rssiPathLossExponent = pathLossExponent;
+        this._eventThread.post(new Runnable()
+        {
+            public void run()
             {
-                this._mDeviceAddress = device.getAddress();
-                this._mDeviceName = device.getName();
-
-                Intent gattServiceIntent = new Intent(this._unityActivity, RBLService.class);
-                this._gattServiceIntent = gattServiceIntent;
-                this._unityActivity.bindService(gattServiceIntent, this._mServiceConnection, 1);
-
-                return true;
+                for (RssiMonitor monitor : BleFramework.this._rssiMonitors.values())
+                {
+                    monitor.setCalibration(measuredPower, pathLossExponent);
+                }
             }
-        }
-        return false;
+        });
+        return true;
     }
 
-    public byte[] _GetData()
+    /*
+    Records the scans, connections and packets in a file, until _StopSessionRecording. The session is replayed later
+    with _StartSessionReplay, on any phone or on an emulator. Replaces the recording in progress, if any. Call it
+    after _InitBLEFramework.
+    */
+    public boolean _StartSessionRecording(String path)
     {
-        Log.d(TAG, "_GetData: ");
-        return this._dataRx;
+        RecordingTransport transport = this._recordingTransport;
+        if (transport == null || path == null)
+        {
+            Log.e(TAG, "_StartSessionRecording: call _InitBLEFramework first");
+            return false;
+        }
+        SessionRecorder recorder;
+        try
+        {
+            recorder = new SessionRecorder(new File(path));
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "_StartSessionRecording: unable to create " + path + ": " + e.getMessage());
+            return false;
+        }
+        SessionRecorder previous = transport.getRecorder();
+        transport.setRecorder(recorder);
+        if (previous != null)
+        {
+            previous.close();
+        }
+        return true;
     }
 
-    public boolean _Disconnect()
+    /*
+    Ends the recording and closes its file. Returns false if there was no recording or if a write failed, in which
+    case the file ends with the last records written.
+    */
+    public boolean _StopSessionRecording()
     {
-        this._mBluetoothLeService.disconnect();
-        this._mBluetoothLeService.close();
-        this._unityActivity.unbindService(this._mServiceConnection);
+        RecordingTransport transport = this._recordingTransport;
+        SessionRecorder recorder = transport == null ? null : transport.getRecorder();
+        if (recorder == null)
+        {
+            return false;
+        }
+        transport.setRecorder(null);
+        if (!recorder.close())
+        {
+            Log.e(TAG, "_StopSessionRecording: " + recorder.getError().getMessage());
+            return false;
+        }
         return true;
     }
 
-    public void _SendData(byte[] data)
+    /*
+    Replaces the bluetooth stack with a session recorded by _StartSessionRecording: the scans and connections get the
+    recorded devices, their events and their packets, speed times faster than recorded. Must be called before
+    _InitBLEFramework, which then succeeds without bluetooth hardware.
+    */
+    public boolean _StartSessionReplay(String path, float speed)
     {
-        //Log.d(TAG, "_SendData: ");
-
-        //Log.d(BleFramework.TAG, "Trying to get service with UUID:" + RBLService.UUID_BLE_SHIELD_RX);
-        BluetoothGattCharacteristic characteristic = this._map.get(RBLService.UUID_BLE_SHIELD_RX);
-        //Log.d(TAG, "Got characteristic: " + characteristic.getUuid().toString());
-
-        //Log.d(TAG, "Set data in the _characteristicTx");
-        //byte[] tx = hexStringToByteArray("fefefe");
-        characteristic.setValue(data);
-
-        //Log.d(TAG, "Write _characteristicTx in the _mBluetoothLeService: " + data);
-        if (this._mBluetoothLeService == null) {
-            Log.d(TAG, "_mBluetoothLeService is null");
+        if (this._transport != null)
+        {
+            Log.e(TAG, "_StartSessionReplay: must be called before _InitBLEFramework");
+            return false;
+        }
+        if (path == null || !(speed > 0))
+        {
+            return false;
+        }
+        try
+        {
+            this._transport = new ReplayTransport(SessionReader.read(new File(path)), speed);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "_StartSessionReplay: unable to read " + path + ": " + e.getMessage());
+            return false;
         }
-        boolean wasSuccessful = this._mBluetoothLeService.writeCharacteristic(characteristic);
+        return true;
+    }
 
-        //Log.d(TAG, "Wrote to Characteristic successfully?: " + wasSuccessful);
+    private static UUID parseUuid(String uuid)
+    {
+        try
+        {
+            return uuid == null ? null : UUID.fromString(uuid);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.e(TAG, "Invalid UUID " + uuid);
+            return null;
+        }
+    }
 
+    private static int parseConnectionPriority(String priority)
+    {
+        if ("HIGH".equals(priority))
+        {
+            return BleTransport.CONNECTION_PRIORITY_HIGH;
+        }
+        else if ("BALANCED".equals(priority))
+        {
+            return BleTransport.CONNECTION_PRIORITY_BALANCED;
+        }
+        else if ("LOW_POWER".equals(priority))
+        {
+            return BleTransport.CONNECTION_PRIORITY_LOW_POWER;
+        }
+        Log.e(TAG, "_SetConnectionPriority: unknown priority " + priority);
+        return -1;
     }
 
     public static byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[(i / 2)] = ((byte)((Character.digit(s.charAt(i), 16) << 4) + Character.digit(s.charAt(i + 1), 16)));
-        }
-        return data;
+        return HexCodec.decode(s);
     }
 }
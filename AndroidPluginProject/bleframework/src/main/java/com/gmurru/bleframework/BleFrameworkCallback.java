@@ -0,0 +1,40 @@
+package com.gmurru.bleframework;
+
+/**
+ * Callback registered by Unity with {@link BleFramework#_SetCallback(BleFrameworkCallback)}, usually through an
+ * {@code AndroidJavaProxy}. Only primitives and strings are passed, so no Java object has to be wrapped on the
+ * Unity side. The methods are called on the BleFramework event thread, not on the Unity main thread.
+ */
+public interface BleFrameworkCallback
+{
+    /**
+     * New packets have been received. Called once until the next {@link BleFramework#_FlushReceivedData()},
+     * however many packets arrive in between.
+     *
+     * @param sequence the sequence number the next batch will have
+     */
+    void onDataAvailable(int sequence);
+
+    /**
+     * New packets have been queued in a subscription channel. Called once until the next
+     * {@link BleFramework#_GetChannelData(String, int)} of the channel.
+     */
+    void onChannelDataAvailable(String address, int channel);
+
+    void onPeripheralConnected(String address);
+
+    void onPeripheralDisconnected(String address);
+
+    /**
+     * A device has been seen by the running scan. Called the first time the device is seen, then at most once
+     * per second while it keeps advertising.
+     */
+    void onPeripheralDiscovered(String address, String name, int rssi);
+
+    /**
+     * The state of the framework changed.
+     *
+     * @param state name of the new {@link ConnectionState}
+     */
+    void onStateChanged(String state);
+}
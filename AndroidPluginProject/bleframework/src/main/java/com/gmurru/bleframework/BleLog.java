@@ -0,0 +1,106 @@
+package com.gmurru.bleframework;
+
+import android.util.Log;
+
+/**
+ * Level of the logs of the framework.
+ *
+ * The verbose, debug and info logs go through this class and are dropped below the level set with
+ * {@link #setLevel(int)}, INFO by default. The warnings and the errors are always logged. On the hot paths (every
+ * packet, write or scan result) the message is only built when {@link #isDebugEnabled()} is true, so a production
+ * build does not pay for the string concatenation; with {@link #DEBUG} set to false the compiler removes these logs
+ * altogether.
+ */
+public final class BleLog
+{
+    /*
+    Same values as the android.util.Log priorities, NONE silences the verbose, debug and info logs
+    */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int NONE = 8;
+
+    /*
+    False strips the debug logs of the hot paths at compile time
+    */
+    public static final boolean DEBUG_LOGS = true;
+
+    private static volatile int _level = INFO;
+
+    private BleLog()
+    {
+    }
+
+    public static void setLevel(int level)
+    {
+        _level = level;
+    }
+
+    public static int getLevel()
+    {
+        return _level;
+    }
+
+    /**
+     * @param level "VERBOSE", "DEBUG", "INFO" or "NONE"
+     * @return the level, -1 if the name is unknown
+     */
+    public static int parseLevel(String level)
+    {
+        if ("VERBOSE".equals(level))
+        {
+            return VERBOSE;
+        }
+        else if ("DEBUG".equals(level))
+        {
+            return DEBUG;
+        }
+        else if ("INFO".equals(level))
+        {
+            return INFO;
+        }
+        else if ("NONE".equals(level))
+        {
+            return NONE;
+        }
+        return -1;
+    }
+
+    public static boolean isLoggable(int level)
+    {
+        return level >= _level;
+    }
+
+    /*
+    Guard of the debug logs of the hot paths
+    */
+    public static boolean isDebugEnabled()
+    {
+        return DEBUG_LOGS && _level <= DEBUG;
+    }
+
+    public static void v(String tag, String message)
+    {
+        if (DEBUG_LOGS && _level <= VERBOSE)
+        {
+            Log.v(tag, message);
+        }
+    }
+
+    public static void d(String tag, String message)
+    {
+        if (DEBUG_LOGS && _level <= DEBUG)
+        {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void i(String tag, String message)
+    {
+        if (_level <= INFO)
+        {
+            Log.i(tag, message);
+        }
+    }
+}
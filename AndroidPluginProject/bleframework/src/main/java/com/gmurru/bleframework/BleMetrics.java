@@ -0,0 +1,205 @@
+package com.gmurru.bleframework;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the data path, for every connection since the start or the last {@link #reset(Collection)}.
+ *
+ * The packets and bytes are counted as they are received and queued for writing. Three latencies are recorded in
+ * {@link LatencyHistogram}s: from a notification to its signal to Unity, from a notification to the moment Unity
+ * reads it (its age at the hand-off), and the round trip of the pings of the {@link PingProbe}s. The counters of the GATT queues and of the receive
+ * buffers live in the connections: {@link #snapshot} sums them with those of the connections already closed, kept by
+ * {@link #retire}. Everything is a plain atomic counter, safe to update from the binder and event threads.
+ *
+ * The snapshot is a long array read by index, one JNI call and no parsing for Unity.
+ */
+public class BleMetrics
+{
+    /*
+    Indexes of the values in a snapshot. The latencies are in microseconds.
+    */
+    public static final int PACKETS_IN = 0;
+    public static final int BYTES_IN = 1;
+    public static final int PACKETS_OUT = 2;
+    public static final int BYTES_OUT = 3;
+    public static final int RECEIVE_OVERFLOWS = 4;
+    public static final int DROPPED_WRITES = 5;
+    public static final int FAILED_WRITES = 6;
+    public static final int QUEUE_DEPTH = 7;
+    public static final int MAX_QUEUE_DEPTH = 8;
+    public static final int DELIVERIES = 9;
+    public static final int DELIVERY_LATENCY_P50 = 10;
+    public static final int DELIVERY_LATENCY_P90 = 11;
+    public static final int DELIVERY_LATENCY_P99 = 12;
+    public static final int DELIVERY_LATENCY_MAX = 13;
+    public static final int HANDOFFS = 14;
+    public static final int RECEIVE_AGE_P50 = 15;
+    public static final int RECEIVE_AGE_P90 = 16;
+    public static final int RECEIVE_AGE_P99 = 17;
+    public static final int RECEIVE_AGE_MAX = 18;
+    public static final int ROUND_TRIPS = 19;
+    public static final int ROUND_TRIP_P50 = 20;
+    public static final int ROUND_TRIP_P90 = 21;
+    public static final int ROUND_TRIP_P99 = 22;
+    public static final int ROUND_TRIP_MAX = 23;
+    public static final int PINGS_LOST = 24;
+    public static final int SNAPSHOT_SIZE = 25;
+
+    private final AtomicLong _packetsIn = new AtomicLong();
+    private final AtomicLong _bytesIn = new AtomicLong();
+    private final AtomicLong _packetsOut = new AtomicLong();
+    private final AtomicLong _bytesOut = new AtomicLong();
+    private final LatencyHistogram _deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram _receiveAge = new LatencyHistogram();
+    private final LatencyHistogram _roundTrip = new LatencyHistogram();
+    private final AtomicLong _pingsLost = new AtomicLong();
+
+    /*
+    Counters of the connections closed since the last reset
+    */
+    private final AtomicLong _retiredOverflows = new AtomicLong();
+    private final AtomicLong _retiredDroppedWrites = new AtomicLong();
+    private final AtomicLong _retiredFailedWrites = new AtomicLong();
+
+    /*
+    Counters of the open connections at the last reset, subtracted from their current values
+    */
+    private volatile long _overflowsOffset;
+    private volatile long _droppedWritesOffset;
+    private volatile long _failedWritesOffset;
+
+    public void onPacketReceived(int length)
+    {
+        this._packetsIn.incrementAndGet();
+        this._bytesIn.addAndGet(length);
+    }
+
+    public void onPacketSent(int length)
+    {
+        this._packetsOut.incrementAndGet();
+        this._bytesOut.addAndGet(length);
+    }
+
+    /*
+    Latency from a notification to its delivery to Unity
+    */
+    public LatencyHistogram getDeliveryLatency()
+    {
+        return this._deliveryLatency;
+    }
+
+    /*
+    Age of the packets when Unity reads them, from their GATT callback
+    */
+    public LatencyHistogram getReceiveAge()
+    {
+        return this._receiveAge;
+    }
+
+    /*
+    Round trip of the pings, from their write being queued to their echo
+    */
+    public LatencyHistogram getRoundTrip()
+    {
+        return this._roundTrip;
+    }
+
+    public void onPingLost()
+    {
+        this._pingsLost.incrementAndGet();
+    }
+
+    /*
+    Keeps the counters of a connection being closed
+    */
+    public void retire(GattConnection connection)
+    {
+        GattOperationQueue queue = connection.getOperationQueue();
+        this._retiredOverflows.addAndGet(connection.getReceiveBuffer().getOverflowCount());
+        this._retiredDroppedWrites.addAndGet(queue.getDroppedCount());
+        this._retiredFailedWrites.addAndGet(queue.getFailedCount());
+    }
+
+    /**
+     * Fills a snapshot of the counters.
+     *
+     * @param connections the open connections
+     * @param snapshot array of at least SNAPSHOT_SIZE values, read with the PACKETS_IN... indexes
+     * @return snapshot
+     */
+    public long[] snapshot(Collection<GattConnection> connections, long[] snapshot)
+    {
+        long overflows = 0;
+        long droppedWrites = 0;
+        long failedWrites = 0;
+        long depth = 0;
+        long maxDepth = 0;
+        for (GattConnection connection : connections)
+        {
+            GattOperationQueue queue = connection.getOperationQueue();
+            int queueDepth = queue.getDepth();
+            overflows += connection.getReceiveBuffer().getOverflowCount();
+            droppedWrites += queue.getDroppedCount();
+            failedWrites += queue.getFailedCount();
+            depth += queueDepth;
+            maxDepth = Math.max(maxDepth, queueDepth);
+        }
+        snapshot[PACKETS_IN] = this._packetsIn.get();
+        snapshot[BYTES_IN] = this._bytesIn.get();
+        snapshot[PACKETS_OUT] = this._packetsOut.get();
+        snapshot[BYTES_OUT] = this._bytesOut.get();
+        snapshot[RECEIVE_OVERFLOWS] = this._retiredOverflows.get() + overflows - this._overflowsOffset;
+        snapshot[DROPPED_WRITES] = this._retiredDroppedWrites.get() + droppedWrites - this._droppedWritesOffset;
+        snapshot[FAILED_WRITES] = this._retiredFailedWrites.get() + failedWrites - this._failedWritesOffset;
+        snapshot[QUEUE_DEPTH] = depth;
+        snapshot[MAX_QUEUE_DEPTH] = maxDepth;
+        snapshot[DELIVERIES] = this._deliveryLatency.getCount();
+        snapshot[DELIVERY_LATENCY_P50] = this._deliveryLatency.getPercentileMicros(50);
+        snapshot[DELIVERY_LATENCY_P90] = this._deliveryLatency.getPercentileMicros(90);
+        snapshot[DELIVERY_LATENCY_P99] = this._deliveryLatency.getPercentileMicros(99);
+        snapshot[DELIVERY_LATENCY_MAX] = this._deliveryLatency.getMaxMicros();
+        snapshot[HANDOFFS] = this._receiveAge.getCount();
+        snapshot[RECEIVE_AGE_P50] = this._receiveAge.getPercentileMicros(50);
+        snapshot[RECEIVE_AGE_P90] = this._receiveAge.getPercentileMicros(90);
+        snapshot[RECEIVE_AGE_P99] = this._receiveAge.getPercentileMicros(99);
+        snapshot[RECEIVE_AGE_MAX] = this._receiveAge.getMaxMicros();
+        snapshot[ROUND_TRIPS] = this._roundTrip.getCount();
+        snapshot[ROUND_TRIP_P50] = this._roundTrip.getPercentileMicros(50);
+        snapshot[ROUND_TRIP_P90] = this._roundTrip.getPercentileMicros(90);
+        snapshot[ROUND_TRIP_P99] = this._roundTrip.getPercentileMicros(99);
+        snapshot[ROUND_TRIP_MAX] = this._roundTrip.getMaxMicros();
+        snapshot[PINGS_LOST] = this._pingsLost.get();
+        return snapshot;
+    }
+
+    /**
+     * Starts counting from zero. The drops and failures of the open connections are counted from their current value.
+     */
+    public void reset(Collection<GattConnection> connections)
+    {
+        long overflows = 0;
+        long droppedWrites = 0;
+        long failedWrites = 0;
+        for (GattConnection connection : connections)
+        {
+            overflows += connection.getReceiveBuffer().getOverflowCount();
+            droppedWrites += connection.getOperationQueue().getDroppedCount();
+            failedWrites += connection.getOperationQueue().getFailedCount();
+        }
+        this._packetsIn.set(0);
+        this._bytesIn.set(0);
+        this._packetsOut.set(0);
+        this._bytesOut.set(0);
+        this._deliveryLatency.reset();
+        this._receiveAge.reset();
+        this._roundTrip.reset();
+        this._pingsLost.set(0);
+        this._retiredOverflows.set(0);
+        this._retiredDroppedWrites.set(0);
+        this._retiredFailedWrites.set(0);
+        this._overflowsOffset = overflows;
+        this._droppedWritesOffset = droppedWrites;
+        this._failedWritesOffset = failedWrites;
+    }
+}
@@ -0,0 +1,184 @@
+package com.gmurru.bleframework;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The single background thread of the framework.
+ *
+ * Scan timers, RSSI polling, reconnections, GATT write pumping and the service updates all run here, one at a
+ * time, so they never need a lock between them and the number of threads never grows with the number of scans
+ * or connections. The thread is started on first use and stopped by {@link #shutdown()}; using the scheduler
+ * again after that starts a new one.
+ */
+public class BleScheduler implements Executor
+{
+    private static final String TAG = BleScheduler.class.getSimpleName();
+
+    /**
+     * Handle of a scheduled task, used to cancel it. A periodic task runs again {@code period} ms after the end
+     * of each run until it is cancelled.
+     */
+    public final class Task implements Runnable
+    {
+        private final Runnable _runnable;
+        private final long _period;
+        private volatile boolean _cancelled = false;
+
+        private Task(Runnable runnable, long period)
+        {
+            this._runnable = runnable;
+            this._period = period;
+        }
+
+        @Override
+        public void run()
+        {
+            if (this._cancelled)
+            {
+                return;
+            }
+            this._runnable.run();
+            if (this._period > 0 && !this._cancelled)
+            {
+                BleScheduler.this.postDelayed(this, this._period);
+            }
+        }
+
+        /*
+        Stops the task. A run already started finishes, but no other run follows.
+        */
+        public void cancel()
+        {
+            this._cancelled = true;
+            Handler handler = BleScheduler.this._handler;
+            if (handler != null)
+            {
+                handler.removeCallbacks(this);
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return this._cancelled;
+        }
+    }
+
+    private final String _name;
+    private HandlerThread _thread;
+    private volatile Handler _handler;
+
+    public BleScheduler(String name)
+    {
+        this._name = name;
+    }
+
+    /*
+    Looper of the thread, starting it if needed. Used to receive the RBLService updates on this thread.
+    */
+    public synchronized Looper getLooper()
+    {
+        return start().getLooper();
+    }
+
+    private synchronized Handler start()
+    {
+        if (this._handler == null)
+        {
+            this._thread = new HandlerThread(this._name);
+            this._thread.start();
+            this._handler = new Handler(this._thread.getLooper());
+        }
+        return this._handler;
+    }
+
+    private Handler handler()
+    {
+        Handler handler = this._handler;
+        return handler != null ? handler : start();
+    }
+
+    public boolean isCurrentThread()
+    {
+        HandlerThread thread = this._thread;
+        return thread != null && Thread.currentThread() == thread;
+    }
+
+    /*
+    Runs the runnable on the scheduler thread, after the ones already posted
+    */
+    @Override
+    public void execute(Runnable runnable)
+    {
+        post(runnable);
+    }
+
+    public boolean post(Runnable runnable)
+    {
+        if (!handler().post(runnable))
+        {
+            Log.w(TAG, "post: scheduler stopped, task dropped");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean postDelayed(Runnable runnable, long delayMs)
+    {
+        return handler().postDelayed(runnable, delayMs);
+    }
+
+    /**
+     * Runs the runnable once after delayMs.
+     */
+    public Task schedule(Runnable runnable, long delayMs)
+    {
+        Task task = new Task(runnable, 0);
+        postDelayed(task, delayMs);
+        return task;
+    }
+
+    /**
+     * Runs the runnable after initialDelayMs, then every periodMs until the task is cancelled.
+     */
+    public Task scheduleWithFixedDelay(Runnable runnable, long initialDelayMs, long periodMs)
+    {
+        if (periodMs <= 0)
+        {
+            throw new IllegalArgumentException("periodMs must be positive");
+        }
+        Task task = new Task(runnable, periodMs);
+        postDelayed(task, initialDelayMs);
+        return task;
+    }
+
+    /*
+    Removes every task and runnable not started yet
+    */
+    public void cancelAll()
+    {
+        Handler handler = this._handler;
+        if (handler != null)
+        {
+            handler.removeCallbacksAndMessages(null);
+        }
+    }
+
+    /**
+     * Stops the thread once the runnables already due have run. The delayed and periodic tasks are dropped.
+     */
+    public synchronized void shutdown()
+    {
+        if (this._thread == null)
+        {
+            return;
+        }
+        this._thread.quitSafely();
+        this._thread = null;
+        this._handler = null;
+    }
+}
@@ -0,0 +1,164 @@
+package com.gmurru.bleframework;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The radio underneath the framework: scanning, GATT connections and GATT requests, addressed by device address
+ * and UUIDs only.
+ *
+ * {@link AndroidBleTransport} drives the Android Bluetooth stack, {@link SimulatedTransport} emulates RedBearLab
+ * shields in memory so the connection logic can run in plain JUnit. The requests return false when they could not
+ * be started, otherwise their result is reported once to the listener of the connection, on a thread owned by the
+ * transport. Like on Android, a connection accepts a single GATT request at a time: {@link GattConnection} queues
+ * them.
+ */
+public interface BleTransport
+{
+    /*
+    GATT status of a successful request
+    */
+    int GATT_SUCCESS = 0;
+
+    /*
+    Statuses of a lost link: the supervision timeout of a device out of range, and the generic error of the Android
+    stack, which also fails the connections when it runs out of GATT clients
+    */
+    int GATT_CONNECTION_TIMEOUT = 8;
+    int GATT_ERROR = 133;
+
+    /*
+    Error given to onScanFailed when a scan is already running
+    */
+    int SCAN_FAILED_ALREADY_STARTED = 1;
+
+    /*
+    Bits of getProperties, the values of the Bluetooth specification
+    */
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+    int PROPERTY_INDICATE = 0x20;
+
+    /*
+    ATT MTU before any exchange, and the largest one a device can request
+    */
+    int DEFAULT_MTU = 23;
+    int MAX_MTU = 517;
+
+    /*
+    Bytes of an ATT write or notification used by its header: the payload of a packet is at most the MTU minus 3
+    */
+    int ATT_HEADER_SIZE = 3;
+
+    /*
+    Connection priorities, the values of BluetoothGatt.CONNECTION_PRIORITY_*
+    */
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    interface ScanListener
+    {
+        /**
+         * An advertisement has been received.
+         *
+         * @param name name known by the system, null if unknown
+         * @param scanRecord raw advertisement, can be null
+         */
+        void onDeviceFound(String address, String name, int rssi, byte[] scanRecord);
+
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Events of a single connection. The values passed to the listener must be copied if kept after the call.
+     */
+    interface GattListener
+    {
+        void onConnectionStateChanged(boolean connected, int status);
+
+        void onServicesDiscovered(int status);
+
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(UUID characteristic, int status);
+
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+
+        void onDescriptorRead(UUID characteristic, UUID descriptor, byte[] value, int status);
+
+        void onDescriptorWrite(UUID characteristic, UUID descriptor, int status);
+
+        void onRssiRead(int rssi, int status);
+
+        void onMtuChanged(int mtu, int status);
+    }
+
+    /**
+     * Starts scanning, reporting every advertisement matching the options until {@link #stopScan()}.
+     */
+    boolean startScan(ScanOptions options, ScanListener listener);
+
+    void stopScan();
+
+    /**
+     * Connects to the device, or reconnects the existing session with it.
+     *
+     * @param listener receives the events of the connection until it is closed
+     * @param autoConnect wait for the device in the background instead of failing when it is not in range. An
+     *            existing session is always reconnected in the background.
+     */
+    boolean connect(String address, GattListener listener, boolean autoConnect);
+
+    /*
+    Disconnects the device, the result is reported with onConnectionStateChanged
+    */
+    boolean disconnect(String address);
+
+    /*
+    Releases the session with the device, no event follows
+    */
+    void close(String address);
+
+    boolean discoverServices(String address);
+
+    /**
+     * @return the services discovered on the device, an empty list before the discovery
+     */
+    List<UUID> getServices(String address);
+
+    /**
+     * @return the characteristics of a discovered service, null if the device does not have the service
+     */
+    List<UUID> getCharacteristics(String address, UUID service);
+
+    /**
+     * @return the PROPERTY_* bits of a characteristic, 0 if it is unknown
+     */
+    int getProperties(String address, UUID service, UUID characteristic);
+
+    boolean readCharacteristic(String address, UUID service, UUID characteristic);
+
+    boolean writeCharacteristic(String address, UUID service, UUID characteristic, byte[] value, boolean withResponse);
+
+    boolean readDescriptor(String address, UUID service, UUID characteristic, UUID descriptor);
+
+    boolean writeDescriptor(String address, UUID service, UUID characteristic, UUID descriptor, byte[] value);
+
+    /*
+    Enables or disables locally the delivery of the notifications of a characteristic. The device only sends them
+    once its client characteristic configuration descriptor has been written.
+    */
+    boolean setCharacteristicNotification(String address, UUID service, UUID characteristic, boolean enabled);
+
+    boolean readRssi(String address);
+
+    boolean requestMtu(String address, int mtu);
+
+    /*
+    Asks the device for a shorter connection interval (HIGH) or a longer one (LOW_POWER). No event follows.
+    */
+    boolean requestConnectionPriority(String address, int priority);
+}
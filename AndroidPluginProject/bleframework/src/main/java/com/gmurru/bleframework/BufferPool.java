@@ -0,0 +1,82 @@
+package com.gmurru.bleframework;
+
+/**
+ * Free list of byte arrays of a single size, recycled by the {@link GattOperationQueue} once their write is done.
+ *
+ * The commands sent many times per second, like the setpoints of a joystick, take their packet from the pool and
+ * give it back when the write completes, is dropped or is superseded by a newer command: at a steady rate the pool
+ * holds as many arrays as there are writes in flight and nothing is allocated. When the pool is empty a new array
+ * is allocated; when it is full a released array is left to the garbage collector. Thread safe.
+ */
+public class BufferPool
+{
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final int _bufferSize;
+    private final byte[][] _free;
+    private int _freeCount;
+    private long _allocatedCount;
+
+    public BufferPool(int bufferSize)
+    {
+        this(bufferSize, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param bufferSize size of the arrays of the pool
+     * @param capacity largest number of free arrays kept
+     */
+    public BufferPool(int bufferSize, int capacity)
+    {
+        if (bufferSize <= 0 || capacity <= 0)
+        {
+            throw new IllegalArgumentException("bufferSize and capacity must be positive");
+        }
+        this._bufferSize = bufferSize;
+        this._free = new byte[capacity][];
+    }
+
+    /*
+    A free array of the pool, or a new one. Its content is undefined.
+    */
+    public synchronized byte[] acquire()
+    {
+        if (this._freeCount == 0)
+        {
+            this._allocatedCount++;
+            return new byte[this._bufferSize];
+        }
+        byte[] buffer = this._free[--this._freeCount];
+        this._free[this._freeCount] = null;
+        return buffer;
+    }
+
+    /*
+    Gives an array back to the pool. Arrays of another size are ignored.
+    */
+    public synchronized void release(byte[] buffer)
+    {
+        if (buffer != null && buffer.length == this._bufferSize && this._freeCount < this._free.length)
+        {
+            this._free[this._freeCount++] = buffer;
+        }
+    }
+
+    public int getBufferSize()
+    {
+        return this._bufferSize;
+    }
+
+    public synchronized int getFreeCount()
+    {
+        return this._freeCount;
+    }
+
+    /*
+    Number of arrays allocated because the pool was empty
+    */
+    public synchronized long getAllocatedCount()
+    {
+        return this._allocatedCount;
+    }
+}
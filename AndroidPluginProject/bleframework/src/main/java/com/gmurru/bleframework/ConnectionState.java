@@ -0,0 +1,55 @@
+package com.gmurru.bleframework;
+
+/**
+ * States of a BLE connection, from the idle adapter to the ready GATT session.
+ *
+ * SCANNING is only used by {@link BleFramework}, which is scanning while its default device is not connected.
+ * A {@link GattConnection} goes from IDLE to CONNECTING and back, through RECONNECTING when its link is lost and a
+ * {@link ReconnectPolicy} is set.
+ */
+public enum ConnectionState
+{
+    IDLE,
+    SCANNING,
+    CONNECTING,
+    DISCOVERING,
+    READY,
+    RECONNECTING,
+    DISCONNECTING;
+
+    /*
+    True while the GATT link is up or being established
+    */
+    public boolean isLinked()
+    {
+        return this == CONNECTING || this == DISCOVERING || this == READY;
+    }
+
+    /**
+     * @return true if the state can change from this one to next
+     */
+    public boolean canMoveTo(ConnectionState next)
+    {
+        switch (this)
+        {
+            case IDLE:
+                return next == SCANNING || next == CONNECTING;
+            case SCANNING:
+                return next == IDLE || next == CONNECTING;
+            case CONNECTING:
+                return next == DISCOVERING || next == RECONNECTING || next == DISCONNECTING || next == IDLE
+                        || next == SCANNING;
+            case DISCOVERING:
+                return next == READY || next == RECONNECTING || next == DISCONNECTING || next == IDLE || next == SCANNING;
+            case READY:
+                return next == DISCOVERING || next == RECONNECTING || next == DISCONNECTING || next == IDLE
+                        || next == SCANNING;
+            case RECONNECTING:
+                return next == CONNECTING || next == IDLE || next == SCANNING;
+            case DISCONNECTING:
+                return next == IDLE || next == SCANNING;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.gmurru.bleframework;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection state shared between the Unity thread, the binder threads and the event thread.
+ *
+ * Every change is a compare and set, so two threads can not both win the same transition, and is checked against
+ * {@link ConnectionState#canMoveTo(ConnectionState)}. The listener is called by the thread that made the change,
+ * once per change, after the new state is visible to the other threads.
+ */
+public class ConnectionStateMachine
+{
+    public interface Listener
+    {
+        void onStateChanged(ConnectionState from, ConnectionState to);
+    }
+
+    private final AtomicReference<ConnectionState> _state;
+    private volatile Listener _listener;
+
+    public ConnectionStateMachine()
+    {
+        this(ConnectionState.IDLE);
+    }
+
+    public ConnectionStateMachine(ConnectionState initialState)
+    {
+        this._state = new AtomicReference<ConnectionState>(initialState);
+    }
+
+    public void setListener(Listener listener)
+    {
+        this._listener = listener;
+    }
+
+    public ConnectionState get()
+    {
+        return this._state.get();
+    }
+
+    /**
+     * Moves to the state if the transition from the current state is allowed.
+     *
+     * @return false if the transition is not allowed or the state is already to
+     */
+    public boolean moveTo(ConnectionState to)
+    {
+        while (true)
+        {
+            ConnectionState from = this._state.get();
+            if (!from.canMoveTo(to))
+            {
+                return false;
+            }
+            if (this._state.compareAndSet(from, to))
+            {
+                notifyListener(from, to);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves to the state only if the current state is from.
+     *
+     * @return false if the current state is not from or the transition is not allowed
+     */
+    public boolean moveTo(ConnectionState from, ConnectionState to)
+    {
+        if (!from.canMoveTo(to) || !this._state.compareAndSet(from, to))
+        {
+            return false;
+        }
+        notifyListener(from, to);
+        return true;
+    }
+
+    /**
+     * Sets the state whatever the current one, for the changes that are not transitions of the same connection,
+     * like a new default device.
+     *
+     * @return the previous state
+     */
+    public ConnectionState reset(ConnectionState to)
+    {
+        ConnectionState from = this._state.getAndSet(to);
+        if (from != to)
+        {
+            notifyListener(from, to);
+        }
+        return from;
+    }
+
+    private void notifyListener(ConnectionState from, ConnectionState to)
+    {
+        Listener listener = this._listener;
+        if (listener != null)
+        {
+            listener.onStateChanged(from, to);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.gmurru.bleframework;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Device list shared with Unity, written in a direct buffer with only the devices changed since the version Unity
+ * last read.
+ *
+ * The buffer is allocated once, in native byte order, so Unity can read it in place through
+ * {@code GetDirectBufferAddress} like the {@link ReceiveBatch}. Nothing is allocated per device: the entries of the
+ * registry are read in place and the names are encoded in UTF-8 straight into the buffer. Layout, all integers in
+ * native byte order:
+ *
+ * <pre>
+ * header:  long version | long time | int flags | int recordCount | int payloadSize | int removedCount
+ * record:  byte[6] device address | byte flags | byte rssi | int sequence | int lastSeen | byte nameLength
+ *          | byte[nameLength] name in UTF-8
+ * </pre>
+ *
+ * version is the one to pass to the next export. When FLAG_FULL is set the records are the whole list and replace
+ * the one Unity has, otherwise they are the devices changed or removed (RECORD_REMOVED) since the requested version.
+ * FLAG_TRUNCATED means the buffer was too small and the next export, from the version of this one, continues with
+ * the devices left out. rssi is the smoothed RSSI in dBm, sequence the rank of the device in the discovery order and
+ * lastSeen the time since its latest advertisement in milliseconds. Names longer than 255 bytes are cut on a
+ * character boundary.
+ *
+ * The encoder is not thread safe, BleFramework serializes the exports.
+ */
+public class DeviceListEncoder
+{
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_HEADER_SIZE = ReceiveBatch.ADDRESS_SIZE + 11;
+    public static final int MAX_NAME_SIZE = 255;
+
+    public static final int FLAG_FULL = 1;
+    public static final int FLAG_TRUNCATED = 2;
+    public static final int RECORD_REMOVED = 1;
+
+    private final ByteBuffer _buffer;
+    private final DeviceRegistry.RemovedVisitor _removedWriter = new DeviceRegistry.RemovedVisitor()
+    {
+        @Override
+        public boolean visit(DeviceRegistry.Entry entry)
+        {
+            if (isExported(entry))
+            {
+                _size += RECORD_HEADER_SIZE + utf8Length(entry.getName());
+                if (_writing)
+                {
+                    put(entry, RECORD_REMOVED);
+                }
+            }
+            return true;
+        }
+    };
+
+    /*
+    State of the export in progress: the devices changed after _sinceVersion up to _maxVersion are exported, _size
+    counts their bytes and they are only written when _writing is true
+    */
+    private long _now;
+    private boolean _namedOnly;
+    private long _sinceVersion;
+    private long _maxVersion;
+    private boolean _writing;
+    private int _size;
+    private int _recordCount;
+
+    public DeviceListEncoder()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity size of the buffer, at least enough for the header and a record with the longest name
+     */
+    public DeviceListEncoder(int capacity)
+    {
+        if (capacity < HEADER_SIZE + RECORD_HEADER_SIZE + MAX_NAME_SIZE)
+        {
+            throw new IllegalArgumentException("capacity must be at least " + (HEADER_SIZE + RECORD_HEADER_SIZE + MAX_NAME_SIZE));
+        }
+        this._buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        this._buffer.putLong(0, 0);
+        this._buffer.putLong(8, 0);
+        this._buffer.putInt(16, 0);
+        this._buffer.putInt(20, 0);
+        this._buffer.putInt(24, 0);
+        this._buffer.putInt(28, 0);
+    }
+
+    /**
+     * Writes the devices changed since a version. The whole list is written when the registry no longer knows every
+     * change since this version, in particular for a version of 0 or less.
+     *
+     * When the changes do not fit in the buffer, only those up to the highest version that fits are written and
+     * FLAG_TRUNCATED is set. That version is found by measuring the export, without writing it, for a few candidate
+     * versions: an export too large costs a few more passes over the registry and nothing is sent twice.
+     *
+     * @param sinceVersion version of the previous export, 0 for the whole list
+     * @param namedOnly true to leave out the devices without a name
+     * @param now current time in milliseconds, on the clock of the registry
+     * @return the number of records
+     */
+    public int encode(DeviceRegistry registry, long sinceVersion, boolean namedOnly, long now)
+    {
+        long version = registry.getVersion();
+        boolean full = sinceVersion <= 0 || !registry.hasChangesSince(sinceVersion);
+        this._now = now;
+        this._namedOnly = namedOnly;
+        this._sinceVersion = full ? 0 : sinceVersion;
+
+        long maxVersion = version;
+        int capacity = this._buffer.capacity() - HEADER_SIZE;
+        if (measure(registry, full, maxVersion) > capacity)
+        {
+            /* Largest version whose export fits, the first change always fits */
+            long low = this._sinceVersion + 1;
+            long high = maxVersion;
+            while (high - low > 1)
+            {
+                long middle = low + (high - low) / 2;
+                if (measure(registry, full, middle) > capacity)
+                {
+                    high = middle;
+                }
+                else
+                {
+                    low = middle;
+                }
+            }
+            maxVersion = low;
+        }
+
+        this._maxVersion = maxVersion;
+        this._writing = true;
+        this._size = 0;
+        this._recordCount = 0;
+        this._buffer.clear();
+        this._buffer.position(HEADER_SIZE);
+        for (DeviceRegistry.Entry entry : registry.entries())
+        {
+            if (isExported(entry))
+            {
+                put(entry, 0);
+            }
+        }
+        int removedCount = 0;
+        if (!full)
+        {
+            int count = this._recordCount;
+            registry.forEachRemovedSince(this._sinceVersion, this._removedWriter);
+            removedCount = this._recordCount - count;
+        }
+
+        int flags = (full ? FLAG_FULL : 0) | (maxVersion < version ? FLAG_TRUNCATED : 0);
+        this._buffer.putLong(0, maxVersion);
+        this._buffer.putLong(8, now);
+        this._buffer.putInt(16, flags);
+        this._buffer.putInt(20, this._recordCount);
+        this._buffer.putInt(24, this._buffer.position() - HEADER_SIZE);
+        this._buffer.putInt(28, removedCount);
+        return this._recordCount;
+    }
+
+    /*
+    Size of the records of the changes up to a version
+    */
+    private int measure(DeviceRegistry registry, boolean full, long maxVersion)
+    {
+        this._maxVersion = maxVersion;
+        this._writing = false;
+        this._size = 0;
+        for (DeviceRegistry.Entry entry : registry.entries())
+        {
+            if (isExported(entry))
+            {
+                this._size += RECORD_HEADER_SIZE + utf8Length(entry.getName());
+            }
+        }
+        if (!full)
+        {
+            registry.forEachRemovedSince(this._sinceVersion, this._removedWriter);
+        }
+        return this._size;
+    }
+
+    private boolean isExported(DeviceRegistry.Entry entry)
+    {
+        long version = entry.getVersion();
+        return version > this._sinceVersion && version <= this._maxVersion && (!this._namedOnly || entry.getName() != null);
+    }
+
+    /*
+    Writes a record. A name changed since the export was measured may be cut to fit in the buffer.
+    */
+    private void put(DeviceRegistry.Entry entry, int flags)
+    {
+        String name = entry.getName();
+        this._buffer.put(entry._addressBytes);
+        this._buffer.put((byte) flags);
+        this._buffer.put((byte) Math.min(Math.max(Math.round(entry.getSmoothedRssi()), Byte.MIN_VALUE), Byte.MAX_VALUE));
+        this._buffer.putInt((int) entry.getSequence());
+        this._buffer.putInt((int) Math.min(Math.max(this._now - entry.getLastSeen(), 0), Integer.MAX_VALUE));
+        int lengthPosition = this._buffer.position();
+        this._buffer.put((byte) 0);
+        if (name != null)
+        {
+            this._buffer.put(lengthPosition, (byte) putUtf8(name));
+        }
+        this._recordCount++;
+    }
+
+    /*
+    Number of bytes of a name in UTF-8, up to MAX_NAME_SIZE
+    */
+    static int utf8Length(String text)
+    {
+        if (text == null)
+        {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            int size = utf8Size(text, i);
+            if (length + size > MAX_NAME_SIZE)
+            {
+                break;
+            }
+            if (size == 4)
+            {
+                i++;
+            }
+            length += size;
+        }
+        return length;
+    }
+
+    /*
+    Number of bytes of the character at an index in UTF-8, 4 for a surrogate pair
+    */
+    private static int utf8Size(String text, int index)
+    {
+        char c = text.charAt(index);
+        if (Character.isHighSurrogate(c) && index + 1 < text.length() && Character.isLowSurrogate(text.charAt(index + 1)))
+        {
+            return 4;
+        }
+        return c >= 0x800 ? 3 : (c >= 0x80 ? 2 : 1);
+    }
+
+    /*
+    Encodes a string in UTF-8 at the position of the buffer, up to MAX_NAME_SIZE bytes or the end of the buffer.
+    Returns the number of bytes written.
+    */
+    private int putUtf8(String text)
+    {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            int size = utf8Size(text, i);
+            if (length + size > MAX_NAME_SIZE || this._buffer.remaining() < size)
+            {
+                break;
+            }
+            int c = size == 4 ? Character.toCodePoint(text.charAt(i), text.charAt(++i)) : text.charAt(i);
+            switch (size)
+            {
+                case 1:
+                    this._buffer.put((byte) c);
+                    break;
+                case 2:
+                    this._buffer.put((byte) (0xC0 | (c >> 6)));
+                    this._buffer.put((byte) (0x80 | (c & 0x3F)));
+                    break;
+                case 3:
+                    this._buffer.put((byte) (0xE0 | (c >> 12)));
+                    this._buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    this._buffer.put((byte) (0x80 | (c & 0x3F)));
+                    break;
+                default:
+                    this._buffer.put((byte) (0xF0 | (c >> 18)));
+                    this._buffer.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+                    this._buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    this._buffer.put((byte) (0x80 | (c & 0x3F)));
+                    break;
+            }
+            length += size;
+        }
+        return length;
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        return this._buffer;
+    }
+
+    /*
+    Version to pass to the next export
+    */
+    public long getVersion()
+    {
+        return this._buffer.getLong(0);
+    }
+
+    public int getFlags()
+    {
+        return this._buffer.getInt(16);
+    }
+
+    public int getRecordCount()
+    {
+        return this._buffer.getInt(20);
+    }
+
+    /*
+    Size of the export, header included
+    */
+    public int size()
+    {
+        return HEADER_SIZE + this._buffer.getInt(24);
+    }
+
+    /*
+    Copy of the export, header included, for the callers that can not read the direct buffer
+    */
+    public byte[] toByteArray()
+    {
+        byte[] data = new byte[size()];
+        ByteBuffer view = this._buffer.duplicate();
+        view.clear();
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Builds the device list returned to Unity by _GetListOfDevices: {"data": ["00:11:22:AA:BB:CC", ...]}, with an
+     * empty array when no device was found. The addresses are made of hex digits and colons and need no escaping.
+     */
+    public static String toJson(List<DeviceRegistry.Entry> devices)
+    {
+        StringBuilder json = new StringBuilder(12 + devices.size() * 20);
+        json.append("{\"data\":[");
+        for (int i = 0; i < devices.size(); i++)
+        {
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            json.append('"').append(devices.get(i).getAddress()).append('"');
+        }
+        return json.append("]}").toString();
+    }
+}
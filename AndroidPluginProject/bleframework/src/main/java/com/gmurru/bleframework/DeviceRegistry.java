@@ -0,0 +1,430 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Devices seen by the scans, keyed by address.
+ *
+ * Every advertisement is a single hash lookup: the entry of the device is created the first time it is seen and
+ * updated in place afterwards. The entries are written by the scan thread only and can be read from any thread,
+ * the lists returned by the snapshot methods are copies. Entries not seen for longer than the maximum age are
+ * removed by {@link #removeExpired(long, List)}.
+ *
+ * Every change of an entry takes the next value of a version counter, so a reader can ask for what changed since the
+ * version it last saw instead of copying the whole list, see {@link DeviceListEncoder}. The last removed entries are
+ * kept with the version of their removal for the same reason. A reader whose version is older than the oldest
+ * removal kept, or than the last {@link #invalidate()}, has to start from a full list.
+ */
+public class DeviceRegistry
+{
+    /*
+    Devices not seen for this long, in milliseconds, are removed by removeExpired
+    */
+    public static final long DEFAULT_MAX_AGE = 10000;
+
+    /*
+    Weight of the newest sample in the smoothed RSSI: 0.25 follows a walking user in about a second at 10 advertisements per second
+    */
+    public static final float DEFAULT_SMOOTHING = 0.25f;
+
+    /*
+    Number of removed entries kept for the readers of the changes
+    */
+    public static final int MAX_REMOVED = 256;
+
+    /**
+     * Device seen by a scan. The fields are only written by the scan thread and are volatile so the other
+     * threads see their latest value.
+     */
+    public static class Entry
+    {
+        private final String _address;
+        private final long _sequence;
+        private final long _firstSeen;
+        private volatile String _name;
+        private volatile int _rssi;
+        private volatile float _smoothedRssi;
+        private volatile AdvertisementData _advertisement = AdvertisementData.EMPTY;
+        private volatile long _lastSeen;
+        private volatile int _sightings;
+        private volatile long _version;
+
+        /*
+        Address as 6 bytes, for the binary device list
+        */
+        final byte[] _addressBytes;
+
+        /*
+        Raw advertisement behind _advertisement, only used by the scan thread to skip parsing unchanged advertisements
+        */
+        private byte[] _lastRecord;
+
+        Entry(String address, long sequence, long now, int rssi)
+        {
+            this._address = address;
+            this._sequence = sequence;
+            this._firstSeen = now;
+            this._smoothedRssi = rssi;
+            this._addressBytes = ReceiveBatch.parseAddress(address);
+        }
+
+        public String getAddress()
+        {
+            return this._address;
+        }
+
+        /*
+        Name reported by the system, or advertised when the system does not know it yet. Can be null.
+        */
+        public String getName()
+        {
+            return this._name;
+        }
+
+        /*
+        RSSI of the latest advertisement, in dBm
+        */
+        public int getRssi()
+        {
+            return this._rssi;
+        }
+
+        /*
+        Exponential moving average of the RSSI, in dBm
+        */
+        public float getSmoothedRssi()
+        {
+            return this._smoothedRssi;
+        }
+
+        public AdvertisementData getAdvertisement()
+        {
+            return this._advertisement;
+        }
+
+        public long getFirstSeen()
+        {
+            return this._firstSeen;
+        }
+
+        public long getLastSeen()
+        {
+            return this._lastSeen;
+        }
+
+        /*
+        Number of advertisements received from the device
+        */
+        public int getSightings()
+        {
+            return this._sightings;
+        }
+
+        /*
+        Rank of the device in the discovery order
+        */
+        public long getSequence()
+        {
+            return this._sequence;
+        }
+
+        /*
+        Version of the registry at the last change of the entry, or at its removal
+        */
+        public long getVersion()
+        {
+            return this._version;
+        }
+    }
+
+    /*
+    Orders the devices by discovery, the first discovered first
+    */
+    public static final Comparator<Entry> BY_DISCOVERY = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(Entry a, Entry b)
+        {
+            return a._sequence < b._sequence ? -1 : (a._sequence == b._sequence ? 0 : 1);
+        }
+    };
+
+    /*
+    Orders the devices by smoothed RSSI, the strongest signal first
+    */
+    public static final Comparator<Entry> BY_SIGNAL = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(Entry a, Entry b)
+        {
+            return Float.compare(b._smoothedRssi, a._smoothedRssi);
+        }
+    };
+
+    private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong _nextSequence = new AtomicLong(0);
+    private final AtomicLong _version = new AtomicLong(0);
+
+    /*
+    Removed entries by address, oldest removal first. Guarded by itself.
+    */
+    private final LinkedHashMap<String, Entry> _removed = new LinkedHashMap<String, Entry>();
+
+    /*
+    The changes since a version older than this one are not all known
+    */
+    private volatile long _oldestVersion;
+    private final long _maxAge;
+    private final float _smoothing;
+
+    public DeviceRegistry()
+    {
+        this(DEFAULT_MAX_AGE, DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param maxAge time in milliseconds after which a device not seen is removed, 0 to keep the devices forever
+     * @param smoothing weight of the newest sample in the smoothed RSSI, between 0 excluded and 1
+     */
+    public DeviceRegistry(long maxAge, float smoothing)
+    {
+        if (smoothing <= 0 || smoothing > 1)
+        {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        this._maxAge = maxAge;
+        this._smoothing = smoothing;
+    }
+
+    /**
+     * Records an advertisement. Must only be called by the scan thread.
+     *
+     * @param name name reported by the system, null to use the advertised one
+     * @param scanRecord raw advertisement, parsed only when it changes. Can be null.
+     * @param now current time in milliseconds, on the clock used for removeExpired
+     * @return the entry of the device
+     */
+    public Entry update(String address, String name, int rssi, byte[] scanRecord, long now)
+    {
+        Entry entry = this._entries.get(address);
+        if (entry == null)
+        {
+            entry = new Entry(address, this._nextSequence.getAndIncrement(), now, rssi);
+            this._entries.put(address, entry);
+            synchronized (this._removed)
+            {
+                this._removed.remove(address);
+            }
+        }
+        else
+        {
+            entry._smoothedRssi += this._smoothing * (rssi - entry._smoothedRssi);
+        }
+        entry._rssi = rssi;
+        entry._lastSeen = now;
+        entry._sightings++;
+
+        if (scanRecord != null && !Arrays.equals(entry._lastRecord, scanRecord))
+        {
+            entry._advertisement = AdvertisementData.parse(scanRecord);
+            entry._lastRecord = scanRecord.clone();
+        }
+        if (name == null)
+        {
+            name = entry._advertisement.getLocalName();
+        }
+        if (name != null)
+        {
+            entry._name = name;
+        }
+        entry._version = this._version.incrementAndGet();
+        return entry;
+    }
+
+    /*
+    Marks a known device as seen without a new advertisement, so it does not expire
+    */
+    public void touch(String address, long now)
+    {
+        Entry entry = get(address);
+        if (entry != null)
+        {
+            entry._lastSeen = now;
+            entry._version = this._version.incrementAndGet();
+        }
+    }
+
+    public Entry get(String address)
+    {
+        return address == null ? null : this._entries.get(address);
+    }
+
+    public boolean contains(String address)
+    {
+        return get(address) != null;
+    }
+
+    public Entry remove(String address)
+    {
+        Entry entry = address == null ? null : this._entries.remove(address);
+        if (entry != null)
+        {
+            addRemoved(entry);
+        }
+        return entry;
+    }
+
+    private void addRemoved(Entry entry)
+    {
+        synchronized (this._removed)
+        {
+            entry._version = this._version.incrementAndGet();
+            this._removed.remove(entry._address);
+            this._removed.put(entry._address, entry);
+            if (this._removed.size() > MAX_REMOVED)
+            {
+                Iterator<Entry> oldest = this._removed.values().iterator();
+                this._oldestVersion = oldest.next()._version;
+                oldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the devices not seen for longer than the maximum age.
+     *
+     * @param removed list the removed entries are added to, can be null
+     * @return the number of removed devices
+     */
+    public int removeExpired(long now, List<Entry> removed)
+    {
+        if (this._maxAge <= 0)
+        {
+            return 0;
+        }
+        int count = 0;
+        Iterator<Entry> iterator = this._entries.values().iterator();
+        while (iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            if (now - entry._lastSeen > this._maxAge)
+            {
+                iterator.remove();
+                addRemoved(entry);
+                count++;
+                if (removed != null)
+                {
+                    removed.add(entry);
+                }
+            }
+        }
+        return count;
+    }
+
+    public void clear()
+    {
+        for (Entry entry : this._entries.values())
+        {
+            remove(entry._address);
+        }
+    }
+
+    /*
+    Forces the readers of the changes to start from a full list, to be called when what they list changes
+    */
+    public void invalidate()
+    {
+        this._oldestVersion = this._version.incrementAndGet();
+    }
+
+    /*
+    Version of the latest change
+    */
+    public long getVersion()
+    {
+        return this._version.get();
+    }
+
+    /*
+    True if the entries changed and removed since this version are all known
+    */
+    public boolean hasChangesSince(long version)
+    {
+        return version >= this._oldestVersion && version <= this._version.get();
+    }
+
+    /*
+    Live view of the devices, iterated without a copy by DeviceListEncoder
+    */
+    Iterable<Entry> entries()
+    {
+        return this._entries.values();
+    }
+
+    /**
+     * Calls the visitor for the entries removed after a version, oldest removal first, under the lock of the removed
+     * entries.
+     *
+     * @return the number of visited entries
+     */
+    int forEachRemovedSince(long version, RemovedVisitor visitor)
+    {
+        int count = 0;
+        synchronized (this._removed)
+        {
+            for (Entry entry : this._removed.values())
+            {
+                if (entry._version > version)
+                {
+                    if (!visitor.visit(entry))
+                    {
+                        break;
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    interface RemovedVisitor
+    {
+        /*
+        Returns false to stop the visit
+        */
+        boolean visit(Entry entry);
+    }
+
+    public int size()
+    {
+        return this._entries.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return this._entries.isEmpty();
+    }
+
+    /*
+    Copy of the devices, in the order they were discovered
+    */
+    public List<Entry> snapshot()
+    {
+        return snapshot(BY_DISCOVERY);
+    }
+
+    public List<Entry> snapshot(Comparator<Entry> order)
+    {
+        List<Entry> entries = new ArrayList<Entry>(this._entries.values());
+        Collections.sort(entries, order);
+        return entries;
+    }
+}
@@ -0,0 +1,61 @@
+package com.gmurru.bleframework;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service layouts of the devices already discovered, keyed by address.
+ *
+ * The cache outlives the connections: a board connected again gets the layout of its previous sessions back, and
+ * {@link GattConnection} skips the discovery whenever the session still holds those services. Since the layout of a
+ * board rarely changes, {@link #put} keeps the known instance when a new discovery finds the same services.
+ */
+public class DiscoveryCache
+{
+    private final ConcurrentHashMap<String, ServiceLayout> _layouts = new ConcurrentHashMap<String, ServiceLayout>();
+
+    /**
+     * @return the layout of the last discovery of the device, null if it has never been discovered
+     */
+    public ServiceLayout get(String address)
+    {
+        return this._layouts.get(address);
+    }
+
+    /**
+     * Remembers the layout found by a discovery. Empty layouts are not kept.
+     *
+     * @return the known layout of the device if it equals the new one, else the new one
+     */
+    public ServiceLayout put(String address, ServiceLayout layout)
+    {
+        if (layout.isEmpty())
+        {
+            return layout;
+        }
+        ServiceLayout known = this._layouts.get(address);
+        if (layout.equals(known))
+        {
+            return known;
+        }
+        this._layouts.put(address, layout);
+        return layout;
+    }
+
+    /*
+    Forgets a device, whose next connection will be discovered as a new board
+    */
+    public void remove(String address)
+    {
+        this._layouts.remove(address);
+    }
+
+    public void clear()
+    {
+        this._layouts.clear();
+    }
+
+    public int size()
+    {
+        return this._layouts.size();
+    }
+}
@@ -0,0 +1,309 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Framing layer of the messages exchanged with the device, matching Arduino/RobotClient/BleFraming.
+ *
+ * A message is sent in one or more frames, each one small enough to fit in a single write:
+ *
+ *   SYNC (0xA5) | sequence | index | count | length | payload (length bytes) | CRC-8
+ *
+ * sequence numbers the messages of a direction modulo 256, index and count number the frames of the message, and
+ * the CRC-8 (polynomial 0x07) covers everything between SYNC and the CRC. The device side is a serial port, which
+ * does not keep the packet boundaries, so the decoder reads the frames from a byte stream: a frame may be split
+ * across notifications, and a corrupted frame is skipped by looking for the next SYNC byte.
+ *
+ * On the receive side a message is delivered when all its frames arrived in order. The messages with a missing
+ * frame are counted as lost, the frames of a message already received as duplicates.
+ *
+ * encode is thread safe, decode and reset must be called by the thread receiving the notifications. Decoding does
+ * not allocate once the message buffer has grown to the size of the largest message.
+ */
+public class FrameCodec
+{
+    /**
+     * Receives the messages completed by {@link #decode}.
+     */
+    public interface MessageListener
+    {
+        /**
+         * @param message buffer of the codec holding the message from index 0, only valid during the call
+         */
+        void onMessage(byte[] message, int length);
+    }
+
+    public static final byte SYNC = (byte) 0xA5;
+    public static final int HEADER_SIZE = 5;
+    public static final int OVERHEAD = HEADER_SIZE + 1;
+    public static final int MAX_FRAME_PAYLOAD = 255;
+    public static final int MAX_FRAMES = 255;
+
+    private static final int MAX_FRAME_SIZE = OVERHEAD + MAX_FRAME_PAYLOAD;
+
+    private int _sendSequence = 0;
+
+    /* Bytes received and not parsed yet, at most one partial frame between two calls of decode */
+    private final byte[] _stream = new byte[2 * MAX_FRAME_SIZE];
+    private int _streamLength = 0;
+
+    private final int _maxMessageSize;
+    private byte[] _message = new byte[64];
+    private int _messageLength = 0;
+    private int _messageCount = 0;
+    private int _nextFrame = 0;
+    private int _lastSequence = -1;
+    private boolean _discarding = false;
+
+    private long _lostCount = 0;
+    private long _duplicateCount = 0;
+    private long _corruptCount = 0;
+
+    /**
+     * @param maxMessageSize size above which a received message is dropped and counted as lost
+     */
+    public FrameCodec(int maxMessageSize)
+    {
+        this._maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * @param packetSize the largest write of the link, MTU - 3
+     * @return the frames of the message, each one at most packetSize bytes long
+     * @throws IllegalArgumentException if the message needs more than MAX_FRAMES frames
+     */
+    public synchronized List<byte[]> encode(byte[] message, int packetSize)
+    {
+        int chunk = Math.min(packetSize - OVERHEAD, MAX_FRAME_PAYLOAD);
+        if (chunk <= 0)
+        {
+            throw new IllegalArgumentException("Packet size too small for a frame: " + packetSize);
+        }
+        int count = Math.max(1, (message.length + chunk - 1) / chunk);
+        if (count > MAX_FRAMES)
+        {
+            throw new IllegalArgumentException("Message too long: " + message.length + " bytes");
+        }
+        int sequence = this._sendSequence;
+        this._sendSequence = (sequence + 1) & 0xFF;
+
+        List<byte[]> frames = new ArrayList<byte[]>(count);
+        for (int index = 0; index < count; index++)
+        {
+            int offset = index * chunk;
+            int length = Math.min(chunk, message.length - offset);
+            byte[] frame = new byte[OVERHEAD + length];
+            writeFrame(sequence, index, count, message, offset, length, frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Encodes a message that fits in a single frame into a given array, for the commands sent from a
+     * {@link BufferPool}.
+     *
+     * @param frame array of at least length + OVERHEAD bytes
+     * @return the size of the frame
+     * @throws IllegalArgumentException if the message is longer than MAX_FRAME_PAYLOAD
+     */
+    public synchronized int encodeFrame(byte[] message, int length, byte[] frame)
+    {
+        if (length > MAX_FRAME_PAYLOAD)
+        {
+            throw new IllegalArgumentException("Message too long for a frame: " + length + " bytes");
+        }
+        int sequence = this._sendSequence;
+        this._sendSequence = (sequence + 1) & 0xFF;
+        writeFrame(sequence, 0, 1, message, 0, length, frame);
+        return OVERHEAD + length;
+    }
+
+    private static void writeFrame(int sequence, int index, int count, byte[] message, int offset, int length, byte[] frame)
+    {
+        frame[0] = SYNC;
+        frame[1] = (byte) sequence;
+        frame[2] = (byte) index;
+        frame[3] = (byte) count;
+        frame[4] = (byte) length;
+        System.arraycopy(message, offset, frame, HEADER_SIZE, length);
+        frame[HEADER_SIZE + length] = crc8(frame, 1, HEADER_SIZE - 1 + length);
+    }
+
+    /**
+     * Reads the frames of a received packet.
+     *
+     * @param listener receives the messages completed by the packet
+     * @return the number of completed messages
+     */
+    public int decode(byte[] packet, MessageListener listener)
+    {
+        int added = 0;
+        int offset = 0;
+        while (offset < packet.length)
+        {
+            int length = Math.min(packet.length - offset, this._stream.length - this._streamLength);
+            System.arraycopy(packet, offset, this._stream, this._streamLength, length);
+            this._streamLength += length;
+            offset += length;
+            added += parseStream(listener);
+        }
+        return added;
+    }
+
+    /*
+    Parses the complete frames of _stream, and keeps the partial one at its beginning
+    */
+    private int parseStream(MessageListener listener)
+    {
+        int added = 0;
+        int position = 0;
+        while (position < this._streamLength)
+        {
+            if (this._stream[position] != SYNC)
+            {
+                position++;
+                continue;
+            }
+            int available = this._streamLength - position;
+            if (available < HEADER_SIZE)
+            {
+                break;
+            }
+            int length = this._stream[position + 4] & 0xFF;
+            if (available < OVERHEAD + length)
+            {
+                break;
+            }
+            int index = this._stream[position + 2] & 0xFF;
+            int count = this._stream[position + 3] & 0xFF;
+            byte crc = crc8(this._stream, position + 1, HEADER_SIZE - 1 + length);
+            if (crc != this._stream[position + HEADER_SIZE + length] || index >= count)
+            {
+                /* Not a frame, or a damaged one: look for the next SYNC */
+                this._corruptCount++;
+                position++;
+                continue;
+            }
+            if (onFrame(this._stream[position + 1] & 0xFF, index, count, position + HEADER_SIZE, length))
+            {
+                listener.onMessage(this._message, this._messageLength);
+                added++;
+            }
+            position += OVERHEAD + length;
+        }
+        System.arraycopy(this._stream, position, this._stream, 0, this._streamLength - position);
+        this._streamLength -= position;
+        return added;
+    }
+
+    /*
+    Adds a valid frame to the current message, returns true when it completes the message. After the last frame
+    _nextFrame is equal to _messageCount, so a frame received again is a duplicate.
+    */
+    private boolean onFrame(int sequence, int index, int count, int offset, int length)
+    {
+        if (sequence != this._lastSequence)
+        {
+            int delta = this._lastSequence < 0 ? 1 : (sequence - this._lastSequence) & 0xFF;
+            if (delta >= 128)
+            {
+                /* A frame of an older message */
+                this._duplicateCount++;
+                return false;
+            }
+            this._lostCount += delta - 1;
+            if (!this._discarding && this._nextFrame < this._messageCount)
+            {
+                this._lostCount++;
+            }
+            this._lastSequence = sequence;
+            this._messageCount = count;
+            this._messageLength = 0;
+            this._nextFrame = 0;
+            this._discarding = false;
+        }
+        if (this._discarding)
+        {
+            return false;
+        }
+        if (index < this._nextFrame)
+        {
+            this._duplicateCount++;
+            return false;
+        }
+        if (index > this._nextFrame || count != this._messageCount
+                || this._messageLength + length > this._maxMessageSize)
+        {
+            /* A frame is missing, or the message is too long */
+            this._lostCount++;
+            this._discarding = true;
+            return false;
+        }
+        if (this._messageLength + length > this._message.length)
+        {
+            this._message = Arrays.copyOf(this._message, Math.min(this._maxMessageSize, 2 * (this._messageLength + length)));
+        }
+        System.arraycopy(this._stream, offset, this._message, this._messageLength, length);
+        this._messageLength += length;
+        this._nextFrame++;
+        return this._nextFrame == this._messageCount;
+    }
+
+    /*
+    Drops the partial frame and message, when the connection is lost. The next message is accepted whatever its
+    sequence number.
+    */
+    public void reset()
+    {
+        this._streamLength = 0;
+        this._messageLength = 0;
+        this._messageCount = 0;
+        this._nextFrame = 0;
+        this._lastSequence = -1;
+        this._discarding = false;
+    }
+
+    /*
+    Number of received messages not delivered because one of their frames is missing, or because they are too long
+    */
+    public long getLostCount()
+    {
+        return this._lostCount;
+    }
+
+    /*
+    Number of frames received twice
+    */
+    public long getDuplicateCount()
+    {
+        return this._duplicateCount;
+    }
+
+    /*
+    Number of frames skipped because their CRC does not match
+    */
+    public long getCorruptCount()
+    {
+        return this._corruptCount;
+    }
+
+    /**
+     * CRC-8 with polynomial 0x07 and initial value 0, the one computed by BleFraming on the device.
+     */
+    public static byte crc8(byte[] data, int offset, int length)
+    {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++)
+            {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return (byte) crc;
+    }
+}
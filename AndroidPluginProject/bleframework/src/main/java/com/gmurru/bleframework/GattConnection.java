@@ -0,0 +1,1058 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * GATT session with a single Bluetooth LE device, owned by {@link RBLService}.
+ * Every connection has its own characteristic cache, operation queue,
+ * receive buffer and connection state, talks to the device through a
+ * {@link BleTransport} and reports its events to a {@link Callback}.
+ * Besides the RX characteristic of the BLE shield, any characteristic can
+ * be read and written, and subscribed to in a {@link GattSubscription}
+ * channel of its own.
+ */
+public class GattConnection {
+	private final static String TAG = GattConnection.class.getSimpleName();
+
+	final static UUID UUID_BLE_SHIELD_SERVICE = UUID.fromString(RBLGattAttributes.BLE_SHIELD_SERVICE);
+	final static UUID UUID_BLE_SHIELD_RX = UUID.fromString(RBLGattAttributes.BLE_SHIELD_RX);
+	final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIG = UUID
+			.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+	/*
+	 * Values of the client characteristic configuration descriptor.
+	 */
+	final static byte[] ENABLE_NOTIFICATION_VALUE = { 0x01, 0x00 };
+	final static byte[] ENABLE_INDICATION_VALUE = { 0x02, 0x00 };
+	final static byte[] DISABLE_NOTIFICATION_VALUE = { 0x00, 0x00 };
+
+	/**
+	 * Receives the events of the connection, on the threads of the transport.
+	 */
+	public interface Callback {
+		void onConnectionStateChange(GattConnection connection, boolean connected);
+
+		void onServicesDiscovered(GattConnection connection);
+
+		void onRssiRead(GattConnection connection, int rssi);
+
+		/**
+		 * The MTU exchange requested after the service discovery completed.
+		 *
+		 * @param mtu
+		 *            The negotiated MTU, {@link BleTransport#DEFAULT_MTU} if
+		 *            the device refused the exchange.
+		 */
+		void onMtuChanged(GattConnection connection, int mtu);
+
+		/**
+		 * A packet has been queued in the receive buffer.
+		 *
+		 * @param value
+		 *            The packet, only valid during the call.
+		 * @param length
+		 *            The length of the packet, which may be followed by
+		 *            unrelated bytes in value.
+		 */
+		void onDataAvailable(GattConnection connection, byte[] value, int length);
+
+		/**
+		 * A packet has been queued in the buffer of a subscription other
+		 * than the default channel.
+		 *
+		 * @param value
+		 *            The packet, only valid during the call.
+		 */
+		void onNotification(GattConnection connection, GattSubscription subscription, byte[] value, int length);
+
+		/**
+		 * The result of a read of a characteristic without subscription, or
+		 * of a descriptor.
+		 *
+		 * @param descriptor
+		 *            The descriptor read, null for a characteristic.
+		 * @param value
+		 *            The value, only valid during the call, null if the read
+		 *            failed.
+		 */
+		void onAttributeRead(GattConnection connection, UUID characteristic, UUID descriptor, byte[] value,
+				int status);
+
+		/**
+		 * The link has been lost and a reconnection is scheduled. The
+		 * connection stays in the RECONNECTING state until the attempt, and
+		 * {@link #onConnectionStateChange} is only called once the device is
+		 * reconnected or the policy gives up.
+		 *
+		 * @param attempt
+		 *            The number of the attempt, from 1.
+		 * @param delayMs
+		 *            The delay before the attempt.
+		 */
+		void onReconnecting(GattConnection connection, int attempt, long delayMs);
+	}
+
+	/**
+	 * Runs the reconnection attempts after their delay, on the thread of the
+	 * framework.
+	 */
+	public interface ReconnectScheduler {
+		void schedule(Runnable attempt, long delayMs);
+	}
+
+	private final BleTransport mTransport;
+	private final Callback mCallback;
+	private final String mAddress;
+	private final byte[] mAddressBytes;
+	private final ConnectionStateMachine mState = new ConnectionStateMachine();
+
+	/*
+	 * Service of every characteristic registered with cacheCharacteristic.
+	 */
+	private final Map<UUID, UUID> mCharacteristics = new ConcurrentHashMap<UUID, UUID>();
+
+	/*
+	 * Services of the session, null until they are discovered. The layouts
+	 * are also kept in mDiscoveryCache, when set, for the next sessions.
+	 */
+	private volatile ServiceLayout mLayout;
+	private volatile DiscoveryCache mDiscoveryCache;
+	private final PacketRingBuffer mReceiveBuffer = new PacketRingBuffer();
+
+	/*
+	 * Subscriptions by characteristic, besides the RX characteristic of the
+	 * default channel. They are kept while the device is reconnected, and
+	 * restored once its services are available again.
+	 */
+	private final GattSubscription mDefaultSubscription = new GattSubscription(GattSubscription.DEFAULT_CHANNEL,
+			UUID_BLE_SHIELD_SERVICE, UUID_BLE_SHIELD_RX, this.mReceiveBuffer);
+	private final Map<UUID, GattSubscription> mSubscriptions = new ConcurrentHashMap<UUID, GattSubscription>();
+	private final AtomicInteger mLastChannel = new AtomicInteger(GattSubscription.DEFAULT_CHANNEL);
+
+	/*
+	 * MTU of the link and MTU asked after the service discovery. Above the
+	 * default MTU the messages longer than a packet are fragmented, and
+	 * terminated and reassembled by mFragmenter if mReassemblyEnabled.
+	 */
+	private volatile int mMtu = BleTransport.DEFAULT_MTU;
+	private volatile int mRequestedMtu = BleTransport.MAX_MTU;
+	private volatile boolean mReassemblyEnabled = false;
+	private final MessageFragmenter mFragmenter = new MessageFragmenter(PacketRingBuffer.MAX_PACKET_SIZE);
+
+	/*
+	 * Framing of the messages, null when disabled. When enabled it replaces
+	 * the fragmentation above: every message is sent and received in frames.
+	 */
+	private volatile FrameCodec mFrameCodec;
+
+	/*
+	 * Packets of the commands, recycled by the queue. Replaced when the size
+	 * of the packets changes with the framing.
+	 */
+	private volatile BufferPool mCommandPool;
+	/*
+	 * Time of the GATT callback of the packet being received, on the
+	 * elapsedRealtimeNanos clock. Only used on the thread of the callbacks.
+	 */
+	private long mReceiveTime;
+
+	/*
+	 * Measures the round trip of the link, null when no ping is sent. Its
+	 * echoes are taken out of the received data.
+	 */
+	private volatile PingProbe mPingProbe;
+
+	private final FrameCodec.MessageListener mMessageListener = new FrameCodec.MessageListener() {
+		@Override
+		public void onMessage(byte[] message, int length) {
+			deliverData(message, length);
+		}
+	};
+
+	/*
+	 * Reconnection after an unexpected loss of the link, disabled while
+	 * mReconnectPolicy is null. Every scheduled attempt carries the
+	 * generation it was scheduled in, and is dropped if the generation
+	 * changed: the connection has been reconnected, disconnected or closed
+	 * in the meantime.
+	 */
+	private volatile ReconnectPolicy mReconnectPolicy;
+	private volatile ReconnectScheduler mReconnectScheduler;
+	private final AtomicInteger mReconnectGeneration = new AtomicInteger();
+	private volatile int mReconnectAttempts;
+
+	private final GattOperationQueue mOperationQueue = new GattOperationQueue(new GattOperationQueue.Executor() {
+		@Override
+		public boolean execute(GattOperation operation) {
+			return GattConnection.this.executeOperation(operation);
+		}
+	});
+
+	private final BleTransport.GattListener mGattListener = new BleTransport.GattListener() {
+		@Override
+		public void onConnectionStateChanged(boolean connected, int status)
+		{
+			if (connected)
+			{
+				if (!GattConnection.this.mState.moveTo(ConnectionState.DISCOVERING)) {
+					Log.w(TAG, "Connected while " + GattConnection.this.mState.get());
+				}
+				GattConnection.this.mCallback.onConnectionStateChange(GattConnection.this, true);
+				BleLog.i(TAG, "Connected to GATT server " + GattConnection.this.mAddress);
+
+				ServiceLayout layout = GattConnection.this.findDiscoveredLayout();
+				if (layout != null) {
+					BleLog.i(TAG, "Reusing the services discovered before");
+					GattConnection.this.onServicesAvailable(layout);
+					return;
+				}
+				BleLog.i(TAG, "Attempting to start service discovery:"
+						+ GattConnection.this.mTransport.discoverServices(GattConnection.this.mAddress));
+			}
+			else
+			{
+				BleLog.i(TAG, "Disconnected from GATT server " + GattConnection.this.mAddress + ", status " + status);
+				GattConnection.this.onDisconnected(status);
+			}
+		}
+
+		@Override
+		public void onRssiRead(int rssi, int status)
+		{
+			GattConnection.this.mOperationQueue.onOperationComplete(GattOperation.READ_RSSI, status);
+			if (status == BleTransport.GATT_SUCCESS) {
+				GattConnection.this.mCallback.onRssiRead(GattConnection.this, rssi);
+			} else {
+				Log.w(TAG, "onReadRemoteRssi received: " + status);
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(int status)
+		{
+			if (status == BleTransport.GATT_SUCCESS) {
+				GattConnection.this.onServicesAvailable(GattConnection.this.rememberLayout());
+			} else {
+				Log.w(TAG, "onServicesDiscovered received: " + status);
+			}
+		}
+
+		@Override
+		public void onCharacteristicRead(UUID characteristic, byte[] value, int status)
+		{
+			GattConnection.this.mOperationQueue.onOperationComplete(GattOperation.READ_CHARACTERISTIC, status);
+			if (UUID_BLE_SHIELD_RX.equals(characteristic)
+					|| GattConnection.this.mSubscriptions.containsKey(characteristic)) {
+				if (status == BleTransport.GATT_SUCCESS) {
+					GattConnection.this.receiveData(characteristic, value);
+				}
+				return;
+			}
+			GattConnection.this.mCallback.onAttributeRead(GattConnection.this, characteristic, null,
+					status == BleTransport.GATT_SUCCESS ? value : null, status);
+		}
+
+		@Override
+		public void onDescriptorRead(UUID characteristic, UUID descriptor, byte[] value, int status)
+		{
+			GattConnection.this.mOperationQueue.onOperationComplete(GattOperation.READ_DESCRIPTOR, status);
+			GattConnection.this.mCallback.onAttributeRead(GattConnection.this, characteristic, descriptor,
+					status == BleTransport.GATT_SUCCESS ? value : null, status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(UUID characteristic, int status)
+		{
+			if (status != BleTransport.GATT_SUCCESS) {
+				Log.w(TAG, "onCharacteristicWrite received: " + status);
+			}
+			GattConnection.this.mOperationQueue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, status);
+		}
+
+		@Override
+		public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status)
+		{
+			if (status != BleTransport.GATT_SUCCESS) {
+				Log.w(TAG, "onDescriptorWrite received: " + status);
+			}
+			GattConnection.this.mOperationQueue.onOperationComplete(GattOperation.WRITE_DESCRIPTOR, status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(UUID characteristic, byte[] value)
+		{
+			GattConnection.this.receiveData(characteristic, value);
+		}
+
+		@Override
+		public void onMtuChanged(int mtu, int status)
+		{
+			if (status == BleTransport.GATT_SUCCESS) {
+				BleLog.i(TAG, "MTU of " + GattConnection.this.mAddress + ": " + mtu);
+				GattConnection.this.mMtu = mtu;
+			} else {
+				Log.w(TAG, "onMtuChanged received: " + status);
+			}
+			GattConnection.this.mOperationQueue.onOperationComplete(GattOperation.REQUEST_MTU, status);
+			GattConnection.this.mCallback.onMtuChanged(GattConnection.this, GattConnection.this.mMtu);
+		}
+	};
+
+	public GattConnection(BleTransport transport, String address, Callback callback) {
+		this.mTransport = transport;
+		this.mAddress = address;
+		this.mCallback = callback;
+		this.mAddressBytes = ReceiveBatch.parseAddress(address);
+	}
+
+	/*
+	 * Reads the layout of the discovered services, replaced by the known one
+	 * of the device when they are the same.
+	 */
+	private ServiceLayout rememberLayout() {
+		ServiceLayout layout = ServiceLayout.read(this.mTransport, this.mAddress);
+		DiscoveryCache cache = this.mDiscoveryCache;
+		return cache == null ? layout : cache.put(this.mAddress, layout);
+	}
+
+	private void onServicesAvailable(ServiceLayout layout) {
+		this.mLayout = layout;
+		this.mState.moveTo(ConnectionState.DISCOVERING, ConnectionState.READY);
+		this.mReconnectAttempts = 0;
+		for (GattSubscription subscription : this.mSubscriptions.values()) {
+			if (layout.hasCharacteristic(subscription.getServiceUuid(), subscription.getCharacteristicUuid())) {
+				setCharacteristicNotification(subscription.getServiceUuid(), subscription.getCharacteristicUuid(), true);
+			} else {
+				Log.w(TAG, "Subscribed characteristic missing: " + subscription.getCharacteristicUuid());
+			}
+		}
+		int mtu = this.mRequestedMtu;
+		if (mtu > BleTransport.DEFAULT_MTU) {
+			this.mOperationQueue.enqueue(GattOperation.requestMtu(mtu));
+		}
+		this.mCallback.onServicesDiscovered(this);
+	}
+
+	/*
+	 * Resets the link state. Unless the disconnection was requested, the
+	 * device is then reconnected following mReconnectPolicy.
+	 */
+	private void onDisconnected(int status) {
+		ConnectionState previous = this.mState.get();
+		this.mOperationQueue.clear();
+		this.mMtu = BleTransport.DEFAULT_MTU;
+		this.mFragmenter.reset();
+		FrameCodec codec = this.mFrameCodec;
+		if (codec != null) {
+			codec.reset();
+		}
+		if (previous != ConnectionState.DISCONNECTING && previous != ConnectionState.IDLE
+				&& scheduleReconnect(status)) {
+			return;
+		}
+		this.mState.reset(ConnectionState.IDLE);
+		this.mCharacteristics.clear();
+		this.mLayout = null;
+		this.mReconnectAttempts = 0;
+		this.mCallback.onConnectionStateChange(this, false);
+	}
+
+	/*
+	 * Schedules the next attempt of the policy, keeping the session and the
+	 * cached characteristics only in auto connect mode, where the device is
+	 * reconnected in the background. A direct connection needs a new session,
+	 * and so does any link lost with GATT_ERROR (133): reusing its
+	 * BluetoothGatt usually fails again with 133.
+	 *
+	 * @return Return false if the policy gives up or there is none.
+	 */
+	private boolean scheduleReconnect(int status) {
+		ReconnectPolicy policy = this.mReconnectPolicy;
+		ReconnectScheduler scheduler = this.mReconnectScheduler;
+		if (policy == null || scheduler == null) {
+			return false;
+		}
+		int attempt = this.mReconnectAttempts;
+		long delay = policy.getDelay(attempt);
+		if (delay < 0) {
+			Log.w(TAG, "Giving up reconnecting " + this.mAddress + " after " + attempt + " attempts");
+			return false;
+		}
+		if (!this.mState.moveTo(ConnectionState.RECONNECTING)) {
+			return false;
+		}
+		if (!policy.isAutoConnect() || status == BleTransport.GATT_ERROR) {
+			this.mTransport.close(this.mAddress);
+			this.mCharacteristics.clear();
+			this.mLayout = null;
+		}
+		this.mReconnectAttempts = attempt + 1;
+		final int generation = this.mReconnectGeneration.incrementAndGet();
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				GattConnection.this.reconnect(generation);
+			}
+		}, delay);
+		BleLog.i(TAG, "Reconnecting " + this.mAddress + " in " + delay + " ms, attempt " + (attempt + 1));
+		this.mCallback.onReconnecting(this, attempt + 1, delay);
+		return true;
+	}
+
+	private void reconnect(int generation) {
+		if (generation != this.mReconnectGeneration.get()
+				|| !this.mState.moveTo(ConnectionState.RECONNECTING, ConnectionState.CONNECTING))
+		{
+			return;
+		}
+		ReconnectPolicy policy = this.mReconnectPolicy;
+		if (!this.mTransport.connect(this.mAddress, this.mGattListener, policy != null && policy.isAutoConnect()))
+		{
+			Log.w(TAG, "Reconnection of " + this.mAddress + " not started");
+			onDisconnected(BleTransport.GATT_ERROR);
+		}
+	}
+
+	/*
+	 * Returns the layout of the previous session, or else the one known by
+	 * the cache, if the session still holds its services: the discovery can
+	 * then be skipped. Null if the services must be discovered.
+	 */
+	private ServiceLayout findDiscoveredLayout() {
+		ServiceLayout layout = this.mLayout;
+		DiscoveryCache cache = this.mDiscoveryCache;
+		if (layout == null && cache != null) {
+			layout = cache.get(this.mAddress);
+		}
+		return layout != null && layout.isDiscoveredIn(this.mTransport, this.mAddress) ? layout : null;
+	}
+
+	/*
+	 * Queues the value of the RX characteristic in the receive buffer, or the
+	 * value of a subscribed characteristic in its channel, before notifying
+	 * the callback. The packets are stamped with the time of the callback.
+	 */
+	private void receiveData(UUID characteristic, byte[] value) {
+		long now = SystemClock.elapsedRealtimeNanos();
+		this.mReceiveTime = now;
+		if (!UUID_BLE_SHIELD_RX.equals(characteristic))
+		{
+			GattSubscription subscription = this.mSubscriptions.get(characteristic);
+			if (subscription == null)
+			{
+				return;
+			}
+			if (!subscription.getBuffer().offer(value, 0, value.length, now))
+			{
+				/* Counted by the overflow count of the channel, logged once per packet in debug only */
+				if (BleLog.isDebugEnabled()) {
+					BleLog.d(TAG, "Channel " + subscription.getChannel() + " full, packet dropped");
+				}
+				return;
+			}
+			this.mCallback.onNotification(this, subscription, value, value.length);
+			return;
+		}
+		FrameCodec codec = this.mFrameCodec;
+		if (codec != null)
+		{
+			codec.decode(value, this.mMessageListener);
+			return;
+		}
+		int mtu = this.mMtu;
+		if (this.mReassemblyEnabled && mtu > BleTransport.DEFAULT_MTU)
+		{
+			int length = this.mFragmenter.reassemble(value, mtu - BleTransport.ATT_HEADER_SIZE);
+			if (length >= 0)
+			{
+				deliverData(this.mFragmenter.getMessage(), length);
+			}
+			return;
+		}
+		deliverData(value, value.length);
+	}
+
+	/*
+	 * Copies the packet in the receive buffer, unless it is the echo of a
+	 * ping. Nothing is allocated here: value may be a buffer of the
+	 * reassembly or of the framing, reused for the next message.
+	 */
+	private void deliverData(byte[] value, int length) {
+		PingProbe probe = this.mPingProbe;
+		if (probe != null && probe.onPacket(value, length, this.mReceiveTime))
+		{
+			return;
+		}
+		if (!this.mReceiveBuffer.offer(value, 0, length, this.mReceiveTime))
+		{
+			if (BleLog.isDebugEnabled()) {
+				BleLog.d(TAG, "Receive buffer full, packet dropped");
+			}
+			return;
+		}
+		this.mCallback.onDataAvailable(this, value, length);
+	}
+
+	/**
+	 * Connects to the GATT server hosted on the device, reusing the existing
+	 * session of the transport if there is one. While waiting for a
+	 * reconnection, tries it immediately.
+	 *
+	 * @return Return true if the connection is initiated successfully.
+	 */
+	boolean connect() {
+		if (!this.mState.moveTo(ConnectionState.IDLE, ConnectionState.CONNECTING)
+				&& !this.mState.moveTo(ConnectionState.RECONNECTING, ConnectionState.CONNECTING))
+		{
+			BleLog.d(TAG, "Connection already " + this.mState.get());
+			return this.mState.get().isLinked();
+		}
+		this.mReconnectGeneration.incrementAndGet();
+		if (!this.mTransport.connect(this.mAddress, this.mGattListener, false))
+		{
+			this.mState.reset(ConnectionState.IDLE);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Disconnects the device or cancels a pending connection. The result is
+	 * reported asynchronously to the callback.
+	 */
+	public void disconnect() {
+		if (this.mState.moveTo(ConnectionState.RECONNECTING, ConnectionState.IDLE))
+		{
+			/* No link to close, only the attempt to cancel */
+			this.mReconnectGeneration.incrementAndGet();
+			this.mCharacteristics.clear();
+			this.mLayout = null;
+			this.mReconnectAttempts = 0;
+			this.mCallback.onConnectionStateChange(this, false);
+			return;
+		}
+		if (!this.mState.moveTo(ConnectionState.DISCONNECTING))
+		{
+			BleLog.d(TAG, "Connection already " + this.mState.get());
+			return;
+		}
+		if (!this.mTransport.disconnect(this.mAddress))
+		{
+			this.mState.reset(ConnectionState.IDLE);
+		}
+	}
+
+	/**
+	 * Releases the session of the transport with the device, and the
+	 * subscriptions.
+	 */
+	void close() {
+		this.mReconnectGeneration.incrementAndGet();
+		this.mOperationQueue.clear();
+		this.mCharacteristics.clear();
+		this.mSubscriptions.clear();
+		this.mLayout = null;
+		this.mState.reset(ConnectionState.IDLE);
+		this.mTransport.close(this.mAddress);
+	}
+
+	public String getAddress() {
+		return this.mAddress;
+	}
+
+	/**
+	 * @return The 6 bytes of the device address, used to tag the packets of
+	 *         a {@link ReceiveBatch}.
+	 */
+	public byte[] getAddressBytes() {
+		return this.mAddressBytes;
+	}
+
+	/**
+	 * @return IDLE, CONNECTING, DISCOVERING, READY, RECONNECTING or
+	 *         DISCONNECTING.
+	 */
+	public ConnectionState getState() {
+		return this.mState.get();
+	}
+
+	/**
+	 * @return Return true if the GATT link is up, even if the services have
+	 *         not been discovered yet.
+	 */
+	public boolean isConnected() {
+		ConnectionState state = this.mState.get();
+		return state == ConnectionState.DISCOVERING || state == ConnectionState.READY;
+	}
+
+	public boolean isReady() {
+		return this.mState.get() == ConnectionState.READY;
+	}
+
+	/**
+	 * Reconnects the device when its link is lost without a call to
+	 * {@link #disconnect()}, including when the connection fails with
+	 * GATT_ERROR (133).
+	 *
+	 * @param policy
+	 *            The delays and mode of the attempts, or null to stay
+	 *            disconnected.
+	 * @param scheduler
+	 *            Runs the attempts after their delay.
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy, ReconnectScheduler scheduler) {
+		this.mReconnectScheduler = scheduler;
+		this.mReconnectPolicy = policy;
+	}
+
+	public ReconnectPolicy getReconnectPolicy() {
+		return this.mReconnectPolicy;
+	}
+
+	/**
+	 * @return The attempts made since the link was lost, 0 once the services
+	 *         are available again.
+	 */
+	public int getReconnectAttempts() {
+		return this.mReconnectAttempts;
+	}
+
+	/**
+	 * @return The packets received from the RX characteristic of this device.
+	 */
+	public PacketRingBuffer getReceiveBuffer() {
+		return this.mReceiveBuffer;
+	}
+
+	public GattOperationQueue getOperationQueue() {
+		return this.mOperationQueue;
+	}
+
+	/**
+	 * @return The negotiated ATT MTU, {@link BleTransport#DEFAULT_MTU} until
+	 *         the exchange completes.
+	 */
+	public int getMtu() {
+		return this.mMtu;
+	}
+
+	/**
+	 * @return The largest value sent in a single packet, MTU - 3.
+	 */
+	public int getMaxPayloadSize() {
+		return this.mMtu - BleTransport.ATT_HEADER_SIZE;
+	}
+
+	/**
+	 * Sets the MTU asked to the device once the services are discovered.
+	 * {@link BleTransport#DEFAULT_MTU} or less disables the exchange.
+	 */
+	public void setRequestedMtu(int mtu) {
+		this.mRequestedMtu = Math.min(mtu, BleTransport.MAX_MTU);
+	}
+
+	/**
+	 * Enables the {@link MessageFragmenter} convention on the RX
+	 * characteristic, on the links with an MTU above the default: a full
+	 * packet means the message continues in the next one. The notifications
+	 * of the device are joined until a shorter packet, and the messages
+	 * written end with a shorter packet, empty if needed. Only for the
+	 * devices following it: the others would get their full packets
+	 * merged. Disabled by default.
+	 */
+	public void setReassemblyEnabled(boolean enabled) {
+		this.mReassemblyEnabled = enabled;
+	}
+
+	/**
+	 * Enables the {@link FrameCodec} framing of the messages written with
+	 * {@link #writeMessage} and of the notifications of the RX
+	 * characteristic. The device must use the same framing.
+	 */
+	public void setFramingEnabled(boolean enabled) {
+		if (enabled == (this.mFrameCodec != null)) {
+			return;
+		}
+		this.mFrameCodec = enabled ? new FrameCodec(PacketRingBuffer.MAX_PACKET_SIZE) : null;
+	}
+
+	/**
+	 * @return The framing of the messages, with its lost, duplicate and
+	 *         corrupt frame counters, or null if disabled.
+	 */
+	public FrameCodec getFrameCodec() {
+		return this.mFrameCodec;
+	}
+
+	/**
+	 * @param priority
+	 *            One of the {@link BleTransport} CONNECTION_PRIORITY_* values.
+	 * @return Return true if the request has been sent to the device.
+	 */
+	public boolean requestConnectionPriority(int priority) {
+		return this.mTransport.requestConnectionPriority(this.mAddress, priority);
+	}
+
+	/**
+	 * Shares the layouts of the discovered devices with the other
+	 * connections, and with the next connections to the same device.
+	 *
+	 * @param cache
+	 *            The cache, or null to discover every session.
+	 */
+	public void setDiscoveryCache(DiscoveryCache cache) {
+		this.mDiscoveryCache = cache;
+	}
+
+	/**
+	 * @return The services of the device, with their characteristics and
+	 *         properties, or null before the discovery completes.
+	 */
+	public ServiceLayout getServiceLayout() {
+		return this.mLayout;
+	}
+
+	/**
+	 * @return The services discovered on the device, empty before the
+	 *         discovery completes.
+	 */
+	public List<UUID> getServices() {
+		ServiceLayout layout = this.mLayout;
+		return layout == null ? Collections.<UUID>emptyList() : layout.getServices();
+	}
+
+	/**
+	 * @return The characteristics of a discovered service, or an empty list if
+	 *         the device does not expose it.
+	 */
+	public List<UUID> getCharacteristics(UUID serviceUuid) {
+		ServiceLayout layout = this.mLayout;
+		return layout == null ? Collections.<UUID>emptyList() : layout.getCharacteristics(serviceUuid);
+	}
+
+	/**
+	 * @return Return true if the characteristic accepts writes without
+	 *         response.
+	 */
+	public boolean supportsWriteWithoutResponse(UUID serviceUuid, UUID characteristicUuid) {
+		ServiceLayout layout = this.mLayout;
+		return layout != null
+				&& (layout.getProperties(serviceUuid, characteristicUuid) & BleTransport.PROPERTY_WRITE_NO_RESPONSE) != 0;
+	}
+
+	/**
+	 * Adds a characteristic to the cache of the connection, so that its
+	 * service can be found with {@link #getCharacteristicService(UUID)}.
+	 */
+	public void cacheCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+		this.mCharacteristics.put(characteristicUuid, serviceUuid);
+	}
+
+	public boolean hasCharacteristic(UUID characteristicUuid) {
+		return this.mCharacteristics.containsKey(characteristicUuid);
+	}
+
+	/**
+	 * @return The service of the cached characteristic, or null if it has not
+	 *         been registered since the services were discovered.
+	 */
+	public UUID getCharacteristicService(UUID characteristicUuid) {
+		return this.mCharacteristics.get(characteristicUuid);
+	}
+
+	/**
+	 * Request a read on a given characteristic. The read is queued behind the
+	 * pending GATT operations. The value of the RX characteristic or of a
+	 * subscribed one is delivered like a notification, the others are
+	 * reported with {@link Callback#onAttributeRead}.
+	 */
+	public void readCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+		this.mOperationQueue.enqueue(GattOperation.readCharacteristic(serviceUuid, characteristicUuid));
+	}
+
+	/**
+	 * Request a read on a descriptor, reported with
+	 * {@link Callback#onAttributeRead}.
+	 */
+	public void readDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid) {
+		this.mOperationQueue.enqueue(GattOperation.readDescriptor(serviceUuid, characteristicUuid, descriptorUuid));
+	}
+
+	/**
+	 * Queues a write on a descriptor. Descriptor writes are never dropped by
+	 * the overflow policy of the queue.
+	 *
+	 * @return Return false if the queue rejected the write.
+	 */
+	public boolean writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid, byte[] value) {
+		return this.mOperationQueue.enqueue(
+				GattOperation.writeDescriptor(serviceUuid, characteristicUuid, descriptorUuid, value));
+	}
+
+	public void readRssi() {
+		this.mOperationQueue.enqueue(GattOperation.readRssi());
+	}
+
+	/**
+	 * Reads the RSSI only if no other operation is waiting, so that the
+	 * telemetry never delays the writes of the connection.
+	 *
+	 * @return Return false if the connection is busy or not ready, the RSSI
+	 *         has not been requested.
+	 */
+	public boolean readRssiIfIdle() {
+		return this.isReady() && this.mOperationQueue.enqueueIfIdle(GattOperation.readRssi());
+	}
+
+	/**
+	 * Queues a write on a characteristic. The writes are executed one at a
+	 * time, each one starting when the previous GATT operation completes, and
+	 * are bounded by the overflow policy of {@link #getOperationQueue()}.
+	 *
+	 * @param serviceUuid
+	 *            The service of the characteristic.
+	 * @param characteristicUuid
+	 *            The characteristic to write.
+	 * @param data
+	 *            The value to write.
+	 * @param withResponse
+	 *            If true, use {@code WRITE_TYPE_DEFAULT}. Otherwise use
+	 *            {@code WRITE_TYPE_NO_RESPONSE}, for streaming.
+	 *
+	 * @return Return false if the write has been rejected by the queue.
+	 */
+	public boolean write(UUID serviceUuid, UUID characteristicUuid, byte[] data, boolean withResponse) {
+		return this.mOperationQueue.enqueue(
+				GattOperation.writeCharacteristic(serviceUuid, characteristicUuid, data, withResponse));
+	}
+
+	/**
+	 * Queues a message, split in packets of {@link #getMaxPayloadSize()}
+	 * bytes by {@link MessageFragmenter} once a larger MTU is negotiated,
+	 * terminated if the reassembly is enabled, or in frames if the framing
+	 * is enabled. The packets of a message are
+	 * queued together and are never dropped. At the default MTU and without
+	 * framing the data is written as is, like the devices expect it.
+	 *
+	 * @return Return false if the message has been rejected by the queue.
+	 * @throws IllegalArgumentException
+	 *             If the message is too long for the framing.
+	 */
+	public boolean writeMessage(UUID serviceUuid, UUID characteristicUuid, byte[] data, boolean withResponse) {
+		List<byte[]> packets;
+		FrameCodec codec = this.mFrameCodec;
+		if (codec != null) {
+			packets = codec.encode(data, getMaxPayloadSize());
+		} else if (this.mMtu <= BleTransport.DEFAULT_MTU) {
+			return write(serviceUuid, characteristicUuid, data, withResponse);
+		} else {
+			packets = MessageFragmenter.split(data, getMaxPayloadSize(), this.mReassemblyEnabled);
+		}
+		if (packets.size() == 1) {
+			return write(serviceUuid, characteristicUuid, packets.get(0), withResponse);
+		}
+		List<GattOperation> fragments = new ArrayList<GattOperation>(packets.size());
+		for (byte[] packet : packets) {
+			fragments.add(GattOperation.writeFragment(serviceUuid, characteristicUuid, packet, withResponse));
+		}
+		return this.mOperationQueue.enqueueAll(fragments);
+	}
+
+	/**
+	 * Takes the echoes of the pings of a probe out of the data received on
+	 * the default channel, and records their round trip. The pings
+	 * themselves are sent with {@link #writeCommand}.
+	 *
+	 * @param probe
+	 *            The probe, or null to deliver every packet again.
+	 */
+	public void setPingProbe(PingProbe probe) {
+		this.mPingProbe = probe;
+	}
+
+	public PingProbe getPingProbe() {
+		return this.mPingProbe;
+	}
+
+	/**
+	 * Queues a short command, written in a single packet taken from a
+	 * {@link BufferPool}, in a frame if the framing is enabled. A command on
+	 * a channel supersedes the pending command of the same channel, see
+	 * {@link GattOperationQueue#enqueue}, so a stream of setpoints never
+	 * piles up behind a slow link.
+	 *
+	 * @param command
+	 *            The command, its first length bytes are copied.
+	 * @param channel
+	 *            The channel of the command, or
+	 *            {@link GattOperation#NO_CHANNEL} for a one-shot command,
+	 *            never dropped.
+	 *
+	 * @return Return false if the command has been rejected by the queue.
+	 * @throws IllegalArgumentException
+	 *             If the command does not fit in a packet.
+	 */
+	public boolean writeCommand(UUID serviceUuid, UUID characteristicUuid, byte[] command, int length,
+			boolean withResponse, int channel) {
+		FrameCodec codec = this.mFrameCodec;
+		int size = codec == null ? length : length + FrameCodec.OVERHEAD;
+		if (size > getMaxPayloadSize()) {
+			throw new IllegalArgumentException("Command too long for a packet: " + length + " bytes");
+		}
+		BufferPool pool = this.mCommandPool;
+		if (pool == null || pool.getBufferSize() != size) {
+			pool = new BufferPool(size);
+			this.mCommandPool = pool;
+		}
+		byte[] packet = pool.acquire();
+		if (codec == null) {
+			System.arraycopy(command, 0, packet, 0, length);
+		} else {
+			codec.encodeFrame(command, length, packet);
+		}
+		return this.mOperationQueue.enqueue(
+				GattOperation.writeCommand(serviceUuid, characteristicUuid, packet, withResponse, channel, pool));
+	}
+
+	/**
+	 * Subscribes to the notifications, or the indications, of a
+	 * characteristic. The values are queued in the buffer of the returned
+	 * subscription and reported with {@link Callback#onNotification}, the
+	 * ones of the RX characteristic go to the default channel. The
+	 * subscription lasts until {@link #unsubscribe(int)} or {@link #close()}.
+	 *
+	 * @return The subscription, the existing one if the characteristic
+	 *         already has one, or null if the characteristic does not notify.
+	 */
+	public GattSubscription subscribe(UUID serviceUuid, UUID characteristicUuid) {
+		ServiceLayout layout = this.mLayout;
+		int properties = layout == null ? 0 : layout.getProperties(serviceUuid, characteristicUuid);
+		if ((properties & (BleTransport.PROPERTY_NOTIFY | BleTransport.PROPERTY_INDICATE)) == 0) {
+			Log.w(TAG, "Characteristic " + characteristicUuid + " does not notify");
+			return null;
+		}
+		GattSubscription subscription = this.mDefaultSubscription;
+		if (!UUID_BLE_SHIELD_RX.equals(characteristicUuid)) {
+			subscription = this.mSubscriptions.get(characteristicUuid);
+			if (subscription != null) {
+				return subscription;
+			}
+			subscription = new GattSubscription(this.mLastChannel.incrementAndGet(), serviceUuid, characteristicUuid,
+					new PacketRingBuffer());
+			this.mSubscriptions.put(characteristicUuid, subscription);
+		}
+		setCharacteristicNotification(serviceUuid, characteristicUuid, true);
+		return subscription;
+	}
+
+	/**
+	 * Disables the notifications of the characteristic of a channel. The
+	 * packets not read yet are dropped.
+	 *
+	 * @return Return false if there is no such channel.
+	 */
+	public boolean unsubscribe(int channel) {
+		GattSubscription subscription = getSubscription(channel);
+		if (subscription == null) {
+			return false;
+		}
+		this.mSubscriptions.remove(subscription.getCharacteristicUuid());
+		setCharacteristicNotification(subscription.getServiceUuid(), subscription.getCharacteristicUuid(), false);
+		if (channel != GattSubscription.DEFAULT_CHANNEL) {
+			subscription.getBuffer().clear();
+		}
+		return true;
+	}
+
+	/**
+	 * @return The subscription of a channel, the RX characteristic for
+	 *         {@link GattSubscription#DEFAULT_CHANNEL}, or null if there is no
+	 *         such channel.
+	 */
+	public GattSubscription getSubscription(int channel) {
+		if (channel == GattSubscription.DEFAULT_CHANNEL) {
+			return this.mDefaultSubscription;
+		}
+		for (GattSubscription subscription : this.mSubscriptions.values()) {
+			if (subscription.getChannel() == channel) {
+				return subscription;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The subscriptions besides the default channel.
+	 */
+	public Collection<GattSubscription> getSubscriptions() {
+		return Collections.unmodifiableCollection(this.mSubscriptions.values());
+	}
+
+	/**
+	 * Enables or disables notification on a given characteristic, with
+	 * indications if the characteristic does not support notifications.
+	 *
+	 * @param serviceUuid
+	 *            The service of the characteristic.
+	 * @param characteristicUuid
+	 *            Characteristic to act on.
+	 * @param enabled
+	 *            If true, enable notification. False otherwise.
+	 */
+	public void setCharacteristicNotification(UUID serviceUuid, UUID characteristicUuid, boolean enabled)
+	{
+		if (!this.mTransport.setCharacteristicNotification(this.mAddress, serviceUuid, characteristicUuid, enabled))
+		{
+			Log.w(TAG, "Could not set the notification of " + characteristicUuid);
+			return;
+		}
+		byte[] value = DISABLE_NOTIFICATION_VALUE;
+		if (enabled)
+		{
+			ServiceLayout layout = this.mLayout;
+			int properties = layout == null ? 0 : layout.getProperties(serviceUuid, characteristicUuid);
+			value = (properties & BleTransport.PROPERTY_INDICATE) != 0
+					&& (properties & BleTransport.PROPERTY_NOTIFY) == 0
+					? ENABLE_INDICATION_VALUE : ENABLE_NOTIFICATION_VALUE;
+		}
+		this.mOperationQueue.enqueue(GattOperation.writeDescriptor(serviceUuid, characteristicUuid,
+				UUID_CLIENT_CHARACTERISTIC_CONFIG, value));
+	}
+
+	/*
+	 * Starts a queued operation on the GATT server. Called by the queue when
+	 * no other operation is in flight.
+	 */
+	private boolean executeOperation(GattOperation operation) {
+		switch (operation.getType()) {
+		case GattOperation.READ_RSSI:
+			return this.mTransport.readRssi(this.mAddress);
+		case GattOperation.WRITE_CHARACTERISTIC:
+			return this.mTransport.writeCharacteristic(this.mAddress, operation.getServiceUuid(),
+					operation.getCharacteristicUuid(), operation.getData(), operation.isWithResponse());
+		case GattOperation.READ_CHARACTERISTIC:
+			return this.mTransport.readCharacteristic(this.mAddress, operation.getServiceUuid(),
+					operation.getCharacteristicUuid());
+		case GattOperation.REQUEST_MTU:
+			return this.mTransport.requestMtu(this.mAddress, operation.getMtu());
+		case GattOperation.READ_DESCRIPTOR:
+			return this.mTransport.readDescriptor(this.mAddress, operation.getServiceUuid(),
+					operation.getCharacteristicUuid(), operation.getDescriptorUuid());
+		case GattOperation.WRITE_DESCRIPTOR:
+			return this.mTransport.writeDescriptor(this.mAddress, operation.getServiceUuid(),
+					operation.getCharacteristicUuid(), operation.getDescriptorUuid(), operation.getData());
+		default:
+			return false;
+		}
+	}
+}
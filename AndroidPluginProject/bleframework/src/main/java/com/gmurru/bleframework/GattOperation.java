@@ -0,0 +1,217 @@
+package com.gmurru.bleframework;
+
+import java.util.UUID;
+
+/**
+ * A single GATT request waiting in a {@link GattOperationQueue}.
+ *
+ * Android only runs one GATT request at a time per connection, so every read, write and descriptor
+ * update goes through the queue and is executed only when the previous one has completed.
+ */
+public class GattOperation
+{
+    public static final int WRITE_CHARACTERISTIC = 0;
+    public static final int READ_CHARACTERISTIC = 1;
+    public static final int WRITE_DESCRIPTOR = 2;
+    public static final int READ_RSSI = 3;
+    public static final int REQUEST_MTU = 4;
+    public static final int READ_DESCRIPTOR = 5;
+
+    /*
+    Channel of the commands that do not supersede each other
+    */
+    public static final int NO_CHANNEL = -1;
+
+    private final int _type;
+    private final UUID _serviceUuid;
+    private final UUID _characteristicUuid;
+    private final UUID _descriptorUuid;
+    private byte[] _data;
+    private final boolean _withResponse;
+    private boolean _fragment = false;
+    private boolean _reliable = false;
+    private int _channel = NO_CHANNEL;
+    private BufferPool _pool;
+    private int _mtu = 0;
+
+    private GattOperation(int type, UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid, byte[] data, boolean withResponse)
+    {
+        this._type = type;
+        this._serviceUuid = serviceUuid;
+        this._characteristicUuid = characteristicUuid;
+        this._descriptorUuid = descriptorUuid;
+        this._data = data;
+        this._withResponse = withResponse;
+    }
+
+    /**
+     * A write carrying a part of a message larger than the ATT payload. The fragments of a message are never dropped
+     * or coalesced, so the peripheral always receives the whole message.
+     */
+    public static GattOperation writeFragment(UUID serviceUuid, UUID characteristicUuid, byte[] data, boolean withResponse)
+    {
+        GattOperation operation = writeCharacteristic(serviceUuid, characteristicUuid, data, withResponse);
+        operation._fragment = true;
+        operation._reliable = true;
+        return operation;
+    }
+
+    /**
+     * A write of a command. A command on a channel supersedes the pending command of the same channel, see
+     * {@link GattOperationQueue#enqueue}; a command on NO_CHANNEL is never dropped or coalesced.
+     *
+     * @param pool pool the data comes from, it gets the data back once the write is done. Can be null.
+     */
+    public static GattOperation writeCommand(UUID serviceUuid, UUID characteristicUuid, byte[] data, boolean withResponse,
+                                             int channel, BufferPool pool)
+    {
+        GattOperation operation = writeCharacteristic(serviceUuid, characteristicUuid, data, withResponse);
+        operation._channel = channel;
+        operation._reliable = channel == NO_CHANNEL;
+        operation._pool = pool;
+        return operation;
+    }
+
+    /**
+     * @param withResponse true for WRITE_TYPE_DEFAULT, false for WRITE_TYPE_NO_RESPONSE
+     */
+    public static GattOperation writeCharacteristic(UUID serviceUuid, UUID characteristicUuid, byte[] data, boolean withResponse)
+    {
+        return new GattOperation(WRITE_CHARACTERISTIC, serviceUuid, characteristicUuid, null, data, withResponse);
+    }
+
+    public static GattOperation readCharacteristic(UUID serviceUuid, UUID characteristicUuid)
+    {
+        return new GattOperation(READ_CHARACTERISTIC, serviceUuid, characteristicUuid, null, null, true);
+    }
+
+    public static GattOperation writeDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid, byte[] data)
+    {
+        return new GattOperation(WRITE_DESCRIPTOR, serviceUuid, characteristicUuid, descriptorUuid, data, true);
+    }
+
+    public static GattOperation readDescriptor(UUID serviceUuid, UUID characteristicUuid, UUID descriptorUuid)
+    {
+        return new GattOperation(READ_DESCRIPTOR, serviceUuid, characteristicUuid, descriptorUuid, null, true);
+    }
+
+    public static GattOperation readRssi()
+    {
+        return new GattOperation(READ_RSSI, null, null, null, null, true);
+    }
+
+    public static GattOperation requestMtu(int mtu)
+    {
+        GattOperation operation = new GattOperation(REQUEST_MTU, null, null, null, null, true);
+        operation._mtu = mtu;
+        return operation;
+    }
+
+    public int getType()
+    {
+        return this._type;
+    }
+
+    public UUID getServiceUuid()
+    {
+        return this._serviceUuid;
+    }
+
+    public UUID getCharacteristicUuid()
+    {
+        return this._characteristicUuid;
+    }
+
+    public UUID getDescriptorUuid()
+    {
+        return this._descriptorUuid;
+    }
+
+    public byte[] getData()
+    {
+        return this._data;
+    }
+
+    /*
+    Takes the value of a newer write to the same characteristic, used by the queue to coalesce the writes.
+    The value replaced goes back to its pool.
+    */
+    void takeData(GattOperation newer)
+    {
+        byte[] data = newer._data;
+        BufferPool pool = newer._pool;
+        newer._data = null;
+        newer._pool = null;
+        recycle();
+        this._data = data;
+        this._pool = pool;
+    }
+
+    /*
+    Gives the data back to its pool once the operation is done, dropped or superseded
+    */
+    void recycle()
+    {
+        BufferPool pool = this._pool;
+        if (pool != null)
+        {
+            this._pool = null;
+            pool.release(this._data);
+        }
+    }
+
+    public boolean isWithResponse()
+    {
+        return this._withResponse;
+    }
+
+    public boolean isFragment()
+    {
+        return this._fragment;
+    }
+
+    /*
+    Channel of a command, NO_CHANNEL for the other operations
+    */
+    public int getChannel()
+    {
+        return this._channel;
+    }
+
+    /*
+    MTU asked by a REQUEST_MTU operation
+    */
+    public int getMtu()
+    {
+        return this._mtu;
+    }
+
+    /*
+    True if the operation may be dropped or merged by the overflow policy of the queue
+    */
+    boolean isDroppable()
+    {
+        return this._type == WRITE_CHARACTERISTIC && !this._reliable;
+    }
+
+    /*
+    True if a newer command supersedes this pending one: same channel, same characteristic and write type
+    */
+    boolean isSupersededBy(GattOperation newer)
+    {
+        return this._channel != NO_CHANNEL && canCoalesceWith(newer);
+    }
+
+    /*
+    True if both operations are writes to the same characteristic with the same write type, on the same channel
+    */
+    boolean canCoalesceWith(GattOperation other)
+    {
+        return isDroppable()
+                && other.isDroppable()
+                && this._withResponse == other._withResponse
+                && this._channel == other._channel
+                && this._characteristicUuid.equals(other._characteristicUuid)
+                && (this._serviceUuid == null ? other._serviceUuid == null : this._serviceUuid.equals(other._serviceUuid));
+    }
+}
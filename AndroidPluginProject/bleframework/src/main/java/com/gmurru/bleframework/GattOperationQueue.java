@@ -0,0 +1,515 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Serializes the GATT requests of a connection.
+ *
+ * Android rejects a request while another one is in flight, so the queue executes a single
+ * {@link GattOperation} at a time and starts the next one only when {@link #onOperationComplete(int, int)}
+ * is called from the matching {@code BluetoothGattCallback} method, or when the operation times out: a lost callback
+ * never stalls the connection. The characteristic writes are bounded:
+ * when {@link #getCapacity()} writes are waiting, the {@link OverflowPolicy} decides which one
+ * is discarded, and a new write is rejected when none of the waiting ones may be discarded. The fragments of a
+ * message count as waiting writes but are never discarded: a message is accepted while the queue has room left, so
+ * the writes waiting may exceed the capacity by the size of the last message minus one. The one-shot commands,
+ * reads and descriptor writes are never discarded nor counted.
+ *
+ * The commands written on a channel ({@link GattOperation#writeCommand}) are setpoints: whatever the policy, a new
+ * command replaces the pending command of its channel, so the device never works through outdated values. The data
+ * of the operations taken from a {@link BufferPool} goes back to it once the operation is done, dropped or replaced.
+ */
+public class GattOperationQueue
+{
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    public enum OverflowPolicy
+    {
+        /*
+        Discard the oldest pending write to make room for the new one
+        */
+        DROP_OLDEST,
+        /*
+        Reject the new write
+        */
+        DROP_NEWEST,
+        /*
+        Replace the value of a pending write to the same characteristic with the new one, so only the latest value is sent.
+        Falls back to DROP_OLDEST if there is no such write.
+        */
+        COALESCE
+    }
+
+    /**
+     * Issues the operations to the GATT server.
+     */
+    public interface Executor
+    {
+        /**
+         * @return false if the request could not be started, in which case no completion will follow
+         */
+        boolean execute(GattOperation operation);
+    }
+
+    /**
+     * Runs the timeouts of the operations in flight.
+     */
+    public interface TimeoutScheduler
+    {
+        void schedule(Runnable timeout, long delayMs);
+    }
+
+    private final Executor _executor;
+
+    /*
+    Thread the operations are started on, the caller thread when null
+    */
+    private volatile java.util.concurrent.Executor _dispatcher;
+    private final Runnable _pumpRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            pump();
+        }
+    };
+    private final ArrayDeque<GattOperation> _pending = new ArrayDeque<GattOperation>();
+    private GattOperation _inFlight;
+    private int _pendingWrites;
+
+    /*
+    Time an operation may stay in flight, and the scheduler of its timeout. Without scheduler the operations never
+    time out.
+    */
+    private volatile TimeoutScheduler _timeoutScheduler;
+    private volatile long _timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    private int _capacity = DEFAULT_CAPACITY;
+    private OverflowPolicy _overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private long _completedCount;
+    private long _droppedCount;
+    private long _coalescedCount;
+    private long _failedCount;
+    private long _timedOutCount;
+
+    public GattOperationQueue(Executor executor)
+    {
+        this._executor = executor;
+    }
+
+    /**
+     * Queues an operation and starts it right away if the connection is idle. A command on a channel takes the place
+     * of the pending command of the same channel, unless a write that must not be reordered, a one-shot command or a
+     * fragment, was queued after it: the older command is then removed and the new one queued at the end.
+     *
+     * @return false if the operation has been rejected by the DROP_NEWEST policy
+     */
+    public boolean enqueue(GattOperation operation)
+    {
+        synchronized (this)
+        {
+            if (!operation.isDroppable())
+            {
+                this._pending.addLast(operation);
+            }
+            else if (operation.getChannel() != GattOperation.NO_CHANNEL && supersede(operation))
+            {
+                return true;
+            }
+            else if (!makeRoomFor(operation))
+            {
+                operation.recycle();
+                return false;
+            }
+        }
+        schedulePump();
+        return true;
+    }
+
+    /**
+     * Queues an operation only if nothing is waiting or in flight, for the periodic reads that must never delay the
+     * writes of the connection.
+     *
+     * @return false if the connection is busy, in which case the operation is not queued
+     */
+    public boolean enqueueIfIdle(GattOperation operation)
+    {
+        synchronized (this)
+        {
+            if (this._inFlight != null || !this._pending.isEmpty())
+            {
+                return false;
+            }
+            this._pending.addLast(operation);
+        }
+        schedulePump();
+        return true;
+    }
+
+    /**
+     * Queues the fragments of a message, all of them or none. When the queue is full the message takes the place of
+     * a write, like a single write would, and is rejected if the policy or the waiting writes do not allow it. Once
+     * queued the fragments are never dropped.
+     *
+     * @return false if the message has been rejected
+     */
+    public boolean enqueueAll(List<GattOperation> fragments)
+    {
+        synchronized (this)
+        {
+            if (this._pendingWrites >= this._capacity
+                    && (this._overflowPolicy == OverflowPolicy.DROP_NEWEST || !dropOldest()))
+            {
+                this._droppedCount++;
+                return false;
+            }
+            this._pending.addAll(fragments);
+            this._pendingWrites += fragments.size();
+        }
+        schedulePump();
+        return true;
+    }
+
+    /*
+    Replaces the pending command of the channel of a new command. Returns true if the command has been merged into
+    the pending one, false if it must be queued: there was no pending command or it has been removed.
+    */
+    private boolean supersede(GattOperation operation)
+    {
+        boolean reordered = false;
+        Iterator<GattOperation> iterator = this._pending.descendingIterator();
+        while (iterator.hasNext())
+        {
+            GattOperation pending = iterator.next();
+            if (pending.isSupersededBy(operation))
+            {
+                this._coalescedCount++;
+                if (!reordered)
+                {
+                    pending.takeData(operation);
+                    return true;
+                }
+                iterator.remove();
+                this._pendingWrites--;
+                pending.recycle();
+                return false;
+            }
+            reordered |= pending.getType() == GattOperation.WRITE_CHARACTERISTIC && !pending.isDroppable();
+        }
+        return false;
+    }
+
+    /*
+    Applies the overflow policy. Returns false if the operation must not be queued,
+    true if it has been queued or merged into a pending write. A write is only merged into a pending one queued after
+    the last write that must not be reordered, so the new value is never sent before it.
+    */
+    private boolean makeRoomFor(GattOperation operation)
+    {
+        if (this._overflowPolicy == OverflowPolicy.COALESCE)
+        {
+            Iterator<GattOperation> iterator = this._pending.descendingIterator();
+            while (iterator.hasNext())
+            {
+                GattOperation pending = iterator.next();
+                if (pending.canCoalesceWith(operation))
+                {
+                    pending.takeData(operation);
+                    this._coalescedCount++;
+                    return true;
+                }
+                if (pending.getType() == GattOperation.WRITE_CHARACTERISTIC && !pending.isDroppable())
+                {
+                    break;
+                }
+            }
+        }
+
+        if (this._pendingWrites >= this._capacity
+                && (this._overflowPolicy == OverflowPolicy.DROP_NEWEST || !dropOldest()))
+        {
+            this._droppedCount++;
+            return false;
+        }
+
+        this._pending.addLast(operation);
+        this._pendingWrites++;
+        return true;
+    }
+
+    /*
+    Discards the oldest write that may be dropped. Returns false if there is none, the waiting writes being fragments.
+    */
+    private boolean dropOldest()
+    {
+        Iterator<GattOperation> iterator = this._pending.iterator();
+        while (iterator.hasNext())
+        {
+            GattOperation pending = iterator.next();
+            if (pending.isDroppable())
+            {
+                iterator.remove();
+                pending.recycle();
+                this._pendingWrites--;
+                this._droppedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    True for the writes counted against the capacity: those that may be dropped, and the fragments
+    */
+    private static boolean isCounted(GattOperation operation)
+    {
+        return operation.isDroppable() || operation.isFragment();
+    }
+
+    /**
+     * Must be called when the GATT callback reports the end of the operation in flight. A callback which does not
+     * match the type of the operation in flight, such as an MTU change the peripheral started, is ignored.
+     *
+     * @param type type of the operation completed by the callback, GattOperation.WRITE_CHARACTERISTIC for example
+     * @param status the status given by the callback, 0 on success
+     */
+    public void onOperationComplete(int type, int status)
+    {
+        synchronized (this)
+        {
+            if (this._inFlight == null || this._inFlight.getType() != type)
+            {
+                return;
+            }
+            this._inFlight.recycle();
+            this._inFlight = null;
+            if (status == 0)
+            {
+                this._completedCount++;
+            }
+            else
+            {
+                this._failedCount++;
+            }
+        }
+        schedulePump();
+    }
+
+    /*
+    Gives up an operation still in flight when its timeout expires, its callback has been lost: the link dropped
+    before its completion or the device never answered. A callback arriving later is taken for the next operation of
+    the same type, at worst completing it early.
+    */
+    private void onTimeout(GattOperation operation)
+    {
+        synchronized (this)
+        {
+            if (this._inFlight != operation)
+            {
+                return;
+            }
+            operation.recycle();
+            this._inFlight = null;
+            this._failedCount++;
+            this._timedOutCount++;
+        }
+        schedulePump();
+    }
+
+    private void scheduleTimeout(final GattOperation operation)
+    {
+        TimeoutScheduler scheduler = this._timeoutScheduler;
+        if (scheduler == null)
+        {
+            return;
+        }
+        scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onTimeout(operation);
+            }
+        }, this._timeoutMs);
+    }
+
+    /**
+     * Completes the operations in flight for more than timeoutMs as failed, so the next ones are started.
+     *
+     * @param scheduler null to never time out
+     */
+    public void setTimeout(long timeoutMs, TimeoutScheduler scheduler)
+    {
+        if (timeoutMs <= 0)
+        {
+            throw new IllegalArgumentException("timeoutMs must be positive");
+        }
+        this._timeoutMs = timeoutMs;
+        this._timeoutScheduler = scheduler;
+    }
+
+    /**
+     * Starts the operations on the dispatcher instead of the thread calling enqueue or onOperationComplete,
+     * so the Unity thread never waits for a GATT request.
+     *
+     * @param dispatcher null to start them on the caller thread
+     */
+    public void setDispatcher(java.util.concurrent.Executor dispatcher)
+    {
+        this._dispatcher = dispatcher;
+    }
+
+    private void schedulePump()
+    {
+        java.util.concurrent.Executor dispatcher = this._dispatcher;
+        if (dispatcher == null)
+        {
+            pump();
+        }
+        else
+        {
+            dispatcher.execute(this._pumpRunnable);
+        }
+    }
+
+    /*
+    Starts the next operation if nothing is in flight. The executor is called outside the lock
+    so that the GATT callbacks are never blocked by a slow request.
+    */
+    private void pump()
+    {
+        while (true)
+        {
+            GattOperation next;
+            synchronized (this)
+            {
+                if (this._inFlight != null || this._pending.isEmpty())
+                {
+                    return;
+                }
+                next = this._pending.pollFirst();
+                if (isCounted(next))
+                {
+                    this._pendingWrites--;
+                }
+                this._inFlight = next;
+            }
+
+            if (this._executor.execute(next))
+            {
+                scheduleTimeout(next);
+                return;
+            }
+
+            synchronized (this)
+            {
+                this._failedCount++;
+                next.recycle();
+                if (this._inFlight == next)
+                {
+                    this._inFlight = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards every pending operation and forgets the one in flight, to be called when the connection is lost.
+     */
+    public synchronized void clear()
+    {
+        this._droppedCount += this._pendingWrites;
+        for (GattOperation pending : this._pending)
+        {
+            pending.recycle();
+        }
+        this._pending.clear();
+        this._pendingWrites = 0;
+        if (this._inFlight != null)
+        {
+            this._inFlight.recycle();
+            this._inFlight = null;
+        }
+    }
+
+    /*
+    Number of operations waiting, including the one in flight
+    */
+    public synchronized int getDepth()
+    {
+        return this._pending.size() + (this._inFlight == null ? 0 : 1);
+    }
+
+    public synchronized boolean isIdle()
+    {
+        return this._inFlight == null && this._pending.isEmpty();
+    }
+
+    public synchronized int getCapacity()
+    {
+        return this._capacity;
+    }
+
+    /*
+    Maximum number of characteristic writes waiting to be executed
+    */
+    public synchronized void setCapacity(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this._capacity = capacity;
+    }
+
+    public synchronized OverflowPolicy getOverflowPolicy()
+    {
+        return this._overflowPolicy;
+    }
+
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this._overflowPolicy = overflowPolicy;
+    }
+
+    public synchronized long getCompletedCount()
+    {
+        return this._completedCount;
+    }
+
+    /*
+    Number of writes discarded by the overflow policy or by clear()
+    */
+    public synchronized long getDroppedCount()
+    {
+        return this._droppedCount;
+    }
+
+    /*
+    Number of writes merged into a pending write by the COALESCE policy
+    */
+    public synchronized long getCoalescedCount()
+    {
+        return this._coalescedCount;
+    }
+
+    /*
+    Number of operations that could not be started, completed with an error status or timed out
+    */
+    public synchronized long getFailedCount()
+    {
+        return this._failedCount;
+    }
+
+    /*
+    Number of operations given up because their callback did not come in time
+    */
+    public synchronized long getTimedOutCount()
+    {
+        return this._timedOutCount;
+    }
+}
@@ -0,0 +1,80 @@
+package com.gmurru.bleframework;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The notifications of one characteristic, queued in a channel of their own.
+ *
+ * Every subscription of a {@link GattConnection} has a channel number and a {@link PacketRingBuffer}, so the
+ * characteristics of a board (IMU, battery, command acknowledgements) stream side by side instead of sharing the RX
+ * queue, and a channel read late never makes another one overflow. Channel 0 is the RX characteristic of the BLE
+ * shield: its buffer is the receive buffer of the connection, with the reassembly and the framing of the messages.
+ * The other channels receive the values as notified, one packet per notification or read.
+ */
+public class GattSubscription
+{
+    /*
+    Channel of the RX characteristic of the BLE shield
+    */
+    public static final int DEFAULT_CHANNEL = 0;
+
+    private final int _channel;
+    private final UUID _serviceUuid;
+    private final UUID _characteristicUuid;
+    private final PacketRingBuffer _buffer;
+
+    /*
+    True once the reader has been told about new packets, until it drains the channel
+    */
+    private final AtomicBoolean _signaled = new AtomicBoolean();
+
+    GattSubscription(int channel, UUID serviceUuid, UUID characteristicUuid, PacketRingBuffer buffer)
+    {
+        this._channel = channel;
+        this._serviceUuid = serviceUuid;
+        this._characteristicUuid = characteristicUuid;
+        this._buffer = buffer;
+    }
+
+    public int getChannel()
+    {
+        return this._channel;
+    }
+
+    public UUID getServiceUuid()
+    {
+        return this._serviceUuid;
+    }
+
+    public UUID getCharacteristicUuid()
+    {
+        return this._characteristicUuid;
+    }
+
+    /**
+     * @return the packets received on the channel and not read yet
+     */
+    public PacketRingBuffer getBuffer()
+    {
+        return this._buffer;
+    }
+
+    /**
+     * Marks the channel as signaled to its reader, so that a burst of notifications is signaled once.
+     *
+     * @return false if the reader has already been signaled and has not drained the channel since
+     */
+    public boolean signal()
+    {
+        return this._signaled.compareAndSet(false, true);
+    }
+
+    /*
+    Called by the reader before draining the channel, so that the next packet is signaled again
+    */
+    public void clearSignal()
+    {
+        this._signaled.set(false);
+    }
+}
@@ -0,0 +1,41 @@
+package com.gmurru.bleframework;
+
+/**
+ * Conversions between byte arrays and hexadecimal strings, used by Unity to pass binary commands as strings.
+ */
+public final class HexCodec
+{
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private HexCodec()
+    {
+    }
+
+    /**
+     * Decodes a string of hexadecimal digit pairs, upper or lower case. A trailing odd digit is ignored.
+     */
+    public static byte[] decode(String s)
+    {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i + 1 < len; i += 2)
+        {
+            data[(i / 2)] = ((byte)((Character.digit(s.charAt(i), 16) << 4) + Character.digit(s.charAt(i + 1), 16)));
+        }
+        return data;
+    }
+
+    /**
+     * @return the upper case hexadecimal digits of the bytes, two per byte
+     */
+    public static String encode(byte[] data)
+    {
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++)
+        {
+            chars[2 * i] = DIGITS[(data[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = DIGITS[data[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+}
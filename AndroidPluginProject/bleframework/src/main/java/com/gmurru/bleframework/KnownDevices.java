@@ -0,0 +1,323 @@
+package com.gmurru.bleframework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Devices connected in the previous sessions of the app, most recent first, saved in a small file so that the next
+ * launch connects the last one directly instead of scanning for it first.
+ *
+ * Every device keeps its name, the services of its last discovery and its last negotiated MTU. Only the
+ * MAX_ENTRIES most recent devices are kept. Layout of the file, all integers big endian:
+ *
+ * <pre>
+ * file:    int MAGIC | short VERSION | byte count | entries
+ * entry:   UTF address | UTF name, empty if none | long last connection in ms since 1970 | short mtu | byte serviceCount
+ *          | for every service: uuid | byte count | for every characteristic: uuid | byte properties
+ * </pre>
+ *
+ * The file is replaced in one rename by {@link #save()}, a file which can not be read is ignored by {@link #load()}.
+ * Thread safe.
+ */
+public class KnownDevices
+{
+    public static final int MAGIC = 0x424c454b;
+    public static final int VERSION = 1;
+    public static final int MAX_ENTRIES = 8;
+
+    /**
+     * A device connected before
+     */
+    public static final class Entry
+    {
+        private final String _address;
+        private final String _name;
+        private final ServiceLayout _layout;
+        private final int _mtu;
+        private final long _lastConnected;
+
+        public Entry(String address, String name, ServiceLayout layout, int mtu, long lastConnected)
+        {
+            this._address = address;
+            this._name = name;
+            this._layout = layout;
+            this._mtu = mtu;
+            this._lastConnected = lastConnected;
+        }
+
+        public String getAddress()
+        {
+            return this._address;
+        }
+
+        /*
+        Name of the device, null if it had none
+        */
+        public String getName()
+        {
+            return this._name;
+        }
+
+        public ServiceLayout getLayout()
+        {
+            return this._layout;
+        }
+
+        public int getMtu()
+        {
+            return this._mtu;
+        }
+
+        /*
+        Time of the last connection, in ms since 1970
+        */
+        public long getLastConnected()
+        {
+            return this._lastConnected;
+        }
+    }
+
+    private final File _file;
+    private final List<Entry> _entries = new ArrayList<Entry>();
+
+    public KnownDevices(File file)
+    {
+        this._file = file;
+    }
+
+    /**
+     * Replaces the devices with those of the file.
+     *
+     * @return false if the file does not exist or can not be read, the list is then empty
+     */
+    public synchronized boolean load()
+    {
+        this._entries.clear();
+        if (!this._file.exists())
+        {
+            return false;
+        }
+        try
+        {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this._file)));
+            try
+            {
+                if (input.readInt() != MAGIC || input.readShort() != VERSION)
+                {
+                    return false;
+                }
+                int count = input.readUnsignedByte();
+                for (int i = 0; i < count; i++)
+                {
+                    this._entries.add(readEntry(input));
+                }
+                return true;
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch (IOException e)
+        {
+            this._entries.clear();
+            return false;
+        }
+    }
+
+    private static Entry readEntry(DataInputStream input) throws IOException
+    {
+        String address = input.readUTF();
+        String name = input.readUTF();
+        long lastConnected = input.readLong();
+        int mtu = input.readUnsignedShort();
+        Map<UUID, Map<UUID, Integer>> services = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+        int serviceCount = input.readUnsignedByte();
+        for (int i = 0; i < serviceCount; i++)
+        {
+            UUID service = new UUID(input.readLong(), input.readLong());
+            int count = input.readUnsignedByte();
+            Map<UUID, Integer> characteristics = new LinkedHashMap<UUID, Integer>();
+            for (int j = 0; j < count; j++)
+            {
+                characteristics.put(new UUID(input.readLong(), input.readLong()), input.readUnsignedByte());
+            }
+            services.put(service, characteristics);
+        }
+        return new Entry(address, name.isEmpty() ? null : name, new ServiceLayout(services), mtu, lastConnected);
+    }
+
+    /**
+     * Writes the devices to a temporary file, renamed over the file once complete.
+     *
+     * @return false if the file could not be written, the previous one is then left as it was
+     */
+    public synchronized boolean save()
+    {
+        File temporary = new File(this._file.getPath() + ".tmp");
+        try
+        {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try
+            {
+                output.writeInt(MAGIC);
+                output.writeShort(VERSION);
+                output.writeByte(this._entries.size());
+                for (Entry entry : this._entries)
+                {
+                    writeEntry(output, entry);
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        catch (IOException e)
+        {
+            temporary.delete();
+            return false;
+        }
+        return temporary.renameTo(this._file);
+    }
+
+    private static void writeEntry(DataOutputStream output, Entry entry) throws IOException
+    {
+        ServiceLayout layout = entry.getLayout();
+        output.writeUTF(entry.getAddress());
+        output.writeUTF(entry.getName() == null ? "" : entry.getName());
+        output.writeLong(entry.getLastConnected());
+        output.writeShort(entry.getMtu());
+        List<UUID> services = layout.getServices();
+        output.writeByte(services.size());
+        for (UUID service : services)
+        {
+            List<UUID> characteristics = layout.getCharacteristics(service);
+            output.writeLong(service.getMostSignificantBits());
+            output.writeLong(service.getLeastSignificantBits());
+            output.writeByte(characteristics.size());
+            for (UUID characteristic : characteristics)
+            {
+                output.writeLong(characteristic.getMostSignificantBits());
+                output.writeLong(characteristic.getLeastSignificantBits());
+                output.writeByte(layout.getProperties(service, characteristic));
+            }
+        }
+    }
+
+    /**
+     * Moves a device connected and discovered at the top of the list, dropping the oldest one beyond MAX_ENTRIES.
+     *
+     * @param name name of the device, null to keep the known one
+     * @param layout services discovered, null or empty to keep the known ones
+     */
+    public synchronized void onConnected(String address, String name, ServiceLayout layout, long time)
+    {
+        int index = indexOf(address);
+        Entry known = index < 0 ? null : this._entries.remove(index);
+        if (name == null && known != null)
+        {
+            name = known.getName();
+        }
+        if (layout == null || layout.isEmpty())
+        {
+            layout = known != null ? known.getLayout() : ServiceLayout.EMPTY;
+        }
+        int mtu = known != null ? known.getMtu() : BleTransport.DEFAULT_MTU;
+        this._entries.add(0, new Entry(address, name, layout, mtu, time));
+        while (this._entries.size() > MAX_ENTRIES)
+        {
+            this._entries.remove(this._entries.size() - 1);
+        }
+    }
+
+    /**
+     * Records the MTU negotiated with a known device.
+     *
+     * @return true if the MTU of the device changed
+     */
+    public synchronized boolean onMtuChanged(String address, int mtu)
+    {
+        int index = indexOf(address);
+        if (index < 0)
+        {
+            return false;
+        }
+        Entry known = this._entries.get(index);
+        if (known.getMtu() == mtu)
+        {
+            return false;
+        }
+        this._entries.set(index, new Entry(address, known.getName(), known.getLayout(), mtu, known.getLastConnected()));
+        return true;
+    }
+
+    private int indexOf(String address)
+    {
+        for (int i = 0; i < this._entries.size(); i++)
+        {
+            if (this._entries.get(i).getAddress().equals(address))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+    Known device with this address, null if there is none
+    */
+    public synchronized Entry get(String address)
+    {
+        int index = indexOf(address);
+        return index < 0 ? null : this._entries.get(index);
+    }
+
+    /*
+    Device connected most recently, null if there is none
+    */
+    public synchronized Entry getLatest()
+    {
+        return this._entries.isEmpty() ? null : this._entries.get(0);
+    }
+
+    /*
+    Copy of the devices, most recent first
+    */
+    public synchronized List<Entry> getEntries()
+    {
+        return new ArrayList<Entry>(this._entries);
+    }
+
+    public synchronized boolean remove(String address)
+    {
+        int index = indexOf(address);
+        if (index < 0)
+        {
+            return false;
+        }
+        this._entries.remove(index);
+        return true;
+    }
+
+    public synchronized void clear()
+    {
+        this._entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return this._entries.size();
+    }
+}
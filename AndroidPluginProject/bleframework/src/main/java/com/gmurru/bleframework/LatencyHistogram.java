@@ -0,0 +1,127 @@
+package com.gmurru.bleframework;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in microseconds, in buckets of constant relative width like an HDR histogram.
+ *
+ * Every power of two is split in SUB_BUCKET_COUNT linear buckets: the latencies under SUB_BUCKET_COUNT microseconds
+ * have a bucket each, then 960 to 1023 microseconds share a bucket 64 wide, 28672 to 30719 one 2048 wide. The last
+ * bucket counts everything from about 18 minutes up. Recording is a few atomic increments with no allocation, from
+ * any thread, so it can stay enabled on the receive path. The percentiles are the upper bound of their bucket: at
+ * most an eighth above the true value, fine enough to tune a control loop on the p50 and p99.
+ */
+public class LatencyHistogram
+{
+    public static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    public static final int BUCKET_COUNT = 28 * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _totalMicros = new AtomicLong();
+    private final AtomicLong _maxMicros = new AtomicLong();
+
+    /**
+     * @param latencyNanos latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long latencyNanos)
+    {
+        long micros = Math.max(latencyNanos, 0) / 1000;
+        this._buckets.incrementAndGet(bucketOf(micros));
+        this._count.incrementAndGet();
+        this._totalMicros.addAndGet(micros);
+        long max = this._maxMicros.get();
+        while (micros > max && !this._maxMicros.compareAndSet(max, micros))
+        {
+            max = this._maxMicros.get();
+        }
+    }
+
+    static int bucketOf(long micros)
+    {
+        if (micros < SUB_BUCKET_COUNT)
+        {
+            return (int) micros;
+        }
+        /* Power of two of the latency, then its sub-bucket from the next SUB_BUCKET_BITS bits */
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        long bucket = ((long) (shift + 1) << SUB_BUCKET_BITS) + ((micros >> shift) & (SUB_BUCKET_COUNT - 1));
+        return (int) Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /*
+    Upper bound of a bucket, in microseconds
+    */
+    static long upperBound(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKET_COUNT)
+        {
+            return bucket + 1;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return ((long) (SUB_BUCKET_COUNT + (bucket & (SUB_BUCKET_COUNT - 1))) + 1) << shift;
+    }
+
+    public long getCount()
+    {
+        return this._count.get();
+    }
+
+    public long getMaxMicros()
+    {
+        return this._maxMicros.get();
+    }
+
+    public long getMeanMicros()
+    {
+        long count = this._count.get();
+        return count == 0 ? 0 : this._totalMicros.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in microseconds under which this percentage of the recorded latencies falls, 0 if nothing
+     *         has been recorded
+     */
+    public long getPercentileMicros(double percentile)
+    {
+        long count = this._count.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+        long rank = (long)Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += this._buckets.get(i);
+            if (seen >= rank && seen > 0)
+            {
+                return Math.min(upperBound(i), this._maxMicros.get());
+            }
+        }
+        return this._maxMicros.get();
+    }
+
+    /*
+    Number of latencies recorded in a bucket
+    */
+    public long getBucket(int bucket)
+    {
+        return this._buckets.get(bucket);
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            this._buckets.set(i, 0);
+        }
+        this._count.set(0);
+        this._totalMicros.set(0);
+        this._maxMicros.set(0);
+    }
+}
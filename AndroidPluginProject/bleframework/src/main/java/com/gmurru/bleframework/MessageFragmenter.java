@@ -0,0 +1,126 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the messages larger than the ATT payload in packets, and joins them back on the other side.
+ *
+ * A terminated message is sent as full packets followed by a shorter packet, empty if the size of the message is a
+ * multiple of the payload size. A message shorter than a packet is sent as is, so the small messages are unchanged.
+ * The receiver uses the same rule: a full packet means the message continues in the next one. This is a convention
+ * of the framework, not of BLE: a device streaming full packets of its own does not follow it, so the connections
+ * only use it when asked to, see {@link GattConnection#setReassemblyEnabled}.
+ *
+ * The reassembler is used by a single thread, the one receiving the notifications. The messages are joined in a
+ * buffer allocated once, so reassembling does not allocate.
+ */
+public class MessageFragmenter
+{
+    private final int _maxMessageSize;
+    private byte[] _message;
+    private int _length = 0;
+    private long _overflowCount = 0;
+
+    /**
+     * @param maxMessageSize size above which an unterminated message is delivered as it is
+     */
+    public MessageFragmenter(int maxMessageSize)
+    {
+        this._maxMessageSize = maxMessageSize;
+        this._message = new byte[maxMessageSize];
+    }
+
+    /**
+     * @return the packets of the terminated message, a single one if it is shorter than payloadSize
+     */
+    public static List<byte[]> split(byte[] message, int payloadSize)
+    {
+        return split(message, payloadSize, true);
+    }
+
+    /**
+     * @param terminated true to end the message with a shorter packet, false to only cut it in packets of payloadSize
+     *                   bytes, the last one being full if the size of the message is a multiple of payloadSize
+     * @return the packets of the message, a single one if it fits in a packet
+     */
+    public static List<byte[]> split(byte[] message, int payloadSize, boolean terminated)
+    {
+        List<byte[]> packets = new ArrayList<byte[]>();
+        if (message.length < payloadSize || (!terminated && message.length == payloadSize))
+        {
+            packets.add(message);
+            return packets;
+        }
+        int offset = 0;
+        while (offset + payloadSize <= message.length)
+        {
+            packets.add(Arrays.copyOfRange(message, offset, offset + payloadSize));
+            offset += payloadSize;
+        }
+        if (terminated || offset < message.length)
+        {
+            packets.add(Arrays.copyOfRange(message, offset, message.length));
+        }
+        return packets;
+    }
+
+    /**
+     * Adds a received packet to the current message.
+     *
+     * @param payloadSize the largest payload of the link, MTU - 3
+     * @return the length of the message if the packet ends it, otherwise -1. The message is read from
+     *         {@link #getMessage()}
+     */
+    public int reassemble(byte[] packet, int payloadSize)
+    {
+        boolean last = packet.length < payloadSize;
+        int length = Math.min(packet.length, this._maxMessageSize - this._length);
+        System.arraycopy(packet, 0, this._message, this._length, length);
+        this._length += length;
+        if (!last && this._length < this._maxMessageSize)
+        {
+            return -1;
+        }
+        if (length < packet.length)
+        {
+            this._overflowCount++;
+        }
+        int messageLength = this._length;
+        this._length = 0;
+        return messageLength;
+    }
+
+    /*
+    The last message completed by reassemble, valid until its next call
+    */
+    public byte[] getMessage()
+    {
+        return this._message;
+    }
+
+    /*
+    Drops the message being received, when the connection is lost
+    */
+    public void reset()
+    {
+        this._length = 0;
+    }
+
+    /*
+    Number of bytes of the message being received
+    */
+    public int getPendingLength()
+    {
+        return this._length;
+    }
+
+    /*
+    Number of messages cut because they were larger than maxMessageSize
+    */
+    public long getOverflowCount()
+    {
+        return this._overflowCount;
+    }
+}
@@ -0,0 +1,443 @@
+package com.gmurru.bleframework;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer queue of inbound BLE packets.
+ *
+ * All the slots are carved once, when the buffer is created, out of a single direct buffer (the arena):
+ * the producer (the GATT callback thread) copies every notification into the next free slot and the
+ * consumer (the Unity thread) copies it out again, so no packet is ever overwritten before it has been
+ * read. When the consumer falls behind and every slot is in use the newest packet is dropped and counted
+ * as an overflow.
+ *
+ * The consumer can also read a packet in place: {@link #acquire()} returns a view of the oldest slot,
+ * which stays reserved until {@link #release()}. Apart from {@link #poll()} and {@link #drainAll()}, kept
+ * for the callers that need an array, nothing is allocated once the buffer exists.
+ *
+ * Every packet keeps the time it was received at, given by the producer on the elapsedRealtimeNanos clock,
+ * so the consumer can tell how old it is when it reads it.
+ */
+public class PacketRingBuffer
+{
+    /*
+    Default number of slots, about one second of notifications at 50 Hz
+    */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /*
+    Largest value an ATT attribute can hold, so a slot never has to truncate a notification
+    */
+    public static final int MAX_PACKET_SIZE = 512;
+
+    /*
+    Number of bytes used by drainAll() in front of every packet to store its length
+    */
+    public static final int LENGTH_PREFIX_SIZE = 2;
+
+    /*
+    Number of bytes used by drainTo() after the length of every packet to store its receive time
+    */
+    public static final int TIMESTAMP_SIZE = 8;
+
+    private final ByteBuffer _arena;
+    private final int _slotSize;
+    private final int[] _lengths;
+    private final long[] _timestamps;
+    private final int _mask;
+
+    /*
+    Views of the arena: _writeView is only used by the producer, _readView and _slots by the consumer
+    */
+    private final ByteBuffer _writeView;
+    private final ByteBuffer _readView;
+    private final ByteBuffer[] _slots;
+
+    /*
+    _head is only written by the consumer and _tail only by the producer. Each side publishes its
+    index with lazySet after touching the slot, which is enough ordering for a single reader and writer.
+    */
+    private final AtomicLong _head = new AtomicLong(0);
+    private final AtomicLong _tail = new AtomicLong(0);
+
+    /*
+    Index up to which clear() asked to drop the packets. Only grows, and is applied to _head by the consumer
+    the next time it reads the buffer, so _head keeps a single writer whatever the thread calling clear().
+    */
+    private final AtomicLong _clearedTail = new AtomicLong(0);
+
+    private final AtomicLong _receivedCount = new AtomicLong(0);
+    private final AtomicLong _overflowCount = new AtomicLong(0);
+    private final AtomicLong _truncatedCount = new AtomicLong(0);
+
+    public PacketRingBuffer()
+    {
+        this(DEFAULT_CAPACITY, MAX_PACKET_SIZE);
+    }
+
+    /**
+     * @param capacity number of slots, rounded up to the next power of two
+     * @param slotSize size in bytes of every slot, longer packets are truncated
+     */
+    public PacketRingBuffer(int capacity, int slotSize)
+    {
+        if (capacity <= 0 || slotSize <= 0)
+        {
+            throw new IllegalArgumentException("capacity and slotSize must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+        this._arena = ByteBuffer.allocateDirect(size * slotSize);
+        this._slotSize = slotSize;
+        this._lengths = new int[size];
+        this._timestamps = new long[size];
+        this._mask = size - 1;
+        this._writeView = this._arena.duplicate();
+        this._readView = this._arena.duplicate();
+        this._slots = new ByteBuffer[size];
+        for (int i = 0; i < size; i++)
+        {
+            ByteBuffer view = this._arena.duplicate();
+            view.position(i * slotSize);
+            view.limit((i + 1) * slotSize);
+            this._slots[i] = view.slice();
+        }
+    }
+
+    /**
+     * Copies a packet in the next free slot. Must only be called by the producer thread.
+     *
+     * @return false if the buffer was full and the packet has been dropped
+     */
+    public boolean offer(byte[] data)
+    {
+        if (data == null)
+        {
+            return false;
+        }
+        return offer(data, 0, data.length);
+    }
+
+    public boolean offer(byte[] data, int offset, int length)
+    {
+        return offer(data, offset, length, 0);
+    }
+
+    /**
+     * Copies a packet in the next free slot with the time it was received. Must only be called by the
+     * producer thread.
+     *
+     * @param timestampNanos receive time of the packet, on the elapsedRealtimeNanos clock
+     * @return false if the buffer was full and the packet has been dropped
+     */
+    public boolean offer(byte[] data, int offset, int length, long timestampNanos)
+    {
+        this._receivedCount.incrementAndGet();
+
+        long tail = this._tail.get();
+        if (tail - this._head.get() > this._mask)
+        {
+            this._overflowCount.incrementAndGet();
+            return false;
+        }
+
+        int index = (int) (tail & this._mask);
+        if (length > this._slotSize)
+        {
+            this._truncatedCount.incrementAndGet();
+            length = this._slotSize;
+        }
+        this._writeView.clear();
+        this._writeView.position(index * this._slotSize);
+        this._writeView.put(data, offset, length);
+        this._lengths[index] = length;
+        this._timestamps[index] = timestampNanos;
+        this._tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * @return the length of the oldest pending packet, -1 if the buffer is empty
+     */
+    public int peekLength()
+    {
+        long head = consumeHead();
+        if (head == this._tail.get())
+        {
+            return -1;
+        }
+        return this._lengths[(int) (head & this._mask)];
+    }
+
+    /**
+     * @return the receive time of the oldest pending packet, in nanoseconds, 0 if the buffer is empty or the
+     *         packet was offered without a time
+     */
+    public long peekTimestamp()
+    {
+        long head = consumeHead();
+        if (head == this._tail.get())
+        {
+            return 0;
+        }
+        return this._timestamps[(int) (head & this._mask)];
+    }
+
+    /**
+     * Removes the oldest pending packet. Must only be called by the consumer thread.
+     *
+     * @return a copy of the packet, null if the buffer is empty
+     */
+    public byte[] poll()
+    {
+        int length = peekLength();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] data = new byte[length];
+        poll(data, 0);
+        return data;
+    }
+
+    /**
+     * Copies the oldest pending packet in dst starting from offset and removes it from the buffer.
+     * Nothing is removed if dst is too small to hold it.
+     *
+     * @return the number of copied bytes, -1 if the buffer is empty or dst is too small
+     */
+    public int poll(byte[] dst, int offset)
+    {
+        long head = consumeHead();
+        if (head == this._tail.get())
+        {
+            return -1;
+        }
+        int index = (int) (head & this._mask);
+        int length = this._lengths[index];
+        if (dst.length - offset < length)
+        {
+            return -1;
+        }
+        selectSlot(index, length).get(dst, offset, length);
+        this._head.lazySet(head + 1);
+        return length;
+    }
+
+    /**
+     * Reserves the oldest pending packet for the consumer, which reads it in place. The packet stays in the
+     * buffer, and is returned again by the next calls, until {@link #release()}. Must only be called by the
+     * consumer thread.
+     *
+     * @return a view of the packet, from position 0 to its length, or null if the buffer is empty. The view
+     *         belongs to the slot and is reused: it is only valid until the release.
+     */
+    public ByteBuffer acquire()
+    {
+        long head = consumeHead();
+        if (head == this._tail.get())
+        {
+            return null;
+        }
+        int index = (int) (head & this._mask);
+        ByteBuffer slot = this._slots[index];
+        slot.clear();
+        slot.limit(this._lengths[index]);
+        return slot;
+    }
+
+    /**
+     * @return the offset in {@link #getArena()} of the oldest pending packet, -1 if the buffer is empty
+     */
+    public int peekOffset()
+    {
+        long head = consumeHead();
+        if (head == this._tail.get())
+        {
+            return -1;
+        }
+        return (int) (head & this._mask) * this._slotSize;
+    }
+
+    /**
+     * Frees the packet returned by {@link #acquire()}, its slot can be reused by the producer.
+     */
+    public void release()
+    {
+        long head = this._head.get();
+        if (head != this._tail.get())
+        {
+            this._head.lazySet(head + 1);
+        }
+        consumeHead();
+    }
+
+    /*
+    The direct buffer holding every slot, for the readers that access the memory directly like Unity through
+    GetDirectBufferAddress. Only the bytes between peekOffset() and peekOffset() + peekLength() are stable.
+    */
+    public ByteBuffer getArena()
+    {
+        return this._arena;
+    }
+
+    /*
+    Points _readView at the bytes of a slot
+    */
+    private ByteBuffer selectSlot(int index, int length)
+    {
+        this._readView.clear();
+        this._readView.position(index * this._slotSize);
+        this._readView.limit(index * this._slotSize + length);
+        return this._readView;
+    }
+
+    /**
+     * Removes every pending packet and returns them concatenated in a single array, each one preceded by
+     * its length as an unsigned big endian short.
+     *
+     * @return the packets, an empty array if the buffer is empty
+     */
+    public byte[] drainAll()
+    {
+        long head = consumeHead();
+        long tail = this._tail.get();
+
+        int totalLength = 0;
+        for (long i = head; i < tail; i++)
+        {
+            totalLength += LENGTH_PREFIX_SIZE + this._lengths[(int) (i & this._mask)];
+        }
+
+        byte[] data = new byte[totalLength];
+        int offset = 0;
+        for (long i = head; i < tail; i++)
+        {
+            int index = (int) (i & this._mask);
+            int length = this._lengths[index];
+            data[offset++] = (byte) (length >> 8);
+            data[offset++] = (byte) length;
+            selectSlot(index, length).get(data, offset, length);
+            offset += length;
+        }
+        this._head.lazySet(tail);
+        return data;
+    }
+
+    public int drainTo(ByteBuffer dst, byte[] tag)
+    {
+        return drainTo(dst, tag, 0, null);
+    }
+
+    /**
+     * Moves the pending packets in dst, each one written as the tag, its length as an unsigned short and its
+     * receive time as a long, both in the byte order of dst, then its bytes. Stops at the first packet that
+     * does not fit in the remaining space of dst, which stays in the buffer. Must only be called by the
+     * consumer thread.
+     *
+     * @param nowNanos time of the hand-off, on the clock of the receive times
+     * @param ages records the age at the hand-off of every moved packet with a receive time, null to skip it
+     * @return the number of moved packets
+     */
+    public int drainTo(ByteBuffer dst, byte[] tag, long nowNanos, LatencyHistogram ages)
+    {
+        long head = consumeHead();
+        long tail = this._tail.get();
+        int count = 0;
+        while (head < tail)
+        {
+            int index = (int) (head & this._mask);
+            int length = this._lengths[index];
+            if (dst.remaining() < tag.length + LENGTH_PREFIX_SIZE + TIMESTAMP_SIZE + length)
+            {
+                break;
+            }
+            long timestamp = this._timestamps[index];
+            dst.put(tag);
+            dst.putShort((short) length);
+            dst.putLong(timestamp);
+            dst.put(selectSlot(index, length));
+            if (ages != null && timestamp != 0)
+            {
+                ages.record(nowNanos - timestamp);
+            }
+            head++;
+            count++;
+        }
+        this._head.lazySet(head);
+        return count;
+    }
+
+    /**
+     * Removes every pending packet without reading it. Can be called from any thread: the packets are only
+     * marked as dropped, and the consumer frees their slots the next time it reads the buffer. A packet
+     * reserved by {@link #acquire()} stays valid until its release.
+     */
+    public void clear()
+    {
+        long tail = this._tail.get();
+        long cleared = this._clearedTail.get();
+        while (cleared < tail && !this._clearedTail.compareAndSet(cleared, tail))
+        {
+            cleared = this._clearedTail.get();
+        }
+    }
+
+    /*
+    Index of the oldest pending packet, after dropping the packets removed by clear(). Consumer thread only.
+    */
+    private long consumeHead()
+    {
+        long head = this._head.get();
+        long cleared = this._clearedTail.get();
+        if (cleared > head)
+        {
+            head = cleared;
+            this._head.lazySet(head);
+        }
+        return head;
+    }
+
+    public int size()
+    {
+        return (int) (this._tail.get() - Math.max(this._head.get(), this._clearedTail.get()));
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    public int capacity()
+    {
+        return this._lengths.length;
+    }
+
+    /*
+    Total number of packets offered by the producer, including the dropped ones
+    */
+    public long getReceivedCount()
+    {
+        return this._receivedCount.get();
+    }
+
+    /*
+    Number of packets dropped because the buffer was full
+    */
+    public long getOverflowCount()
+    {
+        return this._overflowCount.get();
+    }
+
+    /*
+    Number of packets that were longer than a slot and have been truncated
+    */
+    public long getTruncatedCount()
+    {
+        return this._truncatedCount.get();
+    }
+}
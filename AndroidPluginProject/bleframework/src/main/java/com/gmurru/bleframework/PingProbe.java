@@ -0,0 +1,134 @@
+package com.gmurru.bleframework;
+
+/**
+ * Measures the round trip time of a link with pings echoed by the peripheral.
+ *
+ * A ping is PACKET_SIZE bytes: MARKER, a sequence number and its complement, so its echo is told apart from the
+ * other packets of the peripheral. Arduino/RobotClient echoes the pings at once, a {@link SimulatedPeripheral} in
+ * echo mode echoes every write. A single ping is in flight at a time: the next one is only sent once the echo is
+ * back, or once the ping has timed out and been counted as lost, so the pings never pile up behind a slow link.
+ * The round trip, from the ping being queued to its echo reaching the GATT callback, is recorded in the
+ * {@link BleMetrics}. All the times are in nanoseconds on the elapsedRealtimeNanos clock.
+ *
+ * Thread safe: the pings are sent from the thread of the framework and the echoes arrive on the binder thread.
+ */
+public class PingProbe
+{
+    public static final int PACKET_SIZE = 3;
+    public static final byte MARKER = (byte) 0xec;
+    public static final long DEFAULT_TIMEOUT_NANOS = 2000000000L;
+
+    private final BleMetrics _metrics;
+    private final long _timeoutNanos;
+
+    /*
+    Ping in flight, guarded by the probe
+    */
+    private int _sequence = 0;
+    private boolean _pending = false;
+    private long _sentTime = 0;
+
+    private long _lastRoundTrip = -1;
+    private long _lostCount = 0;
+
+    public PingProbe(BleMetrics metrics)
+    {
+        this(metrics, DEFAULT_TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param metrics receives the round trips and the lost pings
+     * @param timeoutNanos delay after which a ping without echo is lost
+     */
+    public PingProbe(BleMetrics metrics, long timeoutNanos)
+    {
+        if (timeoutNanos <= 0)
+        {
+            throw new IllegalArgumentException("timeoutNanos must be positive");
+        }
+        this._metrics = metrics;
+        this._timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Writes the next ping, unless the previous one is still waiting for its echo.
+     *
+     * @param now current time
+     * @param packet array of at least PACKET_SIZE bytes
+     * @return PACKET_SIZE, or 0 if no ping has to be sent
+     */
+    public synchronized int nextPing(long now, byte[] packet)
+    {
+        if (this._pending)
+        {
+            if (now - this._sentTime < this._timeoutNanos)
+            {
+                return 0;
+            }
+            this._lostCount++;
+            this._metrics.onPingLost();
+        }
+        this._sequence = (this._sequence + 1) & 0xff;
+        packet[0] = MARKER;
+        packet[1] = (byte) this._sequence;
+        packet[2] = (byte) ~this._sequence;
+        this._pending = true;
+        this._sentTime = now;
+        return PACKET_SIZE;
+    }
+
+    /*
+    Forgets the ping returned by nextPing, when it could not be sent
+    */
+    public synchronized void cancel()
+    {
+        this._pending = false;
+    }
+
+    /**
+     * Records the round trip of the ping in flight if the packet is its echo.
+     *
+     * @param now receive time of the packet
+     * @return true if the packet is the echo of a ping, current or timed out, and must not be delivered
+     */
+    public boolean onPacket(byte[] data, int length, long now)
+    {
+        if (!isPing(data, length))
+        {
+            return false;
+        }
+        synchronized (this)
+        {
+            if (this._pending && data[1] == (byte) this._sequence)
+            {
+                this._pending = false;
+                this._lastRoundTrip = now - this._sentTime;
+                this._metrics.getRoundTrip().record(this._lastRoundTrip);
+            }
+        }
+        return true;
+    }
+
+    public static boolean isPing(byte[] data, int length)
+    {
+        return length == PACKET_SIZE && data[0] == MARKER && data[2] == (byte) ~data[1];
+    }
+
+    /*
+    Round trip of the latest echoed ping, -1 before the first echo
+    */
+    public synchronized long getLastRoundTripNanos()
+    {
+        return this._lastRoundTrip;
+    }
+
+    public synchronized long getLostCount()
+    {
+        return this._lostCount;
+    }
+
+    public synchronized boolean isPending()
+    {
+        return this._pending;
+    }
+}
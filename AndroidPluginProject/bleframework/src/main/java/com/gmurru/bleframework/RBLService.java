@@ -16,42 +16,59 @@
 
 package com.gmurru.bleframework;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.util.Log;
 
 /**
- * Service for managing connection and data communication with a GATT server
- * hosted on a given Bluetooth LE device.
+ * Service for managing connections and data communication with the GATT
+ * servers hosted on several Bluetooth LE devices. Every device has its own
+ * {@link GattConnection}, and the events of all of them are reported through
+ * a single {@link Listener}.
  */
-public class RBLService extends Service {
+public class RBLService extends Service implements GattConnection.Callback {
 	private final static String TAG = RBLService.class.getSimpleName();
 
+	/**
+	 * Maximum number of simultaneous connections. Android refuses new GATT
+	 * clients above this limit.
+	 */
+	public final static int MAX_CONNECTIONS = 7;
+
 	private BluetoothManager mBluetoothManager;
 	private BluetoothAdapter mBluetoothAdapter;
-	private String mBluetoothDeviceAddress;
-	private BluetoothGatt mBluetoothGatt;
+	private volatile BleTransport mTransport;
+	private final ConcurrentHashMap<String, GattConnection> mConnections = new ConcurrentHashMap<String, GattConnection>();
 
 	public final static String ACTION_GATT_CONNECTED = "ACTION_GATT_CONNECTED";
 	public final static String ACTION_GATT_DISCONNECTED = "ACTION_GATT_DISCONNECTED";
 	public final static String ACTION_GATT_SERVICES_DISCOVERED = "ACTION_GATT_SERVICES_DISCOVERED";
 	public final static String ACTION_GATT_RSSI = "ACTION_GATT_RSSI";
+	public final static String ACTION_GATT_MTU_CHANGED = "ACTION_GATT_MTU_CHANGED";
+	public final static String ACTION_GATT_RECONNECTING = "ACTION_GATT_RECONNECTING";
 	public final static String ACTION_DATA_AVAILABLE = "ACTION_DATA_AVAILABLE";
+	public final static String ACTION_GATT_NOTIFICATION = "ACTION_GATT_NOTIFICATION";
+	public final static String ACTION_GATT_ATTRIBUTE_READ = "ACTION_GATT_ATTRIBUTE_READ";
 	public final static String EXTRA_DATA = "EXTRA_DATA";
+	public final static String EXTRA_ADDRESS = "EXTRA_ADDRESS";
+	public final static String EXTRA_DELAY = "EXTRA_DELAY";
+	public final static String EXTRA_CHANNEL = "EXTRA_CHANNEL";
+	public final static String EXTRA_CHARACTERISTIC = "EXTRA_CHARACTERISTIC";
+	public final static String EXTRA_DESCRIPTOR = "EXTRA_DESCRIPTOR";
+	public final static String EXTRA_STATUS = "EXTRA_STATUS";
 
 	public final static UUID UUID_BLE_SHIELD_TX = UUID
 			.fromString(RBLGattAttributes.BLE_SHIELD_TX);
@@ -59,88 +76,320 @@ public class RBLService extends Service {
 			.fromString(RBLGattAttributes.BLE_SHIELD_RX);
 	public final static UUID UUID_BLE_SHIELD_SERVICE = UUID
 			.fromString(RBLGattAttributes.BLE_SHIELD_SERVICE);
+	public final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIG = UUID
+			.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
 
-	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
-		{
-			if (newState == 2)
-			{
-				String intentAction = "ACTION_GATT_CONNECTED";
-				RBLService.this.broadcastUpdate(intentAction);
-				Log.i(RBLService.TAG, "Connected to GATT server.");
+	/**
+	 * Receives the GATT events of all the connections directly, without going
+	 * through {@code sendBroadcast}. The methods are called on the thread of
+	 * the {@code Looper} given to
+	 * {@link LocalBinder#setListener(Listener, Looper)}.
+	 */
+	public interface Listener {
+		void onGattConnected(String address);
+
+		void onGattDisconnected(String address);
+
+		void onServicesDiscovered(String address);
+
+		/**
+		 * A new packet has been queued in the receive buffer of the
+		 * connection.
+		 */
+		void onDataAvailable(String address);
+
+		void onRssiRead(String address, int rssi);
+
+		/**
+		 * The MTU exchange started after the service discovery completed.
+		 */
+		void onMtuChanged(String address, int mtu);
+
+		/**
+		 * The link has been lost and the device will be reconnected after
+		 * delayMs. Followed by {@link #onGattConnected(String)} once it is
+		 * back, or by {@link #onGattDisconnected(String)} if the reconnection
+		 * policy gives up.
+		 */
+		void onReconnecting(String address, int attempt, long delayMs);
+
+		/**
+		 * A new packet has been queued in a subscription channel of the
+		 * connection.
+		 */
+		void onNotification(String address, int channel);
+
+		/**
+		 * The result of a read of a characteristic without subscription, or
+		 * of a descriptor.
+		 * 
+		 * @param descriptor
+		 *            The descriptor read, null for a characteristic.
+		 * @param value
+		 *            A copy of the value, null if the read failed.
+		 */
+		void onAttributeRead(String address, UUID characteristic, UUID descriptor, byte[] value, int status);
+	}
 
-				Log.i(RBLService.TAG, "Attempting to start service discovery:" +
-						RBLService.this.mBluetoothGatt.discoverServices());
-			}
-			else if (newState == 0)
-			{
-				String intentAction = "ACTION_GATT_DISCONNECTED";
-				Log.i(RBLService.TAG, "Disconnected from GATT server.");
-				RBLService.this.broadcastUpdate(intentAction);
-			}
+	/*
+	 * Result of a read, carried by a MSG_ATTRIBUTE_READ message.
+	 */
+	private static class AttributeRead {
+		final String mAddress;
+		final UUID mCharacteristic;
+		final UUID mDescriptor;
+		final byte[] mValue;
+
+		AttributeRead(String address, UUID characteristic, UUID descriptor, byte[] value) {
+			this.mAddress = address;
+			this.mCharacteristic = characteristic;
+			this.mDescriptor = descriptor;
+			this.mValue = value;
 		}
+	}
 
-		public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status)
-		{
-			if (status == 0) {
-				RBLService.this.broadcastUpdate("ACTION_GATT_RSSI", rssi);
-			} else {
-				Log.w(RBLService.TAG, "onReadRemoteRssi received: " + status);
-			}
+	private static final int MSG_GATT_CONNECTED = 1;
+	private static final int MSG_GATT_DISCONNECTED = 2;
+	private static final int MSG_GATT_SERVICES_DISCOVERED = 3;
+	private static final int MSG_DATA_AVAILABLE = 4;
+	private static final int MSG_GATT_RSSI = 5;
+	private static final int MSG_GATT_MTU = 6;
+	private static final int MSG_GATT_RECONNECTING = 7;
+	private static final int MSG_NOTIFICATION = 8;
+	private static final int MSG_ATTRIBUTE_READ = 9;
+
+	private volatile Handler mListenerHandler;
+	private volatile boolean mBroadcastEnabled = false;
+
+	/*
+	 * Settings applied to the operation queue of every new connection.
+	 */
+	private volatile GattOperationQueue.OverflowPolicy mWriteQueuePolicy = GattOperationQueue.OverflowPolicy.DROP_OLDEST;
+	private volatile int mWriteQueueCapacity = GattOperationQueue.DEFAULT_CAPACITY;
+	private volatile Executor mDispatcher;
+	private volatile long mOperationTimeoutMs = GattOperationQueue.DEFAULT_TIMEOUT_MS;
+	private volatile GattOperationQueue.TimeoutScheduler mTimeoutScheduler;
+	private volatile int mRequestedMtu = BleTransport.MAX_MTU;
+	private volatile boolean mReassemblyEnabled = false;
+	private volatile boolean mFramingEnabled = false;
+	private volatile int mConnectionPriority = BleTransport.CONNECTION_PRIORITY_BALANCED;
+	private volatile ReconnectPolicy mReconnectPolicy;
+	private volatile GattConnection.ReconnectScheduler mReconnectScheduler;
+	private volatile DiscoveryCache mDiscoveryCache;
+	private volatile BleMetrics mMetrics = new BleMetrics();
+
+	/*
+	 * Every update goes through exactly one path: the broadcasts in
+	 * compatibility mode or when nobody registered a listener, the listener
+	 * otherwise. A client listening to both never gets an update twice.
+	 */
+	private boolean isBroadcastEnabled() {
+		return this.mBroadcastEnabled || this.mListenerHandler == null;
+	}
+
+	private void notifyListener(int what, int arg, String address) {
+		notifyListener(what, arg, 0, address);
+	}
+
+	private void notifyListener(int what, int arg1, int arg2, Object obj) {
+		Handler handler = this.mListenerHandler;
+		if (handler != null && !this.mBroadcastEnabled) {
+			postToListener(handler, what, arg1, arg2, obj);
 		}
+	}
 
-		@Override
-		public void onServicesDiscovered(BluetoothGatt gatt, int status)
-		{
-			if (status == 0) {
-				RBLService.this.broadcastUpdate("ACTION_GATT_SERVICES_DISCOVERED");
-			} else {
-				Log.w(RBLService.TAG, "onServicesDiscovered received: " + status);
-			}
+	/*
+	 * Hands a message to the thread of the listener
+	 */
+	void postToListener(Handler handler, int what, int arg1, int arg2, Object obj) {
+		handler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+	}
+
+	private void dispatchUpdate(int what, final String action, final String address) {
+		notifyListener(what, 0, address);
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(action);
+			intent.putExtra(EXTRA_ADDRESS, address);
+			sendBroadcast(intent);
 		}
+	}
 
-		@Override
-		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
-		{
-			if (status == 0) {
-				RBLService.this.broadcastUpdate("ACTION_DATA_AVAILABLE", characteristic);
-			}
+	@Override
+	public void onConnectionStateChange(GattConnection connection, boolean connected) {
+		if (connected) {
+			dispatchUpdate(MSG_GATT_CONNECTED, ACTION_GATT_CONNECTED, connection.getAddress());
+		} else {
+			dispatchUpdate(MSG_GATT_DISCONNECTED, ACTION_GATT_DISCONNECTED, connection.getAddress());
 		}
+	}
 
-		@Override
-		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
-		{
-			RBLService.this.broadcastUpdate("ACTION_DATA_AVAILABLE", characteristic);
+	@Override
+	public void onServicesDiscovered(GattConnection connection) {
+		/* The priority can only be requested once connected */
+		int priority = this.mConnectionPriority;
+		if (priority != BleTransport.CONNECTION_PRIORITY_BALANCED) {
+			connection.requestConnectionPriority(priority);
 		}
-	};
+		dispatchUpdate(MSG_GATT_SERVICES_DISCOVERED, ACTION_GATT_SERVICES_DISCOVERED, connection.getAddress());
+	}
 
-	private void broadcastUpdate(final String action) {
-		Intent intent = new Intent(action);
-		sendBroadcast(intent);
+	@Override
+	public void onRssiRead(GattConnection connection, int rssi) {
+		notifyListener(MSG_GATT_RSSI, rssi, connection.getAddress());
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(ACTION_GATT_RSSI);
+			intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+			intent.putExtra(EXTRA_DATA, String.valueOf(rssi));
+			sendBroadcast(intent);
+		}
 	}
 
-	private void broadcastUpdate(final String action, int rssi) {
-		Intent intent = new Intent(action);
-		intent.putExtra("EXTRA_DATA", String.valueOf(rssi));
-		sendBroadcast(intent);
+	@Override
+	public void onMtuChanged(GattConnection connection, int mtu) {
+		notifyListener(MSG_GATT_MTU, mtu, connection.getAddress());
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(ACTION_GATT_MTU_CHANGED);
+			intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+			intent.putExtra(EXTRA_DATA, String.valueOf(mtu));
+			sendBroadcast(intent);
+		}
 	}
 
-	private void broadcastUpdate(final String action,
-			final BluetoothGattCharacteristic characteristic) {
-		Intent intent = new Intent(action);
-		if (UUID_BLE_SHIELD_RX.equals(characteristic.getUuid()))
-		{
-			byte[] rx = characteristic.getValue();
-			intent.putExtra("EXTRA_DATA", rx);
+	/*
+	 * The delay travels in arg2 of the message, as int milliseconds: the
+	 * policies never wait more than a few seconds.
+	 */
+	@Override
+	public void onReconnecting(GattConnection connection, int attempt, long delayMs) {
+		notifyListener(MSG_GATT_RECONNECTING, attempt, (int) Math.min(delayMs, Integer.MAX_VALUE),
+				connection.getAddress());
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(ACTION_GATT_RECONNECTING);
+			intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+			intent.putExtra(EXTRA_DATA, String.valueOf(attempt));
+			intent.putExtra(EXTRA_DELAY, String.valueOf(delayMs));
+			sendBroadcast(intent);
+		}
+	}
+
+	/*
+	 * Only the bytes are queued in the receive buffer of the connection: the
+	 * listener just receives a signal that new data is available. The
+	 * compatibility broadcast carries a copy of the value in EXTRA_DATA.
+	 */
+	@Override
+	public void onDataAvailable(GattConnection connection, byte[] value, int length) {
+		this.mMetrics.onPacketReceived(length);
+		notifyListener(MSG_DATA_AVAILABLE, nowMicros(), connection.getAddress());
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+			intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+			intent.putExtra(EXTRA_DATA, Arrays.copyOf(value, length));
+			sendBroadcast(intent);
+		}
+	}
+
+	/*
+	 * Like the RX data, the packets of the subscriptions stay in their
+	 * channel: the listener is only given the channel number.
+	 */
+	@Override
+	public void onNotification(GattConnection connection, GattSubscription subscription, byte[] value, int length) {
+		this.mMetrics.onPacketReceived(length);
+		notifyListener(MSG_NOTIFICATION, subscription.getChannel(), nowMicros(), connection.getAddress());
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(ACTION_GATT_NOTIFICATION);
+			intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+			intent.putExtra(EXTRA_CHANNEL, subscription.getChannel());
+			intent.putExtra(EXTRA_DATA, Arrays.copyOf(value, length));
+			sendBroadcast(intent);
+		}
+	}
+
+	@Override
+	public void onAttributeRead(GattConnection connection, UUID characteristic, UUID descriptor, byte[] value,
+			int status) {
+		byte[] copy = value == null ? null : value.clone();
+		notifyListener(MSG_ATTRIBUTE_READ, status, 0,
+				new AttributeRead(connection.getAddress(), characteristic, descriptor, copy));
+		if (isBroadcastEnabled()) {
+			Intent intent = new Intent(ACTION_GATT_ATTRIBUTE_READ);
+			intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+			intent.putExtra(EXTRA_CHARACTERISTIC, characteristic.toString());
+			if (descriptor != null) {
+				intent.putExtra(EXTRA_DESCRIPTOR, descriptor.toString());
+			}
+			intent.putExtra(EXTRA_STATUS, status);
+			intent.putExtra(EXTRA_DATA, copy);
+			sendBroadcast(intent);
 		}
-		sendBroadcast(intent);
 	}
 
 	public class LocalBinder extends Binder {
 		RBLService getService() {
 			return RBLService.this;
 		}
+
+		/**
+		 * Registers the listener that receives the GATT events in process.
+		 * While a listener is registered the broadcasts are only sent if
+		 * enabled with {@link RBLService#setBroadcastEnabled(boolean)}, and
+		 * then replace the listener.
+		 * 
+		 * @param listener
+		 *            The listener, or null to remove the current one.
+		 * @param looper
+		 *            The looper of the thread on which the listener is called.
+		 */
+		public void setListener(final Listener listener, Looper looper) {
+			if (listener == null) {
+				RBLService.this.mListenerHandler = null;
+				return;
+			}
+			RBLService.this.mListenerHandler = new Handler(looper, new Handler.Callback() {
+				@Override
+				public boolean handleMessage(Message msg) {
+					if (msg.what == MSG_ATTRIBUTE_READ) {
+						AttributeRead read = (AttributeRead) msg.obj;
+						listener.onAttributeRead(read.mAddress, read.mCharacteristic, read.mDescriptor, read.mValue,
+								msg.arg1);
+						return true;
+					}
+					String address = (String) msg.obj;
+					switch (msg.what) {
+					case MSG_GATT_CONNECTED:
+						listener.onGattConnected(address);
+						break;
+					case MSG_GATT_DISCONNECTED:
+						listener.onGattDisconnected(address);
+						break;
+					case MSG_GATT_SERVICES_DISCOVERED:
+						listener.onServicesDiscovered(address);
+						break;
+					case MSG_DATA_AVAILABLE:
+						listener.onDataAvailable(address);
+						RBLService.this.recordDelivery(msg.arg1);
+						break;
+					case MSG_GATT_RSSI:
+						listener.onRssiRead(address, msg.arg1);
+						break;
+					case MSG_GATT_MTU:
+						listener.onMtuChanged(address, msg.arg1);
+						break;
+					case MSG_GATT_RECONNECTING:
+						listener.onReconnecting(address, msg.arg1, msg.arg2);
+						break;
+					case MSG_NOTIFICATION:
+						listener.onNotification(address, msg.arg1);
+						RBLService.this.recordDelivery(msg.arg2);
+						break;
+					default:
+						return false;
+					}
+					return true;
+				}
+			});
+		}
 	}
 
 	@Override
@@ -162,11 +411,197 @@ public class RBLService extends Service {
 	private final IBinder mBinder = new LocalBinder();
 
 	/**
-	 * Initializes a reference to the local Bluetooth adapter.
+	 * Sends the {@code ACTION_GATT_*} broadcasts even while a listener is
+	 * registered, for the receivers that still rely on them. The listener is
+	 * then no longer called, so that every update is delivered once.
+	 * 
+	 * @param enabled
+	 *            If true, send the broadcasts. False otherwise.
+	 */
+	public void setBroadcastEnabled(boolean enabled) {
+		this.mBroadcastEnabled = enabled;
+	}
+
+	/**
+	 * Sets the thread the GATT operations of every current and future
+	 * connection are started on.
+	 */
+	public void setDispatcher(Executor dispatcher) {
+		this.mDispatcher = dispatcher;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.getOperationQueue().setDispatcher(dispatcher);
+		}
+	}
+
+	/**
+	 * Sets how long a GATT operation of every current and future connection
+	 * may wait for its callback before it is given up, see
+	 * {@link GattOperationQueue#setTimeout}.
+	 * 
+	 * @param scheduler
+	 *            Runs the timeouts, null to never time out.
+	 */
+	public void setOperationTimeout(long timeoutMs, GattOperationQueue.TimeoutScheduler scheduler) {
+		this.mOperationTimeoutMs = timeoutMs;
+		this.mTimeoutScheduler = scheduler;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.getOperationQueue().setTimeout(timeoutMs, scheduler);
+		}
+	}
+
+	/**
+	 * Sets the overflow policy and capacity of the operation queue of every
+	 * current and future connection.
+	 */
+	public void setWriteQueueSettings(GattOperationQueue.OverflowPolicy policy, int capacity) {
+		this.mWriteQueuePolicy = policy;
+		this.mWriteQueueCapacity = capacity;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.getOperationQueue().setOverflowPolicy(policy);
+			connection.getOperationQueue().setCapacity(capacity);
+		}
+	}
+
+	/**
+	 * Sets the MTU requested by the new connections once their services are
+	 * discovered, and whether they follow the {@link MessageFragmenter}
+	 * convention, see {@link GattConnection#setReassemblyEnabled}. The
+	 * connections already established keep their MTU.
+	 * 
+	 * @param mtu
+	 *            The MTU to request, {@link BleTransport#DEFAULT_MTU} to keep
+	 *            the default one.
+	 */
+	public void setMtuSettings(int mtu, boolean reassemblyEnabled) {
+		this.mRequestedMtu = mtu;
+		this.mReassemblyEnabled = reassemblyEnabled;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.setReassemblyEnabled(reassemblyEnabled);
+		}
+	}
+
+	/**
+	 * Enables the {@link FrameCodec} framing of the messages for every
+	 * current and future connection.
+	 */
+	public void setFramingEnabled(boolean enabled) {
+		this.mFramingEnabled = enabled;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.setFramingEnabled(enabled);
+		}
+	}
+
+	/**
+	 * Requests a connection priority for every connected device, and for the
+	 * devices connected later.
+	 * 
+	 * @param priority
+	 *            One of the {@link BleTransport} CONNECTION_PRIORITY_* values.
+	 */
+	public void setConnectionPriority(int priority) {
+		this.mConnectionPriority = priority;
+		for (GattConnection connection : this.mConnections.values()) {
+			if (connection.getState() == ConnectionState.READY) {
+				connection.requestConnectionPriority(priority);
+			}
+		}
+	}
+
+	/**
+	 * Requests a connection priority for a single connected device.
+	 * 
+	 * @return Return false if the device is not connected or the request has
+	 *         been refused.
+	 */
+	public boolean setConnectionPriority(String address, int priority) {
+		GattConnection connection = getConnection(address);
+		if (connection == null || connection.getState() != ConnectionState.READY) {
+			Log.w(TAG, "Connection priority requested for an unconnected device");
+			return false;
+		}
+		return connection.requestConnectionPriority(priority);
+	}
+
+	/**
+	 * Sets how every current and future connection is reconnected when its
+	 * link is lost.
+	 * 
+	 * @param policy
+	 *            The policy, or null to disable the reconnection.
+	 * @param scheduler
+	 *            Runs the attempts after their delay.
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy, GattConnection.ReconnectScheduler scheduler) {
+		this.mReconnectPolicy = policy;
+		this.mReconnectScheduler = scheduler;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.setReconnectPolicy(policy, scheduler);
+		}
+	}
+
+	/**
+	 * Sets the cache of the service layouts shared by every current and
+	 * future connection. The cache is owned by the caller and can outlive
+	 * the service.
+	 * 
+	 * @param cache
+	 *            The cache, or null to discover the services of every
+	 *            session.
+	 */
+	public void setDiscoveryCache(DiscoveryCache cache) {
+		this.mDiscoveryCache = cache;
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.setDiscoveryCache(cache);
+		}
+	}
+
+	/**
+	 * Sets the counters of the received packets and of their delivery
+	 * latency. The counters are owned by the caller and can outlive the
+	 * service.
+	 */
+	public void setMetrics(BleMetrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	public BleMetrics getMetrics() {
+		return this.mMetrics;
+	}
+
+	/*
+	 * Time of a notification, carried in an argument of the listener message.
+	 * Microseconds on 32 bits wrap after an hour, the difference of two of
+	 * them is right as long as the message is delivered within half of it.
+	 */
+	private static int nowMicros() {
+		return (int) (System.nanoTime() / 1000);
+	}
+
+	private void recordDelivery(int receivedMicros) {
+		this.mMetrics.getDeliveryLatency().record((nowMicros() - receivedMicros) * 1000L);
+	}
+
+	/**
+	 * Sets the transport used by the new connections. Must be called before
+	 * {@link #initialize()} to replace the Android Bluetooth stack.
+	 */
+	public void setTransport(BleTransport transport) {
+		this.mTransport = transport;
+	}
+
+	/**
+	 * Initializes a reference to the local Bluetooth adapter, and the
+	 * transport on top of it if none has been set. A transport already set
+	 * brings its own radio, or none when it replays a session, so the adapter
+	 * is not required.
 	 * 
 	 * @return Return true if the initialization is successful.
 	 */
 	public boolean initialize() {
+		if (this.mTransport != null)
+		{
+			return true;
+		}
 		if (this.mBluetoothManager == null)
 		{
 			this.mBluetoothManager = ((BluetoothManager)getSystemService("bluetooth"));
@@ -182,158 +617,120 @@ public class RBLService extends Service {
 			Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
 			return false;
 		}
+		this.mTransport = new AndroidBleTransport(this, this.mBluetoothAdapter);
 		return true;
 	}
 
 	/**
-	 * Connects to the GATT server hosted on the Bluetooth LE device.
+	 * Connects to the GATT server hosted on the Bluetooth LE device. The
+	 * existing connections to other devices are kept.
 	 * 
 	 * @param address
 	 *            The device address of the destination device.
 	 * 
 	 * @return Return true if the connection is initiated successfully. The
 	 *         connection result is reported asynchronously through the
-	 *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-	 *         callback.
+	 *         {@link Listener}. Return false if {@link #MAX_CONNECTIONS}
+	 *         devices are already connected.
 	 */
 	public boolean connect(final String address) {
-		if ((this.mBluetoothAdapter == null) || (address == null))
+		if ((this.mTransport == null) || (address == null))
 		{
 			Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
 
 			return false;
 		}
-		if ((this.mBluetoothDeviceAddress != null) &&
-				(address.equals(this.mBluetoothDeviceAddress)) && (this.mBluetoothGatt != null))
+		GattConnection connection = this.mConnections.get(address);
+		if (connection == null)
 		{
-			Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-			if (this.mBluetoothGatt.connect()) {
-				return true;
+			if (this.mConnections.size() >= MAX_CONNECTIONS)
+			{
+				Log.w(TAG, "Too many connections. Unable to connect.");
+				return false;
+			}
+			GattConnection newConnection = new GattConnection(this.mTransport, address, this);
+			newConnection.getOperationQueue().setOverflowPolicy(this.mWriteQueuePolicy);
+			newConnection.getOperationQueue().setCapacity(this.mWriteQueueCapacity);
+			newConnection.getOperationQueue().setDispatcher(this.mDispatcher);
+			newConnection.getOperationQueue().setTimeout(this.mOperationTimeoutMs, this.mTimeoutScheduler);
+			newConnection.setRequestedMtu(this.mRequestedMtu);
+			newConnection.setReassemblyEnabled(this.mReassemblyEnabled);
+			newConnection.setFramingEnabled(this.mFramingEnabled);
+			newConnection.setReconnectPolicy(this.mReconnectPolicy, this.mReconnectScheduler);
+			newConnection.setDiscoveryCache(this.mDiscoveryCache);
+			connection = this.mConnections.putIfAbsent(address, newConnection);
+			if (connection == null) {
+				connection = newConnection;
 			}
-			return false;
 		}
-		BluetoothDevice device = this.mBluetoothAdapter.getRemoteDevice(address);
-		if (device == null)
+		if (!connection.connect())
 		{
-			Log.w(TAG, "Device not found.  Unable to connect.");
+			if (connection.getState() == ConnectionState.IDLE)
+			{
+				this.mConnections.remove(address, connection);
+			}
 			return false;
 		}
-		this.mBluetoothGatt = device.connectGatt(this, false, this.mGattCallback);
-		Log.d(TAG, "Trying to create a new connection.");
-		this.mBluetoothDeviceAddress = address;
-
 		return true;
 	}
 
 	/**
-	 * Disconnects an existing connection or cancel a pending connection. The
-	 * disconnection result is reported asynchronously through the
-	 * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-	 * callback.
+	 * @return The connection to the device, or null if
+	 *         {@link #connect(String)} has not been called for it.
 	 */
-	public void disconnect() {
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null))
-		{
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
+	public GattConnection getConnection(String address) {
+		if (address == null) {
+			return null;
 		}
-		this.mBluetoothGatt.disconnect();
+		return this.mConnections.get(address);
 	}
 
-	/**
-	 * After using a given BLE device, the app must call this method to ensure
-	 * resources are released properly.
-	 */
-	public void close() {
-		if (this.mBluetoothGatt == null) {
-			return;
-		}
-		this.mBluetoothGatt.close();
-		this.mBluetoothGatt = null;
+	public Collection<GattConnection> getConnections() {
+		return this.mConnections.values();
 	}
 
 	/**
-	 * Request a read on a given {@code BluetoothGattCharacteristic}. The read
-	 * result is reported asynchronously through the
-	 * {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-	 * callback.
-	 * 
-	 * @param characteristic
-	 *            The characteristic to read from.
+	 * Disconnects an existing connection or cancel a pending connection. The
+	 * disconnection result is reported asynchronously through the
+	 * {@link Listener}.
 	 */
-	public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null))
-		{
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-		boolean status = this.mBluetoothGatt.readCharacteristic(characteristic);
-		Log.d("readCharacteristic", "BluetoothAdapter not initialized" + status);
-	}
-
-	public void readRssi() {
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null))
+	public void disconnect(String address) {
+		GattConnection connection = getConnection(address);
+		if ((this.mTransport == null) || (connection == null))
 		{
-			Log.w(TAG, "BluetoothAdapter not initialized");
+			Log.w(TAG, "BluetoothAdapter not initialized or unknown device");
 			return;
 		}
-		this.mBluetoothGatt.readRemoteRssi();
+		connection.disconnect();
 	}
 
-	public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null))
-		{
-			Log.e(TAG, "BluetoothAdapter or BluetoothGatt was not initialized");
-			return false;
+	/**
+	 * Disconnects all the devices.
+	 */
+	public void disconnect() {
+		for (GattConnection connection : this.mConnections.values()) {
+			connection.disconnect();
 		}
-
-		Log.d(TAG, "Writing characteristic...");
-		return this.mBluetoothGatt.writeCharacteristic(characteristic);
 	}
 
 	/**
-	 * Enables or disables notification on a give characteristic.
-	 * 
-	 * @param characteristic
-	 *            Characteristic to act on.
-	 * @param enabled
-	 *            If true, enable notification. False otherwise.
+	 * After using a given BLE device, the app must call this method to ensure
+	 * resources are released properly.
 	 */
-	public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled)
-	{
-		if ((this.mBluetoothAdapter == null) || (this.mBluetoothGatt == null))
-		{
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
+	public void close(String address) {
+		GattConnection connection = this.mConnections.remove(address);
+		if (connection != null) {
+			connection.close();
+			this.mMetrics.retire(connection);
 		}
-
-		this.mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-		if (UUID_BLE_SHIELD_RX.equals(characteristic.getUuid()))
-		{
-			for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
-				Log.e("setCharacteristic", "BluetoothGattDescriptor: " + descriptor.getUuid().toString());
-			}
-			BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-
-			Log.d(TAG, descriptor.getUuid().toString());
-			this.mBluetoothGatt.writeDescriptor(descriptor);
-			return;
-		}
-
-		Log.d(TAG, "Could not find characteristic UUID");
 	}
 
 	/**
-	 * Retrieves a list of supported GATT services on the connected device. This
-	 * should be invoked only after {@code BluetoothGatt#discoverServices()}
-	 * completes successfully.
-	 * 
-	 * @return A {@code List} of supported services.
+	 * Releases the resources of all the devices.
 	 */
-	public BluetoothGattService getSupportedGattService() {
-			if (this.mBluetoothGatt == null) {
-				return null;
-			}
-			return this.mBluetoothGatt.getService(UUID_BLE_SHIELD_SERVICE);
+	public void close() {
+		for (String address : this.mConnections.keySet()) {
+			close(address);
+		}
 	}
-}
\ No newline at end of file
+}
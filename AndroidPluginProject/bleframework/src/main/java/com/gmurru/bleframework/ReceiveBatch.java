@@ -0,0 +1,158 @@
+package com.gmurru.bleframework;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Direct buffer shared with Unity, filled once per frame with every packet received since the previous frame.
+ *
+ * The buffer is allocated once, in native byte order, so Unity can read it in place through
+ * {@code GetDirectBufferAddress} or copy it with a single call. Layout, all integers in native byte order:
+ *
+ * <pre>
+ * header:  int sequence | int packetCount | int payloadSize | int overflowCount | long flushTime
+ * record:  byte[6] device address | unsigned short length | long receiveTime | byte[length] data
+ * </pre>
+ *
+ * payloadSize is the number of record bytes following the header. sequence is incremented on every flush,
+ * so Unity can tell a new batch from the one it already read. overflowCount is the total number of packets
+ * dropped by the receive buffers since the connections were opened. The times are in nanoseconds on the
+ * elapsedRealtimeNanos clock: receiveTime is taken in the GATT callback and flushTime when the batch is
+ * handed to Unity, so flushTime - receiveTime is the age of a packet when Unity gets it.
+ */
+public class ReceiveBatch
+{
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final int HEADER_SIZE = 24;
+    public static final int ADDRESS_SIZE = 6;
+    public static final int RECORD_HEADER_SIZE = ADDRESS_SIZE + PacketRingBuffer.LENGTH_PREFIX_SIZE
+            + PacketRingBuffer.TIMESTAMP_SIZE;
+
+    private final ByteBuffer _buffer;
+    private int _sequence = 0;
+    private int _packetCount = 0;
+    private long _overflowCount = 0;
+    private long _flushTime = 0;
+
+    public ReceiveBatch()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReceiveBatch(int capacity)
+    {
+        this._buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        this._buffer.position(HEADER_SIZE);
+        end();
+    }
+
+    public void begin()
+    {
+        begin(0);
+    }
+
+    /**
+     * Starts a new batch, discarding the previous one.
+     *
+     * @param flushTime time of the hand-off to Unity, in nanoseconds on the elapsedRealtimeNanos clock
+     */
+    public void begin(long flushTime)
+    {
+        this._sequence++;
+        this._flushTime = flushTime;
+        this._packetCount = 0;
+        this._overflowCount = 0;
+        this._buffer.clear();
+        this._buffer.position(HEADER_SIZE);
+    }
+
+    public int add(PacketRingBuffer source, byte[] address)
+    {
+        return add(source, address, null);
+    }
+
+    /**
+     * Moves the pending packets of a device in the batch. The packets that do not fit stay in the source
+     * and will be part of a later batch.
+     *
+     * @param address the 6 bytes of the device address, see {@link #parseAddress(String)}
+     * @param ages records the age of every added packet at the flush time, null to skip it
+     * @return the number of added packets
+     */
+    public int add(PacketRingBuffer source, byte[] address, LatencyHistogram ages)
+    {
+        int count = source.drainTo(this._buffer, address, this._flushTime, ages);
+        this._packetCount += count;
+        this._overflowCount += source.getOverflowCount();
+        return count;
+    }
+
+    /**
+     * Writes the header of the batch.
+     *
+     * @return the number of packets in the batch
+     */
+    public int end()
+    {
+        int payloadSize = this._buffer.position() - HEADER_SIZE;
+        this._buffer.putInt(0, this._sequence);
+        this._buffer.putInt(4, this._packetCount);
+        this._buffer.putInt(8, payloadSize);
+        this._buffer.putInt(12, (int) this._overflowCount);
+        this._buffer.putLong(16, this._flushTime);
+        return this._packetCount;
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        return this._buffer;
+    }
+
+    public int getSequence()
+    {
+        return this._sequence;
+    }
+
+    public long getFlushTime()
+    {
+        return this._flushTime;
+    }
+
+    public int getPacketCount()
+    {
+        return this._packetCount;
+    }
+
+    /*
+    Size of the batch, header included
+    */
+    public int size()
+    {
+        return HEADER_SIZE + this._buffer.getInt(8);
+    }
+
+    /*
+    Copy of the batch, header included, for the callers that can not read the direct buffer
+    */
+    public byte[] toByteArray()
+    {
+        byte[] data = new byte[size()];
+        ByteBuffer view = this._buffer.duplicate();
+        view.clear();
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Converts a device address like "00:11:22:AA:BB:CC" in its 6 bytes.
+     */
+    public static byte[] parseAddress(String address)
+    {
+        byte[] bytes = new byte[ADDRESS_SIZE];
+        for (int i = 0; i < ADDRESS_SIZE && i * 3 + 1 < address.length(); i++)
+        {
+            bytes[i] = (byte) ((Character.digit(address.charAt(i * 3), 16) << 4) + Character.digit(address.charAt(i * 3 + 1), 16));
+        }
+        return bytes;
+    }
+}
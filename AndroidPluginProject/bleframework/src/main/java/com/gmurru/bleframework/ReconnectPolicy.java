@@ -0,0 +1,89 @@
+package com.gmurru.bleframework;
+
+import java.util.Random;
+
+/**
+ * How {@link GattConnection} reconnects a device after an unexpected loss of the link.
+ *
+ * The attempts follow an exponential backoff: attempt n (from 0) waits up to initialDelayMs * 2^n, capped at
+ * maxDelayMs. Half of that delay is random, so that several robots losing the link at the same time do not retry in
+ * step. With autoConnect the connection waits for the device in the background and keeps its session, and with it
+ * the discovered services. Otherwise every attempt is a direct connection on a new session, which is faster to
+ * establish but discovers the services again.
+ */
+public class ReconnectPolicy
+{
+    public static final long DEFAULT_INITIAL_DELAY = 100;
+    public static final long DEFAULT_MAX_DELAY = 5000;
+
+    /*
+    maxAttempts value to retry until the device is disconnected or closed
+    */
+    public static final int UNLIMITED_ATTEMPTS = 0;
+
+    private final long _initialDelayMs;
+    private final long _maxDelayMs;
+    private final int _maxAttempts;
+    private final boolean _autoConnect;
+    private final Random _random;
+
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts, boolean autoConnect)
+    {
+        this(initialDelayMs, maxDelayMs, maxAttempts, autoConnect, new Random());
+    }
+
+    /**
+     * @param random source of the jitter, seeded to reproduce the delays
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts, boolean autoConnect, Random random)
+    {
+        if (initialDelayMs <= 0 || maxDelayMs < initialDelayMs)
+        {
+            throw new IllegalArgumentException("invalid delays " + initialDelayMs + " - " + maxDelayMs);
+        }
+        this._initialDelayMs = initialDelayMs;
+        this._maxDelayMs = maxDelayMs;
+        this._maxAttempts = maxAttempts;
+        this._autoConnect = autoConnect;
+        this._random = random;
+    }
+
+    public long getInitialDelay()
+    {
+        return this._initialDelayMs;
+    }
+
+    public long getMaxDelay()
+    {
+        return this._maxDelayMs;
+    }
+
+    public int getMaxAttempts()
+    {
+        return this._maxAttempts;
+    }
+
+    public boolean isAutoConnect()
+    {
+        return this._autoConnect;
+    }
+
+    /**
+     * @param attempt number of attempts already made since the link was lost
+     * @return the delay in ms before the next attempt, between half and all of the backoff, or -1 to give up
+     */
+    public long getDelay(int attempt)
+    {
+        if (this._maxAttempts != UNLIMITED_ATTEMPTS && attempt >= this._maxAttempts)
+        {
+            return -1;
+        }
+        long backoff = this._maxDelayMs;
+        if (attempt < 63 && this._initialDelayMs <= this._maxDelayMs >> attempt)
+        {
+            backoff = this._initialDelayMs << attempt;
+        }
+        long half = backoff / 2;
+        return backoff - half + (long)(this._random.nextDouble() * (half + 1));
+    }
+}
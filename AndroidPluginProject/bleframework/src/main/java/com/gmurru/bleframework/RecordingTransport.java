@@ -0,0 +1,306 @@
+package com.gmurru.bleframework;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link BleTransport} recording the traffic of another transport in a {@link SessionRecorder}: the scan results,
+ * the connection events, the packets received and written, with the requests that caused them.
+ *
+ * The transport always sits between the framework and the radio, the recording is started and stopped at any time
+ * with {@link #setRecorder}. Without a recorder every call goes straight to the transport underneath, with a
+ * single volatile read on the receive path.
+ */
+public class RecordingTransport implements BleTransport
+{
+    private final BleTransport _transport;
+    private volatile SessionRecorder _recorder;
+
+    public RecordingTransport(BleTransport transport)
+    {
+        this._transport = transport;
+    }
+
+    public BleTransport getTransport()
+    {
+        return this._transport;
+    }
+
+    /**
+     * Starts recording in a recorder, or stops with null. The previous recorder is left open.
+     */
+    public void setRecorder(SessionRecorder recorder)
+    {
+        this._recorder = recorder;
+    }
+
+    public SessionRecorder getRecorder()
+    {
+        return this._recorder;
+    }
+
+    @Override
+    public boolean startScan(ScanOptions options, final ScanListener listener)
+    {
+        SessionRecorder recorder = this._recorder;
+        if (recorder != null)
+        {
+            recorder.onScanStarted();
+        }
+        return this._transport.startScan(options, new ScanListener()
+        {
+            @Override
+            public void onDeviceFound(String address, String name, int rssi, byte[] scanRecord)
+            {
+                SessionRecorder recorder = RecordingTransport.this._recorder;
+                if (recorder != null)
+                {
+                    recorder.onDeviceFound(address, name, rssi, scanRecord);
+                }
+                listener.onDeviceFound(address, name, rssi, scanRecord);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode)
+            {
+                SessionRecorder recorder = RecordingTransport.this._recorder;
+                if (recorder != null)
+                {
+                    recorder.onScanFailed(errorCode);
+                }
+                listener.onScanFailed(errorCode);
+            }
+        });
+    }
+
+    @Override
+    public void stopScan()
+    {
+        SessionRecorder recorder = this._recorder;
+        if (recorder != null)
+        {
+            recorder.onScanStopped();
+        }
+        this._transport.stopScan();
+    }
+
+    @Override
+    public boolean connect(String address, GattListener listener, boolean autoConnect)
+    {
+        SessionRecorder recorder = this._recorder;
+        if (recorder != null)
+        {
+            recorder.onConnect(address, autoConnect);
+        }
+        return this._transport.connect(address, new RecordingListener(address, listener), autoConnect);
+    }
+
+    @Override
+    public boolean disconnect(String address)
+    {
+        SessionRecorder recorder = this._recorder;
+        if (recorder != null)
+        {
+            recorder.onDisconnect(address);
+        }
+        return this._transport.disconnect(address);
+    }
+
+    @Override
+    public void close(String address)
+    {
+        this._transport.close(address);
+    }
+
+    @Override
+    public boolean discoverServices(String address)
+    {
+        return this._transport.discoverServices(address);
+    }
+
+    @Override
+    public List<UUID> getServices(String address)
+    {
+        return this._transport.getServices(address);
+    }
+
+    @Override
+    public List<UUID> getCharacteristics(String address, UUID service)
+    {
+        return this._transport.getCharacteristics(address, service);
+    }
+
+    @Override
+    public int getProperties(String address, UUID service, UUID characteristic)
+    {
+        return this._transport.getProperties(address, service, characteristic);
+    }
+
+    @Override
+    public boolean readCharacteristic(String address, UUID service, UUID characteristic)
+    {
+        return this._transport.readCharacteristic(address, service, characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(String address, UUID service, UUID characteristic, byte[] value, boolean withResponse)
+    {
+        SessionRecorder recorder = this._recorder;
+        if (recorder != null)
+        {
+            recorder.onWrite(address, service, characteristic, value, withResponse);
+        }
+        return this._transport.writeCharacteristic(address, service, characteristic, value, withResponse);
+    }
+
+    @Override
+    public boolean readDescriptor(String address, UUID service, UUID characteristic, UUID descriptor)
+    {
+        return this._transport.readDescriptor(address, service, characteristic, descriptor);
+    }
+
+    @Override
+    public boolean writeDescriptor(String address, UUID service, UUID characteristic, UUID descriptor, byte[] value)
+    {
+        return this._transport.writeDescriptor(address, service, characteristic, descriptor, value);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(String address, UUID service, UUID characteristic, boolean enabled)
+    {
+        return this._transport.setCharacteristicNotification(address, service, characteristic, enabled);
+    }
+
+    @Override
+    public boolean readRssi(String address)
+    {
+        return this._transport.readRssi(address);
+    }
+
+    @Override
+    public boolean requestMtu(String address, int mtu)
+    {
+        return this._transport.requestMtu(address, mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(String address, int priority)
+    {
+        return this._transport.requestConnectionPriority(address, priority);
+    }
+
+    /*
+    Records the events of a connection before passing them on
+    */
+    private final class RecordingListener implements GattListener
+    {
+        private final String _address;
+        private final GattListener _listener;
+
+        RecordingListener(String address, GattListener listener)
+        {
+            this._address = address;
+            this._listener = listener;
+        }
+
+        @Override
+        public void onConnectionStateChanged(boolean connected, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onConnectionStateChanged(this._address, connected, status);
+            }
+            this._listener.onConnectionStateChanged(connected, status);
+        }
+
+        @Override
+        public void onServicesDiscovered(int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onServicesDiscovered(this._address, status, status == GATT_SUCCESS
+                        ? ServiceLayout.read(RecordingTransport.this._transport, this._address) : ServiceLayout.EMPTY);
+            }
+            this._listener.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onRead(this._address, characteristic, value, status);
+            }
+            this._listener.onCharacteristicRead(characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onWriteResult(this._address, characteristic, status);
+            }
+            this._listener.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(UUID characteristic, byte[] value)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onNotification(this._address, characteristic, value);
+            }
+            this._listener.onCharacteristicChanged(characteristic, value);
+        }
+
+        @Override
+        public void onDescriptorRead(UUID characteristic, UUID descriptor, byte[] value, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onDescriptorRead(this._address, characteristic, descriptor, value, status);
+            }
+            this._listener.onDescriptorRead(characteristic, descriptor, value, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onDescriptorWriteResult(this._address, characteristic, descriptor, status);
+            }
+            this._listener.onDescriptorWrite(characteristic, descriptor, status);
+        }
+
+        @Override
+        public void onRssiRead(int rssi, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onRssiRead(this._address, rssi, status);
+            }
+            this._listener.onRssiRead(rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status)
+        {
+            SessionRecorder recorder = RecordingTransport.this._recorder;
+            if (recorder != null)
+            {
+                recorder.onMtuChanged(this._address, mtu, status);
+            }
+            this._listener.onMtuChanged(mtu, status);
+        }
+    }
+}
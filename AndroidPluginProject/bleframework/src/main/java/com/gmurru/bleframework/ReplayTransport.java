@@ -0,0 +1,706 @@
+package com.gmurru.bleframework;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BleTransport} replaying a session recorded by a {@link RecordingTransport}, so the framework and Unity see
+ * the scans, connections and packets of the session again without the device.
+ *
+ * What the device did on its own is replayed on the recorded timeline, at the original speed or faster: the scan
+ * results from the start of every scan, the connection changes and the notifications from the connection request.
+ * Every startScan replays the next recorded scan, every connect the next recorded connection of the device, and the
+ * notifications are only delivered once enabled, like on a device: the timeline waits up to HOLD_TIMEOUT_NANOS for
+ * the first notification of a characteristic to be enabled, then goes on from there. The answers to the requests are built from the
+ * session instead of being replayed, so the framework may send other requests than during the recording: the
+ * services, MTU and reads return their recorded values, the writes succeed at once.
+ *
+ * Every event is delivered on a single thread owned by the transport.
+ */
+public class ReplayTransport implements BleTransport
+{
+    public static final long HOLD_TIMEOUT_NANOS = 1000000000L;
+    private static final long HOLD_POLL_NANOS = 1000000L;
+
+    /*
+    A connection with a recorded device
+    */
+    private final class Session
+    {
+        final String address;
+        GattListener listener;
+        Timeline timeline;
+        boolean connected;
+        boolean discovered;
+
+        /* Records of the connection being replayed, from its CONNECT request to the next one */
+        int from;
+        int to;
+        ServiceLayout layout = ServiceLayout.EMPTY;
+        final Set<UUID> notificationsEnabled = new HashSet<UUID>();
+        /* Characteristics enabled at least once since the connection */
+        final Set<UUID> notificationsSubscribed = new HashSet<UUID>();
+
+        Session(String address)
+        {
+            this.address = address;
+        }
+    }
+
+    /*
+    Delivers the records of a range that it accepts, at their recorded time divided by the speed, counted from the
+    record at the origin of the range. Only one task of a timeline is scheduled at a time, so the records keep their
+    order. A record which is not ready holds the timeline until it is, or until HOLD_TIMEOUT_NANOS, and the next
+    records are delayed as much.
+    */
+    private abstract class Timeline implements Runnable
+    {
+        private final int _to;
+        private final long _origin;
+        private final long _start = System.nanoTime();
+        private int _next;
+        private volatile long _shift = 0;
+        private long _heldSince = 0;
+        private volatile boolean _cancelled;
+
+        Timeline(int from, int to, long origin)
+        {
+            this._next = from;
+            this._to = to;
+            this._origin = origin;
+        }
+
+        abstract boolean accepts(SessionReader.Record record);
+
+        boolean isReady(SessionReader.Record record)
+        {
+            return true;
+        }
+
+        abstract void play(SessionReader.Record record);
+
+        /*
+        Time elapsed since the origin, on the recorded clock
+        */
+        long elapsed()
+        {
+            return (long) ((System.nanoTime() - this._start - this._shift) * ReplayTransport.this._speed);
+        }
+
+        void cancel()
+        {
+            this._cancelled = true;
+        }
+
+        @Override
+        public void run()
+        {
+            while (!this._cancelled)
+            {
+                while (this._next < this._to && !accepts(ReplayTransport.this._records.get(this._next)))
+                {
+                    this._next++;
+                }
+                if (this._next >= this._to)
+                {
+                    return;
+                }
+                SessionReader.Record record = ReplayTransport.this._records.get(this._next);
+                long now = System.nanoTime();
+                long delay = this._start + this._shift
+                        + (long) ((record.getTime() - this._origin) / ReplayTransport.this._speed) - now;
+                if (delay > 0)
+                {
+                    schedule(this, delay);
+                    return;
+                }
+                if (!isReady(record))
+                {
+                    if (this._heldSince == 0)
+                    {
+                        this._heldSince = now;
+                    }
+                    if (now - this._heldSince < HOLD_TIMEOUT_NANOS)
+                    {
+                        schedule(this, HOLD_POLL_NANOS);
+                        return;
+                    }
+                }
+                if (this._heldSince != 0)
+                {
+                    this._shift += now - this._heldSince;
+                    this._heldSince = 0;
+                }
+                this._next++;
+                play(record);
+            }
+        }
+    }
+
+    private final List<SessionReader.Record> _records;
+    private final float _speed;
+    private final ScheduledExecutorService _executor;
+    private final Map<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
+    private final AtomicLong _writeCount = new AtomicLong();
+
+    /*
+    Index of the next record to search for a scan, and of the next connection of every device. Guarded by the
+    transport.
+    */
+    private int _scanCursor = 0;
+    private final Map<String, Integer> _connectCursors = new ConcurrentHashMap<String, Integer>();
+    private Timeline _scan;
+
+    public ReplayTransport(SessionReader session)
+    {
+        this(session, 1);
+    }
+
+    /**
+     * @param speed 1 to replay at the original speed, 10 ten times faster, Float.POSITIVE_INFINITY as fast as possible
+     */
+    public ReplayTransport(SessionReader session, float speed)
+    {
+        if (!(speed > 0))
+        {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this._records = session.getRecords();
+        this._speed = speed;
+        this._executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "ReplayTransport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+    Stops the thread of the transport, the events not delivered yet are dropped
+    */
+    public void shutdown()
+    {
+        this._executor.shutdownNow();
+    }
+
+    /*
+    Number of writes accepted since the creation of the transport
+    */
+    public long getWriteCount()
+    {
+        return this._writeCount.get();
+    }
+
+    private void schedule(Runnable event, long delayNanos)
+    {
+        if (!this._executor.isShutdown())
+        {
+            this._executor.schedule(event, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void post(Runnable event)
+    {
+        schedule(event, 0);
+    }
+
+    /*
+    Index of the first record of a type at or after an index, for a device or for any device if address is null,
+    -1 if there is none
+    */
+    private int find(int type, String address, int from)
+    {
+        for (int i = from; i < this._records.size(); i++)
+        {
+            SessionReader.Record record = this._records.get(i);
+            if (record.getType() == type && (address == null || address.equals(record.getAddress())))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+    Latest successful record of a type for a characteristic (any if null) and descriptor (any if null) of the
+    connection, up to the time replayed so far, or the first one after. Null if the connection has none.
+    */
+    private SessionReader.Record latest(Session session, int type, UUID characteristic, UUID descriptor)
+    {
+        Timeline timeline = session.timeline;
+        long time = this._records.get(session.from - 1).getTime() + (timeline == null ? 0 : timeline.elapsed());
+        SessionReader.Record found = null;
+        for (int i = session.from; i < session.to; i++)
+        {
+            SessionReader.Record record = this._records.get(i);
+            if (record.getType() != type || !session.address.equals(record.getAddress())
+                    || record.getStatus() != GATT_SUCCESS
+                    || (characteristic != null && !characteristic.equals(record.getUuid(0)))
+                    || (descriptor != null && !descriptor.equals(record.getUuid(SessionRecorder.UUID_SIZE))))
+            {
+                continue;
+            }
+            if (found != null && record.getTime() > time)
+            {
+                break;
+            }
+            found = record;
+        }
+        return found;
+    }
+
+    private Session connectedSession(String address)
+    {
+        Session session = this._sessions.get(address);
+        return session != null && session.connected ? session : null;
+    }
+
+    private Session readySession(String address, UUID service, UUID characteristic)
+    {
+        Session session = connectedSession(address);
+        return session != null && session.discovered && session.layout.hasCharacteristic(service, characteristic)
+                ? session : null;
+    }
+
+    @Override
+    public synchronized boolean startScan(final ScanOptions options, final ScanListener listener)
+    {
+        if (this._scan != null)
+        {
+            post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onScanFailed(SCAN_FAILED_ALREADY_STARTED);
+                }
+            });
+            return true;
+        }
+        int start = find(SessionRecorder.SCAN_START, null, this._scanCursor);
+        if (start < 0)
+        {
+            /* Every scan has been replayed, start again with the first one */
+            start = find(SessionRecorder.SCAN_START, null, 0);
+        }
+        if (start < 0)
+        {
+            return true;
+        }
+        int stop = find(SessionRecorder.SCAN_STOP, null, start);
+        this._scanCursor = stop < 0 ? this._records.size() : stop;
+        this._scan = new Timeline(start + 1, this._scanCursor, this._records.get(start).getTime())
+        {
+            @Override
+            boolean accepts(SessionReader.Record record)
+            {
+                return record.getType() == SessionRecorder.SCAN_RESULT || record.getType() == SessionRecorder.SCAN_FAILED;
+            }
+
+            @Override
+            void play(SessionReader.Record record)
+            {
+                if (record.getType() == SessionRecorder.SCAN_FAILED)
+                {
+                    listener.onScanFailed(record.getInt(0));
+                    return;
+                }
+                byte[] advertisement = record.getScanRecord();
+                if (options.matches(record.getAddress(), record.getName(), AdvertisementData.parse(advertisement)))
+                {
+                    listener.onDeviceFound(record.getAddress(), record.getName(), record.getByte(0), advertisement);
+                }
+            }
+        };
+        post(this._scan);
+        return true;
+    }
+
+    @Override
+    public synchronized void stopScan()
+    {
+        if (this._scan != null)
+        {
+            this._scan.cancel();
+            this._scan = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean connect(final String address, final GattListener listener, boolean autoConnect)
+    {
+        Session existing = this._sessions.get(address);
+        final Session session = existing != null ? existing : new Session(address);
+        this._sessions.put(address, session);
+        if (session.timeline != null)
+        {
+            session.timeline.cancel();
+        }
+        session.listener = listener;
+        session.notificationsSubscribed.clear();
+
+        Integer cursor = this._connectCursors.get(address);
+        int connect = find(SessionRecorder.CONNECT, address, cursor == null ? 0 : cursor);
+        if (connect < 0)
+        {
+            /* No connection left in the session: the device is out of range */
+            session.timeline = null;
+            post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onConnectionStateChanged(false, GATT_ERROR);
+                }
+            });
+            return true;
+        }
+        int next = find(SessionRecorder.CONNECT, address, connect + 1);
+        session.from = connect + 1;
+        session.to = next < 0 ? this._records.size() : next;
+        this._connectCursors.put(address, session.to);
+        session.layout = recordedLayout(session);
+
+        session.timeline = new Timeline(session.from, session.to, this._records.get(connect).getTime())
+        {
+            @Override
+            boolean accepts(SessionReader.Record record)
+            {
+                return address.equals(record.getAddress()) && (record.getType() == SessionRecorder.CONNECTION_STATE
+                        || record.getType() == SessionRecorder.NOTIFICATION);
+            }
+
+            @Override
+            boolean isReady(SessionReader.Record record)
+            {
+                /* The device only notifies once the characteristic is enabled */
+                if (record.getType() != SessionRecorder.NOTIFICATION)
+                {
+                    return true;
+                }
+                synchronized (ReplayTransport.this)
+                {
+                    return !session.connected || session.notificationsSubscribed.contains(record.getUuid(0));
+                }
+            }
+
+            @Override
+            void play(SessionReader.Record record)
+            {
+                if (record.getType() == SessionRecorder.CONNECTION_STATE)
+                {
+                    boolean connected = record.getByte(0) != 0;
+                    synchronized (ReplayTransport.this)
+                    {
+                        session.connected = connected;
+                        if (!connected)
+                        {
+                            session.notificationsEnabled.clear();
+                        }
+                    }
+                    listener.onConnectionStateChanged(connected, record.getStatus());
+                    return;
+                }
+                UUID characteristic = record.getUuid(0);
+                boolean enabled;
+                synchronized (ReplayTransport.this)
+                {
+                    enabled = session.connected && session.notificationsEnabled.contains(characteristic);
+                }
+                if (enabled)
+                {
+                    listener.onCharacteristicChanged(characteristic, record.getBytes(SessionRecorder.UUID_SIZE));
+                }
+            }
+        };
+        post(session.timeline);
+        return true;
+    }
+
+    /*
+    Services of the device: those discovered during the connection, or during an earlier one when the discovery
+    was skipped
+    */
+    private ServiceLayout recordedLayout(Session session)
+    {
+        SessionReader.Record found = null;
+        for (int i = 0; i < session.to; i++)
+        {
+            SessionReader.Record record = this._records.get(i);
+            if (record.getType() == SessionRecorder.SERVICES_DISCOVERED && session.address.equals(record.getAddress())
+                    && record.getStatus() == GATT_SUCCESS)
+            {
+                found = record;
+                if (i >= session.from)
+                {
+                    break;
+                }
+            }
+        }
+        return found == null ? ServiceLayout.EMPTY : found.getLayout();
+    }
+
+    @Override
+    public synchronized boolean disconnect(String address)
+    {
+        Session session = this._sessions.get(address);
+        if (session == null || session.timeline == null)
+        {
+            return false;
+        }
+        session.timeline.cancel();
+        session.timeline = null;
+        session.connected = false;
+        session.notificationsEnabled.clear();
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onConnectionStateChanged(false, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized void close(String address)
+    {
+        Session session = this._sessions.remove(address);
+        if (session != null && session.timeline != null)
+        {
+            session.timeline.cancel();
+        }
+    }
+
+    @Override
+    public synchronized boolean discoverServices(String address)
+    {
+        final Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        final boolean found = !session.layout.isEmpty();
+        session.discovered |= found;
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onServicesDiscovered(found ? GATT_SUCCESS : GATT_ERROR);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public List<UUID> getServices(String address)
+    {
+        Session session = this._sessions.get(address);
+        return session != null && session.discovered ? session.layout.getServices() : Collections.<UUID>emptyList();
+    }
+
+    @Override
+    public List<UUID> getCharacteristics(String address, UUID service)
+    {
+        Session session = this._sessions.get(address);
+        if (session == null || !session.discovered || !session.layout.hasService(service))
+        {
+            return null;
+        }
+        return session.layout.getCharacteristics(service);
+    }
+
+    @Override
+    public int getProperties(String address, UUID service, UUID characteristic)
+    {
+        Session session = this._sessions.get(address);
+        return session != null && session.discovered ? session.layout.getProperties(service, characteristic) : 0;
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(String address, UUID service, final UUID characteristic)
+    {
+        Session session = readySession(address, service, characteristic);
+        if (session == null)
+        {
+            return false;
+        }
+        SessionReader.Record record = latest(session, SessionRecorder.READ, characteristic, null);
+        final byte[] value;
+        if (record != null)
+        {
+            value = record.getBytes(SessionRecorder.UUID_SIZE + 4);
+        }
+        else
+        {
+            record = latest(session, SessionRecorder.NOTIFICATION, characteristic, null);
+            value = record == null ? new byte[0] : record.getBytes(SessionRecorder.UUID_SIZE);
+        }
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(String address, UUID service, final UUID characteristic,
+            byte[] value, boolean withResponse)
+    {
+        Session session = readySession(address, service, characteristic);
+        if (session == null)
+        {
+            return false;
+        }
+        this._writeCount.incrementAndGet();
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean readDescriptor(String address, UUID service, final UUID characteristic,
+            final UUID descriptor)
+    {
+        Session session = readySession(address, service, characteristic);
+        if (session == null)
+        {
+            return false;
+        }
+        SessionReader.Record record = latest(session, SessionRecorder.DESCRIPTOR_READ, characteristic, descriptor);
+        final byte[] value = record == null ? new byte[0] : record.getBytes(2 * SessionRecorder.UUID_SIZE + 4);
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onDescriptorRead(characteristic, descriptor, value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(String address, UUID service, final UUID characteristic,
+            final UUID descriptor, byte[] value)
+    {
+        Session session = readySession(address, service, characteristic);
+        if (session == null)
+        {
+            return false;
+        }
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onDescriptorWrite(characteristic, descriptor, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(String address, UUID service, UUID characteristic,
+            boolean enabled)
+    {
+        Session session = readySession(address, service, characteristic);
+        if (session == null)
+        {
+            return false;
+        }
+        if (enabled)
+        {
+            session.notificationsEnabled.add(characteristic);
+            session.notificationsSubscribed.add(characteristic);
+        }
+        else
+        {
+            session.notificationsEnabled.remove(characteristic);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean readRssi(String address)
+    {
+        Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        SessionReader.Record record = latest(session, SessionRecorder.RSSI, null, null);
+        final int rssi = record == null ? 0 : record.getInt(0);
+        final int status = record == null ? GATT_ERROR : GATT_SUCCESS;
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onRssiRead(rssi, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(String address, int mtu)
+    {
+        Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        SessionReader.Record record = latest(session, SessionRecorder.MTU, null, null);
+        final int negotiated = record == null ? DEFAULT_MTU : Math.max(DEFAULT_MTU, Math.min(mtu, record.getInt(0)));
+        final GattListener listener = session.listener;
+        post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onMtuChanged(negotiated, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(String address, int priority)
+    {
+        return connectedSession(address) != null;
+    }
+}
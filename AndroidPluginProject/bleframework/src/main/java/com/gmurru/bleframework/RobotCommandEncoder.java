@@ -0,0 +1,75 @@
+package com.gmurru.bleframework;
+
+/**
+ * Commands of the robot control protocol, matching Arduino/RobotClient.
+ *
+ * Every command is 3 bytes long. A drive command is a direction byte giving the sign of the left and right wheel
+ * speeds followed by their magnitudes, from 0 to 255. The reset command, 0xFE 0xFE 0xFE, makes the robot run each
+ * wheel in turn. The robot acknowledges every command with a single 0xFE byte.
+ *
+ * The drive commands are setpoints: only the latest one matters, so they are sent on DRIVE_CHANNEL and a pending
+ * drive command is superseded by a newer one, see {@link GattConnection#writeCommand}. The reset is a one-shot
+ * command and is never dropped.
+ */
+public final class RobotCommandEncoder
+{
+    public static final int COMMAND_SIZE = 3;
+    public static final int MAX_SPEED = 255;
+
+    /*
+    Channel of the drive setpoints
+    */
+    public static final int DRIVE_CHANNEL = 0;
+
+    /*
+    Direction bytes: the sign of the left wheels, then of the right wheels
+    */
+    public static final byte FORWARD = 0x11;
+    public static final byte SPIN_RIGHT = 0x1f;
+    public static final byte BACKWARD = (byte) 0xff;
+    public static final byte SPIN_LEFT = (byte) 0xf1;
+    public static final byte RESET = (byte) 0xfe;
+
+    private RobotCommandEncoder()
+    {
+    }
+
+    /**
+     * Encodes a drive command.
+     *
+     * @param left speed of the left wheels, from -255 (full backward) to 255, clamped
+     * @param right speed of the right wheels, from -255 (full backward) to 255, clamped
+     * @param command array of at least COMMAND_SIZE bytes
+     * @return COMMAND_SIZE
+     */
+    public static int encodeDrive(int left, int right, byte[] command)
+    {
+        left = Math.max(-MAX_SPEED, Math.min(left, MAX_SPEED));
+        right = Math.max(-MAX_SPEED, Math.min(right, MAX_SPEED));
+        if (left >= 0)
+        {
+            command[0] = right >= 0 ? FORWARD : SPIN_RIGHT;
+        }
+        else
+        {
+            command[0] = right >= 0 ? SPIN_LEFT : BACKWARD;
+        }
+        command[1] = (byte) Math.abs(left);
+        command[2] = (byte) Math.abs(right);
+        return COMMAND_SIZE;
+    }
+
+    /**
+     * Encodes the reset command.
+     *
+     * @param command array of at least COMMAND_SIZE bytes
+     * @return COMMAND_SIZE
+     */
+    public static int encodeReset(byte[] command)
+    {
+        command[0] = RESET;
+        command[1] = RESET;
+        command[2] = RESET;
+        return COMMAND_SIZE;
+    }
+}
@@ -0,0 +1,95 @@
+package com.gmurru.bleframework;
+
+/**
+ * One dimensional Kalman filter smoothing the RSSI reads of a connection.
+ *
+ * The RSSI is modeled as a constant disturbed by a random walk of variance {@code processNoise} per read and
+ * measured with a noise of variance {@code measurementNoise}. Unlike a moving average with a fixed weight, the
+ * filter follows the first reads closely and gets smoother as its estimate settles, so a fresh connection reports a
+ * usable value after a couple of reads. The filter is not thread safe.
+ */
+public class RssiFilter
+{
+    /*
+    Variances in dBm^2: a phone in the hand drifts by about a dBm between two reads, a single read is off by 4 to 5 dBm
+    */
+    public static final float DEFAULT_PROCESS_NOISE = 1f;
+    public static final float DEFAULT_MEASUREMENT_NOISE = 20f;
+
+    private final float _processNoise;
+    private final float _measurementNoise;
+
+    private float _estimate;
+    private float _variance;
+    private int _count;
+
+    public RssiFilter()
+    {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * @param processNoise variance of the change of the RSSI between two reads, greater than 0
+     * @param measurementNoise variance of the error of a read, greater than 0
+     */
+    public RssiFilter(float processNoise, float measurementNoise)
+    {
+        if (processNoise <= 0 || measurementNoise <= 0)
+        {
+            throw new IllegalArgumentException("the noise variances must be positive");
+        }
+        this._processNoise = processNoise;
+        this._measurementNoise = measurementNoise;
+    }
+
+    /**
+     * Adds a read to the estimate.
+     *
+     * @return the new estimate, in dBm
+     */
+    public float update(int rssi)
+    {
+        if (this._count++ == 0)
+        {
+            this._estimate = rssi;
+            this._variance = this._measurementNoise;
+            return this._estimate;
+        }
+        float predictedVariance = this._variance + this._processNoise;
+        float gain = predictedVariance / (predictedVariance + this._measurementNoise);
+        this._estimate += gain * (rssi - this._estimate);
+        this._variance = (1 - gain) * predictedVariance;
+        return this._estimate;
+    }
+
+    /*
+    Estimated RSSI in dBm, 0 before the first read
+    */
+    public float getEstimate()
+    {
+        return this._estimate;
+    }
+
+    /*
+    Variance of the estimate in dBm^2, it decreases as the reads agree with each other
+    */
+    public float getVariance()
+    {
+        return this._variance;
+    }
+
+    public int getCount()
+    {
+        return this._count;
+    }
+
+    /*
+    Forgets the previous reads, the next one starts a new estimate
+    */
+    public void reset()
+    {
+        this._estimate = 0;
+        this._variance = 0;
+        this._count = 0;
+    }
+}
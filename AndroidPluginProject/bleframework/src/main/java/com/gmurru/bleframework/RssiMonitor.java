@@ -0,0 +1,253 @@
+package com.gmurru.bleframework;
+
+import java.util.Arrays;
+
+/**
+ * RSSI telemetry of a connection: the filtered signal, the distance it suggests, the crossings of the thresholds
+ * chosen by the application and the delay until the next read.
+ *
+ * The thresholds split the signal into zones, zone 0 being below the weakest threshold. A zone changes only when the
+ * filtered RSSI goes past a threshold by the hysteresis, so a device held right at a threshold does not report a
+ * crossing on every read. The polling interval adapts to the signal: it is the minimum interval whenever the signal
+ * is near a threshold, it doubles up to the maximum interval while the signal is stable and halves while it moves.
+ * The monitor is not thread safe, BleFramework only uses it on its event thread.
+ */
+public class RssiMonitor
+{
+    public static final long DEFAULT_MIN_INTERVAL = 250;
+    public static final long DEFAULT_MAX_INTERVAL = 4000;
+
+    /*
+    Margin in dBm around a threshold: a zone changes 2 dBm past the threshold, the polling is fastest within 6 dBm
+    */
+    public static final float DEFAULT_HYSTERESIS = 2f;
+    public static final float NEAR_THRESHOLD_MARGIN = 6f;
+
+    /*
+    The signal is stable while the estimate moves by less than this between two reads, in dBm
+    */
+    public static final float STABLE_DELTA = 1f;
+
+    /*
+    RSSI at one meter of a BLE shield on its default transmit power, and the path loss exponent of an open room.
+    Indoors with people and furniture the exponent is closer to 3.
+    */
+    public static final int DEFAULT_MEASURED_POWER = -59;
+    public static final float DEFAULT_PATH_LOSS_EXPONENT = 2f;
+
+    private final RssiFilter _filter;
+    private final long _minInterval;
+    private final long _maxInterval;
+    private final int[] _thresholds;
+    private final float _hysteresis;
+    private int _measuredPower = DEFAULT_MEASURED_POWER;
+    private float _pathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+
+    private int _lastRssi;
+    private long _interval;
+    private int _zone = -1;
+    private int _crossedThreshold;
+    private boolean _rising;
+
+    public RssiMonitor(int... thresholds)
+    {
+        this(new RssiFilter(), DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_HYSTERESIS, thresholds);
+    }
+
+    /**
+     * @param minInterval shortest delay between two reads, in milliseconds
+     * @param maxInterval longest delay between two reads, in milliseconds
+     * @param hysteresis distance in dBm past a threshold at which a zone changes
+     * @param thresholds RSSI levels in dBm whose crossings are reported, in any order
+     */
+    public RssiMonitor(RssiFilter filter, long minInterval, long maxInterval, float hysteresis, int... thresholds)
+    {
+        if (minInterval <= 0 || maxInterval < minInterval)
+        {
+            throw new IllegalArgumentException("the intervals must be positive and minInterval <= maxInterval");
+        }
+        this._filter = filter;
+        this._minInterval = minInterval;
+        this._maxInterval = maxInterval;
+        this._hysteresis = Math.max(hysteresis, 0);
+        this._thresholds = thresholds.clone();
+        Arrays.sort(this._thresholds);
+        this._interval = minInterval;
+    }
+
+    /**
+     * Calibrates the distance estimation.
+     *
+     * @param measuredPower RSSI at one meter from the device, in dBm
+     * @param pathLossExponent 2 in free space, up to 4 through walls
+     */
+    public void setCalibration(int measuredPower, float pathLossExponent)
+    {
+        if (pathLossExponent <= 0)
+        {
+            throw new IllegalArgumentException("pathLossExponent must be positive");
+        }
+        this._measuredPower = measuredPower;
+        this._pathLossExponent = pathLossExponent;
+    }
+
+    /**
+     * Adds a read, updates the zone and the polling interval.
+     *
+     * @return true if the filtered RSSI crossed a threshold, see {@link #getCrossedThreshold()} and {@link #isRising()}.
+     *         The first read only sets the zone.
+     */
+    public boolean update(int rssi)
+    {
+        float previous = this._filter.getEstimate();
+        float estimate = this._filter.update(rssi);
+        this._lastRssi = rssi;
+
+        boolean first = this._zone < 0;
+        if (isNearThreshold(estimate))
+        {
+            this._interval = this._minInterval;
+        }
+        else if (!first && Math.abs(estimate - previous) < STABLE_DELTA)
+        {
+            this._interval = Math.min(this._interval * 2, this._maxInterval);
+        }
+        else
+        {
+            this._interval = Math.max(this._interval / 2, this._minInterval);
+        }
+
+        if (first)
+        {
+            this._zone = zoneOf(estimate);
+            return false;
+        }
+        int zone = this._zone;
+        while (zone < this._thresholds.length && estimate >= this._thresholds[zone] + this._hysteresis)
+        {
+            zone++;
+        }
+        while (zone > 0 && estimate < this._thresholds[zone - 1] - this._hysteresis)
+        {
+            zone--;
+        }
+        if (zone == this._zone)
+        {
+            return false;
+        }
+        this._rising = zone > this._zone;
+        this._crossedThreshold = this._rising ? this._thresholds[zone - 1] : this._thresholds[zone];
+        this._zone = zone;
+        return true;
+    }
+
+    private boolean isNearThreshold(float estimate)
+    {
+        for (int threshold : this._thresholds)
+        {
+            if (Math.abs(estimate - threshold) < NEAR_THRESHOLD_MARGIN)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int zoneOf(float estimate)
+    {
+        int zone = 0;
+        while (zone < this._thresholds.length && estimate >= this._thresholds[zone])
+        {
+            zone++;
+        }
+        return zone;
+    }
+
+    /*
+    Latest read, in dBm
+    */
+    public int getRssi()
+    {
+        return this._lastRssi;
+    }
+
+    /*
+    Filtered RSSI, in dBm
+    */
+    public float getFilteredRssi()
+    {
+        return this._filter.getEstimate();
+    }
+
+    /**
+     * Distance given by the log-distance path loss model from the filtered RSSI. Good enough to tell near from far,
+     * reflections and bodies make it off by a factor of 2 indoors.
+     *
+     * @return the distance in meters, -1 before the first read
+     */
+    public float getDistance()
+    {
+        if (this._filter.getCount() == 0)
+        {
+            return -1;
+        }
+        return (float)Math.pow(10, (this._measuredPower - this._filter.getEstimate()) / (10 * this._pathLossExponent));
+    }
+
+    /*
+    Number of thresholds below the filtered RSSI, -1 before the first read
+    */
+    public int getZone()
+    {
+        return this._zone;
+    }
+
+    /*
+    Threshold of the last crossing, the highest one when the signal rose past several thresholds at once
+    */
+    public int getCrossedThreshold()
+    {
+        return this._crossedThreshold;
+    }
+
+    /*
+    True if the last crossing was the signal getting stronger
+    */
+    public boolean isRising()
+    {
+        return this._rising;
+    }
+
+    public long getMinInterval()
+    {
+        return this._minInterval;
+    }
+
+    public long getMaxInterval()
+    {
+        return this._maxInterval;
+    }
+
+    /*
+    Delay in milliseconds until the next read
+    */
+    public long getInterval()
+    {
+        return this._interval;
+    }
+
+    public int[] getThresholds()
+    {
+        return this._thresholds.clone();
+    }
+
+    /*
+    Forgets the reads, to be called when the connection is lost
+    */
+    public void reset()
+    {
+        this._filter.reset();
+        this._interval = this._minInterval;
+        this._zone = -1;
+    }
+}
@@ -0,0 +1,108 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Settings of a scan, independent from the Android scanner classes. The mode values are the ones of
+ * {@code android.bluetooth.le.ScanSettings}.
+ */
+public class ScanOptions
+{
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    /**
+     * A device matches the filter when it matches every field that is not null.
+     */
+    public static class Filter
+    {
+        private final UUID _serviceUuid;
+        private final String _name;
+        private final String _address;
+
+        public Filter(UUID serviceUuid, String name, String address)
+        {
+            this._serviceUuid = serviceUuid;
+            this._name = name;
+            this._address = address;
+        }
+
+        public UUID getServiceUuid()
+        {
+            return this._serviceUuid;
+        }
+
+        public String getName()
+        {
+            return this._name;
+        }
+
+        public String getAddress()
+        {
+            return this._address;
+        }
+
+        public boolean matches(String address, String name, AdvertisementData advertisement)
+        {
+            if (this._address != null && !this._address.equalsIgnoreCase(address))
+            {
+                return false;
+            }
+            if (this._name != null && !this._name.equals(name != null ? name : advertisement.getLocalName()))
+            {
+                return false;
+            }
+            return this._serviceUuid == null || advertisement.hasServiceUuid(this._serviceUuid);
+        }
+    }
+
+    private final int _mode;
+    private final long _reportDelay;
+    private final List<Filter> _filters;
+
+    /**
+     * @param reportDelay milliseconds the results can be held to be reported in batches, 0 to report them immediately
+     * @param filters a device is reported when it matches any filter, or always when the list is empty
+     */
+    public ScanOptions(int mode, long reportDelay, List<Filter> filters)
+    {
+        this._mode = mode;
+        this._reportDelay = reportDelay;
+        this._filters = Collections.unmodifiableList(new ArrayList<Filter>(filters));
+    }
+
+    public int getMode()
+    {
+        return this._mode;
+    }
+
+    public long getReportDelay()
+    {
+        return this._reportDelay;
+    }
+
+    public List<Filter> getFilters()
+    {
+        return this._filters;
+    }
+
+    public boolean matches(String address, String name, AdvertisementData advertisement)
+    {
+        if (this._filters.isEmpty())
+        {
+            return true;
+        }
+        for (Filter filter : this._filters)
+        {
+            if (filter.matches(address, name, advertisement))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
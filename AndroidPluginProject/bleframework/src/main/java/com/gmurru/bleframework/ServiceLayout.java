@@ -0,0 +1,159 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Services of a device, with their characteristics and the properties of each one, as found by a service discovery.
+ *
+ * A layout is read once from the transport after the discovery, then answers the lookups of the connection (is the
+ * RX characteristic there, can it be written without response) with hash lookups on UUIDs instead of walking the
+ * GATT attributes of the session. Layouts are immutable, and two discoveries of the same board give equal layouts:
+ * {@link DiscoveryCache} keeps one per device across the sessions.
+ */
+public final class ServiceLayout
+{
+    public static final ServiceLayout EMPTY = new ServiceLayout(new LinkedHashMap<UUID, Map<UUID, Integer>>());
+
+    /*
+    Properties of the characteristics of every service, in the order of the discovery
+    */
+    private final Map<UUID, Map<UUID, Integer>> _services;
+    private final List<UUID> _serviceList;
+    private final Map<UUID, List<UUID>> _characteristicLists;
+
+    /**
+     * @param services PROPERTY_* bits of the characteristics of every service, copied
+     */
+    public ServiceLayout(Map<UUID, Map<UUID, Integer>> services)
+    {
+        Map<UUID, Map<UUID, Integer>> copy = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+        Map<UUID, List<UUID>> characteristicLists = new HashMap<UUID, List<UUID>>();
+        for (Map.Entry<UUID, Map<UUID, Integer>> service : services.entrySet())
+        {
+            Map<UUID, Integer> characteristics = new LinkedHashMap<UUID, Integer>(service.getValue());
+            copy.put(service.getKey(), Collections.unmodifiableMap(characteristics));
+            characteristicLists.put(service.getKey(),
+                    Collections.unmodifiableList(new ArrayList<UUID>(characteristics.keySet())));
+        }
+        this._services = Collections.unmodifiableMap(copy);
+        this._serviceList = Collections.unmodifiableList(new ArrayList<UUID>(copy.keySet()));
+        this._characteristicLists = characteristicLists;
+    }
+
+    /**
+     * Reads the layout of a discovered device from its session.
+     *
+     * @return the layout, EMPTY if the services of the session have not been discovered
+     */
+    public static ServiceLayout read(BleTransport transport, String address)
+    {
+        List<UUID> services = transport.getServices(address);
+        if (services.isEmpty())
+        {
+            return EMPTY;
+        }
+        Map<UUID, Map<UUID, Integer>> layout = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+        for (UUID service : services)
+        {
+            Map<UUID, Integer> properties = new LinkedHashMap<UUID, Integer>();
+            List<UUID> characteristics = transport.getCharacteristics(address, service);
+            if (characteristics != null)
+            {
+                for (UUID characteristic : characteristics)
+                {
+                    properties.put(characteristic, transport.getProperties(address, service, characteristic));
+                }
+            }
+            layout.put(service, properties);
+        }
+        return new ServiceLayout(layout);
+    }
+
+    public boolean isEmpty()
+    {
+        return this._services.isEmpty();
+    }
+
+    public List<UUID> getServices()
+    {
+        return this._serviceList;
+    }
+
+    /**
+     * @return the characteristics of the service, an empty list if the device does not have it
+     */
+    public List<UUID> getCharacteristics(UUID service)
+    {
+        List<UUID> characteristics = this._characteristicLists.get(service);
+        return characteristics == null ? Collections.<UUID>emptyList() : characteristics;
+    }
+
+    public boolean hasService(UUID service)
+    {
+        return this._services.containsKey(service);
+    }
+
+    public boolean hasCharacteristic(UUID service, UUID characteristic)
+    {
+        Map<UUID, Integer> characteristics = this._services.get(service);
+        return characteristics != null && characteristics.containsKey(characteristic);
+    }
+
+    /**
+     * @return the PROPERTY_* bits of the characteristic, 0 if the device does not have it
+     */
+    public int getProperties(UUID service, UUID characteristic)
+    {
+        Map<UUID, Integer> characteristics = this._services.get(service);
+        Integer properties = characteristics == null ? null : characteristics.get(characteristic);
+        return properties == null ? 0 : properties;
+    }
+
+    /**
+     * @return the first service having the characteristic, null if there is none
+     */
+    public UUID findService(UUID characteristic)
+    {
+        for (Map.Entry<UUID, Map<UUID, Integer>> service : this._services.entrySet())
+        {
+            if (service.getValue().containsKey(characteristic))
+            {
+                return service.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True if the session of the transport still holds these services, discovered before, so that the discovery can
+     * be skipped. A new session has no services until its own discovery.
+     */
+    public boolean isDiscoveredIn(BleTransport transport, String address)
+    {
+        return !isEmpty() && this._serviceList.equals(transport.getServices(address));
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof ServiceLayout && this._services.equals(((ServiceLayout)other)._services);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this._services.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this._services.toString();
+    }
+}
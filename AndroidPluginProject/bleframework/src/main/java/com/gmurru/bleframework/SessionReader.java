@@ -0,0 +1,272 @@
+package com.gmurru.bleframework;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reads a session written by {@link SessionRecorder}. The file is mapped in memory and split in records, whose
+ * payloads are read with the accessors of {@link Record}.
+ */
+public final class SessionReader
+{
+    /**
+     * A record of the session. The accessors read the payload of the record types listed in SessionRecorder.
+     */
+    public static final class Record
+    {
+        private final long _time;
+        private final int _type;
+        private final String _address;
+        private final ByteBuffer _payload;
+
+        Record(long time, int type, String address, ByteBuffer payload)
+        {
+            this._time = time;
+            this._type = type;
+            this._address = address;
+            this._payload = payload;
+        }
+
+        /*
+        Time of the record in nanoseconds since the start of the recording
+        */
+        public long getTime()
+        {
+            return this._time;
+        }
+
+        public int getType()
+        {
+            return this._type;
+        }
+
+        /*
+        Address of the device, null for the scan records other than the results
+        */
+        public String getAddress()
+        {
+            return this._address;
+        }
+
+        public int getInt(int offset)
+        {
+            return this._payload.getInt(offset);
+        }
+
+        public byte getByte(int offset)
+        {
+            return this._payload.get(offset);
+        }
+
+        public UUID getUuid(int offset)
+        {
+            return new UUID(this._payload.getLong(offset), this._payload.getLong(offset + 8));
+        }
+
+        /*
+        Copy of the payload from an offset to its end, the value of most records
+        */
+        public byte[] getBytes(int offset)
+        {
+            byte[] bytes = new byte[Math.max(this._payload.limit() - offset, 0)];
+            for (int i = 0; i < bytes.length; i++)
+            {
+                bytes[i] = this._payload.get(offset + i);
+            }
+            return bytes;
+        }
+
+        /*
+        Status of a record: the int after the UUIDs, or the first int of CONNECTION_STATE, SERVICES_DISCOVERED, RSSI and MTU
+        */
+        public int getStatus()
+        {
+            switch (this._type)
+            {
+                case SessionRecorder.CONNECTION_STATE:
+                    return getInt(1);
+                case SessionRecorder.SERVICES_DISCOVERED:
+                    return getInt(0);
+                case SessionRecorder.RSSI:
+                case SessionRecorder.MTU:
+                    return getInt(4);
+                case SessionRecorder.READ:
+                case SessionRecorder.WRITE_RESULT:
+                    return getInt(SessionRecorder.UUID_SIZE);
+                case SessionRecorder.DESCRIPTOR_READ:
+                case SessionRecorder.DESCRIPTOR_WRITE_RESULT:
+                    return getInt(2 * SessionRecorder.UUID_SIZE);
+                default:
+                    return BleTransport.GATT_SUCCESS;
+            }
+        }
+
+        /*
+        Name of a SCAN_RESULT, null if the device had none
+        */
+        public String getName()
+        {
+            int length = this._payload.get(1) & 0xff;
+            if (length == 0)
+            {
+                return null;
+            }
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                name[i] = this._payload.get(2 + i);
+            }
+            return new String(name, SessionRecorder.UTF_8);
+        }
+
+        /*
+        Advertisement of a SCAN_RESULT
+        */
+        public byte[] getScanRecord()
+        {
+            return getBytes(2 + (this._payload.get(1) & 0xff));
+        }
+
+        /*
+        Services of a SERVICES_DISCOVERED
+        */
+        public ServiceLayout getLayout()
+        {
+            Map<UUID, Map<UUID, Integer>> services = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+            int offset = 4;
+            int serviceCount = this._payload.get(offset++) & 0xff;
+            for (int i = 0; i < serviceCount; i++)
+            {
+                UUID service = getUuid(offset);
+                offset += SessionRecorder.UUID_SIZE;
+                int count = this._payload.get(offset++) & 0xff;
+                Map<UUID, Integer> characteristics = new LinkedHashMap<UUID, Integer>();
+                for (int j = 0; j < count; j++)
+                {
+                    characteristics.put(getUuid(offset), this._payload.get(offset + SessionRecorder.UUID_SIZE) & 0xff);
+                    offset += SessionRecorder.UUID_SIZE + 1;
+                }
+                services.put(service, characteristics);
+            }
+            return new ServiceLayout(services);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this._time + " " + this._type + " " + this._address + " " + this._payload.limit() + " bytes";
+        }
+    }
+
+    private final long _startTime;
+    private final List<Record> _records;
+
+    private SessionReader(long startTime, List<Record> records)
+    {
+        this._startTime = startTime;
+        this._records = records;
+    }
+
+    /**
+     * Reads a session. A record cut by the end of the file, when the recording was not closed, is ignored.
+     *
+     * @throws IOException if the file can not be read or is not a session
+     */
+    public static SessionReader read(File file) throws IOException
+    {
+        FileInputStream input = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    public static SessionReader read(ByteBuffer buffer) throws IOException
+    {
+        if (buffer.remaining() < SessionRecorder.FILE_HEADER_SIZE || buffer.getInt() != SessionRecorder.MAGIC)
+        {
+            throw new IOException("Not a recorded session");
+        }
+        int version = buffer.getShort();
+        if (version != SessionRecorder.VERSION)
+        {
+            throw new IOException("Unsupported session version " + version);
+        }
+        buffer.getShort();
+        long startTime = buffer.getLong();
+
+        List<Record> records = new ArrayList<Record>();
+        byte[] address = new byte[ReceiveBatch.ADDRESS_SIZE];
+        while (buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE)
+        {
+            long time = buffer.getLong();
+            int type = buffer.get();
+            buffer.get(address);
+            int length = buffer.getShort() & 0xffff;
+            if (buffer.remaining() < length)
+            {
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+            records.add(new Record(time, type, formatAddress(address), payload));
+        }
+        return new SessionReader(startTime, records);
+    }
+
+    /**
+     * Converts the 6 bytes of an address in "00:11:22:AA:BB:CC", null for 6 zeros.
+     */
+    static String formatAddress(byte[] address)
+    {
+        boolean zero = true;
+        for (byte b : address)
+        {
+            zero &= b == 0;
+        }
+        if (zero)
+        {
+            return null;
+        }
+        StringBuilder text = new StringBuilder(17);
+        for (int i = 0; i < address.length; i++)
+        {
+            if (i > 0)
+            {
+                text.append(':');
+            }
+            text.append(Character.toUpperCase(Character.forDigit((address[i] >> 4) & 0xf, 16)));
+            text.append(Character.toUpperCase(Character.forDigit(address[i] & 0xf, 16)));
+        }
+        return text.toString();
+    }
+
+    /*
+    Wall clock time of the start of the recording, in ms since 1970
+    */
+    public long getStartTime()
+    {
+        return this._startTime;
+    }
+
+    public List<Record> getRecords()
+    {
+        return this._records;
+    }
+}
@@ -0,0 +1,427 @@
+package com.gmurru.bleframework;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes the traffic of a {@link RecordingTransport} in a compact append-only binary file, replayed later by
+ * {@link ReplayTransport}.
+ *
+ * The records are written in a direct buffer and the buffer is written to the file channel when it is full, on
+ * {@link #flush()} and on {@link #close()}: recording a notification is a copy in memory, without a system call.
+ * Layout, all integers big endian:
+ *
+ * <pre>
+ * file:    int MAGIC | short VERSION | short 0 | long start time in ms since 1970 | records
+ * record:  long time | byte type | byte[6] device address | unsigned short length | byte[length] payload
+ * </pre>
+ *
+ * time is in nanoseconds since the start of the recording. The payload of every type is described with its
+ * constant, a uuid is written as its 16 bytes and a value runs to the end of the payload. The scan records have an
+ * address of zeros, except the results.
+ *
+ * Thread safe: the events of the transport and the requests of the framework are recorded from their own threads.
+ * An I/O error ends the recording, it is kept for {@link #getError()}.
+ */
+public class SessionRecorder
+{
+    public static final int MAGIC = 0x424c4553;
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 8 + 1 + ReceiveBatch.ADDRESS_SIZE + 2;
+    public static final int UUID_SIZE = 16;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /*
+    Record types and their payloads. The requests of the framework are only recorded for the analysis of a session,
+    the replay answers them from the recorded events.
+    */
+    /* Requests: none, startScan and stopScan */
+    public static final int SCAN_START = 1;
+    public static final int SCAN_STOP = 2;
+    /* byte rssi | byte nameLength | name in UTF-8 | advertisement */
+    public static final int SCAN_RESULT = 3;
+    /* int errorCode */
+    public static final int SCAN_FAILED = 4;
+    /* Request: byte autoConnect */
+    public static final int CONNECT = 5;
+    /* Request: none */
+    public static final int DISCONNECT = 6;
+    /* byte connected | int status */
+    public static final int CONNECTION_STATE = 7;
+    /* int status | byte serviceCount | for every service: uuid | byte count | for every characteristic: uuid | byte properties */
+    public static final int SERVICES_DISCOVERED = 8;
+    /* uuid characteristic | value */
+    public static final int NOTIFICATION = 9;
+    /* uuid characteristic | int status | value */
+    public static final int READ = 10;
+    /* Request: uuid service | uuid characteristic | byte withResponse | value */
+    public static final int WRITE = 11;
+    /* uuid characteristic | int status */
+    public static final int WRITE_RESULT = 12;
+    /* uuid characteristic | uuid descriptor | int status | value */
+    public static final int DESCRIPTOR_READ = 13;
+    /* uuid characteristic | uuid descriptor | int status */
+    public static final int DESCRIPTOR_WRITE_RESULT = 14;
+    /* int rssi | int status */
+    public static final int RSSI = 15;
+    /* int mtu | int status */
+    public static final int MTU = 16;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NO_ADDRESS = new byte[ReceiveBatch.ADDRESS_SIZE];
+
+    private final FileChannel _channel;
+    private final ByteBuffer _buffer;
+    private final long _start;
+
+    /*
+    Bytes of the address of the latest record, parsed again only when the address changes
+    */
+    private String _address;
+    private byte[] _addressBytes = NO_ADDRESS;
+
+    private long _recordCount = 0;
+    private long _droppedCount = 0;
+    private IOException _error;
+    private boolean _closed = false;
+
+    public SessionRecorder(File file) throws IOException
+    {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates the file, replacing an existing one, and writes its header.
+     *
+     * @param bufferSize size of the buffer of the records, records longer than the buffer are dropped
+     */
+    public SessionRecorder(File file, int bufferSize) throws IOException
+    {
+        if (bufferSize < FILE_HEADER_SIZE + RECORD_HEADER_SIZE)
+        {
+            throw new IllegalArgumentException("bufferSize must be at least " + (FILE_HEADER_SIZE + RECORD_HEADER_SIZE));
+        }
+        this._channel = new FileOutputStream(file).getChannel();
+        this._buffer = ByteBuffer.allocateDirect(bufferSize);
+        this._start = System.nanoTime();
+        this._buffer.putInt(MAGIC);
+        this._buffer.putShort((short) VERSION);
+        this._buffer.putShort((short) 0);
+        this._buffer.putLong(System.currentTimeMillis());
+    }
+
+    public synchronized void onScanStarted()
+    {
+        begin(SCAN_START, null, 0);
+    }
+
+    public synchronized void onScanStopped()
+    {
+        begin(SCAN_STOP, null, 0);
+    }
+
+    public synchronized void onDeviceFound(String address, String name, int rssi, byte[] scanRecord)
+    {
+        byte[] nameBytes = name == null ? new byte[0] : name.getBytes(UTF_8);
+        int nameLength = Math.min(nameBytes.length, 255);
+        int recordLength = scanRecord == null ? 0 : scanRecord.length;
+        if (begin(SCAN_RESULT, address, 2 + nameLength + recordLength))
+        {
+            this._buffer.put((byte) rssi);
+            this._buffer.put((byte) nameLength);
+            this._buffer.put(nameBytes, 0, nameLength);
+            if (scanRecord != null)
+            {
+                this._buffer.put(scanRecord);
+            }
+        }
+    }
+
+    public synchronized void onScanFailed(int errorCode)
+    {
+        if (begin(SCAN_FAILED, null, 4))
+        {
+            this._buffer.putInt(errorCode);
+        }
+    }
+
+    public synchronized void onConnect(String address, boolean autoConnect)
+    {
+        if (begin(CONNECT, address, 1))
+        {
+            this._buffer.put((byte) (autoConnect ? 1 : 0));
+        }
+    }
+
+    public synchronized void onDisconnect(String address)
+    {
+        begin(DISCONNECT, address, 0);
+    }
+
+    public synchronized void onConnectionStateChanged(String address, boolean connected, int status)
+    {
+        if (begin(CONNECTION_STATE, address, 5))
+        {
+            this._buffer.put((byte) (connected ? 1 : 0));
+            this._buffer.putInt(status);
+        }
+    }
+
+    /**
+     * @param layout the services discovered, read from the transport, EMPTY if the discovery failed
+     */
+    public synchronized void onServicesDiscovered(String address, int status, ServiceLayout layout)
+    {
+        List<UUID> services = layout.getServices();
+        int length = 5;
+        for (UUID service : services)
+        {
+            length += UUID_SIZE + 1 + layout.getCharacteristics(service).size() * (UUID_SIZE + 1);
+        }
+        if (!begin(SERVICES_DISCOVERED, address, length))
+        {
+            return;
+        }
+        this._buffer.putInt(status);
+        this._buffer.put((byte) services.size());
+        for (UUID service : services)
+        {
+            List<UUID> characteristics = layout.getCharacteristics(service);
+            putUuid(service);
+            this._buffer.put((byte) characteristics.size());
+            for (UUID characteristic : characteristics)
+            {
+                putUuid(characteristic);
+                this._buffer.put((byte) layout.getProperties(service, characteristic));
+            }
+        }
+    }
+
+    public synchronized void onNotification(String address, UUID characteristic, byte[] value)
+    {
+        if (begin(NOTIFICATION, address, UUID_SIZE + value.length))
+        {
+            putUuid(characteristic);
+            this._buffer.put(value);
+        }
+    }
+
+    public synchronized void onRead(String address, UUID characteristic, byte[] value, int status)
+    {
+        int length = value == null ? 0 : value.length;
+        if (begin(READ, address, UUID_SIZE + 4 + length))
+        {
+            putUuid(characteristic);
+            this._buffer.putInt(status);
+            if (value != null)
+            {
+                this._buffer.put(value);
+            }
+        }
+    }
+
+    public synchronized void onWrite(String address, UUID service, UUID characteristic, byte[] value, boolean withResponse)
+    {
+        if (begin(WRITE, address, 2 * UUID_SIZE + 1 + value.length))
+        {
+            putUuid(service);
+            putUuid(characteristic);
+            this._buffer.put((byte) (withResponse ? 1 : 0));
+            this._buffer.put(value);
+        }
+    }
+
+    public synchronized void onWriteResult(String address, UUID characteristic, int status)
+    {
+        if (begin(WRITE_RESULT, address, UUID_SIZE + 4))
+        {
+            putUuid(characteristic);
+            this._buffer.putInt(status);
+        }
+    }
+
+    public synchronized void onDescriptorRead(String address, UUID characteristic, UUID descriptor, byte[] value, int status)
+    {
+        int length = value == null ? 0 : value.length;
+        if (begin(DESCRIPTOR_READ, address, 2 * UUID_SIZE + 4 + length))
+        {
+            putUuid(characteristic);
+            putUuid(descriptor);
+            this._buffer.putInt(status);
+            if (value != null)
+            {
+                this._buffer.put(value);
+            }
+        }
+    }
+
+    public synchronized void onDescriptorWriteResult(String address, UUID characteristic, UUID descriptor, int status)
+    {
+        if (begin(DESCRIPTOR_WRITE_RESULT, address, 2 * UUID_SIZE + 4))
+        {
+            putUuid(characteristic);
+            putUuid(descriptor);
+            this._buffer.putInt(status);
+        }
+    }
+
+    public synchronized void onRssiRead(String address, int rssi, int status)
+    {
+        if (begin(RSSI, address, 8))
+        {
+            this._buffer.putInt(rssi);
+            this._buffer.putInt(status);
+        }
+    }
+
+    public synchronized void onMtuChanged(String address, int mtu, int status)
+    {
+        if (begin(MTU, address, 8))
+        {
+            this._buffer.putInt(mtu);
+            this._buffer.putInt(status);
+        }
+    }
+
+    /*
+    Writes the header of a record, after making room for it. Returns false if the record must be skipped: the
+    recording is over or the record is longer than the buffer.
+    */
+    private boolean begin(int type, String address, int length)
+    {
+        if (this._closed)
+        {
+            return false;
+        }
+        if (RECORD_HEADER_SIZE + length > this._buffer.capacity() || length > 0xffff)
+        {
+            this._droppedCount++;
+            return false;
+        }
+        if (this._buffer.remaining() < RECORD_HEADER_SIZE + length && !write())
+        {
+            return false;
+        }
+        this._buffer.putLong(System.nanoTime() - this._start);
+        this._buffer.put((byte) type);
+        this._buffer.put(addressBytes(address));
+        this._buffer.putShort((short) length);
+        this._recordCount++;
+        return true;
+    }
+
+    private byte[] addressBytes(String address)
+    {
+        if (address == null)
+        {
+            return NO_ADDRESS;
+        }
+        if (!address.equals(this._address))
+        {
+            this._address = address;
+            this._addressBytes = ReceiveBatch.parseAddress(address);
+        }
+        return this._addressBytes;
+    }
+
+    private void putUuid(UUID uuid)
+    {
+        this._buffer.putLong(uuid.getMostSignificantBits());
+        this._buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    /*
+    Writes the buffer to the file. On error the recording is closed.
+    */
+    private boolean write()
+    {
+        this._buffer.flip();
+        try
+        {
+            while (this._buffer.hasRemaining())
+            {
+                this._channel.write(this._buffer);
+            }
+            this._buffer.clear();
+            return true;
+        }
+        catch (IOException e)
+        {
+            this._error = e;
+            this._buffer.clear();
+            closeChannel();
+            return false;
+        }
+    }
+
+    /*
+    Writes the records in memory to the file
+    */
+    public synchronized boolean flush()
+    {
+        return !this._closed && write();
+    }
+
+    /**
+     * Writes the last records and closes the file. The next records are dropped.
+     *
+     * @return false if the recording ended with an I/O error, see {@link #getError()}
+     */
+    public synchronized boolean close()
+    {
+        if (!this._closed && write())
+        {
+            closeChannel();
+        }
+        return this._error == null;
+    }
+
+    private void closeChannel()
+    {
+        this._closed = true;
+        try
+        {
+            this._channel.close();
+        }
+        catch (IOException e)
+        {
+            if (this._error == null)
+            {
+                this._error = e;
+            }
+        }
+    }
+
+    public synchronized boolean isClosed()
+    {
+        return this._closed;
+    }
+
+    public synchronized long getRecordCount()
+    {
+        return this._recordCount;
+    }
+
+    /*
+    Number of records longer than the buffer, not recorded
+    */
+    public synchronized long getDroppedCount()
+    {
+        return this._droppedCount;
+    }
+
+    /*
+    The error that ended the recording, null if there was none
+    */
+    public synchronized IOException getError()
+    {
+        return this._error;
+    }
+}
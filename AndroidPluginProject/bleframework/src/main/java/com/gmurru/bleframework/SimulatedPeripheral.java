@@ -0,0 +1,457 @@
+package com.gmurru.bleframework;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A RedBearLab BLE shield emulated by {@link SimulatedTransport}.
+ *
+ * The peripheral advertises its name and the BLE shield service, and exposes the RX characteristic (notify, read and
+ * write without response) and the TX characteristic (write). Once its notifications are enabled it streams packets
+ * of getPayloadSize() bytes every getNotificationInterval() ms, starting with a big endian sequence number so the
+ * receiver can count the lost ones. The link is described by a latency range, applied to every event, and by the
+ * rate of lost packets. The settings can be changed at any time, they apply to the next events.
+ *
+ * Custom boards add their own characteristics with addCharacteristic, in the shield service or in other services.
+ * Their values are read and written like any GATT attribute and {@link SimulatedTransport#notifyCharacteristic}
+ * notifies them.
+ */
+public class SimulatedPeripheral
+{
+    public static final UUID SERVICE = UUID.fromString(RBLGattAttributes.BLE_SHIELD_SERVICE);
+    public static final UUID RX = UUID.fromString(RBLGattAttributes.BLE_SHIELD_RX);
+    public static final UUID TX = UUID.fromString(RBLGattAttributes.BLE_SHIELD_TX);
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final String _address;
+    private final String _name;
+
+    private volatile int _rssi = -60;
+    private volatile int _rssiNoise = 4;
+    private volatile long _advertisingInterval = 100;
+    private volatile long _minLatency = 5;
+    private volatile long _maxLatency = 15;
+    private volatile float _lossRate = 0;
+    private volatile long _notificationInterval = 0;
+    private volatile int _payloadSize = 20;
+    private volatile boolean _echo = false;
+    private volatile int _maxMtu = BleTransport.MAX_MTU;
+
+    /*
+    Counters and writes received since the creation of the peripheral or the last resetCounters
+    */
+    private final AtomicLong _notificationsSent = new AtomicLong();
+    private final AtomicLong _notificationsLost = new AtomicLong();
+    private final AtomicLong _discoveries = new AtomicLong();
+    private final List<byte[]> _writes = new ArrayList<byte[]>();
+    private volatile byte[] _value = new byte[0];
+
+    /*
+    Characteristics added with addCharacteristic: their properties by service, and the values of the characteristics
+    and of their descriptors. Guarded by the peripheral.
+    */
+    private final Map<UUID, Map<UUID, Integer>> _characteristics = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+    private final Map<UUID, byte[]> _values = new HashMap<UUID, byte[]>();
+    private final Map<UUID, Map<UUID, byte[]>> _descriptors = new HashMap<UUID, Map<UUID, byte[]>>();
+
+    public SimulatedPeripheral(String address, String name)
+    {
+        this._address = address;
+        this._name = name;
+    }
+
+    public String getAddress()
+    {
+        return this._address;
+    }
+
+    public String getName()
+    {
+        return this._name;
+    }
+
+    /*
+    Mean RSSI of the advertisements and of the RSSI reads, each one varies by up to rssiNoise dBm
+    */
+    public void setRssi(int rssi, int rssiNoise)
+    {
+        this._rssi = rssi;
+        this._rssiNoise = Math.max(rssiNoise, 0);
+    }
+
+    public int getRssi()
+    {
+        return this._rssi;
+    }
+
+    public int getRssiNoise()
+    {
+        return this._rssiNoise;
+    }
+
+    /*
+    Interval between two advertisements received by a scan
+    */
+    public void setAdvertisingInterval(long intervalMs)
+    {
+        this._advertisingInterval = Math.max(intervalMs, 1);
+    }
+
+    public long getAdvertisingInterval()
+    {
+        return this._advertisingInterval;
+    }
+
+    /**
+     * Delay between a request or a notification and its delivery, picked uniformly in [minMs, maxMs] for every
+     * event. The events of a connection are still delivered in order.
+     */
+    public void setLatency(long minMs, long maxMs)
+    {
+        if (minMs < 0 || maxMs < minMs)
+        {
+            throw new IllegalArgumentException("invalid latency range " + minMs + " - " + maxMs);
+        }
+        this._minLatency = minMs;
+        this._maxLatency = maxMs;
+    }
+
+    public long getMinLatency()
+    {
+        return this._minLatency;
+    }
+
+    public long getMaxLatency()
+    {
+        return this._maxLatency;
+    }
+
+    /**
+     * Fraction of the notifications and of the writes without response that are lost, between 0 and 1. The
+     * requests acknowledged by the peripheral are never lost.
+     */
+    public void setLossRate(float lossRate)
+    {
+        if (lossRate < 0 || lossRate > 1)
+        {
+            throw new IllegalArgumentException("lossRate must be between 0 and 1");
+        }
+        this._lossRate = lossRate;
+    }
+
+    public float getLossRate()
+    {
+        return this._lossRate;
+    }
+
+    /**
+     * Streams a notification of payloadSize bytes every intervalMs while the notifications are enabled, or
+     * never when intervalMs is 0.
+     */
+    public void setNotifications(long intervalMs, int payloadSize)
+    {
+        if (payloadSize < 4)
+        {
+            throw new IllegalArgumentException("payloadSize must hold the 4 bytes of the sequence number");
+        }
+        this._notificationInterval = Math.max(intervalMs, 0);
+        this._payloadSize = payloadSize;
+    }
+
+    public long getNotificationInterval()
+    {
+        return this._notificationInterval;
+    }
+
+    public int getPayloadSize()
+    {
+        return this._payloadSize;
+    }
+
+    /*
+    When true every value written on RX is notified back
+    */
+    public void setEcho(boolean echo)
+    {
+        this._echo = echo;
+    }
+
+    public boolean isEcho()
+    {
+        return this._echo;
+    }
+
+    /*
+    Largest MTU accepted in an MTU exchange
+    */
+    public void setMaxMtu(int maxMtu)
+    {
+        this._maxMtu = Math.max(BleTransport.DEFAULT_MTU, Math.min(maxMtu, BleTransport.MAX_MTU));
+    }
+
+    public int getMaxMtu()
+    {
+        return this._maxMtu;
+    }
+
+    /**
+     * @return the advertisement of the peripheral: flags, complete local name and the 128 bits UUID of the service
+     */
+    public byte[] getAdvertisement()
+    {
+        byte[] name = this._name == null ? new byte[0] : this._name.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 2 + name.length + 18).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte)2).put((byte)AdvertisementData.TYPE_FLAGS).put((byte)0x06);
+        buffer.put((byte)(name.length + 1)).put((byte)AdvertisementData.TYPE_COMPLETE_NAME).put(name);
+        buffer.put((byte)17).put((byte)AdvertisementData.TYPE_UUID128_COMPLETE);
+        buffer.putLong(SERVICE.getLeastSignificantBits()).putLong(SERVICE.getMostSignificantBits());
+        return buffer.array();
+    }
+
+    /**
+     * @return the PROPERTY_* bits of a characteristic of the peripheral, 0 if it does not have it
+     */
+    public int getProperties(UUID characteristic)
+    {
+        if (RX.equals(characteristic))
+        {
+            return BleTransport.PROPERTY_READ | BleTransport.PROPERTY_WRITE_NO_RESPONSE | BleTransport.PROPERTY_NOTIFY;
+        }
+        if (TX.equals(characteristic))
+        {
+            return BleTransport.PROPERTY_WRITE;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a characteristic to a service of the peripheral, with its value, empty until written or notified.
+     *
+     * @param properties PROPERTY_* bits of the characteristic
+     */
+    public synchronized void addCharacteristic(UUID service, UUID characteristic, int properties)
+    {
+        Map<UUID, Integer> characteristics = this._characteristics.get(service);
+        if (characteristics == null)
+        {
+            characteristics = new LinkedHashMap<UUID, Integer>();
+            this._characteristics.put(service, characteristics);
+        }
+        characteristics.put(characteristic, properties);
+        this._values.put(characteristic, new byte[0]);
+    }
+
+    /**
+     * @return the shield service followed by the services of the added characteristics
+     */
+    public synchronized List<UUID> getServices()
+    {
+        List<UUID> services = new ArrayList<UUID>();
+        services.add(SERVICE);
+        for (UUID service : this._characteristics.keySet())
+        {
+            if (!SERVICE.equals(service))
+            {
+                services.add(service);
+            }
+        }
+        return services;
+    }
+
+    /**
+     * @return the characteristics of a service, null if the peripheral does not have it
+     */
+    public synchronized List<UUID> getCharacteristics(UUID service)
+    {
+        Map<UUID, Integer> added = this._characteristics.get(service);
+        List<UUID> characteristics = new ArrayList<UUID>();
+        if (SERVICE.equals(service))
+        {
+            characteristics.addAll(Arrays.asList(TX, RX));
+        }
+        else if (added == null)
+        {
+            return null;
+        }
+        if (added != null)
+        {
+            characteristics.addAll(added.keySet());
+        }
+        return characteristics;
+    }
+
+    /**
+     * @return the PROPERTY_* bits of a characteristic of a service, 0 if the peripheral does not have it
+     */
+    public synchronized int getProperties(UUID service, UUID characteristic)
+    {
+        if (SERVICE.equals(service) && getProperties(characteristic) != 0)
+        {
+            return getProperties(characteristic);
+        }
+        Map<UUID, Integer> added = this._characteristics.get(service);
+        Integer properties = added == null ? null : added.get(characteristic);
+        return properties == null ? 0 : properties;
+    }
+
+    /**
+     * @return the value of a characteristic, the one of getValue() for the shield characteristics
+     */
+    public synchronized byte[] getValue(UUID characteristic)
+    {
+        byte[] value = this._values.get(characteristic);
+        return value == null ? this._value : value;
+    }
+
+    /*
+    Changes the value of an added characteristic, without notifying it
+    */
+    public synchronized void setValue(UUID characteristic, byte[] value)
+    {
+        if (this._values.containsKey(characteristic))
+        {
+            this._values.put(characteristic, value.clone());
+        }
+        else
+        {
+            this._value = value.clone();
+        }
+    }
+
+    /**
+     * @return the value of a descriptor of a characteristic, null if it has never been set
+     */
+    public synchronized byte[] getDescriptorValue(UUID characteristic, UUID descriptor)
+    {
+        Map<UUID, byte[]> descriptors = this._descriptors.get(characteristic);
+        return descriptors == null ? null : descriptors.get(descriptor);
+    }
+
+    public synchronized void setDescriptorValue(UUID characteristic, UUID descriptor, byte[] value)
+    {
+        Map<UUID, byte[]> descriptors = this._descriptors.get(characteristic);
+        if (descriptors == null)
+        {
+            descriptors = new HashMap<UUID, byte[]>();
+            this._descriptors.put(characteristic, descriptors);
+        }
+        descriptors.put(descriptor, value.clone());
+    }
+
+    /**
+     * @return the payload of the notification with the given sequence number
+     */
+    public byte[] makeNotification(int sequence)
+    {
+        byte[] payload = new byte[this._payloadSize];
+        ByteBuffer.wrap(payload).putInt(sequence);
+        for (int i = 4; i < payload.length; i++)
+        {
+            payload[i] = (byte)(sequence + i);
+        }
+        return payload;
+    }
+
+    /**
+     * @return the sequence number of a payload built by makeNotification
+     */
+    public static int getSequence(byte[] payload)
+    {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /*
+    Value returned by a read of RX: the last value written or notified
+    */
+    public byte[] getValue()
+    {
+        return this._value;
+    }
+
+    void setValue(byte[] value)
+    {
+        this._value = value;
+    }
+
+    void onWrite(UUID characteristic, byte[] value)
+    {
+        synchronized (this._writes)
+        {
+            this._writes.add(value.clone());
+        }
+        setValue(characteristic, value);
+    }
+
+    void onNotification(boolean lost)
+    {
+        this._notificationsSent.incrementAndGet();
+        if (lost)
+        {
+            this._notificationsLost.incrementAndGet();
+        }
+    }
+
+    void onDiscovery()
+    {
+        this._discoveries.incrementAndGet();
+    }
+
+    /**
+     * @return a copy of the values written on the characteristics of the peripheral, in order
+     */
+    public List<byte[]> getWrites()
+    {
+        synchronized (this._writes)
+        {
+            return new ArrayList<byte[]>(this._writes);
+        }
+    }
+
+    public int getWriteCount()
+    {
+        synchronized (this._writes)
+        {
+            return this._writes.size();
+        }
+    }
+
+    /*
+    Number of notifications sent, including the lost ones
+    */
+    public long getNotificationsSent()
+    {
+        return this._notificationsSent.get();
+    }
+
+    public long getNotificationsLost()
+    {
+        return this._notificationsLost.get();
+    }
+
+    /*
+    Number of service discoveries completed by the centrals
+    */
+    public long getDiscoveryCount()
+    {
+        return this._discoveries.get();
+    }
+
+    public void resetCounters()
+    {
+        synchronized (this._writes)
+        {
+            this._writes.clear();
+        }
+        this._notificationsSent.set(0);
+        this._notificationsLost.set(0);
+        this._discoveries.set(0);
+    }
+}
@@ -0,0 +1,780 @@
+package com.gmurru.bleframework;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BleTransport} emulating {@link SimulatedPeripheral}s in memory, to run the connection logic in JUnit and in
+ * benchmarks without a phone.
+ *
+ * Every event is delivered on a single thread owned by the transport, after the latency of its peripheral. The
+ * events of a connection keep their order, like on Android. The randomness (latency, loss, RSSI noise) comes from a
+ * seeded generator so that a run can be reproduced.
+ */
+public class SimulatedTransport implements BleTransport
+{
+    /*
+    GATT status reported when the link is lost without a reason, GATT_ERROR on Android
+    */
+    public static final int STATUS_LINK_LOST = GATT_ERROR;
+
+    /*
+    A connection with a peripheral
+    */
+    private final class Session
+    {
+        final SimulatedPeripheral peripheral;
+        final GattListener listener;
+
+        /* Events not delivered yet, in order. Their delivery times never decrease. */
+        final ArrayDeque<Event> pending = new ArrayDeque<Event>();
+        long lastDelivery;
+        boolean connected;
+        boolean autoConnect;
+        boolean discovered;
+
+        /* Characteristics whose notifications are enabled locally, and client configurations written on the peripheral */
+        final Set<UUID> notificationsEnabled = new HashSet<UUID>();
+        final Map<UUID, byte[]> configurations = new HashMap<UUID, byte[]>();
+        int mtu = DEFAULT_MTU;
+        int priority = CONNECTION_PRIORITY_BALANCED;
+        int sequence;
+        ScheduledFuture<?> notificationTask;
+
+        Session(SimulatedPeripheral peripheral, GattListener listener)
+        {
+            this.peripheral = peripheral;
+            this.listener = listener;
+        }
+    }
+
+    private static final class Event
+    {
+        final long delivery;
+        final Runnable runnable;
+
+        Event(long delivery, Runnable runnable)
+        {
+            this.delivery = delivery;
+            this.runnable = runnable;
+        }
+    }
+
+    private final Map<String, SimulatedPeripheral> _peripherals = new ConcurrentHashMap<String, SimulatedPeripheral>();
+    private final Map<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
+    private final Set<String> _outOfRange = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Random _random;
+    private final ScheduledExecutorService _executor;
+
+    private ScheduledFuture<?> _scanTask;
+
+    public SimulatedTransport()
+    {
+        this(0);
+    }
+
+    public SimulatedTransport(long seed)
+    {
+        this._random = new Random(seed);
+        this._executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "SimulatedTransport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void addPeripheral(SimulatedPeripheral peripheral)
+    {
+        this._peripherals.put(peripheral.getAddress(), peripheral);
+    }
+
+    public SimulatedPeripheral getPeripheral(String address)
+    {
+        return this._peripherals.get(address);
+    }
+
+    /*
+    Removes the peripheral, as if it was switched off: its connection is lost
+    */
+    public void removePeripheral(String address)
+    {
+        this._peripherals.remove(address);
+        dropConnection(address, STATUS_LINK_LOST);
+    }
+
+    /**
+     * Breaks the link with a connected peripheral, reported with onConnectionStateChanged(false, status).
+     */
+    public synchronized void dropConnection(String address, int status)
+    {
+        Session session = this._sessions.get(address);
+        if (session != null && session.connected)
+        {
+            setDisconnected(session);
+            final GattListener listener = session.listener;
+            final int reason = status;
+            deliver(session, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onConnectionStateChanged(false, reason);
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves a peripheral out of range or back in range. Out of range its connection is lost with
+     * GATT_CONNECTION_TIMEOUT, it is not seen by the scans and the direct connections fail with GATT_ERROR. The
+     * auto connections wait until it comes back.
+     */
+    public synchronized void setInRange(String address, boolean inRange)
+    {
+        if (!inRange)
+        {
+            this._outOfRange.add(address);
+            dropConnection(address, GATT_CONNECTION_TIMEOUT);
+            return;
+        }
+        this._outOfRange.remove(address);
+        Session session = this._sessions.get(address);
+        if (session != null && session.autoConnect && !session.connected)
+        {
+            setConnected(session);
+        }
+    }
+
+    /*
+    Stops the thread of the transport, the events not delivered yet are dropped
+    */
+    public void shutdown()
+    {
+        this._executor.shutdownNow();
+    }
+
+    private synchronized int randomInt(int bound)
+    {
+        return this._random.nextInt(bound);
+    }
+
+    private synchronized boolean isLost(float lossRate)
+    {
+        return lossRate > 0 && this._random.nextFloat() < lossRate;
+    }
+
+    private int noisyRssi(SimulatedPeripheral peripheral)
+    {
+        int noise = peripheral.getRssiNoise();
+        return peripheral.getRssi() + (noise == 0 ? 0 : randomInt(2 * noise + 1) - noise);
+    }
+
+    /*
+    Schedules an event of a connection after the latency of its peripheral, and after the events already scheduled.
+    The executor does not keep the order of the tasks due at close times, so every task delivers the events of the
+    session that are due, oldest first.
+    */
+    private synchronized void deliver(final Session session, Runnable event)
+    {
+        SimulatedPeripheral peripheral = session.peripheral;
+        long latency = peripheral.getMinLatency();
+        if (peripheral.getMaxLatency() > latency)
+        {
+            latency += randomInt((int)(peripheral.getMaxLatency() - latency) + 1);
+        }
+        long now = System.nanoTime();
+        long delivery = Math.max(now + TimeUnit.MILLISECONDS.toNanos(latency), session.lastDelivery);
+        session.lastDelivery = delivery;
+        session.pending.add(new Event(delivery, event));
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                SimulatedTransport.this.deliverPending(session);
+            }
+        }, delivery - now);
+    }
+
+    private void deliverPending(Session session)
+    {
+        while (true)
+        {
+            Event event;
+            synchronized (this)
+            {
+                event = session.pending.peek();
+                if (event == null || event.delivery > System.nanoTime())
+                {
+                    return;
+                }
+                session.pending.poll();
+            }
+            event.runnable.run();
+        }
+    }
+
+    private void schedule(Runnable event, long delayNanos)
+    {
+        if (!this._executor.isShutdown())
+        {
+            this._executor.schedule(event, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Session connectedSession(String address)
+    {
+        Session session = this._sessions.get(address);
+        return session != null && session.connected ? session : null;
+    }
+
+    /*
+    Like a BluetoothGatt, the session keeps its discovered services while it is disconnected
+    */
+    private void setDisconnected(Session session)
+    {
+        session.connected = false;
+        session.autoConnect = false;
+        session.configurations.clear();
+        session.mtu = DEFAULT_MTU;
+        session.priority = CONNECTION_PRIORITY_BALANCED;
+        if (session.notificationTask != null)
+        {
+            session.notificationTask.cancel(false);
+            session.notificationTask = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean startScan(final ScanOptions options, final ScanListener listener)
+    {
+        if (this._scanTask != null)
+        {
+            schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    listener.onScanFailed(SCAN_FAILED_ALREADY_STARTED);
+                }
+            }, 0);
+            return true;
+        }
+        long period = Long.MAX_VALUE;
+        for (SimulatedPeripheral peripheral : this._peripherals.values())
+        {
+            period = Math.min(period, peripheral.getAdvertisingInterval());
+        }
+        if (period == Long.MAX_VALUE)
+        {
+            period = 100;
+        }
+        /* Every peripheral not connected advertises at each round, the shortest advertising interval */
+        this._scanTask = this._executor.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (SimulatedPeripheral peripheral : SimulatedTransport.this._peripherals.values())
+                {
+                    if (SimulatedTransport.this.connectedSession(peripheral.getAddress()) != null
+                            || SimulatedTransport.this._outOfRange.contains(peripheral.getAddress()))
+                    {
+                        continue;
+                    }
+                    byte[] advertisement = peripheral.getAdvertisement();
+                    if (options.matches(peripheral.getAddress(), peripheral.getName(), AdvertisementData.parse(advertisement)))
+                    {
+                        listener.onDeviceFound(peripheral.getAddress(), peripheral.getName(),
+                                SimulatedTransport.this.noisyRssi(peripheral), advertisement);
+                    }
+                }
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized void stopScan()
+    {
+        if (this._scanTask != null)
+        {
+            this._scanTask.cancel(false);
+            this._scanTask = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean connect(String address, GattListener listener, boolean autoConnect)
+    {
+        SimulatedPeripheral peripheral = this._peripherals.get(address);
+        if (peripheral == null)
+        {
+            return false;
+        }
+        /* Like Android, an existing session always reconnects in the background */
+        boolean background = autoConnect;
+        Session session = this._sessions.get(address);
+        if (session == null || session.peripheral != peripheral)
+        {
+            session = new Session(peripheral, listener);
+            this._sessions.put(address, session);
+        }
+        else
+        {
+            background = true;
+        }
+        if (session.connected)
+        {
+            return true;
+        }
+        final GattListener sessionListener = session.listener;
+        if (!this._outOfRange.contains(address))
+        {
+            setConnected(session);
+        }
+        else if (background)
+        {
+            session.autoConnect = true;
+        }
+        else
+        {
+            deliver(session, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sessionListener.onConnectionStateChanged(false, GATT_ERROR);
+                }
+            });
+        }
+        return true;
+    }
+
+    private void setConnected(Session session)
+    {
+        session.connected = true;
+        session.autoConnect = false;
+        final GattListener listener = session.listener;
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onConnectionStateChanged(true, GATT_SUCCESS);
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean disconnect(String address)
+    {
+        Session session = this._sessions.get(address);
+        if (session == null)
+        {
+            return false;
+        }
+        setDisconnected(session);
+        final GattListener listener = session.listener;
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onConnectionStateChanged(false, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized void close(String address)
+    {
+        Session session = this._sessions.remove(address);
+        if (session != null)
+        {
+            setDisconnected(session);
+        }
+    }
+
+    @Override
+    public synchronized boolean discoverServices(String address)
+    {
+        final Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (SimulatedTransport.this)
+                {
+                    if (!session.connected)
+                    {
+                        return;
+                    }
+                    session.discovered = true;
+                }
+                session.peripheral.onDiscovery();
+                session.listener.onServicesDiscovered(GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized List<UUID> getServices(String address)
+    {
+        Session session = connectedSession(address);
+        if (session == null || !session.discovered)
+        {
+            return Collections.emptyList();
+        }
+        return session.peripheral.getServices();
+    }
+
+    @Override
+    public synchronized List<UUID> getCharacteristics(String address, UUID service)
+    {
+        Session session = connectedSession(address);
+        if (session == null || !session.discovered)
+        {
+            return null;
+        }
+        return session.peripheral.getCharacteristics(service);
+    }
+
+    @Override
+    public synchronized int getProperties(String address, UUID service, UUID characteristic)
+    {
+        Session session = connectedSession(address);
+        if (session == null || !session.discovered)
+        {
+            return 0;
+        }
+        return session.peripheral.getProperties(service, characteristic);
+    }
+
+    /*
+    The session of a request on a characteristic of the peripheral, null if the request cannot be started
+    */
+    private Session characteristicSession(String address, UUID service, UUID characteristic, int property)
+    {
+        return (getProperties(address, service, characteristic) & property) != 0 ? this._sessions.get(address) : null;
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(String address, UUID service, final UUID characteristic)
+    {
+        final Session session = characteristicSession(address, service, characteristic, PROPERTY_READ);
+        if (session == null)
+        {
+            return false;
+        }
+        final byte[] value = session.peripheral.getValue(characteristic);
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onCharacteristicRead(characteristic, value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(String address, UUID service, final UUID characteristic,
+            byte[] value, boolean withResponse)
+    {
+        final Session session = characteristicSession(address, service, characteristic,
+                withResponse ? PROPERTY_WRITE : PROPERTY_WRITE_NO_RESPONSE);
+        if (session == null || value.length > session.mtu - ATT_HEADER_SIZE)
+        {
+            return false;
+        }
+        SimulatedPeripheral peripheral = session.peripheral;
+        final byte[] copy = value.clone();
+        if (withResponse || !isLost(peripheral.getLossRate()))
+        {
+            peripheral.onWrite(characteristic, copy);
+            if (peripheral.isEcho() && SimulatedPeripheral.RX.equals(characteristic))
+            {
+                notify(session, characteristic, copy);
+            }
+        }
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    /*
+    The session of a request on a descriptor: the client configuration of the characteristics that notify or indicate,
+    and the descriptors set on the peripheral
+    */
+    private Session descriptorSession(String address, UUID service, UUID characteristic, UUID descriptor)
+    {
+        if (SimulatedPeripheral.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor))
+        {
+            return characteristicSession(address, service, characteristic, PROPERTY_NOTIFY | PROPERTY_INDICATE);
+        }
+        Session session = characteristicSession(address, service, characteristic, 0xFF);
+        return session == null || session.peripheral.getDescriptorValue(characteristic, descriptor) == null ? null : session;
+    }
+
+    private static boolean isSubscribed(Session session, UUID characteristic)
+    {
+        byte[] configuration = session.configurations.get(characteristic);
+        return configuration != null && (configuration[0] & 0x03) != 0;
+    }
+
+    @Override
+    public synchronized boolean readDescriptor(String address, UUID service, final UUID characteristic,
+            final UUID descriptor)
+    {
+        final Session session = descriptorSession(address, service, characteristic, descriptor);
+        if (session == null)
+        {
+            return false;
+        }
+        byte[] configuration = session.configurations.get(characteristic);
+        final byte[] value = !SimulatedPeripheral.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor)
+                ? session.peripheral.getDescriptorValue(characteristic, descriptor)
+                : configuration == null ? new byte[2] : configuration;
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onDescriptorRead(characteristic, descriptor, value, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(String address, UUID service, final UUID characteristic,
+            final UUID descriptor, byte[] value)
+    {
+        final Session session = descriptorSession(address, service, characteristic, descriptor);
+        if (session == null || value.length == 0)
+        {
+            return false;
+        }
+        if (SimulatedPeripheral.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor))
+        {
+            session.configurations.put(characteristic, value.clone());
+            updateNotificationTask(session);
+        }
+        else
+        {
+            session.peripheral.setDescriptorValue(characteristic, descriptor, value);
+        }
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onDescriptorWrite(characteristic, descriptor, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(String address, UUID service, UUID characteristic,
+            boolean enabled)
+    {
+        Session session = characteristicSession(address, service, characteristic, PROPERTY_NOTIFY | PROPERTY_INDICATE);
+        if (session == null)
+        {
+            return false;
+        }
+        if (enabled)
+        {
+            session.notificationsEnabled.add(characteristic);
+        }
+        else
+        {
+            session.notificationsEnabled.remove(characteristic);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean readRssi(String address)
+    {
+        final Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        final int rssi = noisyRssi(session.peripheral);
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onRssiRead(rssi, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(String address, int mtu)
+    {
+        final Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        session.mtu = Math.max(DEFAULT_MTU, Math.min(mtu, session.peripheral.getMaxMtu()));
+        final int negotiated = session.mtu;
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onMtuChanged(negotiated, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(String address, int priority)
+    {
+        Session session = connectedSession(address);
+        if (session == null)
+        {
+            return false;
+        }
+        session.priority = priority;
+        return true;
+    }
+
+    /*
+    MTU negotiated with a connected peripheral, DEFAULT_MTU if it is not connected
+    */
+    public synchronized int getMtu(String address)
+    {
+        Session session = connectedSession(address);
+        return session == null ? DEFAULT_MTU : session.mtu;
+    }
+
+    /*
+    Connection priority requested for a connected peripheral
+    */
+    public synchronized int getConnectionPriority(String address)
+    {
+        Session session = connectedSession(address);
+        return session == null ? CONNECTION_PRIORITY_BALANCED : session.priority;
+    }
+
+    /**
+     * Changes the value of a characteristic of a connected peripheral and notifies it, like a custom board streaming
+     * its sensors.
+     *
+     * @return false if the peripheral is not connected or the characteristic does not notify
+     */
+    public synchronized boolean notifyCharacteristic(String address, UUID service, UUID characteristic, byte[] value)
+    {
+        Session session = characteristicSession(address, service, characteristic, PROPERTY_NOTIFY | PROPERTY_INDICATE);
+        if (session == null)
+        {
+            return false;
+        }
+        notify(session, characteristic, value.clone());
+        return true;
+    }
+
+    /*
+    Sends a notification if the central subscribed to it, counted as lost by the peripheral when it is dropped by the
+    link. Like on Android, the notifications are not delivered while they are disabled locally.
+    */
+    private void notify(final Session session, final UUID characteristic, byte[] payload)
+    {
+        /* Like a real peripheral, only the first MTU - 3 bytes fit in the notification */
+        final byte[] value = payload.length > session.mtu - ATT_HEADER_SIZE
+                ? Arrays.copyOf(payload, session.mtu - ATT_HEADER_SIZE) : payload;
+        session.peripheral.setValue(characteristic, value);
+        if (!isSubscribed(session, characteristic))
+        {
+            return;
+        }
+        boolean lost = isLost(session.peripheral.getLossRate());
+        session.peripheral.onNotification(lost);
+        if (lost || !session.notificationsEnabled.contains(characteristic))
+        {
+            return;
+        }
+        deliver(session, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                session.listener.onCharacteristicChanged(characteristic, value);
+            }
+        });
+    }
+
+    private void updateNotificationTask(final Session session)
+    {
+        long interval = session.peripheral.getNotificationInterval();
+        boolean streaming = isSubscribed(session, SimulatedPeripheral.RX) && interval > 0;
+        if (streaming == (session.notificationTask != null))
+        {
+            return;
+        }
+        if (!streaming)
+        {
+            session.notificationTask.cancel(false);
+            session.notificationTask = null;
+            return;
+        }
+        session.notificationTask = this._executor.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (SimulatedTransport.this)
+                {
+                    if (session.connected)
+                    {
+                        SimulatedTransport.this.notify(session, SimulatedPeripheral.RX,
+                                session.peripheral.makeNotification(session.sequence++));
+                    }
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+}
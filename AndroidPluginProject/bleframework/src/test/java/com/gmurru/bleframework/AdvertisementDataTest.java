@@ -0,0 +1,40 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementDataTest {
+    @Test
+    public void parsesTheStructuresOfAScanRecord() throws Exception {
+        byte[] record = {
+                2, 0x01, 0x06,
+                3, 0x03, 0x0d, 0x18,
+                17, 0x07, 0x1e, (byte) 0x94, (byte) 0x8d, (byte) 0xf1, 0x48, 0x31, (byte) 0x94, (byte) 0xba,
+                0x75, 0x4c, 0x3e, 0x50, 0x00, 0x00, 0x3d, 0x71,
+                2, 0x0a, (byte) 0xfc,
+                5, (byte) 0xff, 0x4c, 0x00, 0x01, 0x02,
+                4, 0x09, 'B', 'L', 'E',
+                0, 0, 0
+        };
+        AdvertisementData data = AdvertisementData.parse(record);
+
+        assertEquals(0x06, data.getFlags());
+        assertEquals("BLE", data.getLocalName());
+        assertEquals(-4, data.getTxPowerLevel());
+        assertTrue(data.hasServiceUuid(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb")));
+        assertTrue(data.hasServiceUuid(UUID.fromString(RBLGattAttributes.BLE_SHIELD_SERVICE)));
+        assertArrayEquals(new byte[]{1, 2}, data.getManufacturerData().get(0x004c));
+    }
+
+    @Test
+    public void truncatedRecordKeepsTheCompleteStructures() throws Exception {
+        byte[] record = {2, 0x01, 0x06, 9, 0x09, 'c', 'u', 't'};
+        AdvertisementData data = AdvertisementData.parse(record);
+        assertEquals(0x06, data.getFlags());
+        assertNull(data.getLocalName());
+        assertSame(AdvertisementData.EMPTY, AdvertisementData.parse(null));
+    }
+}
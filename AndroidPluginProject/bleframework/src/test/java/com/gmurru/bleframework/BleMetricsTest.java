@@ -0,0 +1,50 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BleMetricsTest {
+    @Test
+    public void countsThePacketsAndTheirDelivery() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        metrics.onPacketReceived(20);
+        metrics.onPacketReceived(12);
+        metrics.onPacketSent(5);
+        metrics.getDeliveryLatency().record(3000000);
+
+        long[] snapshot = metrics.snapshot(Collections.<GattConnection>emptyList(), new long[BleMetrics.SNAPSHOT_SIZE]);
+        assertEquals(2, snapshot[BleMetrics.PACKETS_IN]);
+        assertEquals(32, snapshot[BleMetrics.BYTES_IN]);
+        assertEquals(1, snapshot[BleMetrics.PACKETS_OUT]);
+        assertEquals(5, snapshot[BleMetrics.BYTES_OUT]);
+        assertEquals(1, snapshot[BleMetrics.DELIVERIES]);
+        assertEquals(3000, snapshot[BleMetrics.DELIVERY_LATENCY_MAX]);
+    }
+
+    @Test
+    public void keepsTheFailuresOfClosedConnectionsUntilReset() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        GattConnection connection = new GattConnection(new SimulatedTransport(1), "00:11:22:AA:BB:CC", null);
+        List<GattConnection> connections = Collections.singletonList(connection);
+
+        /* Not connected: the transport refuses the write */
+        connection.getOperationQueue().enqueue(GattOperation.writeCharacteristic(
+                SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, new byte[]{1}, false));
+        long[] snapshot = metrics.snapshot(connections, new long[BleMetrics.SNAPSHOT_SIZE]);
+        assertEquals(1, snapshot[BleMetrics.FAILED_WRITES]);
+        assertEquals(0, snapshot[BleMetrics.QUEUE_DEPTH]);
+
+        metrics.reset(connections);
+        assertEquals(0, metrics.snapshot(connections, snapshot)[BleMetrics.FAILED_WRITES]);
+
+        connection.getOperationQueue().enqueue(GattOperation.writeCharacteristic(
+                SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, new byte[]{2}, false));
+        metrics.retire(connection);
+        snapshot = metrics.snapshot(Collections.<GattConnection>emptyList(), snapshot);
+        assertEquals(1, snapshot[BleMetrics.FAILED_WRITES]);
+    }
+}
@@ -0,0 +1,30 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void releasedBuffersAreReused() throws Exception {
+        BufferPool pool = new BufferPool(3, 2);
+        byte[] first = pool.acquire();
+        pool.release(first);
+
+        assertSame(first, pool.acquire());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void poolKeepsOnlyItsCapacityAndItsSize() throws Exception {
+        BufferPool pool = new BufferPool(3, 2);
+        pool.release(new byte[3]);
+        pool.release(new byte[3]);
+        pool.release(new byte[3]);
+        pool.release(new byte[4]);
+        pool.release(null);
+
+        assertEquals(2, pool.getFreeCount());
+        assertEquals(3, pool.acquire().length);
+    }
+}
@@ -0,0 +1,67 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+    @Test
+    public void followsTheConnectionLifecycle() throws Exception {
+        final List<String> changes = new ArrayList<String>();
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        machine.setListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionState from, ConnectionState to) {
+                changes.add(from + ">" + to);
+            }
+        });
+
+        assertTrue(machine.moveTo(ConnectionState.SCANNING));
+        assertTrue(machine.moveTo(ConnectionState.CONNECTING));
+        assertFalse(machine.moveTo(ConnectionState.READY));
+        assertTrue(machine.moveTo(ConnectionState.CONNECTING, ConnectionState.DISCOVERING));
+        assertTrue(machine.moveTo(ConnectionState.READY));
+        assertFalse(machine.moveTo(ConnectionState.SCANNING, ConnectionState.IDLE));
+        assertTrue(machine.moveTo(ConnectionState.DISCONNECTING));
+        assertEquals(ConnectionState.DISCONNECTING, machine.reset(ConnectionState.IDLE));
+
+        assertEquals(ConnectionState.IDLE, machine.get());
+        assertEquals(6, changes.size());
+        assertEquals("DISCONNECTING>IDLE", changes.get(5));
+    }
+
+    @Test
+    public void onlyOneThreadWinsATransition() throws Exception {
+        final ConnectionStateMachine machine = new ConnectionStateMachine();
+        final AtomicInteger winners = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (machine.moveTo(ConnectionState.IDLE, ConnectionState.CONNECTING)) {
+                        winners.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, winners.get());
+        assertEquals(ConnectionState.CONNECTING, machine.get());
+    }
+}
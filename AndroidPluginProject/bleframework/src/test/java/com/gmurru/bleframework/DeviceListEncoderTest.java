@@ -0,0 +1,136 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DeviceListEncoderTest {
+    private static final String FIRST = "00:11:22:AA:BB:01";
+    private static final String SECOND = "00:11:22:AA:BB:02";
+
+    @Test
+    public void fullExportListsEveryNamedDevice() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.update(FIRST, "Shield", -60, null, 1000);
+        registry.update(SECOND, null, -70, null, 1000);
+        DeviceListEncoder encoder = new DeviceListEncoder();
+
+        assertEquals(1, encoder.encode(registry, 0, true, 1250));
+        assertEquals(DeviceListEncoder.FLAG_FULL, encoder.getFlags());
+        assertEquals(registry.getVersion(), encoder.getVersion());
+
+        ByteBuffer buffer = encoder.getBuffer();
+        int record = DeviceListEncoder.HEADER_SIZE;
+        assertEquals(0xBB, buffer.get(record + 4) & 0xFF);
+        assertEquals(0x01, buffer.get(record + 5));
+        assertEquals(0, buffer.get(record + 6));
+        assertEquals(-60, buffer.get(record + 7));
+        assertEquals(0, buffer.getInt(record + 8));
+        assertEquals(250, buffer.getInt(record + 12));
+        assertEquals(6, buffer.get(record + 16));
+        assertEquals(DeviceListEncoder.RECORD_HEADER_SIZE + 6, encoder.size() - DeviceListEncoder.HEADER_SIZE);
+
+        assertEquals(2, encoder.encode(registry, 0, false, 1250));
+    }
+
+    @Test
+    public void deltaExportHasOnlyTheChangedAndRemovedDevices() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.update(FIRST, "Shield", -60, null, 0);
+        registry.update(SECOND, "Robot", -70, null, 0);
+        DeviceListEncoder encoder = new DeviceListEncoder();
+        encoder.encode(registry, 0, true, 0);
+        long version = encoder.getVersion();
+
+        assertEquals(0, encoder.encode(registry, version, true, 0));
+        assertEquals(0, encoder.getFlags());
+
+        registry.update(SECOND, "Robot", -65, null, 100);
+        registry.remove(FIRST);
+        assertEquals(2, encoder.encode(registry, version, true, 100));
+        assertEquals(0, encoder.getFlags());
+        assertEquals(1, encoder.getBuffer().getInt(28));
+
+        ByteBuffer buffer = encoder.getBuffer();
+        int changed = DeviceListEncoder.HEADER_SIZE;
+        int removed = changed + DeviceListEncoder.RECORD_HEADER_SIZE + 5;
+        assertEquals(0x02, buffer.get(changed + 5));
+        assertEquals(0, buffer.get(changed + 6));
+        assertEquals(0x01, buffer.get(removed + 5));
+        assertEquals(DeviceListEncoder.RECORD_REMOVED, buffer.get(removed + 6));
+    }
+
+    @Test
+    public void invalidatedRegistryForcesAFullExport() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.update(FIRST, "Shield", -60, null, 0);
+        DeviceListEncoder encoder = new DeviceListEncoder();
+        encoder.encode(registry, 0, true, 0);
+        long version = encoder.getVersion();
+
+        registry.invalidate();
+        assertEquals(1, encoder.encode(registry, version, true, 0));
+        assertEquals(DeviceListEncoder.FLAG_FULL, encoder.getFlags());
+    }
+
+    @Test
+    public void exportTooLargeForTheBufferContinuesWithTheNextOne() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append('x');
+        }
+        for (int i = 0; i < 10; i++) {
+            registry.update(String.format("00:11:22:AA:BB:%02X", i), name.toString(), -60, null, 0);
+        }
+        registry.update("00:11:22:AA:BB:00", name.toString(), -60, null, 100);
+        DeviceListEncoder encoder = new DeviceListEncoder(DeviceListEncoder.HEADER_SIZE
+                + DeviceListEncoder.RECORD_HEADER_SIZE + DeviceListEncoder.MAX_NAME_SIZE);
+
+        assertEquals(2, encoder.encode(registry, 0, true, 0));
+        assertEquals(DeviceListEncoder.FLAG_FULL | DeviceListEncoder.FLAG_TRUNCATED, encoder.getFlags());
+        int total = 2;
+        for (int i = 0; i < 10 && (encoder.getFlags() & DeviceListEncoder.FLAG_TRUNCATED) != 0; i++) {
+            total += encoder.encode(registry, encoder.getVersion(), true, 0);
+        }
+        assertEquals(0, encoder.getFlags() & DeviceListEncoder.FLAG_TRUNCATED);
+        assertEquals(10, total);
+        assertEquals(registry.getVersion(), encoder.getVersion());
+    }
+
+    @Test
+    public void namesAreEncodedInUtf8AndCutOnACharacterBoundary() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 128; i++) {
+            name.append("\u00e9");
+        }
+        registry.update(FIRST, name.toString(), -60, null, 0);
+        DeviceListEncoder encoder = new DeviceListEncoder();
+        encoder.encode(registry, 0, true, 0);
+
+        ByteBuffer buffer = encoder.getBuffer();
+        int length = buffer.get(DeviceListEncoder.HEADER_SIZE + 16) & 0xFF;
+        assertEquals(254, length);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(DeviceListEncoder.HEADER_SIZE + DeviceListEncoder.RECORD_HEADER_SIZE);
+        view.get(bytes);
+        assertEquals(name.substring(0, 127), new String(bytes, "UTF-8"));
+    }
+
+    @Test
+    public void emptyJsonListHasNoDevice() throws Exception {
+        assertEquals("{\"data\":[]}", DeviceListEncoder.toJson(Collections.<DeviceRegistry.Entry>emptyList()));
+
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.update(FIRST, "Shield", -60, null, 0);
+        registry.update(SECOND, "Robot", -60, null, 0);
+        assertEquals("{\"data\":[\"" + FIRST + "\",\"" + SECOND + "\"]}",
+                DeviceListEncoder.toJson(new ArrayList<DeviceRegistry.Entry>(registry.snapshot())));
+    }
+}
@@ -0,0 +1,107 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    @Test
+    public void advertisementsOfTheSameDeviceUpdateOneEntry() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(1000, 0.5f);
+        DeviceRegistry.Entry first = registry.update("00:00:00:00:00:01", "Shield", -80, null, 0);
+        DeviceRegistry.Entry second = registry.update("00:00:00:00:00:01", null, -60, null, 100);
+
+        assertSame(first, second);
+        assertEquals(1, registry.size());
+        assertEquals(-60, second.getRssi());
+        assertEquals(-70f, second.getSmoothedRssi(), 0.001f);
+        assertEquals(0, second.getFirstSeen());
+        assertEquals(100, second.getLastSeen());
+        assertEquals(2, second.getSightings());
+        assertEquals("Shield", second.getName());
+    }
+
+    @Test
+    public void advertisedNameIsUsedWhenTheSystemHasNone() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        byte[] record = {6, AdvertisementData.TYPE_COMPLETE_NAME, 'R', 'o', 'b', 'o', 't'};
+        assertEquals("Robot", registry.update("00:00:00:00:00:01", null, -50, record, 0).getName());
+    }
+
+    @Test
+    public void devicesNotSeenExpire() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(1000, 0.5f);
+        registry.update("00:00:00:00:00:01", "old", -50, null, 0);
+        registry.update("00:00:00:00:00:02", "new", -50, null, 900);
+        registry.update("00:00:00:00:00:03", "connected", -50, null, 0);
+        registry.touch("00:00:00:00:00:03", 900);
+
+        List<DeviceRegistry.Entry> removed = new ArrayList<DeviceRegistry.Entry>();
+        assertEquals(1, registry.removeExpired(1500, removed));
+        assertEquals("00:00:00:00:00:01", removed.get(0).getAddress());
+        assertFalse(registry.contains("00:00:00:00:00:01"));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void snapshotsAreSortedByDiscoveryOrSignal() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.update("00:00:00:00:00:01", "far", -90, null, 0);
+        registry.update("00:00:00:00:00:02", "near", -40, null, 0);
+        registry.update("00:00:00:00:00:03", "middle", -60, null, 0);
+
+        List<DeviceRegistry.Entry> byDiscovery = registry.snapshot();
+        assertEquals("far", byDiscovery.get(0).getName());
+        assertEquals("middle", byDiscovery.get(2).getName());
+
+        List<DeviceRegistry.Entry> bySignal = registry.snapshot(DeviceRegistry.BY_SIGNAL);
+        assertEquals("near", bySignal.get(0).getName());
+        assertEquals("middle", bySignal.get(1).getName());
+        assertEquals("far", bySignal.get(2).getName());
+    }
+
+    @Test
+    public void everyChangeTakesANewVersion() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        DeviceRegistry.Entry entry = registry.update("00:00:00:00:00:01", "Shield", -50, null, 0);
+        long added = entry.getVersion();
+        registry.touch("00:00:00:00:00:01", 100);
+        assertTrue(entry.getVersion() > added);
+        assertEquals(entry.getVersion(), registry.getVersion());
+
+        long beforeRemoval = registry.getVersion();
+        registry.remove("00:00:00:00:00:01");
+        assertTrue(registry.getVersion() > beforeRemoval);
+        assertTrue(registry.hasChangesSince(beforeRemoval));
+
+        registry.invalidate();
+        assertFalse(registry.hasChangesSince(beforeRemoval));
+        assertTrue(registry.hasChangesSince(registry.getVersion()));
+    }
+
+    @Test
+    public void onlyTheLastRemovalsAreKept() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(0, 0.5f);
+        long start = registry.getVersion();
+        for (int i = 0; i <= DeviceRegistry.MAX_REMOVED; i++) {
+            String address = String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF);
+            registry.update(address, null, -50, null, 0);
+            registry.remove(address);
+        }
+
+        assertFalse(registry.hasChangesSince(start));
+        final List<DeviceRegistry.Entry> removed = new ArrayList<DeviceRegistry.Entry>();
+        registry.forEachRemovedSince(start, new DeviceRegistry.RemovedVisitor() {
+            @Override
+            public boolean visit(DeviceRegistry.Entry entry) {
+                removed.add(entry);
+                return true;
+            }
+        });
+        assertEquals(DeviceRegistry.MAX_REMOVED, removed.size());
+        assertEquals("00:00:00:00:00:01", removed.get(0).getAddress());
+    }
+}
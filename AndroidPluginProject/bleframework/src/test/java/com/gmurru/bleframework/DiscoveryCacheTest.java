@@ -0,0 +1,32 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryCacheTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    @Test
+    public void keepsTheKnownLayoutOfABoard() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache();
+        ServiceLayout first = ServiceLayoutTest.shieldLayout();
+
+        assertSame(first, cache.put(ADDRESS, first));
+        assertSame(first, cache.put(ADDRESS, ServiceLayoutTest.shieldLayout()));
+        assertSame(first, cache.get(ADDRESS));
+        assertNull(cache.get("00:11:22:AA:BB:CD"));
+    }
+
+    @Test
+    public void emptyLayoutsAreNotKept() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache();
+        cache.put(ADDRESS, ServiceLayoutTest.shieldLayout());
+
+        assertSame(ServiceLayout.EMPTY, cache.put(ADDRESS, ServiceLayout.EMPTY));
+        assertEquals(ServiceLayoutTest.shieldLayout(), cache.get(ADDRESS));
+
+        cache.remove(ADDRESS);
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,117 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+    private final FrameCodec sender = new FrameCodec(512);
+    private final FrameCodec receiver = new FrameCodec(512);
+    private final List<byte[]> messages = new ArrayList<byte[]>();
+    private final FrameCodec.MessageListener collector = new FrameCodec.MessageListener() {
+        @Override
+        public void onMessage(byte[] message, int length) {
+            messages.add(Arrays.copyOf(message, length));
+        }
+    };
+
+    private static byte[] message(int length, int seed) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (seed + i);
+        }
+        return message;
+    }
+
+    private void receive(List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            receiver.decode(frame, collector);
+        }
+    }
+
+    @Test
+    public void messagesAreSplitInFramesFittingThePacket() throws Exception {
+        for (int length : new int[]{0, 1, 14, 15, 300}) {
+            byte[] message = message(length, length);
+            List<byte[]> frames = sender.encode(message, 20);
+            assertEquals(Math.max(1, (length + 13) / 14), frames.size());
+            for (byte[] frame : frames) {
+                assertTrue(frame.length <= 20);
+                assertEquals(FrameCodec.SYNC, frame[0]);
+            }
+            receive(frames);
+            assertArrayEquals(message, messages.get(messages.size() - 1));
+        }
+        assertEquals(5, messages.size());
+        assertEquals(0, receiver.getLostCount());
+    }
+
+    @Test
+    public void framesAreReadFromAStreamWithoutPacketBoundaries() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            for (byte[] frame : sender.encode(message(100, i), 20)) {
+                stream.write(frame, 0, frame.length);
+            }
+        }
+        byte[] bytes = stream.toByteArray();
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            receiver.decode(Arrays.copyOfRange(bytes, offset, Math.min(offset + 7, bytes.length)), collector);
+        }
+
+        assertEquals(3, messages.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(message(100, i), messages.get(i));
+        }
+    }
+
+    @Test
+    public void aMissingFrameLosesOnlyItsMessage() throws Exception {
+        List<byte[]> frames = sender.encode(message(50, 0), 20);
+        frames.remove(1);
+        receive(frames);
+        sender.encode(message(5, 0), 20);
+        receive(sender.encode(message(5, 1), 20));
+
+        /* The incomplete message and the message never received */
+        assertEquals(1, messages.size());
+        assertArrayEquals(message(5, 1), messages.get(0));
+        assertEquals(2, receiver.getLostCount());
+    }
+
+    @Test
+    public void duplicatesAreIgnored() throws Exception {
+        List<byte[]> frames = sender.encode(message(30, 0), 20);
+        receive(frames);
+        receive(frames);
+        receive(sender.encode(message(3, 0), 20));
+
+        assertEquals(2, messages.size());
+        assertEquals(frames.size(), receiver.getDuplicateCount());
+        assertEquals(0, receiver.getLostCount());
+    }
+
+    @Test
+    public void corruptedFramesAreSkipped() throws Exception {
+        receive(sender.encode(message(10, 0), 20));
+        List<byte[]> frames = sender.encode(message(10, 1), 20);
+        frames.get(0)[7] ^= 0x01;
+        receive(frames);
+        receive(sender.encode(message(10, 2), 20));
+
+        assertEquals(2, messages.size());
+        assertArrayEquals(message(10, 2), messages.get(1));
+        assertEquals(1, receiver.getCorruptCount());
+        assertEquals(1, receiver.getLostCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void messagesNeedingTooManyFramesAreRefused() throws Exception {
+        sender.encode(new byte[FrameCodec.MAX_FRAMES * 14 + 1], 20);
+    }
+}
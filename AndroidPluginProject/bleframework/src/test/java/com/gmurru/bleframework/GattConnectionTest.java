@@ -0,0 +1,591 @@
+package com.gmurru.bleframework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GattConnectionTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID IMU_SERVICE = UUID.fromString("a3c40000-6e5c-4d8e-9f3b-2b1c7e0f4a10");
+    private static final UUID IMU = UUID.fromString("a3c40001-6e5c-4d8e-9f3b-2b1c7e0f4a10");
+    private static final UUID COMMAND = UUID.fromString("a3c40002-6e5c-4d8e-9f3b-2b1c7e0f4a10");
+    private static final UUID BATTERY_SERVICE = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY_LEVEL = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    private final List<byte[]> received = new ArrayList<byte[]>();
+    private final AtomicInteger discoveries = new AtomicInteger();
+    private final AtomicInteger reconnections = new AtomicInteger();
+    private final AtomicInteger notifications = new AtomicInteger();
+    private final List<byte[]> attributeReads = new ArrayList<byte[]>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private SimulatedTransport transport;
+    private SimulatedPeripheral peripheral;
+    private GattConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new SimulatedTransport(42);
+        peripheral = new SimulatedPeripheral(ADDRESS, "Biscuit");
+        peripheral.setLatency(0, 2);
+        transport.addPeripheral(peripheral);
+
+        connection = new GattConnection(transport, ADDRESS, new GattConnection.Callback() {
+            @Override
+            public void onConnectionStateChange(GattConnection connection, boolean connected) {
+                if (!connected) {
+                    disconnected.countDown();
+                }
+            }
+
+            @Override
+            public void onServicesDiscovered(GattConnection connection) {
+                /* Same setup as BleFramework */
+                connection.cacheCharacteristic(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX);
+                connection.setCharacteristicNotification(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, true);
+                discoveries.incrementAndGet();
+                ready.countDown();
+            }
+
+            @Override
+            public void onRssiRead(GattConnection connection, int rssi) {
+            }
+
+            @Override
+            public void onMtuChanged(GattConnection connection, int mtu) {
+            }
+
+            @Override
+            public void onDataAvailable(GattConnection connection, byte[] value, int length) {
+                synchronized (received) {
+                    received.add(connection.getReceiveBuffer().poll());
+                }
+            }
+
+            @Override
+            public void onReconnecting(GattConnection connection, int attempt, long delayMs) {
+                reconnections.incrementAndGet();
+            }
+
+            @Override
+            public void onNotification(GattConnection connection, GattSubscription subscription, byte[] value, int length) {
+                notifications.incrementAndGet();
+            }
+
+            @Override
+            public void onAttributeRead(GattConnection connection, UUID characteristic, UUID descriptor, byte[] value,
+                    int status) {
+                synchronized (attributeReads) {
+                    attributeReads.add(value.clone());
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        transport.shutdown();
+    }
+
+    private void setReconnectPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts, boolean autoConnect) {
+        ReconnectPolicy policy = new ReconnectPolicy(initialDelayMs, maxDelayMs, maxAttempts, autoConnect, new Random(7));
+        connection.setReconnectPolicy(policy, new GattConnection.ReconnectScheduler() {
+            @Override
+            public void schedule(Runnable attempt, long delayMs) {
+                executor.schedule(attempt, delayMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void waitForState(final ConnectionState state) throws Exception {
+        waitUntil(state.name(), new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getState() == state;
+            }
+        });
+    }
+
+    private void addCustomCharacteristics() {
+        peripheral.addCharacteristic(IMU_SERVICE, IMU, BleTransport.PROPERTY_NOTIFY);
+        peripheral.addCharacteristic(IMU_SERVICE, COMMAND, BleTransport.PROPERTY_WRITE);
+        peripheral.addCharacteristic(BATTERY_SERVICE, BATTERY_LEVEL, BleTransport.PROPERTY_READ | BleTransport.PROPERTY_INDICATE);
+    }
+
+    private void waitForIdleQueue() throws Exception {
+        waitUntil("idle queue", new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getOperationQueue().isIdle();
+            }
+        });
+    }
+
+    private void waitForNotifications(final int count) throws Exception {
+        waitUntil(count + " notifications", new Condition() {
+            @Override
+            public boolean isMet() {
+                return notifications.get() == count;
+            }
+        });
+    }
+
+    private void waitForAttributeReads(final int count) throws Exception {
+        waitUntil(count + " attribute reads", new Condition() {
+            @Override
+            public boolean isMet() {
+                synchronized (attributeReads) {
+                    return attributeReads.size() == count;
+                }
+            }
+        });
+    }
+
+    private int receivedCount() {
+        synchronized (received) {
+            return received.size();
+        }
+    }
+
+    private static void waitUntil(String what, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.isMet()) {
+            assertTrue("timeout waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    @Test
+    public void connectsAndDiscoversTheShieldService() throws Exception {
+        assertTrue(connection.connect());
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        assertEquals(ConnectionState.READY, connection.getState());
+        assertTrue(connection.getServices().contains(SimulatedPeripheral.SERVICE));
+        assertTrue(connection.getCharacteristics(SimulatedPeripheral.SERVICE).contains(SimulatedPeripheral.RX));
+        assertTrue(connection.supportsWriteWithoutResponse(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX));
+
+        connection.disconnect();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionState.IDLE, connection.getState());
+    }
+
+    @Test
+    public void connectFailsForAnUnknownDevice() throws Exception {
+        GattConnection unknown = new GattConnection(transport, "00:00:00:00:00:01", null);
+
+        assertFalse(unknown.connect());
+        assertEquals(ConnectionState.IDLE, unknown.getState());
+    }
+
+    @Test
+    public void lostNotificationsAreMissingFromTheReceivedSequence() throws Exception {
+        peripheral.setNotifications(1, 20);
+        peripheral.setLossRate(0.2f);
+
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        waitUntil("notifications", new Condition() {
+            @Override
+            public boolean isMet() {
+                return peripheral.getNotificationsSent() >= 200;
+            }
+        });
+        connection.disconnect();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+
+        long lost = peripheral.getNotificationsLost();
+        assertTrue(lost > 0);
+        assertEquals(peripheral.getNotificationsSent() - lost, receivedCount());
+        int previous = -1;
+        for (byte[] packet : received) {
+            int sequence = SimulatedPeripheral.getSequence(packet);
+            assertTrue(sequence > previous);
+            previous = sequence;
+        }
+    }
+
+    @Test
+    public void writesAreEchoedInOrder() throws Exception {
+        peripheral.setEcho(true);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(connection.write(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, new byte[]{(byte) i}, false));
+        }
+        waitUntil("echoes", new Condition() {
+            @Override
+            public boolean isMet() {
+                return receivedCount() == 10;
+            }
+        });
+
+        assertEquals(10, peripheral.getWriteCount());
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, received.get(i));
+        }
+        waitUntil("queue idle", new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getOperationQueue().isIdle();
+            }
+        });
+    }
+
+    @Test
+    public void pingEchoesAreRecordedAndNotDelivered() throws Exception {
+        peripheral.setEcho(true);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        final BleMetrics metrics = new BleMetrics();
+        PingProbe probe = new PingProbe(metrics);
+        connection.setPingProbe(probe);
+
+        byte[] ping = new byte[PingProbe.PACKET_SIZE];
+        assertEquals(PingProbe.PACKET_SIZE, probe.nextPing(0, ping));
+        assertTrue(connection.writeCommand(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, ping, ping.length,
+                false, GattOperation.NO_CHANNEL));
+        assertTrue(connection.write(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, new byte[]{1}, false));
+        waitUntil("echoes", new Condition() {
+            @Override
+            public boolean isMet() {
+                return receivedCount() == 1 && metrics.getRoundTrip().getCount() == 1;
+            }
+        });
+
+        assertFalse(probe.isPending());
+        assertArrayEquals(new byte[]{1}, received.get(0));
+    }
+
+    @Test
+    public void largeMessagesAreFragmentedToTheNegotiatedMtu() throws Exception {
+        peripheral.setEcho(true);
+        peripheral.setMaxMtu(30);
+        connection.setReassemblyEnabled(true);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        waitUntil("MTU exchange", new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getMtu() == 30;
+            }
+        });
+        assertEquals(27, connection.getMaxPayloadSize());
+
+        byte[] message = new byte[60];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        assertTrue(connection.writeMessage(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, message, false));
+        waitUntil("echo", new Condition() {
+            @Override
+            public boolean isMet() {
+                return receivedCount() == 1;
+            }
+        });
+
+        /* 27 + 27 + 6 bytes, joined back by the reassembler */
+        assertEquals(3, peripheral.getWriteCount());
+        assertArrayEquals(message, received.get(0));
+    }
+
+    @Test
+    public void fullPacketsAreKeptApartWithoutReassembly() throws Exception {
+        peripheral.setEcho(true);
+        peripheral.setMaxMtu(30);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        waitUntil("MTU exchange", new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getMtu() == 30;
+            }
+        });
+
+        byte[] message = new byte[54];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        assertTrue(connection.writeMessage(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, message, false));
+        waitUntil("echo", new Condition() {
+            @Override
+            public boolean isMet() {
+                return receivedCount() == 2;
+            }
+        });
+
+        /* Two full packets, without the empty one ending the message, each delivered on its own */
+        assertEquals(2, peripheral.getWriteCount());
+        assertArrayEquals(Arrays.copyOfRange(message, 0, 27), received.get(0));
+        assertArrayEquals(Arrays.copyOfRange(message, 27, 54), received.get(1));
+    }
+
+    @Test
+    public void framedMessagesLargerThanThePacketAreEchoedWhole() throws Exception {
+        peripheral.setEcho(true);
+        peripheral.setMaxMtu(BleTransport.DEFAULT_MTU);
+        connection.setFramingEnabled(true);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        byte[] message = new byte[300];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        assertTrue(connection.writeMessage(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, message, false));
+        waitUntil("echo", new Condition() {
+            @Override
+            public boolean isMet() {
+                return receivedCount() == 1;
+            }
+        });
+
+        assertEquals(22, peripheral.getWriteCount());
+        assertArrayEquals(message, received.get(0));
+        assertEquals(0, connection.getFrameCodec().getLostCount());
+    }
+
+    @Test
+    public void aKnownBoardGetsItsCachedLayoutBack() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache();
+        connection.setDiscoveryCache(cache);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        ServiceLayout layout = connection.getServiceLayout();
+        assertSame(layout, cache.get(ADDRESS));
+        assertEquals(BleTransport.PROPERTY_READ | BleTransport.PROPERTY_WRITE_NO_RESPONSE | BleTransport.PROPERTY_NOTIFY,
+                layout.getProperties(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX));
+
+        /* A new session must be discovered, but gives the same layout */
+        connection.close();
+        assertNull(connection.getServiceLayout());
+        assertTrue(connection.getServices().isEmpty());
+        connection.connect();
+        waitUntil("services", new Condition() {
+            @Override
+            public boolean isMet() {
+                return discoveries.get() == 2;
+            }
+        });
+        assertEquals(2, peripheral.getDiscoveryCount());
+        assertSame(layout, connection.getServiceLayout());
+    }
+
+    @Test
+    public void autoConnectReconnectionReusesTheDiscoveredServices() throws Exception {
+        setReconnectPolicy(20, 200, ReconnectPolicy.UNLIMITED_ATTEMPTS, true);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        transport.setInRange(ADDRESS, false);
+        /* The attempt waits in the background until the device advertises again */
+        waitForState(ConnectionState.CONNECTING);
+        Thread.sleep(100);
+        assertEquals(ConnectionState.CONNECTING, connection.getState());
+        assertEquals(1, reconnections.get());
+
+        transport.setInRange(ADDRESS, true);
+        waitUntil("services", new Condition() {
+            @Override
+            public boolean isMet() {
+                return discoveries.get() == 2;
+            }
+        });
+        assertEquals(ConnectionState.READY, connection.getState());
+        assertEquals(1, peripheral.getDiscoveryCount());
+        assertEquals(0, connection.getReconnectAttempts());
+        assertEquals(1, disconnected.getCount());
+
+        peripheral.setEcho(true);
+        assertTrue(connection.write(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, new byte[]{42}, false));
+        waitUntil("echo", new Condition() {
+            @Override
+            public boolean isMet() {
+                return receivedCount() == 1;
+            }
+        });
+    }
+
+    @Test
+    public void directReconnectionRetriesWithBackoffUntilTheDeviceIsBack() throws Exception {
+        setReconnectPolicy(10, 40, ReconnectPolicy.UNLIMITED_ATTEMPTS, false);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        transport.setInRange(ADDRESS, false);
+        /* Every direct connection fails with GATT_ERROR while the device is away */
+        waitUntil("attempts", new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getReconnectAttempts() >= 4;
+            }
+        });
+        transport.setInRange(ADDRESS, true);
+        waitUntil("services", new Condition() {
+            @Override
+            public boolean isMet() {
+                return discoveries.get() == 2;
+            }
+        });
+
+        assertEquals(ConnectionState.READY, connection.getState());
+        assertEquals(2, peripheral.getDiscoveryCount());
+        assertTrue(reconnections.get() >= 4);
+        assertEquals(1, disconnected.getCount());
+    }
+
+    @Test
+    public void reconnectionGivesUpAfterTheLastAttempt() throws Exception {
+        setReconnectPolicy(10, 20, 3, false);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        transport.setInRange(ADDRESS, false);
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+
+        assertEquals(ConnectionState.IDLE, connection.getState());
+        assertEquals(3, reconnections.get());
+        assertFalse(connection.hasCharacteristic(SimulatedPeripheral.RX));
+    }
+
+    @Test
+    public void disconnectCancelsThePendingAttempt() throws Exception {
+        setReconnectPolicy(200, 200, ReconnectPolicy.UNLIMITED_ATTEMPTS, false);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        transport.dropConnection(ADDRESS, BleTransport.GATT_CONNECTION_TIMEOUT);
+        waitForState(ConnectionState.RECONNECTING);
+        connection.disconnect();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(300);
+        assertEquals(ConnectionState.IDLE, connection.getState());
+        assertEquals(1, peripheral.getDiscoveryCount());
+    }
+
+    @Test
+    public void subscribedCharacteristicsStreamInTheirOwnChannels() throws Exception {
+        addCustomCharacteristics();
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        GattSubscription imu = connection.subscribe(IMU_SERVICE, IMU);
+        GattSubscription battery = connection.subscribe(BATTERY_SERVICE, BATTERY_LEVEL);
+        assertNull(connection.subscribe(IMU_SERVICE, COMMAND));
+        assertSame(imu, connection.subscribe(IMU_SERVICE, IMU));
+        assertEquals(1, imu.getChannel());
+        assertEquals(2, battery.getChannel());
+        waitForIdleQueue();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(transport.notifyCharacteristic(ADDRESS, IMU_SERVICE, IMU, new byte[]{(byte) i, 1, 2, 3}));
+            if (i % 2 == 0) {
+                assertTrue(transport.notifyCharacteristic(ADDRESS, BATTERY_SERVICE, BATTERY_LEVEL, new byte[]{(byte) (90 - i)}));
+            }
+        }
+        waitForNotifications(8);
+
+        assertEquals(5, imu.getBuffer().size());
+        assertEquals(3, battery.getBuffer().size());
+        assertTrue(connection.getReceiveBuffer().isEmpty());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, imu.getBuffer().poll());
+        }
+        assertArrayEquals(new byte[]{90}, battery.getBuffer().poll());
+        assertSame(battery, connection.getSubscription(2));
+
+        assertTrue(connection.write(IMU_SERVICE, COMMAND, new byte[]{7, 7}, true));
+        waitForIdleQueue();
+        assertArrayEquals(new byte[]{7, 7}, peripheral.getValue(COMMAND));
+    }
+
+    @Test
+    public void readsOfAttributesWithoutSubscriptionAreReported() throws Exception {
+        addCustomCharacteristics();
+        peripheral.setValue(BATTERY_LEVEL, new byte[]{87});
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+
+        connection.readCharacteristic(BATTERY_SERVICE, BATTERY_LEVEL);
+        waitForAttributeReads(1);
+        connection.subscribe(BATTERY_SERVICE, BATTERY_LEVEL);
+        connection.readDescriptor(BATTERY_SERVICE, BATTERY_LEVEL, GattConnection.UUID_CLIENT_CHARACTERISTIC_CONFIG);
+        waitForAttributeReads(2);
+
+        synchronized (attributeReads) {
+            assertArrayEquals(new byte[]{87}, attributeReads.get(0));
+            /* The level only indicates, so the subscription enabled the indications */
+            assertArrayEquals(GattConnection.ENABLE_INDICATION_VALUE, attributeReads.get(1));
+        }
+        connection.readCharacteristic(BATTERY_SERVICE, BATTERY_LEVEL);
+        waitForNotifications(1);
+        assertArrayEquals(new byte[]{87}, connection.getSubscription(1).getBuffer().poll());
+    }
+
+    @Test
+    public void unsubscribedChannelsStopReceiving() throws Exception {
+        addCustomCharacteristics();
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        GattSubscription imu = connection.subscribe(IMU_SERVICE, IMU);
+        waitForIdleQueue();
+        transport.notifyCharacteristic(ADDRESS, IMU_SERVICE, IMU, new byte[]{1});
+        waitForNotifications(1);
+
+        assertTrue(connection.unsubscribe(imu.getChannel()));
+        assertFalse(connection.unsubscribe(imu.getChannel()));
+        waitForIdleQueue();
+        transport.notifyCharacteristic(ADDRESS, IMU_SERVICE, IMU, new byte[]{2});
+        Thread.sleep(50);
+
+        assertEquals(1, notifications.get());
+        assertNull(connection.getSubscription(imu.getChannel()));
+        assertTrue(imu.getBuffer().isEmpty());
+    }
+
+    @Test
+    public void subscriptionsAreRestoredAfterAReconnection() throws Exception {
+        addCustomCharacteristics();
+        setReconnectPolicy(10, 40, ReconnectPolicy.UNLIMITED_ATTEMPTS, false);
+        connection.connect();
+        assertTrue(ready.await(5, TimeUnit.SECONDS));
+        GattSubscription imu = connection.subscribe(IMU_SERVICE, IMU);
+        waitForIdleQueue();
+
+        transport.dropConnection(ADDRESS, BleTransport.GATT_CONNECTION_TIMEOUT);
+        waitUntil("services", new Condition() {
+            @Override
+            public boolean isMet() {
+                return discoveries.get() == 2;
+            }
+        });
+        waitForIdleQueue();
+        assertTrue(transport.notifyCharacteristic(ADDRESS, IMU_SERVICE, IMU, new byte[]{3}));
+        waitForNotifications(1);
+
+        assertSame(imu, connection.getSubscription(imu.getChannel()));
+        assertArrayEquals(new byte[]{3}, imu.getBuffer().poll());
+    }
+}
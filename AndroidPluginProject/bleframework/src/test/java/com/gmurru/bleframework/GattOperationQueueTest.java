@@ -0,0 +1,291 @@
+package com.gmurru.bleframework;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+    private static final UUID SERVICE = UUID.fromString(RBLGattAttributes.BLE_SHIELD_SERVICE);
+    private static final UUID RX = UUID.fromString(RBLGattAttributes.BLE_SHIELD_RX);
+    private static final UUID CCCD = UUID.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final List<GattOperation> executed = new ArrayList<GattOperation>();
+    private boolean accept = true;
+    private GattOperationQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new GattOperationQueue(new GattOperationQueue.Executor() {
+            @Override
+            public boolean execute(GattOperation operation) {
+                executed.add(operation);
+                return accept;
+            }
+        });
+    }
+
+    private static GattOperation write(int value) {
+        return GattOperation.writeCharacteristic(SERVICE, RX, new byte[]{(byte) value}, false);
+    }
+
+    private static GattOperation command(int value, int channel, BufferPool pool) {
+        byte[] data = pool.acquire();
+        data[0] = (byte) value;
+        return GattOperation.writeCommand(SERVICE, RX, data, false, channel, pool);
+    }
+
+    @Test
+    public void executesOneOperationAtATime() throws Exception {
+        queue.enqueue(write(1));
+        queue.enqueue(write(2));
+
+        assertEquals(1, executed.size());
+        assertEquals(2, queue.getDepth());
+
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(2, executed.size());
+        assertEquals(2, executed.get(1).getData()[0]);
+
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertTrue(queue.isIdle());
+        assertEquals(2, queue.getCompletedCount());
+    }
+
+    @Test
+    public void dropOldestDiscardsTheOldestPendingWrite() throws Exception {
+        queue.setCapacity(2);
+        for (int i = 0; i < 4; i++) {
+            queue.enqueue(write(i));
+        }
+
+        assertEquals(1, queue.getDroppedCount());
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(2, executed.get(1).getData()[0]);
+        assertEquals(3, executed.get(2).getData()[0]);
+    }
+
+    @Test
+    public void dropNewestRejectsTheWrite() throws Exception {
+        queue.setCapacity(1);
+        queue.setOverflowPolicy(GattOperationQueue.OverflowPolicy.DROP_NEWEST);
+
+        assertTrue(queue.enqueue(write(0)));
+        assertTrue(queue.enqueue(write(1)));
+        assertFalse(queue.enqueue(write(2)));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void coalesceKeepsOnlyTheLatestValue() throws Exception {
+        queue.setOverflowPolicy(GattOperationQueue.OverflowPolicy.COALESCE);
+        queue.enqueue(write(0));
+        queue.enqueue(write(1));
+        queue.enqueue(write(2));
+        queue.enqueue(write(3));
+
+        assertEquals(2, queue.getDepth());
+        assertEquals(2, queue.getCoalescedCount());
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(3, executed.get(1).getData()[0]);
+    }
+
+    @Test
+    public void descriptorWritesAreNeverDropped() throws Exception {
+        queue.setCapacity(1);
+        queue.enqueue(write(0));
+        queue.enqueue(GattOperation.writeDescriptor(SERVICE, RX, CCCD, new byte[]{1, 0}));
+        queue.enqueue(write(1));
+        queue.enqueue(write(2));
+
+        assertEquals(3, queue.getDepth());
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(GattOperation.WRITE_DESCRIPTOR, executed.get(1).getType());
+    }
+
+    @Test
+    public void idleOnlyOperationsNeverWaitBehindWrites() throws Exception {
+        queue.enqueue(write(0));
+        assertFalse(queue.enqueueIfIdle(GattOperation.readRssi()));
+
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertTrue(queue.enqueueIfIdle(GattOperation.readRssi()));
+        assertEquals(GattOperation.READ_RSSI, executed.get(1).getType());
+        assertEquals(1, queue.getDepth());
+    }
+
+    @Test
+    public void refusedOperationsAreSkipped() throws Exception {
+        accept = false;
+        queue.enqueue(write(0));
+
+        assertTrue(queue.isIdle());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void operationsStartOnTheDispatcher() throws Exception {
+        final List<Runnable> posted = new ArrayList<Runnable>();
+        queue.setDispatcher(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        });
+        queue.enqueue(write(0));
+
+        assertTrue(executed.isEmpty());
+        assertEquals(1, posted.size());
+        posted.get(0).run();
+        assertEquals(1, executed.size());
+    }
+
+    @Test
+    public void newerCommandSupersedesThePendingOneOfItsChannel() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        queue.enqueue(write(0));
+        for (int i = 1; i <= 5; i++) {
+            queue.enqueue(command(i, 0, pool));
+        }
+        queue.enqueue(command(10, 1, pool));
+
+        assertEquals(3, queue.getDepth());
+        assertEquals(4, queue.getCoalescedCount());
+        assertEquals(2, pool.getAllocatedCount());
+
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(5, executed.get(1).getData()[0]);
+        assertEquals(10, executed.get(2).getData()[0]);
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(2, pool.getFreeCount());
+    }
+
+    @Test
+    public void oneShotCommandsAreNeverDroppedNorOvertaken() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        queue.setCapacity(1);
+        queue.enqueue(write(0));
+        queue.enqueue(command(1, 0, pool));
+        queue.enqueue(command(0xfe, GattOperation.NO_CHANNEL, pool));
+        queue.enqueue(command(2, 0, pool));
+        queue.enqueue(command(3, 0, pool));
+
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(3, queue.getDepth());
+        for (int i = 0; i < 3; i++) {
+            queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        }
+        assertEquals((byte) 0xfe, executed.get(1).getData()[0]);
+        assertEquals(3, executed.get(2).getData()[0]);
+    }
+
+    @Test
+    public void coalescedWritesNeverOvertakeAOneShotCommand() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        queue.setOverflowPolicy(GattOperationQueue.OverflowPolicy.COALESCE);
+        queue.enqueue(write(0));
+        queue.enqueue(write(1));
+        queue.enqueue(command(0xfe, GattOperation.NO_CHANNEL, pool));
+        queue.enqueue(write(2));
+        queue.enqueue(write(3));
+
+        assertEquals(4, queue.getDepth());
+        assertEquals(1, queue.getCoalescedCount());
+        for (int i = 0; i < 3; i++) {
+            queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        }
+        assertEquals(1, executed.get(1).getData()[0]);
+        assertEquals((byte) 0xfe, executed.get(2).getData()[0]);
+        assertEquals(3, executed.get(3).getData()[0]);
+    }
+
+    @Test
+    public void aCallbackOfAnotherTypeDoesNotCompleteTheOperation() throws Exception {
+        queue.enqueue(write(0));
+        queue.enqueue(write(1));
+
+        queue.onOperationComplete(GattOperation.REQUEST_MTU, 0);
+        queue.onOperationComplete(GattOperation.READ_CHARACTERISTIC, 0);
+        assertEquals(1, executed.size());
+        assertEquals(0, queue.getCompletedCount());
+
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        assertEquals(2, executed.size());
+    }
+
+    @Test
+    public void clearGivesTheOperationInFlightBackToItsPool() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        queue.enqueue(command(1, 0, pool));
+        queue.enqueue(command(2, 1, pool));
+
+        queue.clear();
+        assertTrue(queue.isIdle());
+        assertEquals(2, pool.getFreeCount());
+    }
+
+    @Test
+    public void anOperationWithoutCallbackTimesOut() throws Exception {
+        final List<Runnable> timeouts = new ArrayList<Runnable>();
+        queue.setTimeout(1000, new GattOperationQueue.TimeoutScheduler() {
+            @Override
+            public void schedule(Runnable timeout, long delayMs) {
+                timeouts.add(timeout);
+            }
+        });
+        queue.enqueue(write(0));
+        queue.enqueue(write(1));
+        assertEquals(1, timeouts.size());
+
+        timeouts.get(0).run();
+        assertEquals(1, queue.getTimedOutCount());
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(2, executed.size());
+        assertEquals(2, timeouts.size());
+
+        /* The second write completes in time, its timeout has nothing left to do */
+        queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        timeouts.get(1).run();
+        assertTrue(queue.isIdle());
+        assertEquals(1, queue.getTimedOutCount());
+        assertEquals(1, queue.getCompletedCount());
+    }
+
+    private static List<GattOperation> message(int fragmentCount) {
+        List<GattOperation> fragments = new ArrayList<GattOperation>();
+        for (int i = 0; i < fragmentCount; i++) {
+            fragments.add(GattOperation.writeFragment(SERVICE, RX, new byte[]{(byte) i}, false));
+        }
+        return fragments;
+    }
+
+    @Test
+    public void fragmentsCountAgainstTheCapacity() throws Exception {
+        queue.setCapacity(4);
+        queue.enqueue(write(0));
+
+        /* Accepted while there is room, even if the message goes beyond the capacity */
+        assertTrue(queue.enqueue(write(1)));
+        assertTrue(queue.enqueueAll(message(5)));
+        assertEquals(7, queue.getDepth());
+
+        /* Full: the only write that may be dropped makes room for one more message, then nothing can */
+        assertTrue(queue.enqueueAll(message(2)));
+        assertFalse(queue.enqueueAll(message(2)));
+        assertFalse(queue.enqueue(write(2)));
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(8, queue.getDepth());
+
+        for (int i = 0; i < 8; i++) {
+            queue.onOperationComplete(GattOperation.WRITE_CHARACTERISTIC, 0);
+        }
+        assertTrue(queue.isIdle());
+        assertTrue(queue.enqueue(write(3)));
+    }
+}
@@ -0,0 +1,21 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HexCodecTest {
+    @Test
+    public void decodesUpperAndLowerCaseDigits() throws Exception {
+        assertArrayEquals(new byte[]{0x01, (byte) 0xAB, (byte) 0xff}, HexCodec.decode("01abFF"));
+        assertEquals(0, HexCodec.decode("").length);
+    }
+
+    @Test
+    public void encodeIsTheInverseOfDecode() throws Exception {
+        byte[] data = {0x00, 0x7F, (byte) 0x80, (byte) 0xFF};
+
+        assertEquals("007F80FF", HexCodec.encode(data));
+        assertArrayEquals(data, HexCodec.decode(HexCodec.encode(data)));
+    }
+}
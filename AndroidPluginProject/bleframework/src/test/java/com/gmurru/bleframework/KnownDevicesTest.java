@@ -0,0 +1,111 @@
+package com.gmurru.bleframework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class KnownDevicesTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static ServiceLayout shieldLayout() {
+        Map<UUID, Integer> characteristics = new LinkedHashMap<UUID, Integer>();
+        characteristics.put(SimulatedPeripheral.RX, BleTransport.PROPERTY_NOTIFY | BleTransport.PROPERTY_WRITE_NO_RESPONSE);
+        characteristics.put(SimulatedPeripheral.TX, BleTransport.PROPERTY_WRITE);
+        Map<UUID, Map<UUID, Integer>> services = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+        services.put(SimulatedPeripheral.SERVICE, characteristics);
+        return new ServiceLayout(services);
+    }
+
+    private static String address(int i) {
+        return "00:11:22:AA:BB:" + String.format("%02X", i);
+    }
+
+    @Test
+    public void devicesAreReadBackByTheNextLaunch() throws Exception {
+        File file = new File(folder.getRoot(), "known");
+        KnownDevices devices = new KnownDevices(file);
+        assertFalse(devices.load());
+
+        devices.onConnected(ADDRESS, "Biscuit", shieldLayout(), 1000);
+        assertTrue(devices.onMtuChanged(ADDRESS, 185));
+        devices.onConnected(address(1), null, ServiceLayout.EMPTY, 2000);
+        assertTrue(devices.save());
+
+        KnownDevices next = new KnownDevices(file);
+        assertTrue(next.load());
+        assertEquals(2, next.size());
+        assertEquals(address(1), next.getLatest().getAddress());
+        assertNull(next.getLatest().getName());
+        KnownDevices.Entry entry = next.get(ADDRESS);
+        assertEquals("Biscuit", entry.getName());
+        assertEquals(shieldLayout(), entry.getLayout());
+        assertEquals(185, entry.getMtu());
+        assertEquals(1000, entry.getLastConnected());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void aReconnectionMovesTheDeviceFirstAndKeepsWhatIsKnown() {
+        KnownDevices devices = new KnownDevices(new File(folder.getRoot(), "known"));
+        devices.onConnected(ADDRESS, "Biscuit", shieldLayout(), 1000);
+        devices.onMtuChanged(ADDRESS, 185);
+        devices.onConnected(address(1), "Crumble", shieldLayout(), 2000);
+
+        devices.onConnected(ADDRESS, null, null, 3000);
+
+        KnownDevices.Entry latest = devices.getLatest();
+        assertEquals(ADDRESS, latest.getAddress());
+        assertEquals("Biscuit", latest.getName());
+        assertEquals(shieldLayout(), latest.getLayout());
+        assertEquals(185, latest.getMtu());
+        assertEquals(3000, latest.getLastConnected());
+        assertFalse(devices.onMtuChanged(ADDRESS, 185));
+        assertFalse(devices.onMtuChanged(address(9), 185));
+    }
+
+    @Test
+    public void onlyTheMostRecentDevicesAreKept() {
+        KnownDevices devices = new KnownDevices(new File(folder.getRoot(), "known"));
+        for (int i = 0; i < KnownDevices.MAX_ENTRIES + 3; i++) {
+            devices.onConnected(address(i), null, ServiceLayout.EMPTY, i);
+        }
+
+        List<KnownDevices.Entry> entries = devices.getEntries();
+        assertEquals(KnownDevices.MAX_ENTRIES, entries.size());
+        assertEquals(address(KnownDevices.MAX_ENTRIES + 2), entries.get(0).getAddress());
+        assertNull(devices.get(address(2)));
+        assertNotNull(devices.get(address(3)));
+
+        assertTrue(devices.remove(address(3)));
+        assertFalse(devices.remove(address(3)));
+        devices.clear();
+        assertNull(devices.getLatest());
+    }
+
+    @Test
+    public void aDamagedFileIsIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "known");
+        KnownDevices devices = new KnownDevices(file);
+        devices.onConnected(ADDRESS, "Biscuit", shieldLayout(), 1000);
+        devices.save();
+        RandomAccessFile cut = new RandomAccessFile(file, "rw");
+        cut.setLength(cut.length() - 20);
+        cut.close();
+
+        KnownDevices next = new KnownDevices(file);
+        assertFalse(next.load());
+        assertEquals(0, next.size());
+    }
+}
@@ -0,0 +1,56 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void percentilesAreTheUpperBoundOfTheirBucket() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(1500000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(30000000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1536, histogram.getPercentileMicros(50));
+        assertEquals(1536, histogram.getPercentileMicros(90));
+        assertEquals(30000, histogram.getPercentileMicros(99));
+        assertEquals(30000, histogram.getMaxMicros());
+        assertEquals(4350, histogram.getMeanMicros());
+    }
+
+    @Test
+    public void bucketsKeepTheirRelativeWidth() throws Exception {
+        for (int micros = 0; micros < LatencyHistogram.SUB_BUCKET_COUNT * 2; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketOf(micros));
+        }
+        for (long micros = 16; micros < 1L << 30; micros += 1 + micros / 7) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertTrue(micros < upperBound);
+            assertTrue(upperBound <= micros + micros / LatencyHistogram.SUB_BUCKET_COUNT + 1);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) <= micros);
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf((1L << 30) - 1));
+    }
+
+    @Test
+    public void extremeLatenciesStayInTheOuterBuckets() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(1, histogram.getBucket(0));
+        assertEquals(1, histogram.getBucket(LatencyHistogram.BUCKET_COUNT - 1));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+}
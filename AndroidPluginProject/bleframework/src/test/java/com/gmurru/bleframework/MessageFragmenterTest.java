@@ -0,0 +1,90 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageFragmenterTest {
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) i;
+        }
+        return message;
+    }
+
+    private static byte[] reassemble(MessageFragmenter fragmenter, byte[] packet, int payloadSize) {
+        int length = fragmenter.reassemble(packet, payloadSize);
+        return length < 0 ? null : Arrays.copyOf(fragmenter.getMessage(), length);
+    }
+
+    @Test
+    public void smallMessagesAreSentAsIs() throws Exception {
+        byte[] message = message(19);
+        List<byte[]> packets = MessageFragmenter.split(message, 20);
+
+        assertEquals(1, packets.size());
+        assertSame(message, packets.get(0));
+        assertEquals(2, MessageFragmenter.split(message(20), 20).size());
+    }
+
+    @Test
+    public void largeMessagesEndWithAShorterPacket() throws Exception {
+        List<byte[]> packets = MessageFragmenter.split(message(45), 20);
+        assertEquals(3, packets.size());
+        assertEquals(5, packets.get(2).length);
+
+        packets = MessageFragmenter.split(message(40), 20);
+        assertEquals(3, packets.size());
+        assertEquals(0, packets.get(2).length);
+    }
+
+    @Test
+    public void unterminatedMessagesEndWithTheirLastPacket() throws Exception {
+        byte[] message = message(20);
+        assertSame(message, MessageFragmenter.split(message, 20, false).get(0));
+
+        List<byte[]> packets = MessageFragmenter.split(message(40), 20, false);
+        assertEquals(2, packets.size());
+        assertEquals(20, packets.get(1).length);
+        assertEquals(5, MessageFragmenter.split(message(45), 20, false).get(2).length);
+    }
+
+    @Test
+    public void reassembleJoinsTheSplitPackets() throws Exception {
+        MessageFragmenter fragmenter = new MessageFragmenter(512);
+        for (int length : new int[]{1, 19, 20, 21, 40, 100}) {
+            byte[] message = message(length);
+            byte[] result = null;
+            for (byte[] packet : MessageFragmenter.split(message, 20)) {
+                assertNull(result);
+                result = reassemble(fragmenter, packet, 20);
+            }
+            assertArrayEquals(message, result);
+            assertEquals(0, fragmenter.getPendingLength());
+        }
+    }
+
+    @Test
+    public void messagesLargerThanTheLimitAreCut() throws Exception {
+        MessageFragmenter fragmenter = new MessageFragmenter(30);
+        assertNull(reassemble(fragmenter, message(20), 20));
+
+        byte[] result = reassemble(fragmenter, message(20), 20);
+        assertEquals(30, result.length);
+        assertEquals(1, fragmenter.getOverflowCount());
+        assertArrayEquals(message(10), Arrays.copyOfRange(result, 20, 30));
+    }
+
+    @Test
+    public void resetDropsThePartialMessage() throws Exception {
+        MessageFragmenter fragmenter = new MessageFragmenter(512);
+        assertNull(reassemble(fragmenter, message(20), 20));
+        fragmenter.reset();
+
+        assertArrayEquals(message(3), reassemble(fragmenter, message(3), 20));
+    }
+}
@@ -0,0 +1,186 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PacketRingBufferTest {
+    @Test
+    public void pollReturnsPacketsInOrder() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(4, 20);
+        assertTrue(buffer.offer(new byte[]{1, 2, 3}));
+        assertTrue(buffer.offer(new byte[]{4}));
+
+        assertEquals(2, buffer.size());
+        assertEquals(3, buffer.peekLength());
+        assertArrayEquals(new byte[]{1, 2, 3}, buffer.poll());
+        assertArrayEquals(new byte[]{4}, buffer.poll());
+        assertNull(buffer.poll());
+        assertEquals(-1, buffer.peekLength());
+    }
+
+    @Test
+    public void fullBufferDropsNewestAndCountsOverflow() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(3, 20);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 6; i++) {
+            buffer.offer(new byte[]{(byte) i});
+        }
+
+        assertEquals(4, buffer.size());
+        assertEquals(6, buffer.getReceivedCount());
+        assertEquals(2, buffer.getOverflowCount());
+        assertArrayEquals(new byte[]{0}, buffer.poll());
+    }
+
+    @Test
+    public void drainAllPrefixesEveryPacketWithItsLength() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(8, 20);
+        buffer.offer(new byte[]{(byte) 0xfe, (byte) 0x80});
+        buffer.offer(new byte[]{7});
+
+        assertArrayEquals(new byte[]{0, 2, (byte) 0xfe, (byte) 0x80, 0, 1, 7}, buffer.drainAll());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.drainAll().length);
+    }
+
+    @Test
+    public void acquiredPacketsStayQueuedUntilReleased() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(2, 20);
+        buffer.offer(new byte[]{1, 2, 3});
+        buffer.offer(new byte[]{4});
+
+        ByteBuffer packet = buffer.acquire();
+        assertEquals(3, packet.remaining());
+        assertEquals(2, packet.get(1));
+        assertTrue(buffer.getArena().isDirect());
+        assertFalse(buffer.offer(new byte[]{5}));
+        assertSame(packet, buffer.acquire());
+
+        buffer.release();
+        assertEquals(20, buffer.peekOffset());
+        assertEquals(4, buffer.getArena().get(buffer.peekOffset()));
+        assertEquals(1, buffer.acquire().remaining());
+        buffer.release();
+        assertNull(buffer.acquire());
+        assertEquals(-1, buffer.peekOffset());
+    }
+
+    @Test
+    public void packetsKeepTheirReceiveTime() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(4, 20);
+        assertEquals(0, buffer.peekTimestamp());
+        buffer.offer(new byte[]{1}, 0, 1, 42);
+        buffer.offer(new byte[]{2});
+
+        assertEquals(42, buffer.peekTimestamp());
+        buffer.poll();
+        assertEquals(0, buffer.peekTimestamp());
+    }
+
+    @Test
+    public void longPacketsAreTruncated() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(2, 2);
+        buffer.offer(new byte[]{1, 2, 3});
+
+        assertEquals(1, buffer.getTruncatedCount());
+        assertArrayEquals(new byte[]{1, 2}, buffer.poll());
+    }
+
+    @Test
+    public void clearIsAppliedByTheConsumer() throws Exception {
+        PacketRingBuffer buffer = new PacketRingBuffer(4, 20);
+        buffer.offer(new byte[]{1});
+        buffer.offer(new byte[]{2});
+        ByteBuffer acquired = buffer.acquire();
+
+        buffer.clear();
+        buffer.offer(new byte[]{3});
+
+        assertEquals(1, buffer.size());
+        assertEquals(1, acquired.get(0));
+        buffer.release();
+        assertArrayEquals(new byte[]{3}, buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void clearFromAnotherThreadDoesNotRaceTheConsumer() throws Exception {
+        final int count = 100000;
+        final PacketRingBuffer buffer = new PacketRingBuffer(16, 4);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread producer = new Thread() {
+            public void run() {
+                byte[] packet = new byte[4];
+                for (int i = 0; i < count; i++) {
+                    packet[0] = (byte) (i >> 24);
+                    packet[1] = (byte) (i >> 16);
+                    packet[2] = (byte) (i >> 8);
+                    packet[3] = (byte) i;
+                    while (!buffer.offer(packet)) {
+                        Thread.yield();
+                    }
+                }
+                running.set(false);
+            }
+        };
+        Thread clearer = new Thread() {
+            public void run() {
+                while (running.get()) {
+                    buffer.clear();
+                    Thread.yield();
+                }
+            }
+        };
+        producer.start();
+        clearer.start();
+
+        int last = -1;
+        while (running.get() || !buffer.isEmpty()) {
+            ByteBuffer drained = ByteBuffer.wrap(buffer.drainAll());
+            while (drained.hasRemaining()) {
+                assertEquals(4, drained.getShort());
+                int value = drained.getInt();
+                assertTrue(value > last);
+                last = value;
+            }
+        }
+        producer.join();
+        clearer.join();
+    }
+
+    @Test
+    public void producerAndConsumerThreadsDoNotLosePackets() throws Exception {
+        final int count = 100000;
+        final PacketRingBuffer buffer = new PacketRingBuffer(16, 4);
+        Thread producer = new Thread() {
+            public void run() {
+                byte[] packet = new byte[4];
+                for (int i = 0; i < count; i++) {
+                    packet[0] = (byte) (i >> 24);
+                    packet[1] = (byte) (i >> 16);
+                    packet[2] = (byte) (i >> 8);
+                    packet[3] = (byte) i;
+                    while (!buffer.offer(packet)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        byte[] packet = new byte[4];
+        for (int expected = 0; expected < count; ) {
+            if (buffer.poll(packet, 0) < 0) {
+                Thread.yield();
+                continue;
+            }
+            int value = ((packet[0] & 0xff) << 24) | ((packet[1] & 0xff) << 16) | ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+            assertEquals(expected++, value);
+        }
+        producer.join();
+    }
+}
@@ -0,0 +1,61 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PingProbeTest {
+    @Test
+    public void echoRecordsTheRoundTrip() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        PingProbe probe = new PingProbe(metrics);
+        byte[] ping = new byte[PingProbe.PACKET_SIZE];
+
+        assertEquals(PingProbe.PACKET_SIZE, probe.nextPing(1000000, ping));
+        assertEquals(PingProbe.MARKER, ping[0]);
+        assertEquals((byte) ~ping[1], ping[2]);
+        assertTrue(probe.isPending());
+        assertEquals(0, probe.nextPing(2000000, new byte[PingProbe.PACKET_SIZE]));
+
+        assertFalse(probe.onPacket(new byte[]{1, 2, 3}, 3, 5000000));
+        assertTrue(probe.onPacket(ping, ping.length, 9000000));
+        assertFalse(probe.isPending());
+        assertEquals(8000000, probe.getLastRoundTripNanos());
+        assertEquals(1, metrics.getRoundTrip().getCount());
+        assertEquals(8000, metrics.getRoundTrip().getMaxMicros());
+    }
+
+    @Test
+    public void pingWithoutEchoIsLostAfterTheTimeout() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        PingProbe probe = new PingProbe(metrics, 100);
+        byte[] first = new byte[PingProbe.PACKET_SIZE];
+        byte[] second = new byte[PingProbe.PACKET_SIZE];
+
+        probe.nextPing(0, first);
+        assertEquals(0, probe.nextPing(99, second));
+        assertEquals(PingProbe.PACKET_SIZE, probe.nextPing(100, second));
+        assertEquals(1, probe.getLostCount());
+
+        /* The late echo of the lost ping is taken out of the data but not recorded */
+        assertTrue(probe.onPacket(first, first.length, 150));
+        assertTrue(probe.isPending());
+        assertEquals(0, metrics.getRoundTrip().getCount());
+
+        long[] snapshot = metrics.snapshot(Collections.<GattConnection>emptyList(), new long[BleMetrics.SNAPSHOT_SIZE]);
+        assertEquals(1, snapshot[BleMetrics.PINGS_LOST]);
+    }
+
+    @Test
+    public void rejectedPingIsNotWaitedFor() throws Exception {
+        PingProbe probe = new PingProbe(new BleMetrics());
+        byte[] ping = new byte[PingProbe.PACKET_SIZE];
+
+        probe.nextPing(0, ping);
+        probe.cancel();
+        assertEquals(PingProbe.PACKET_SIZE, probe.nextPing(1, ping));
+        assertEquals(0, probe.getLostCount());
+    }
+}
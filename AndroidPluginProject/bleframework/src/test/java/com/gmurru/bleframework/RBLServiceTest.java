@@ -0,0 +1,119 @@
+package com.gmurru.bleframework;
+
+import android.content.Intent;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RBLServiceTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private SimulatedTransport transport;
+    private CountingService service;
+    private GattConnection connection;
+
+    /*
+    Counts the updates handed to the listener and the broadcasts, instead of delivering them
+    */
+    private static final class CountingService extends RBLService {
+        int listenerCount;
+        int broadcastCount;
+
+        @Override
+        void postToListener(Handler handler, int what, int arg1, int arg2, Object obj) {
+            listenerCount++;
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent) {
+            broadcastCount++;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new SimulatedTransport(42);
+        service = new CountingService();
+        connection = new GattConnection(transport, ADDRESS, service);
+        ((RBLService.LocalBinder) service.onBind(null)).setListener(new RBLService.Listener() {
+            @Override
+            public void onGattConnected(String address) {
+            }
+
+            @Override
+            public void onGattDisconnected(String address) {
+            }
+
+            @Override
+            public void onServicesDiscovered(String address) {
+            }
+
+            @Override
+            public void onDataAvailable(String address) {
+            }
+
+            @Override
+            public void onRssiRead(String address, int rssi) {
+            }
+
+            @Override
+            public void onMtuChanged(String address, int mtu) {
+            }
+
+            @Override
+            public void onReconnecting(String address, int attempt, long delayMs) {
+            }
+
+            @Override
+            public void onNotification(String address, int channel) {
+            }
+
+            @Override
+            public void onAttributeRead(String address, UUID characteristic, UUID descriptor, byte[] value,
+                    int status) {
+            }
+        }, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.shutdown();
+    }
+
+    /*
+    Sends one update of every kind, returns their number
+    */
+    private int sendUpdates() {
+        service.onConnectionStateChange(connection, true);
+        service.onRssiRead(connection, -60);
+        service.onMtuChanged(connection, 185);
+        service.onDataAvailable(connection, new byte[]{1}, 1);
+        service.onReconnecting(connection, 1, 500);
+        service.onAttributeRead(connection, SimulatedPeripheral.TX, null, new byte[]{42}, BleTransport.GATT_SUCCESS);
+        service.onConnectionStateChange(connection, false);
+        return 7;
+    }
+
+    @Test
+    public void updatesGoToTheListenerOnly() throws Exception {
+        int updates = sendUpdates();
+
+        assertEquals(updates, service.listenerCount);
+        assertEquals(0, service.broadcastCount);
+    }
+
+    @Test
+    public void compatibilityModeBroadcastsEveryUpdateOnce() throws Exception {
+        service.setBroadcastEnabled(true);
+        int updates = sendUpdates();
+
+        assertEquals(updates, service.broadcastCount);
+        assertEquals(0, service.listenerCount);
+    }
+}
@@ -0,0 +1,82 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class ReceiveBatchTest {
+    @Test
+    public void parseAddressReturnsTheSixBytes() throws Exception {
+        assertArrayEquals(new byte[]{0x00, 0x11, 0x22, (byte) 0xaa, (byte) 0xbb, (byte) 0xcc},
+                ReceiveBatch.parseAddress("00:11:22:AA:BB:CC"));
+    }
+
+    @Test
+    public void batchContainsThePacketsOfEveryDevice() throws Exception {
+        PacketRingBuffer first = new PacketRingBuffer(4, 20);
+        PacketRingBuffer second = new PacketRingBuffer(4, 20);
+        first.offer(new byte[]{(byte) 0x80, (byte) 0xff}, 0, 2, 1000);
+        second.offer(new byte[]{1});
+        second.offer(new byte[]{2, 3});
+
+        ReceiveBatch batch = new ReceiveBatch(256);
+        assertEquals(0, batch.getSequence());
+        batch.begin();
+        batch.add(first, ReceiveBatch.parseAddress("00:00:00:00:00:01"));
+        batch.add(second, ReceiveBatch.parseAddress("00:00:00:00:00:02"));
+        assertEquals(3, batch.end());
+
+        ByteBuffer buffer = batch.getBuffer();
+        assertEquals(ByteOrder.nativeOrder(), buffer.order());
+        assertEquals(1, buffer.getInt(0));
+        assertEquals(3, buffer.getInt(4));
+        assertEquals(3 * ReceiveBatch.RECORD_HEADER_SIZE + 5, buffer.getInt(8));
+
+        int offset = ReceiveBatch.HEADER_SIZE;
+        assertEquals(1, buffer.get(offset + 5));
+        assertEquals(2, buffer.getShort(offset + 6));
+        assertEquals(1000, buffer.getLong(offset + 8));
+        assertEquals((byte) 0x80, buffer.get(offset + 16));
+        assertEquals((byte) 0xff, buffer.get(offset + 17));
+
+        assertTrue(first.isEmpty());
+        assertTrue(second.isEmpty());
+        assertEquals(batch.size(), batch.toByteArray().length);
+    }
+
+    @Test
+    public void packetsThatDoNotFitStayForTheNextBatch() throws Exception {
+        PacketRingBuffer source = new PacketRingBuffer(4, 20);
+        source.offer(new byte[10]);
+        source.offer(new byte[10]);
+
+        ReceiveBatch batch = new ReceiveBatch(ReceiveBatch.HEADER_SIZE + ReceiveBatch.RECORD_HEADER_SIZE + 10);
+        batch.begin();
+        batch.add(source, new byte[ReceiveBatch.ADDRESS_SIZE]);
+        assertEquals(1, batch.end());
+        assertEquals(1, source.size());
+    }
+
+    @Test
+    public void batchCarriesTheReceiveAndFlushTimes() throws Exception {
+        PacketRingBuffer source = new PacketRingBuffer(4, 20);
+        source.offer(new byte[]{1}, 0, 1, 1000000);
+        source.offer(new byte[]{2}, 0, 1, 3000000);
+        LatencyHistogram ages = new LatencyHistogram();
+
+        ReceiveBatch batch = new ReceiveBatch(256);
+        batch.begin(5000000);
+        batch.add(source, new byte[ReceiveBatch.ADDRESS_SIZE], ages);
+        assertEquals(2, batch.end());
+
+        ByteBuffer buffer = batch.getBuffer();
+        assertEquals(5000000, buffer.getLong(16));
+        assertEquals(1000000, buffer.getLong(ReceiveBatch.HEADER_SIZE + 8));
+        assertEquals(3000000, buffer.getLong(ReceiveBatch.HEADER_SIZE + ReceiveBatch.RECORD_HEADER_SIZE + 1 + 8));
+        assertEquals(2, ages.getCount());
+        assertEquals(4000, ages.getMaxMicros());
+    }
+}
@@ -0,0 +1,229 @@
+package com.gmurru.bleframework;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The test thread plays the GATT callback thread and the Unity thread: it delivers notifications to a
+ * GattConnection and reads them back, while the JVM counts the bytes it allocates.
+ */
+public class ReceivePathAllocationTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final int WARM_UP = 50000;
+    private static final int PACKETS = 100000;
+
+    private final CapturingTransport transport = new CapturingTransport();
+    private GattConnection connection;
+    private ByteBuffer batch;
+    private long checksum;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        connection = new GattConnection(transport, ADDRESS, new GattConnection.Callback() {
+            @Override
+            public void onConnectionStateChange(GattConnection connection, boolean connected) {
+            }
+
+            @Override
+            public void onServicesDiscovered(GattConnection connection) {
+            }
+
+            @Override
+            public void onRssiRead(GattConnection connection, int rssi) {
+            }
+
+            @Override
+            public void onMtuChanged(GattConnection connection, int mtu) {
+            }
+
+            @Override
+            public void onDataAvailable(GattConnection connection, byte[] value, int length) {
+            }
+
+            @Override
+            public void onReconnecting(GattConnection connection, int attempt, long delayMs) {
+            }
+
+            @Override
+            public void onNotification(GattConnection connection, GattSubscription subscription, byte[] value, int length) {
+            }
+
+            @Override
+            public void onAttributeRead(GattConnection connection, UUID characteristic, UUID descriptor, byte[] value,
+                    int status) {
+            }
+        });
+        assertTrue(connection.connect());
+        batch = ByteBuffer.allocateDirect(ReceiveBatch.DEFAULT_CAPACITY);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /*
+    Delivers the packets in turn, reading every one of them in place, then the whole queue in a batch
+    */
+    private void receive(byte[][] packets, int count) {
+        PacketRingBuffer buffer = connection.getReceiveBuffer();
+        for (int i = 0; i < count; i++) {
+            transport.listener.onCharacteristicChanged(GattConnection.UUID_BLE_SHIELD_RX, packets[i % packets.length]);
+            if ((i & 1) == 0) {
+                ByteBuffer packet = buffer.acquire();
+                if (packet != null) {
+                    checksum += packet.get(0);
+                    buffer.release();
+                }
+            } else {
+                batch.clear();
+                buffer.drainTo(batch, connection.getAddressBytes());
+            }
+        }
+    }
+
+    private long allocationPerPacket(byte[][] packets) {
+        receive(packets, WARM_UP);
+        long before = allocatedBytes();
+        receive(packets, PACKETS);
+        return (allocatedBytes() - before) / PACKETS;
+    }
+
+    @Test
+    public void notificationsAreReceivedWithoutAllocating() throws Exception {
+        byte[][] packets = new byte[4][20];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i][0] = (byte) i;
+        }
+
+        assertEquals(0, allocationPerPacket(packets));
+        assertEquals(0, connection.getReceiveBuffer().getOverflowCount());
+    }
+
+    @Test
+    public void reassemblyDoesNotAllocate() throws Exception {
+        connection.setReassemblyEnabled(true);
+        transport.listener.onMtuChanged(100, BleTransport.GATT_SUCCESS);
+        /* Two full packets and a short one per message */
+        byte[][] packets = {new byte[97], new byte[97], new byte[10]};
+
+        assertEquals(0, allocationPerPacket(packets));
+        assertTrue(connection.getReceiveBuffer().getReceivedCount() > 0);
+    }
+
+    @Test
+    public void framingDoesNotAllocate() throws Exception {
+        connection.setFramingEnabled(true);
+        /* A whole cycle of sequence numbers, so the messages can be replayed without gaps */
+        FrameCodec sender = new FrameCodec(512);
+        byte[][] packets = new byte[256][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = sender.encode(new byte[]{(byte) i, 1, 2}, 20).get(0);
+        }
+
+        assertEquals(0, allocationPerPacket(packets));
+        assertEquals(0, connection.getFrameCodec().getLostCount());
+    }
+
+    /*
+    Accepts every request and keeps the listener of the connection
+    */
+    private static class CapturingTransport implements BleTransport {
+        GattListener listener;
+
+        @Override
+        public boolean startScan(ScanOptions options, ScanListener listener) {
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+        }
+
+        @Override
+        public boolean connect(String address, GattListener listener, boolean autoConnect) {
+            this.listener = listener;
+            return true;
+        }
+
+        @Override
+        public boolean disconnect(String address) {
+            return true;
+        }
+
+        @Override
+        public void close(String address) {
+        }
+
+        @Override
+        public boolean discoverServices(String address) {
+            return true;
+        }
+
+        @Override
+        public List<UUID> getServices(String address) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<UUID> getCharacteristics(String address, UUID service) {
+            return null;
+        }
+
+        @Override
+        public int getProperties(String address, UUID service, UUID characteristic) {
+            return 0;
+        }
+
+        @Override
+        public boolean readCharacteristic(String address, UUID service, UUID characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(String address, UUID service, UUID characteristic, byte[] value, boolean withResponse) {
+            return true;
+        }
+
+        @Override
+        public boolean readDescriptor(String address, UUID service, UUID characteristic, UUID descriptor) {
+            return false;
+        }
+
+        @Override
+        public boolean writeDescriptor(String address, UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(String address, UUID service, UUID characteristic, boolean enabled) {
+            return true;
+        }
+
+        @Override
+        public boolean readRssi(String address) {
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(String address, int mtu) {
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(String address, int priority) {
+            return true;
+        }
+    }
+}
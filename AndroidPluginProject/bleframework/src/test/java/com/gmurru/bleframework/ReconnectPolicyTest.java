@@ -0,0 +1,51 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+    @Test
+    public void delaysDoubleUpToTheMaximumWithHalfOfThemRandom() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, ReconnectPolicy.UNLIMITED_ATTEMPTS, false, new Random(3));
+        long[] backoffs = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 0; attempt < backoffs.length; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue(delay >= backoffs[attempt] / 2);
+                assertTrue(delay <= backoffs[attempt]);
+            }
+        }
+        assertEquals(1000, policy.getDelay(Integer.MAX_VALUE), 500);
+    }
+
+    @Test
+    public void jitterSpreadsTheDelays() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 1000, ReconnectPolicy.UNLIMITED_ATTEMPTS, false, new Random(3));
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelay(0);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min < 550);
+        assertTrue(max > 950);
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(10, 20, 2, true);
+
+        assertTrue(policy.getDelay(1) > 0);
+        assertEquals(-1, policy.getDelay(2));
+        assertTrue(policy.isAutoConnect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAMaximumBelowTheInitialDelay() throws Exception {
+        new ReconnectPolicy(100, 50, 0, false);
+    }
+}
@@ -0,0 +1,294 @@
+package com.gmurru.bleframework;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReplayTransportTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final String OTHER_ADDRESS = "00:11:22:AA:BB:CD";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedTransport simulated;
+    private ReplayTransport replay;
+    private File file;
+
+    /*
+    Connection setup of BleFramework, collecting the packets received
+    */
+    private static final class Client implements GattConnection.Callback {
+        final CountDownLatch ready = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final List<byte[]> received = new ArrayList<byte[]>();
+
+        @Override
+        public void onConnectionStateChange(GattConnection connection, boolean connected) {
+            if (!connected) {
+                disconnected.countDown();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(GattConnection connection) {
+            connection.cacheCharacteristic(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX);
+            connection.setCharacteristicNotification(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, true);
+            ready.countDown();
+        }
+
+        @Override
+        public void onRssiRead(GattConnection connection, int rssi) {
+        }
+
+        @Override
+        public void onMtuChanged(GattConnection connection, int mtu) {
+        }
+
+        @Override
+        public void onDataAvailable(GattConnection connection, byte[] value, int length) {
+            synchronized (received) {
+                received.add(connection.getReceiveBuffer().poll());
+            }
+        }
+
+        @Override
+        public void onReconnecting(GattConnection connection, int attempt, long delayMs) {
+        }
+
+        @Override
+        public void onNotification(GattConnection connection, GattSubscription subscription, byte[] value, int length) {
+        }
+
+        @Override
+        public void onAttributeRead(GattConnection connection, UUID characteristic, UUID descriptor, byte[] value,
+                int status) {
+        }
+
+        int receivedCount() {
+            synchronized (received) {
+                return received.size();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        simulated = new SimulatedTransport(42);
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(ADDRESS, "Biscuit");
+        peripheral.setLatency(0, 2);
+        peripheral.setAdvertisingInterval(10);
+        peripheral.setNotifications(2, 20);
+        simulated.addPeripheral(peripheral);
+        SimulatedPeripheral other = new SimulatedPeripheral(OTHER_ADDRESS, "Crumble");
+        other.setAdvertisingInterval(10);
+        simulated.addPeripheral(other);
+        file = folder.newFile("session.ble");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulated.shutdown();
+        if (replay != null) {
+            replay.shutdown();
+        }
+    }
+
+    private static void waitUntil(String what, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.isMet()) {
+            assertTrue("timeout waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /*
+    Records a connection receiving at least 50 packets, returns them
+    */
+    private List<byte[]> recordConnection() throws Exception {
+        RecordingTransport recording = new RecordingTransport(simulated);
+        SessionRecorder recorder = new SessionRecorder(file);
+        recording.setRecorder(recorder);
+        final Client client = new Client();
+        GattConnection connection = new GattConnection(recording, ADDRESS, client);
+
+        assertTrue(connection.connect());
+        assertTrue(client.ready.await(5, TimeUnit.SECONDS));
+        waitUntil("packets", new Condition() {
+            @Override
+            public boolean isMet() {
+                return client.receivedCount() >= 50;
+            }
+        });
+        connection.disconnect();
+        assertTrue(client.disconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.close());
+        return client.received;
+    }
+
+    @Test
+    public void aConnectionIsReplayedWithItsPackets() throws Exception {
+        List<byte[]> recorded = recordConnection();
+
+        replay = new ReplayTransport(SessionReader.read(file), 4);
+        final Client client = new Client();
+        GattConnection connection = new GattConnection(replay, ADDRESS, client);
+        assertTrue(connection.connect());
+        assertTrue(client.ready.await(5, TimeUnit.SECONDS));
+        assertTrue(replay.getServices(ADDRESS).contains(SimulatedPeripheral.SERVICE));
+
+        /* The recorded disconnection ends the replay */
+        assertTrue(client.disconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionState.IDLE, connection.getState());
+        assertEquals(recorded.size(), client.receivedCount());
+        for (int i = 0; i < recorded.size(); i++) {
+            assertArrayEquals(recorded.get(i), client.received.get(i));
+        }
+    }
+
+    @Test
+    public void writesAreAcceptedDuringTheReplay() throws Exception {
+        recordConnection();
+
+        replay = new ReplayTransport(SessionReader.read(file), 1);
+        Client client = new Client();
+        final GattConnection connection = new GattConnection(replay, ADDRESS, client);
+        connection.connect();
+        assertTrue(client.ready.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(connection.write(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX, new byte[]{(byte) i}, false));
+        }
+        waitUntil("writes", new Condition() {
+            @Override
+            public boolean isMet() {
+                return connection.getOperationQueue().isIdle();
+            }
+        });
+        assertEquals(5, replay.getWriteCount());
+        connection.disconnect();
+        assertTrue(client.disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void aDeviceWithoutRecordedConnectionIsNotReached() throws Exception {
+        recordConnection();
+
+        replay = new ReplayTransport(SessionReader.read(file), 1);
+        Client client = new Client();
+        GattConnection connection = new GattConnection(replay, OTHER_ADDRESS, client);
+        connection.connect();
+
+        assertTrue(client.disconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, client.ready.getCount());
+    }
+
+    @Test
+    public void scansReplayTheRecordedResultsThroughTheFilters() throws Exception {
+        RecordingTransport recording = new RecordingTransport(simulated);
+        SessionRecorder recorder = new SessionRecorder(file);
+        recording.setRecorder(recorder);
+        final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+        BleTransport.ScanListener listener = new BleTransport.ScanListener() {
+            @Override
+            public void onDeviceFound(String address, String name, int rssi, byte[] scanRecord) {
+                found.add(address);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+            }
+        };
+        ScanOptions all = new ScanOptions(ScanOptions.MODE_LOW_LATENCY, 0, Collections.<ScanOptions.Filter>emptyList());
+        assertTrue(recording.startScan(all, listener));
+        waitUntil("both devices", new Condition() {
+            @Override
+            public boolean isMet() {
+                return found.contains(ADDRESS) && found.contains(OTHER_ADDRESS);
+            }
+        });
+        recording.stopScan();
+        assertTrue(recorder.close());
+        found.clear();
+
+        replay = new ReplayTransport(SessionReader.read(file), 2);
+        ScanOptions biscuit = new ScanOptions(ScanOptions.MODE_LOW_LATENCY, 0,
+                Collections.singletonList(new ScanOptions.Filter(null, "Biscuit", null)));
+        assertTrue(replay.startScan(biscuit, listener));
+        waitUntil("the filtered device", new Condition() {
+            @Override
+            public boolean isMet() {
+                return found.contains(ADDRESS);
+            }
+        });
+        replay.stopScan();
+        assertFalse(found.contains(OTHER_ADDRESS));
+    }
+
+    @Test
+    public void aReplayInitializesWithTheBroadcastCompatibilityMode() throws Exception {
+        recordConnection();
+        final List<BroadcastReceiver> receivers = new ArrayList<BroadcastReceiver>();
+        Activity activity = new Activity() {
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+                receivers.add(receiver);
+                return null;
+            }
+
+            @Override
+            public File getFilesDir() {
+                return folder.getRoot();
+            }
+        };
+
+        /* No bluetooth adapter behind a replay */
+        BleFramework framework = new BleFramework(activity);
+        framework._SetBroadcastCompatibilityMode(true);
+        assertTrue(framework._StartSessionReplay(file.getPath(), 4));
+        framework._InitBLEFramework();
+
+        assertEquals(1, receivers.size());
+        assertTrue(framework._StartSessionRecording(folder.newFile("again.ble").getPath()));
+        assertTrue(framework._StopSessionRecording());
+    }
+
+    @Test
+    public void connectingTheLastDeviceFailsWithoutAKnownDevice() throws Exception {
+        recordConnection();
+        Activity activity = new Activity() {
+            @Override
+            public File getFilesDir() {
+                return folder.getRoot();
+            }
+        };
+
+        BleFramework framework = new BleFramework(activity);
+        assertFalse(framework._ConnectLastPeripheral(1000));
+        assertTrue(framework._StartSessionReplay(file.getPath(), 4));
+        framework._InitBLEFramework();
+
+        assertFalse(framework._ConnectLastPeripheral(1000));
+    }
+}
@@ -0,0 +1,35 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RobotCommandEncoderTest {
+    @Test
+    public void directionByteGivesTheSignOfTheSpeeds() throws Exception {
+        byte[] command = new byte[RobotCommandEncoder.COMMAND_SIZE];
+
+        RobotCommandEncoder.encodeDrive(100, 200, command);
+        assertArrayEquals(new byte[]{0x11, 100, (byte) 200}, command);
+        RobotCommandEncoder.encodeDrive(100, -200, command);
+        assertArrayEquals(new byte[]{0x1f, 100, (byte) 200}, command);
+        RobotCommandEncoder.encodeDrive(-100, -200, command);
+        assertArrayEquals(new byte[]{(byte) 0xff, 100, (byte) 200}, command);
+        RobotCommandEncoder.encodeDrive(-100, 0, command);
+        assertArrayEquals(new byte[]{(byte) 0xf1, 100, 0}, command);
+    }
+
+    @Test
+    public void speedsAreClamped() throws Exception {
+        byte[] command = new byte[RobotCommandEncoder.COMMAND_SIZE];
+        RobotCommandEncoder.encodeDrive(Integer.MIN_VALUE, 1000, command);
+        assertArrayEquals(new byte[]{(byte) 0xf1, (byte) 255, (byte) 255}, command);
+    }
+
+    @Test
+    public void resetIsThreeResetBytes() throws Exception {
+        byte[] command = new byte[RobotCommandEncoder.COMMAND_SIZE];
+        assertEquals(3, RobotCommandEncoder.encodeReset(command));
+        assertArrayEquals(new byte[]{(byte) 0xfe, (byte) 0xfe, (byte) 0xfe}, command);
+    }
+}
@@ -0,0 +1,37 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RssiFilterTest {
+    @Test
+    public void startsFromTheFirstReadAndSettlesOnTheMean() throws Exception {
+        RssiFilter filter = new RssiFilter();
+        assertEquals(-70f, filter.update(-70), 0f);
+
+        Random random = new Random(3);
+        float worst = 0;
+        for (int i = 0; i < 200; i++) {
+            float estimate = filter.update(-60 + random.nextInt(11) - 5);
+            if (i >= 50) {
+                worst = Math.max(worst, Math.abs(estimate + 60));
+            }
+        }
+        assertTrue("estimate off by " + worst + " dBm", worst < 3);
+        assertTrue(filter.getVariance() < RssiFilter.DEFAULT_MEASUREMENT_NOISE / 4);
+    }
+
+    @Test
+    public void resetStartsANewEstimate() throws Exception {
+        RssiFilter filter = new RssiFilter();
+        filter.update(-50);
+        filter.update(-52);
+        filter.reset();
+
+        assertEquals(0, filter.getCount());
+        assertEquals(-80f, filter.update(-80), 0f);
+    }
+}
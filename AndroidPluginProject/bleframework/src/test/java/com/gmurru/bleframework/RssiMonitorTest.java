@@ -0,0 +1,74 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RssiMonitorTest {
+    private static RssiMonitor monitor(int... thresholds) {
+        return new RssiMonitor(new RssiFilter(1f, 4f), 100, 1600, 2f, thresholds);
+    }
+
+    @Test
+    public void reportsEachCrossingOnceWithHysteresis() throws Exception {
+        RssiMonitor monitor = monitor(-70, -85);
+        assertFalse(monitor.update(-90));
+        assertEquals(0, monitor.getZone());
+
+        int crossings = 0;
+        for (int i = 0; i < 30; i++) {
+            if (monitor.update(-60)) {
+                crossings++;
+                assertTrue(monitor.isRising());
+            }
+        }
+        assertEquals(2, monitor.getZone());
+        assertTrue(crossings >= 1 && crossings <= 2);
+        assertEquals(-70, monitor.getCrossedThreshold());
+
+        /* Hovering right at the threshold does not flap */
+        for (int i = 0; i < 30; i++) {
+            monitor.update(i % 2 == 0 ? -69 : -71);
+        }
+        assertEquals(2, monitor.getZone());
+
+        boolean fell = false;
+        for (int i = 0; i < 30 && !fell; i++) {
+            fell = monitor.update(-78);
+        }
+        assertTrue(fell);
+        assertFalse(monitor.isRising());
+        assertEquals(-70, monitor.getCrossedThreshold());
+        assertEquals(1, monitor.getZone());
+    }
+
+    @Test
+    public void pollsSlowerWhileStableAndFastNearAThreshold() throws Exception {
+        RssiMonitor monitor = monitor(-70);
+        for (int i = 0; i < 20; i++) {
+            monitor.update(-45);
+        }
+        assertEquals(1600, monitor.getInterval());
+
+        for (int i = 0; i < 20; i++) {
+            monitor.update(-68);
+        }
+        assertEquals(100, monitor.getInterval());
+
+        monitor.reset();
+        assertEquals(-1, monitor.getZone());
+        assertEquals(-1f, monitor.getDistance(), 0f);
+    }
+
+    @Test
+    public void estimatesTheDistanceFromTheFilteredSignal() throws Exception {
+        RssiMonitor monitor = monitor();
+        monitor.setCalibration(-59, 2f);
+        monitor.update(-59);
+        assertEquals(1f, monitor.getDistance(), 0.001f);
+
+        monitor.reset();
+        monitor.update(-79);
+        assertEquals(10f, monitor.getDistance(), 0.001f);
+    }
+}
@@ -0,0 +1,62 @@
+package com.gmurru.bleframework;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ServiceLayoutTest {
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY_LEVEL = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+
+    static ServiceLayout shieldLayout() {
+        Map<UUID, Integer> shield = new LinkedHashMap<UUID, Integer>();
+        shield.put(SimulatedPeripheral.TX, BleTransport.PROPERTY_WRITE);
+        shield.put(SimulatedPeripheral.RX, BleTransport.PROPERTY_NOTIFY | BleTransport.PROPERTY_WRITE_NO_RESPONSE);
+        Map<UUID, Map<UUID, Integer>> services = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+        services.put(SimulatedPeripheral.SERVICE, shield);
+        services.put(BATTERY, Collections.singletonMap(BATTERY_LEVEL, BleTransport.PROPERTY_READ));
+        return new ServiceLayout(services);
+    }
+
+    @Test
+    public void answersTheLookupsOfTheDiscoveredServices() throws Exception {
+        ServiceLayout layout = shieldLayout();
+
+        assertEquals(Arrays.asList(SimulatedPeripheral.SERVICE, BATTERY), layout.getServices());
+        assertEquals(Arrays.asList(SimulatedPeripheral.TX, SimulatedPeripheral.RX),
+                layout.getCharacteristics(SimulatedPeripheral.SERVICE));
+        assertTrue(layout.getCharacteristics(UUID.randomUUID()).isEmpty());
+        assertTrue(layout.hasCharacteristic(SimulatedPeripheral.SERVICE, SimulatedPeripheral.RX));
+        assertFalse(layout.hasCharacteristic(BATTERY, SimulatedPeripheral.RX));
+        assertEquals(BleTransport.PROPERTY_READ, layout.getProperties(BATTERY, BATTERY_LEVEL));
+        assertEquals(0, layout.getProperties(BATTERY, SimulatedPeripheral.TX));
+        assertEquals(BATTERY, layout.findService(BATTERY_LEVEL));
+        assertNull(layout.findService(UUID.randomUUID()));
+    }
+
+    @Test
+    public void layoutsOfTheSameBoardAreEqual() throws Exception {
+        assertEquals(shieldLayout(), shieldLayout());
+        assertEquals(shieldLayout().hashCode(), shieldLayout().hashCode());
+        assertNotEquals(shieldLayout(), ServiceLayout.EMPTY);
+    }
+
+    @Test
+    public void aSessionWithoutServicesIsEmpty() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport(1);
+        try {
+            transport.addPeripheral(new SimulatedPeripheral("00:11:22:AA:BB:CC", "Biscuit"));
+
+            assertSame(ServiceLayout.EMPTY, ServiceLayout.read(transport, "00:11:22:AA:BB:CC"));
+            assertFalse(shieldLayout().isDiscoveredIn(transport, "00:11:22:AA:BB:CC"));
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
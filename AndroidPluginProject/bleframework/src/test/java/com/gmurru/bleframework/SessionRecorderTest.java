@@ -0,0 +1,123 @@
+package com.gmurru.bleframework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SessionRecorderTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static ServiceLayout shieldLayout() {
+        Map<UUID, Integer> characteristics = new LinkedHashMap<UUID, Integer>();
+        characteristics.put(SimulatedPeripheral.RX, BleTransport.PROPERTY_NOTIFY | BleTransport.PROPERTY_WRITE_NO_RESPONSE);
+        characteristics.put(SimulatedPeripheral.TX, BleTransport.PROPERTY_WRITE);
+        Map<UUID, Map<UUID, Integer>> services = new LinkedHashMap<UUID, Map<UUID, Integer>>();
+        services.put(SimulatedPeripheral.SERVICE, characteristics);
+        return new ServiceLayout(services);
+    }
+
+    @Test
+    public void recordsAreReadBackInOrder() throws Exception {
+        File file = folder.newFile("session.ble");
+        SessionRecorder recorder = new SessionRecorder(file);
+        byte[] advertisement = new byte[]{2, 1, 6};
+
+        recorder.onScanStarted();
+        recorder.onDeviceFound(ADDRESS, "Biscuit", -58, advertisement);
+        recorder.onScanStopped();
+        recorder.onConnect(ADDRESS, false);
+        recorder.onConnectionStateChanged(ADDRESS, true, BleTransport.GATT_SUCCESS);
+        recorder.onServicesDiscovered(ADDRESS, BleTransport.GATT_SUCCESS, shieldLayout());
+        recorder.onNotification(ADDRESS, SimulatedPeripheral.RX, new byte[]{1, 2, 3});
+        recorder.onRead(ADDRESS, SimulatedPeripheral.TX, new byte[]{42}, BleTransport.GATT_SUCCESS);
+        recorder.onRssiRead(ADDRESS, -61, BleTransport.GATT_SUCCESS);
+        recorder.onConnectionStateChanged(ADDRESS, false, BleTransport.GATT_ERROR);
+        assertEquals(10, recorder.getRecordCount());
+        assertTrue(recorder.close());
+
+        SessionReader session = SessionReader.read(file);
+        List<SessionReader.Record> records = session.getRecords();
+        assertEquals(10, records.size());
+        assertTrue(Math.abs(session.getStartTime() - System.currentTimeMillis()) < 60000);
+        long previous = 0;
+        for (SessionReader.Record record : records) {
+            assertTrue(record.getTime() >= previous);
+            previous = record.getTime();
+        }
+
+        assertEquals(SessionRecorder.SCAN_START, records.get(0).getType());
+        assertNull(records.get(0).getAddress());
+        SessionReader.Record result = records.get(1);
+        assertEquals(SessionRecorder.SCAN_RESULT, result.getType());
+        assertEquals(ADDRESS, result.getAddress());
+        assertEquals("Biscuit", result.getName());
+        assertEquals(-58, result.getByte(0));
+        assertArrayEquals(advertisement, result.getScanRecord());
+
+        assertEquals(SessionRecorder.CONNECT, records.get(3).getType());
+        assertEquals(BleTransport.GATT_SUCCESS, records.get(4).getStatus());
+        assertEquals(shieldLayout(), records.get(5).getLayout());
+        assertEquals(SimulatedPeripheral.RX, records.get(6).getUuid(0));
+        assertArrayEquals(new byte[]{1, 2, 3}, records.get(6).getBytes(SessionRecorder.UUID_SIZE));
+        assertArrayEquals(new byte[]{42}, records.get(7).getBytes(SessionRecorder.UUID_SIZE + 4));
+        assertEquals(-61, records.get(8).getInt(0));
+        assertEquals(0, records.get(9).getByte(0));
+        assertEquals(BleTransport.GATT_ERROR, records.get(9).getStatus());
+    }
+
+    @Test
+    public void aSmallBufferIsWrittenWhenFull() throws Exception {
+        File file = folder.newFile("session.ble");
+        SessionRecorder recorder = new SessionRecorder(file, 64);
+
+        for (int i = 0; i < 100; i++) {
+            recorder.onNotification(ADDRESS, SimulatedPeripheral.RX, new byte[]{(byte) i});
+        }
+        recorder.onNotification(ADDRESS, SimulatedPeripheral.RX, new byte[64]);
+        assertTrue(recorder.close());
+        assertEquals(1, recorder.getDroppedCount());
+
+        List<SessionReader.Record> records = SessionReader.read(file).getRecords();
+        assertEquals(100, records.size());
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, records.get(i).getBytes(SessionRecorder.UUID_SIZE));
+        }
+    }
+
+    @Test
+    public void aRecordCutByTheEndOfTheFileIsIgnored() throws Exception {
+        File file = folder.newFile("session.ble");
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.onConnect(ADDRESS, true);
+        recorder.onNotification(ADDRESS, SimulatedPeripheral.RX, new byte[20]);
+        recorder.close();
+
+        RandomAccessFile cut = new RandomAccessFile(file, "rw");
+        cut.setLength(cut.length() - 5);
+        cut.close();
+
+        List<SessionReader.Record> records = SessionReader.read(file).getRecords();
+        assertEquals(1, records.size());
+        assertEquals(SessionRecorder.CONNECT, records.get(0).getType());
+        assertEquals(1, records.get(0).getByte(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws Exception {
+        SessionReader.read(ByteBuffer.wrap(new byte[64]));
+    }
+}
@@ -0,0 +1,198 @@
+#include "BleFraming.h"
+#include "Arduino.h"
+
+BleFraming::BleFraming(Stream &serial)
+{
+  _serial = &serial;
+  _sendSequence = 0;
+  _position = 0;
+  _crc = 0;
+  _messageLength = 0;
+  _completeLength = 0;
+  _messageCount = 0;
+  _nextFrame = 0;
+  _lastSequence = -1;
+  _discarding = false;
+  _lostCount = 0;
+  _duplicateCount = 0;
+  _corruptCount = 0;
+}
+
+bool BleFraming::poll()
+{
+  while (_serial->available() > 0)
+  {
+    if (readByte((byte)_serial->read()))
+    {
+      return true;
+    }
+  }
+  return false;
+}
+
+/*The last complete message, valid until the next call of poll*/
+const byte *BleFraming::message()
+{
+  return _message;
+}
+
+int BleFraming::messageLength()
+{
+  return _completeLength;
+}
+
+bool BleFraming::send(const byte *data, int length)
+{
+  const int chunk = BLE_FRAMING_PACKET_SIZE - BLE_FRAMING_OVERHEAD;
+  int count = length == 0 ? 1 : (length + chunk - 1) / chunk;
+  if (count > 255)
+  {
+    return false;
+  }
+  byte sequence = _sendSequence++;
+  for (int index = 0; index < count; index++)
+  {
+    int offset = index * chunk;
+    int frameLength = min(chunk, length - offset);
+    byte header[BLE_FRAMING_HEADER_SIZE] = {BLE_FRAMING_SYNC, sequence, (byte)index, (byte)count, (byte)frameLength};
+    byte crc = 0;
+    for (int i = 1; i < BLE_FRAMING_HEADER_SIZE; i++)
+    {
+      crc = crc8(crc, header[i]);
+    }
+    for (int i = 0; i < frameLength; i++)
+    {
+      crc = crc8(crc, data[offset + i]);
+    }
+    _serial->write(header, BLE_FRAMING_HEADER_SIZE);
+    _serial->write(data + offset, frameLength);
+    _serial->write(crc);
+  }
+  return true;
+}
+
+/*
+The payload is stored directly after the part of the message already received, and only kept if the CRC matches.
+Returns true when the byte completes a message.
+*/
+bool BleFraming::readByte(byte value)
+{
+  if (_position == 0)
+  {
+    if (value == BLE_FRAMING_SYNC)
+    {
+      _position = 1;
+      _crc = 0;
+    }
+    return false;
+  }
+  if (_position < BLE_FRAMING_HEADER_SIZE)
+  {
+    _header[_position] = value;
+    _crc = crc8(_crc, value);
+    _position++;
+    return false;
+  }
+  int offset = _position - BLE_FRAMING_HEADER_SIZE;
+  if (offset < _header[4])
+  {
+    if (_messageLength + offset < BLE_FRAMING_MAX_MESSAGE)
+    {
+      _message[_messageLength + offset] = value;
+    }
+    _crc = crc8(_crc, value);
+    _position++;
+    return false;
+  }
+  _position = 0;
+  if (value != _crc || _header[2] >= _header[3])
+  {
+    //damaged frame, wait for the next 0xA5
+    _corruptCount++;
+    return false;
+  }
+  return onFrame();
+}
+
+/*Same rules as FrameCodec: the frames of a message must arrive in order, the missing ones make the message lost*/
+bool BleFraming::onFrame()
+{
+  int sequence = _header[1];
+  int index = _header[2];
+  int count = _header[3];
+  int length = _header[4];
+  int stored = _messageLength;
+
+  if (sequence != _lastSequence)
+  {
+    int delta = _lastSequence < 0 ? 1 : (sequence - _lastSequence) & 0xFF;
+    if (delta >= 128)
+    {
+      _duplicateCount++;
+      return false;
+    }
+    _lostCount += delta - 1;
+    if (!_discarding && _nextFrame < _messageCount)
+    {
+      _lostCount++;
+    }
+    _lastSequence = sequence;
+    _messageCount = count;
+    _messageLength = 0;
+    _nextFrame = 0;
+    _discarding = false;
+  }
+  if (_discarding)
+  {
+    return false;
+  }
+  if (index < _nextFrame)
+  {
+    _duplicateCount++;
+    return false;
+  }
+  if (index > _nextFrame || count != _messageCount || stored + length > BLE_FRAMING_MAX_MESSAGE)
+  {
+    _lostCount++;
+    _discarding = true;
+    return false;
+  }
+  if (stored != _messageLength)
+  {
+    memmove(_message + _messageLength, _message + stored, length);
+  }
+  _messageLength += length;
+  _nextFrame++;
+  if (_nextFrame < _messageCount)
+  {
+    return false;
+  }
+  _completeLength = _messageLength;
+  _messageLength = 0;
+  return true;
+}
+
+unsigned long BleFraming::lostCount()
+{
+  return _lostCount;
+}
+
+unsigned long BleFraming::duplicateCount()
+{
+  return _duplicateCount;
+}
+
+unsigned long BleFraming::corruptCount()
+{
+  return _corruptCount;
+}
+
+byte BleFraming::crc8(byte crc, byte value)
+{
+  crc ^= value;
+  for (int bit = 0; bit < 8; bit++)
+  {
+    crc = (crc & 0x80) ? (byte)((crc << 1) ^ 0x07) : (byte)(crc << 1);
+  }
+  return crc;
+}
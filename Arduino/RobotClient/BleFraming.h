@@ -0,0 +1,55 @@
+#ifndef BleFraming_h
+#define BleFraming_h
+
+#include "Arduino.h"
+
+/*
+Framing of the messages exchanged with the BleFramework plugin, the device side of FrameCodec on Android.
+Every message is sent in frames of at most BLE_FRAMING_PACKET_SIZE bytes:
+
+  0xA5 | sequence | index | count | length | payload (length bytes) | CRC-8 (polynomial 0x07)
+
+The BLE shield forwards the notifications on the serial port as a byte stream, so the frames are read byte
+by byte and a damaged frame is skipped by looking for the next 0xA5.
+*/
+#define BLE_FRAMING_SYNC 0xA5
+#define BLE_FRAMING_HEADER_SIZE 5
+#define BLE_FRAMING_OVERHEAD 6
+#define BLE_FRAMING_PACKET_SIZE 20
+#define BLE_FRAMING_MAX_MESSAGE 256
+
+class BleFraming
+{
+  public:
+    BleFraming(Stream &serial);
+    // Reads the available bytes, returns true when a whole message has been received
+    bool poll();
+    const byte *message();
+    int messageLength();
+    // Sends a message of at most 255 frames of 14 bytes
+    bool send(const byte *data, int length);
+    unsigned long lostCount();
+    unsigned long duplicateCount();
+    unsigned long corruptCount();
+  private:
+    bool readByte(byte value);
+    bool onFrame();
+    static byte crc8(byte crc, byte value);
+    Stream *_serial;
+    byte _sendSequence;
+    byte _header[BLE_FRAMING_HEADER_SIZE];
+    int _position;//bytes of the current frame already read
+    byte _crc;
+    byte _message[BLE_FRAMING_MAX_MESSAGE];
+    int _messageLength;
+    int _completeLength;//length of the last complete message
+    int _messageCount;
+    int _nextFrame;
+    int _lastSequence;//-1 until the first message
+    bool _discarding;
+    unsigned long _lostCount;
+    unsigned long _duplicateCount;
+    unsigned long _corruptCount;
+};
+
+#endif
@@ -2,11 +2,20 @@
 #include "Wire.h"
 #include <Adafruit_MotorShield.h>
 #include "utility/Adafruit_PWMServoDriver.h"
+#include "BleFraming.h"
+
+/*
+Set to 1 to receive the commands as framed messages (see BleFraming.h), when the Unity application
+calls BLEController.SetFramingEnabled(true)
+*/
+#define USE_BLE_FRAMING 0
 
 CarController carController(4, 1, 3, 2);
 boolean carIsMoving;
 
 boolean readyForNewCommand;
+
+BleFraming framing(Serial1);
   
 void setup() {
   // put your setup code here, to run once:
@@ -37,11 +46,33 @@ void loop()
       If the connection is stable read the commands coming from the bluetooth server (iPhone or Android device)
     */
     
+#if USE_BLE_FRAMING
+    if (framing.poll() && framing.messageLength() == 3)
+    {
+      const byte *receivedBytes = framing.message();
+#else
     if (Serial1.available() == 3) 
     {
       //Serial.println("All bytes are available.");  
       byte receivedBytes[3];
       Serial1.readBytes(receivedBytes, sizeof(byte)*3);
+#endif
+      
+      /*
+      Ping of the latency measurement (BLEController.StartPing): echoed at once so the
+      application measures the round trip of the link, no command is run
+      */
+      if (receivedBytes[0] == 0xec && receivedBytes[2] == (byte) ~receivedBytes[1])
+      {
+        byte echo[3] = {receivedBytes[0], receivedBytes[1], receivedBytes[2]};
+#if USE_BLE_FRAMING
+        framing.send(echo, 3);
+#else
+        Serial1.write(echo, 3);
+#endif
+        readyForNewCommand = true;
+        return;
+      }
       
       carIsMoving = true;
       byte commandByte = receivedBytes[0];
@@ -132,7 +163,11 @@ void loop()
       which are the correct wheels velocities
       */
       byte ackData[1] = {0xfe};
+#if USE_BLE_FRAMING
+      framing.send(ackData, 1);
+#else
       Serial1.write(ackData, 1);
+#endif
       unsigned long loopTime = millis() - loopStartTime;
       
       if (loopTime < 500)
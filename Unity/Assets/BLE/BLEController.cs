@@ -2,6 +2,7 @@
 {
 	using UnityEngine;	
 	using System.Collections;
+	using System.Collections.Generic;
 	using System.Runtime.InteropServices;
 
 
@@ -135,6 +136,46 @@
 			#endif
 		}
 		
+		// Streaming scan: every device is reported with OnBleDidDiscoverPeripheral as soon as it is seen.
+		// The scan lasts durationMs, or until StopScan when durationMs is 0, and ends with OnBleDidCompletePeripheralScan.
+		public static void ScanForPeripheralsWithDuration(long durationMs)
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_ScanForPeripheralsWithDuration", durationMs);
+						}
+                    }
+                }
+            }
+			#endif
+		}
+		
+		public static void StopScan()
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_StopScan");
+						}
+                    }
+                }
+            }
+			#endif
+		}
+		
 		public static bool IsDeviceConnected()
 		{
 			bool isConnected = false;
@@ -283,6 +324,78 @@
 			return result;
 		}
 
+		// Connects the device connected most recently, in this launch or a previous one, without scanning first. A scan looks
+		// for it if it is not connected after fallbackDelayMs. Returns false if there is nothing to connect to: no device has
+		// been connected before, bluetooth is off or the connection can not be started. OnBleDidConnectErrorEvent is raised
+		// if the scan does not find the device.
+		public static bool ConnectLastPeripheral(long fallbackDelayMs = 1000)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_ConnectLastPeripheral",fallbackDelayMs);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Devices connected before, most recent first: [{"address": ..., "name": ..., "mtu": ..., "lastConnected": ...}].
+		public static string GetKnownPeripherals()
+		{
+			string result = null;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<string>("_GetKnownPeripherals");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Removes a device from the known devices, or all of them when address is null.
+		public static bool ForgetPeripheral(string address)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_ForgetPeripheral",address);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
 		public static byte[] GetData()
 		{
 			byte[] result = new byte[3];
@@ -312,16 +425,14 @@
 			return result;
 		}
 
-		public static void SendData(byte[] data)
+		// Returns every packet received since the previous call, from all the connected devices, in a single array.
+		// Layout (native byte order), a 24 byte header: int sequence, int packetCount, int payloadSize, int overflowCount,
+		// long flushTime, then for every packet a 16 byte record header: 6 bytes device address, ushort length,
+		// long receiveTime, followed by the data. The times are in nanoseconds on the elapsedRealtimeNanos clock.
+		public static byte[] GetReceivedDataBatch()
 		{
-			// We check for UNITY_IPHONE again so we don't try this if it isn't iOS platform.
-			#if UNITY_IPHONE
-			// Now we check that it's actually an iOS device/simulator, not the Unity Player. You only get plugins on the actual device or iOS Simulator.
-			if (Application.platform == RuntimePlatform.IPhonePlayer)
-			{
-				_SendData(data);
-			}
-			#elif UNITY_ANDROID
+			byte[] result = new byte[0];
+			#if UNITY_ANDROID
 			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
         	{
 				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
@@ -330,12 +441,935 @@
 					{
 						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
                     	{
-							androidPlugin.Call("_SendData",data);
+							result=androidPlugin.Call<byte[]>("_GetReceivedDataBatch");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// "HIGH", "BALANCED" or "LOW_POWER" connection interval for every connected device and the next ones.
+		public static bool SetConnectionPriority(string priority)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_SetConnectionPriority",priority);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Sends and receives the data as framed messages: SendData accepts messages longer than a packet and
+		// GetData returns whole messages, up to 512 bytes. The device must use Arduino/RobotClient/BleFraming.
+		public static void SetFramingEnabled(bool enabled)
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_SetFramingEnabled",enabled);
+						}
+					}
+				}
+            }
+			#endif
+		}
+
+		// Reconnects the devices whose link is lost, waiting from initialDelayMs up to maxDelayMs between the attempts.
+		// maxAttempts 0 retries until Disconnect. backgroundConnect waits for the device and reuses its services,
+		// otherwise every attempt is a direct connection. OnBleWillReconnectPeripheral is sent before every attempt.
+		public static bool SetAutoReconnect(bool enabled, bool backgroundConnect = false, long initialDelayMs = 100, long maxDelayMs = 5000, int maxAttempts = 0)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_SetAutoReconnect",enabled,backgroundConnect,initialDelayMs,maxDelayMs,maxAttempts);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Subscribes to the notifications or indications of any characteristic of the connected device. Returns the
+		// channel of the characteristic, 0 for the RX characteristic of the BLE shield, -1 if it cannot be subscribed.
+		// OnBleDidReceiveChannelData is sent when a channel has new packets.
+		public static int Subscribe(string address, string serviceUuid, string characteristicUuid)
+		{
+			int result = -1;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<int>("_Subscribe",address,serviceUuid,characteristicUuid);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static bool Unsubscribe(string address, int channel)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_Unsubscribe",address,channel);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Packets received on a channel since the last call, each one prefixed with its length as a big endian short.
+		public static byte[] GetChannelData(string address, int channel)
+		{
+			byte[] result = new byte[0];
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<byte[]>("_GetChannelData",address,channel);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Reads a characteristic. The value is sent with OnBleDidReadAttribute, or to its channel if it is subscribed.
+		public static bool ReadCharacteristic(string address, string serviceUuid, string characteristicUuid)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_ReadCharacteristic",address,serviceUuid,characteristicUuid);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static bool WriteCharacteristic(string address, string serviceUuid, string characteristicUuid, byte[] data, bool withResponse = true)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_WriteCharacteristic",address,serviceUuid,characteristicUuid,data,withResponse);
 						}
 					}
 				}
             }
 			#endif
+			
+			return result;
+		}
+
+		// Reads a descriptor. The value is sent with OnBleDidReadAttribute.
+		public static bool ReadDescriptor(string address, string serviceUuid, string characteristicUuid, string descriptorUuid)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_ReadDescriptor",address,serviceUuid,characteristicUuid,descriptorUuid);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static bool WriteDescriptor(string address, string serviceUuid, string characteristicUuid, string descriptorUuid, byte[] data)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_WriteDescriptor",address,serviceUuid,characteristicUuid,descriptorUuid,data);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Services of the connected device: {"services": [{"uuid": ..., "characteristics": [{"uuid": ..., "properties": 18}]}]}
+		public static string GetServiceLayout(string address)
+		{
+			string result = null;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<string>("_GetServiceLayout",address);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Reads the RSSI of a connected device every minIntervalMs to maxIntervalMs, faster near a threshold or while the
+		// signal moves. OnBleDidCrossRssiThreshold is sent when the filtered RSSI crosses one of the thresholds, in dBm.
+		// The reads are skipped while data is being sent, they never delay SendData.
+		public static bool StartRssiTelemetry(string address, long minIntervalMs = 250, long maxIntervalMs = 4000, int[] thresholds = null)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_StartRssiTelemetry",address,minIntervalMs,maxIntervalMs,thresholds ?? new int[0]);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static void StopRssiTelemetry(string address)
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_StopRssiTelemetry",address);
+						}
+					}
+				}
+            }
+			#endif
+		}
+
+		// {"address": ..., "rssi": -64, "filteredRssi": -62.8, "distance": 1.4, "zone": 1, "interval": 1000}, null before the first read.
+		public static string GetRssi(string address)
+		{
+			string result = null;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<string>("_GetRssi",address);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// measuredPower: RSSI at one meter from the device. pathLossExponent: 2 in an open room, up to 4 through walls.
+		public static bool SetRssiCalibration(int measuredPower, float pathLossExponent = 2f)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_SetRssiCalibration",measuredPower,pathLossExponent);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Sends a ping every intervalMs, echoed by the robot, to measure the round trip of the link: see GetPing and the MetricRoundTrip* values.
+		public static bool StartPing(string address, long intervalMs = 1000)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_StartPing",address,intervalMs);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static void StopPing(string address)
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_StopPing",address);
+						}
+					}
+				}
+            }
+			#endif
+		}
+
+		// Round trip of the latest echoed ping in microseconds, -1 before the first echo.
+		public static long GetPing(string address)
+		{
+			long result = -1;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<long>("_GetPing",address);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Records the scans, connections and packets in a file (for example under Application.persistentDataPath),
+		// until StopSessionRecording. Call it after InitBLEFramework.
+		public static bool StartSessionRecording(string path)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_StartSessionRecording",path);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static bool StopSessionRecording()
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_StopSessionRecording");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Replays a session recorded by StartSessionRecording instead of using the bluetooth hardware, speed times
+		// faster than recorded. Call it before InitBLEFramework.
+		public static bool StartSessionReplay(string path, float speed = 1)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_StartSessionReplay",path,speed);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Time at which the latest packet read by GetData was received, in nanoseconds on the clock of GetElapsedRealtimeNanos.
+		public static long GetDataTimestamp()
+		{
+			long result = 0;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<long>("_GetDataTimestamp");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Current time of the clock of the receive times: GetElapsedRealtimeNanos() - GetDataTimestamp() is the age of the data.
+		public static long GetElapsedRealtimeNanos()
+		{
+			long result = 0;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<long>("_GetElapsedRealtimeNanos");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Indexes of the values returned by GetMetrics. The latencies are in microseconds: from a notification to its signal to Unity,
+		// from a notification to the moment Unity reads it (receive age), and the round trip of the pings of StartPing.
+		public const int MetricPacketsIn = 0;
+		public const int MetricBytesIn = 1;
+		public const int MetricPacketsOut = 2;
+		public const int MetricBytesOut = 3;
+		public const int MetricReceiveOverflows = 4;
+		public const int MetricDroppedWrites = 5;
+		public const int MetricFailedWrites = 6;
+		public const int MetricQueueDepth = 7;
+		public const int MetricMaxQueueDepth = 8;
+		public const int MetricDeliveries = 9;
+		public const int MetricDeliveryLatencyP50 = 10;
+		public const int MetricDeliveryLatencyP90 = 11;
+		public const int MetricDeliveryLatencyP99 = 12;
+		public const int MetricDeliveryLatencyMax = 13;
+		public const int MetricHandoffs = 14;
+		public const int MetricReceiveAgeP50 = 15;
+		public const int MetricReceiveAgeP90 = 16;
+		public const int MetricReceiveAgeP99 = 17;
+		public const int MetricReceiveAgeMax = 18;
+		public const int MetricRoundTrips = 19;
+		public const int MetricRoundTripP50 = 20;
+		public const int MetricRoundTripP90 = 21;
+		public const int MetricRoundTripP99 = 22;
+		public const int MetricRoundTripMax = 23;
+		public const int MetricPingsLost = 24;
+		public const int MetricCount = 25;
+
+		// Counters of the data path since the start or ResetMetrics, read with the Metric* indexes below.
+		public static long[] GetMetrics()
+		{
+			long[] result = new long[MetricCount];
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<long[]>("_GetMetrics");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		public static void ResetMetrics()
+		{
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_ResetMetrics");
+						}
+					}
+				}
+            }
+			#endif
+		}
+
+		// "VERBOSE", "DEBUG", "INFO" (default) or "NONE". The logs of every packet and write are only built at DEBUG.
+		public static bool SetLogLevel(string level)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_SetLogLevel",level);
+						}
+					}
+				}
+            }
+			#endif
+			
+			return result;
+		}
+
+		// Layout of the device list written by ExportDevices, see DeviceListEncoder in the plugin.
+		public const int DeviceListHeaderSize = 32;
+		public const int DeviceRecordHeaderSize = 17;
+		public const int DeviceListFlagFull = 1;
+		public const int DeviceListFlagTruncated = 2;
+		public const int DeviceRecordRemoved = 1;
+
+		#if UNITY_ANDROID
+		// Kept between the calls of the methods polled every frame, ExportDevices and SendDriveCommand, so that they
+		// allocate nothing after the first call
+		private static AndroidJavaObject cachedPlugin;
+		private static System.IntPtr exportMethod;
+		private static System.IntPtr exportAddress;
+		private static jvalue[] exportArgs = new jvalue[1];
+		private static System.IntPtr driveMethod;
+		private static jvalue[] driveArgs = new jvalue[2];
+
+		private static AndroidJavaObject GetCachedPlugin()
+		{
+			if (cachedPlugin == null)
+			{
+				using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+				{
+					using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+					{
+						using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+						{
+							cachedPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity);
+						}
+					}
+				}
+			}
+			return cachedPlugin;
+		}
+		#endif
+
+		// Writes the devices changed since sinceVersion, 0 for the whole list, in the device list buffer of the plugin
+		// and returns its address, IntPtr.Zero when there is no plugin. Read it with a DeviceList, or with Marshal.
+		public static System.IntPtr ExportDevices(long sinceVersion)
+		{
+			System.IntPtr address = System.IntPtr.Zero;
+			#if UNITY_ANDROID
+			AndroidJavaObject plugin = GetCachedPlugin();
+			if (exportMethod == System.IntPtr.Zero)
+			{
+				exportMethod = AndroidJNIHelper.GetMethodID(plugin.GetRawClass(), "_ExportDevices", "(J)I");
+				using (AndroidJavaObject buffer = plugin.Call<AndroidJavaObject>("_GetDeviceListBuffer"))
+				{
+					exportAddress = AndroidJNI.GetDirectBufferAddress(buffer.GetRawObject());
+				}
+			}
+			exportArgs[0].j = sinceVersion;
+			AndroidJNI.CallIntMethod(plugin.GetRawObject(), exportMethod, exportArgs);
+			address = exportAddress;
+			#endif
+
+			return address;
+		}
+
+		// Sends a drive command of the robot protocol (RobotClient.ino): the speeds of the left and right wheels, from
+		// -255 (full backward) to 255. Meant to be called every frame with the joystick input: a command still waiting
+		// to be written is replaced by the newer one, so the robot never works through outdated setpoints.
+		public static bool SendDriveCommand(int left, int right)
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			AndroidJavaObject plugin = GetCachedPlugin();
+			if (driveMethod == System.IntPtr.Zero)
+			{
+				driveMethod = AndroidJNIHelper.GetMethodID(plugin.GetRawClass(), "_SendDriveCommand", "(II)Z");
+			}
+			driveArgs[0].i = left;
+			driveArgs[1].i = right;
+			result = AndroidJNI.CallBooleanMethod(plugin.GetRawObject(), driveMethod, driveArgs);
+			#else
+			left = Mathf.Clamp(left, -255, 255);
+			right = Mathf.Clamp(right, -255, 255);
+			byte direction = left >= 0 ? (right >= 0 ? (byte) 0x11 : (byte) 0x1f) : (right >= 0 ? (byte) 0xf1 : (byte) 0xff);
+			SendData(new byte[]{direction, (byte) Mathf.Abs(left), (byte) Mathf.Abs(right)});
+			result = true;
+			#endif
+
+			return result;
+		}
+
+		// Sends the reset command of the robot protocol, 0xfe 0xfe 0xfe. It is never dropped or replaced.
+		public static bool SendResetCommand()
+		{
+			bool result = false;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							result=androidPlugin.Call<bool>("_SendResetCommand");
+						}
+					}
+				}
+            }
+			#else
+			SendData(new byte[]{0xfe, 0xfe, 0xfe});
+			result = true;
+			#endif
+			
+			return result;
+		}
+
+		// MTU negotiated with the connected device. SendData fragments the messages larger than MTU - 3 bytes.
+		public static int GetMtu()
+		{
+			int mtu = 23;
+			#if UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							mtu=androidPlugin.Call<int>("_GetMtu");
+						}
+					}
+				}
+            }
+			#endif
+			
+			return mtu;
+		}
+
+		public static void SendData(byte[] data)
+		{
+			// We check for UNITY_IPHONE again so we don't try this if it isn't iOS platform.
+			#if UNITY_IPHONE
+			// Now we check that it's actually an iOS device/simulator, not the Unity Player. You only get plugins on the actual device or iOS Simulator.
+			if (Application.platform == RuntimePlatform.IPhonePlayer)
+			{
+				_SendData(data);
+			}
+			#elif UNITY_ANDROID
+			using (AndroidJavaClass javaUnityPlayer = new AndroidJavaClass("com.unity3d.player.UnityPlayer"))
+        	{
+				using (AndroidJavaObject currentActivity = javaUnityPlayer.GetStatic<AndroidJavaObject>("currentActivity"))
+                {
+					using (AndroidJavaClass bleFrameworkClass = new AndroidJavaClass("com.gmurru.bleframework.BleFramework"))
+					{
+						using (AndroidJavaObject androidPlugin = bleFrameworkClass.CallStatic<AndroidJavaObject>("getInstance", currentActivity))
+                    	{
+							androidPlugin.Call("_SendData",data);
+						}
+					}
+				}
+            }
+			#endif
+		}
+	}
+	// Devices found by the scans, kept up to date from the changes exported by the plugin. Update is meant to be
+	// called every frame while scanning: it only reads the devices changed since the previous call and allocates
+	// nothing but the Device of a new device and the name of a device that changed it.
+	public class DeviceList
+	{
+		public class Device
+		{
+			public string Address;
+			public string Name;
+			public int Rssi;
+			public int Sequence;
+			// Milliseconds since the latest advertisement, at the time of the export
+			public int LastSeen;
+
+			internal byte[] NameBytes = new byte[0];
+			internal int Generation;
+		}
+
+		private readonly Dictionary<long, Device> devices = new Dictionary<long, Device>();
+		private readonly List<long> stale = new List<long>();
+		private long version;
+		private int generation;
+		// True from a full list until its last truncated part
+		private bool pruning;
+
+		public Dictionary<long, Device>.ValueCollection Devices
+		{
+			get { return devices.Values; }
+		}
+
+		public int Count
+		{
+			get { return devices.Count; }
+		}
+
+		// Forgets the devices, the next Update reads the whole list
+		public void Clear()
+		{
+			devices.Clear();
+			version = 0;
+			pruning = false;
+		}
+
+		// Returns true if a device was added, changed or removed
+		public bool Update()
+		{
+			System.IntPtr export = BLEController.ExportDevices(version);
+			if (export == System.IntPtr.Zero)
+			{
+				return false;
+			}
+			long nextVersion = Marshal.ReadInt64(export, 0);
+			int flags = Marshal.ReadInt32(export, 16);
+			int recordCount = Marshal.ReadInt32(export, 20);
+			if ((flags & BLEController.DeviceListFlagFull) != 0)
+			{
+				generation++;
+				pruning = true;
+			}
+
+			int offset = BLEController.DeviceListHeaderSize;
+			for (int i = 0; i < recordCount; i++)
+			{
+				long key = 0;
+				for (int j = 0; j < 6; j++)
+				{
+					key = (key << 8) | Marshal.ReadByte(export, offset + j);
+				}
+				int recordFlags = Marshal.ReadByte(export, offset + 6);
+				int nameLength = Marshal.ReadByte(export, offset + 16);
+				if ((recordFlags & BLEController.DeviceRecordRemoved) != 0)
+				{
+					devices.Remove(key);
+				}
+				else
+				{
+					Device device;
+					if (!devices.TryGetValue(key, out device))
+					{
+						device = new Device();
+						device.Address = FormatAddress(key);
+						devices.Add(key, device);
+					}
+					device.Rssi = (sbyte) Marshal.ReadByte(export, offset + 7);
+					device.Sequence = Marshal.ReadInt32(export, offset + 8);
+					device.LastSeen = Marshal.ReadInt32(export, offset + 12);
+					ReadName(device, export, offset + BLEController.DeviceRecordHeaderSize, nameLength);
+					device.Generation = generation;
+				}
+				offset += BLEController.DeviceRecordHeaderSize + nameLength;
+			}
+
+			// A full list replaces the previous one once its last part, when it was cut, has been read
+			if (pruning && (flags & BLEController.DeviceListFlagTruncated) == 0)
+			{
+				pruning = false;
+				stale.Clear();
+				foreach (KeyValuePair<long, Device> entry in devices)
+				{
+					if (entry.Value.Generation != generation)
+					{
+						stale.Add(entry.Key);
+					}
+				}
+				for (int i = 0; i < stale.Count; i++)
+				{
+					devices.Remove(stale[i]);
+				}
+			}
+			bool changed = recordCount > 0 || nextVersion != version;
+			version = nextVersion;
+			return changed;
+		}
+
+		private static void ReadName(Device device, System.IntPtr export, int offset, int length)
+		{
+			bool same = device.NameBytes.Length == length;
+			for (int i = 0; same && i < length; i++)
+			{
+				same = device.NameBytes[i] == Marshal.ReadByte(export, offset + i);
+			}
+			if (same)
+			{
+				return;
+			}
+			device.NameBytes = new byte[length];
+			Marshal.Copy(new System.IntPtr(export.ToInt64() + offset), device.NameBytes, 0, length);
+			device.Name = length == 0 ? null : System.Text.Encoding.UTF8.GetString(device.NameBytes);
+		}
+
+		private static string FormatAddress(long key)
+		{
+			System.Text.StringBuilder address = new System.Text.StringBuilder(17);
+			for (int shift = 40; shift >= 0; shift -= 8)
+			{
+				address.Append(((key >> shift) & 0xFF).ToString("X2"));
+				if (shift > 0)
+				{
+					address.Append(':');
+				}
+			}
+			return address.ToString();
 		}
 	}
 }
@@ -25,6 +25,33 @@
 		public delegate void OnBleDidCompletePeripheralScanEventDelegate(List<object> peripherals);
 		public static event OnBleDidCompletePeripheralScanEventDelegate OnBleDidCompletePeripheralScanEvent;
 		
+		public delegate void OnBleDidDiscoverPeripheralEventDelegate(Dictionary<string, object> peripheral);
+		public static event OnBleDidDiscoverPeripheralEventDelegate OnBleDidDiscoverPeripheralEvent;
+		
+		public delegate void OnBleDidUpdatePeripheralEventDelegate(Dictionary<string, object> peripheral);
+		public static event OnBleDidUpdatePeripheralEventDelegate OnBleDidUpdatePeripheralEvent;
+		
+		public delegate void OnBleDidLosePeripheralEventDelegate(string address);
+		public static event OnBleDidLosePeripheralEventDelegate OnBleDidLosePeripheralEvent;
+		
+		public delegate void OnBleDidChangeStateEventDelegate(string state);
+		public static event OnBleDidChangeStateEventDelegate OnBleDidChangeStateEvent;
+		
+		public delegate void OnBleDidChangeMtuEventDelegate(string address, int mtu);
+		public static event OnBleDidChangeMtuEventDelegate OnBleDidChangeMtuEvent;
+		
+		public delegate void OnBleWillReconnectPeripheralEventDelegate(string address, int attempt, long delayMs);
+		public static event OnBleWillReconnectPeripheralEventDelegate OnBleWillReconnectPeripheralEvent;
+
+		public delegate void OnBleDidReceiveChannelDataEventDelegate(string address, int channel, List<byte[]> packets);
+		public static event OnBleDidReceiveChannelDataEventDelegate OnBleDidReceiveChannelDataEvent;
+
+		public delegate void OnBleDidReadAttributeEventDelegate(string address, string characteristic, string descriptor, int status, byte[] value);
+		public static event OnBleDidReadAttributeEventDelegate OnBleDidReadAttributeEvent;
+
+		public delegate void OnBleDidCrossRssiThresholdEventDelegate(string address, int threshold, bool rising, float filteredRssi, float distance);
+		public static event OnBleDidCrossRssiThresholdEventDelegate OnBleDidCrossRssiThresholdEvent;
+		
 		//errors
 		public delegate void OnBleDidInitializeErrorEventDelegate(string errorMessage);
 		public static event OnBleDidInitializeErrorEventDelegate OnBleDidInitializeErrorEvent;
@@ -129,5 +156,122 @@
 				}
 			}
 		}
+		
+		// message: {"address": "00:11:22:AA:BB:CC", "name": "name", "rssi": -60}
+		void OnBleDidDiscoverPeripheral(string message)
+		{
+			Dictionary<string, object> peripheral = Json.Deserialize(message) as Dictionary<string, object>;
+			if (peripheral != null && OnBleDidDiscoverPeripheralEvent!=null)
+			{
+				OnBleDidDiscoverPeripheralEvent(peripheral);
+			}
+		}
+		
+		void OnBleDidUpdatePeripheral(string message)
+		{
+			Dictionary<string, object> peripheral = Json.Deserialize(message) as Dictionary<string, object>;
+			if (peripheral != null && OnBleDidUpdatePeripheralEvent!=null)
+			{
+				OnBleDidUpdatePeripheralEvent(peripheral);
+			}
+		}
+		
+		// message: address of the device that stopped advertising
+		void OnBleDidLosePeripheral(string message)
+		{
+			if (OnBleDidLosePeripheralEvent!=null)
+			{
+				OnBleDidLosePeripheralEvent(message);
+			}
+		}
+		
+		// message: IDLE, SCANNING, CONNECTING, DISCOVERING, READY, RECONNECTING or DISCONNECTING
+		void OnBleDidChangeState(string message)
+		{
+			if (OnBleDidChangeStateEvent!=null)
+			{
+				OnBleDidChangeStateEvent(message);
+			}
+		}
+		
+		// message: {"address": "00:11:22:AA:BB:CC", "mtu": 247}
+		void OnBleDidChangeMtu(string message)
+		{
+			Dictionary<string, object> mtuInfo = Json.Deserialize(message) as Dictionary<string, object>;
+			if (mtuInfo != null && OnBleDidChangeMtuEvent!=null)
+			{
+				OnBleDidChangeMtuEvent((string)mtuInfo["address"], System.Convert.ToInt32(mtuInfo["mtu"]));
+			}
+		}
+		
+		// message: {"address": "00:11:22:AA:BB:CC", "attempt": 1, "delay": 87}
+		void OnBleWillReconnectPeripheral(string message)
+		{
+			Dictionary<string, object> reconnectInfo = Json.Deserialize(message) as Dictionary<string, object>;
+			if (reconnectInfo != null && OnBleWillReconnectPeripheralEvent!=null)
+			{
+				OnBleWillReconnectPeripheralEvent((string)reconnectInfo["address"], System.Convert.ToInt32(reconnectInfo["attempt"]), System.Convert.ToInt64(reconnectInfo["delay"]));
+			}
+		}
+		
+		// message: {"address": "00:11:22:AA:BB:CC", "channel": 1}, sent once until the channel is read
+		void OnBleDidReceiveChannelData(string message)
+		{
+			Dictionary<string, object> channelInfo = Json.Deserialize(message) as Dictionary<string, object>;
+			if (channelInfo == null)
+			{
+				return;
+			}
+			string address = (string)channelInfo["address"];
+			int channel = System.Convert.ToInt32(channelInfo["channel"]);
+			byte[] data = BLEController.GetChannelData(address, channel);
+			List<byte[]> packets = new List<byte[]>();
+			int offset = 0;
+			while (offset + 2 <= data.Length)
+			{
+				int length = (data[offset] << 8) | data[offset + 1];
+				byte[] packet = new byte[length];
+				System.Array.Copy(data, offset + 2, packet, 0, length);
+				packets.Add(packet);
+				offset += 2 + length;
+			}
+			if (OnBleDidReceiveChannelDataEvent!=null)
+			{
+				OnBleDidReceiveChannelDataEvent(address, channel, packets);
+			}
+		}
+		
+		// message: {"address": "00:11:22:AA:BB:CC", "characteristic": "...", "descriptor": "...", "status": 0, "value": "0a1b"}
+		// descriptor is only there for descriptor reads, value only when status is 0.
+		void OnBleDidReadAttribute(string message)
+		{
+			Dictionary<string, object> readInfo = Json.Deserialize(message) as Dictionary<string, object>;
+			if (readInfo != null && OnBleDidReadAttributeEvent!=null)
+			{
+				string descriptor = readInfo.ContainsKey("descriptor") ? (string)readInfo["descriptor"] : null;
+				byte[] value = readInfo.ContainsKey("value") ? DecodeHex((string)readInfo["value"]) : null;
+				OnBleDidReadAttributeEvent((string)readInfo["address"], (string)readInfo["characteristic"], descriptor, System.Convert.ToInt32(readInfo["status"]), value);
+			}
+		}
+		
+		// message: {"address": "00:11:22:AA:BB:CC", "threshold": -70, "rising": true, "rssi": -66, "filteredRssi": -67.5, "distance": 2.4}
+		void OnBleDidCrossRssiThreshold(string message)
+		{
+			Dictionary<string, object> rssiInfo = Json.Deserialize(message) as Dictionary<string, object>;
+			if (rssiInfo != null && OnBleDidCrossRssiThresholdEvent!=null)
+			{
+				OnBleDidCrossRssiThresholdEvent((string)rssiInfo["address"], System.Convert.ToInt32(rssiInfo["threshold"]), (bool)rssiInfo["rising"], System.Convert.ToSingle(rssiInfo["filteredRssi"]), System.Convert.ToSingle(rssiInfo["distance"]));
+			}
+		}
+		
+		static byte[] DecodeHex(string hex)
+		{
+			byte[] bytes = new byte[hex.Length / 2];
+			for (int i = 0; i < bytes.Length; i++)
+			{
+				bytes[i] = System.Convert.ToByte(hex.Substring(i * 2, 2), 16);
+			}
+			return bytes;
+		}
 	}
 }
\ No newline at end of file
@@ -83,9 +83,7 @@ public class AppControllerBehaviour : MonoBehaviour
 	{
 		searchBleDevicesButton.GetComponent<Button>().enabled = true;
 
-		byte[] resetSignal = new byte[]{0xfe, 0xfe, 0xfe};
-
-		BLEController.SendData(resetSignal);
+		BLEController.SendResetCommand();
 	}
 
 	void HandleBleDevicesListButtonConnectEvent (int buttonIndex)
@@ -117,6 +115,12 @@ public class AppControllerBehaviour : MonoBehaviour
 		
 		Debug.Log("AppControllerBehavior: HandleOnBleDidInitializeEvent: The BLE module did initialize correctly");
 		searchBleDevicesButton.GetComponent<Button>().enabled = true;
+		
+		// Reconnects the robot of the previous launch without a scan, OnBleDidConnect follows once it is ready
+		if (BLEController.ConnectLastPeripheral())
+		{
+			infoMessage.GetComponent<Text>().text = "Connecting to the last device";
+		}
 	}
 
 	void HandleOnBleDidCompletePeripheralScanEvent (List<object> peripherals)